@@ -116,6 +116,8 @@ public final class Constants {
     public static final class Pref {
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
         public static final String PASSPHRASE_CACHE_LAST_TTL = "passphraseCacheLastTtl";
+        public static final String SESSION_KEY_CACHE = "sessionKeyCache";
+        public static final String VERIFIED_SIGNATURE_CACHE = "verifiedSignatureCache";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_VERSION = "keyServersDefaultVersion";
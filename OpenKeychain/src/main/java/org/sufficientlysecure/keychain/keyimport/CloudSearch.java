@@ -18,25 +18,67 @@
 package org.sufficientlysecure.keychain.keyimport;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 
+import org.sufficientlysecure.keychain.network.CancelableCallGroup;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
 
 import java.net.Proxy;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Search two or more types of server for online keys.
+ * <p>
+ * All searches share one bounded executor. Each server gets the same time from the moment its
+ * search starts, searches which run out of it are cancelled without holding up the results of
+ * the others. Their HTTP calls are cancelled too, so they free their thread right away.
  */
 public class CloudSearch {
 
     private final static long SECONDS = 1000;
+    // enough for two searches over all three sources, e.g. while the previous one is cancelled
+    private static final int MAX_THREADS = 6;
+
+    private static ThreadPoolExecutor sSearchExecutor;
+
+    public interface PartialResultListener {
+        /**
+         * Called on the searching thread whenever a server finished while others are still
+         * outstanding. The passed list and its entries are a snapshot, and may be kept.
+         */
+        void onPartialResult(ArrayList<ImportKeysListEntry> results);
+    }
 
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy)
             throws KeyserverClient.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null, null);
+    }
+
+    /**
+     * Like {@link #search(String, Preferences.CloudSearchPrefs, ParcelableProxy)}, but can be
+     * cancelled, and reports the results of servers which finished early.
+     *
+     * @throws OperationCanceledException if the search was cancelled
+     */
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy,
+            @Nullable CancellationSignal cancellationSignal, @Nullable PartialResultListener listener)
+            throws KeyserverClient.CloudSearchFailureException {
 
         final ArrayList<KeyserverClient> servers = new ArrayList<>();
         // it's a Vector for sync, multiple threads might report problems
@@ -56,34 +98,88 @@ public class CloudSearch {
         final ImportKeysList results = new ImportKeysList(numberOfServers);
 
         if (numberOfServers > 0) {
-            ArrayList<Thread> searchThreads = new ArrayList<>();
-            for (final KeyserverClient keyserverClient : servers) {
-                Runnable r = new Runnable() {
+            ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(getExecutor());
+            // wait for each search at most 10 seconds after it started. If using proxy, wait 30 seconds.
+            long timeout = (proxy.getProxy() == Proxy.NO_PROXY ? 10 : 30) * SECONDS;
+            // accessed by the cancel listener as well
+            final ConcurrentHashMap<Future<Void>, SearchTask> searches = new ConcurrentHashMap<>();
+            for (KeyserverClient keyserverClient : servers) {
+                SearchTask task = new SearchTask(keyserverClient, query, proxy, results, problems);
+                searches.put(completionService.submit(task), task);
+            }
+
+            if (cancellationSignal != null) {
+                cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
                     @Override
-                    public void run() {
-                        try {
-                            results.addAll(keyserverClient.search(query, proxy));
-                        } catch (KeyserverClient.CloudSearchFailureException e) {
-                            problems.add(e);
+                    public void onCancel() {
+                        // cancelled searches show up in the completion service, which wakes us up
+                        for (Map.Entry<Future<Void>, SearchTask> search : searches.entrySet()) {
+                            search.getKey().cancel(true);
+                            search.getValue().mCalls.cancel();
                         }
-                        results.finishedAdding(); // notifies if all searchers done
                     }
-                };
-                Thread searchThread = new Thread(r);
-                searchThreads.add(searchThread);
-                searchThread.start();
+                });
             }
 
-            // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-            synchronized (results) {
-                try {
-                    results.wait((proxy.getProxy() == Proxy.NO_PROXY ? 30 : 10) * SECONDS);
-                    for (Thread thread : searchThreads) {
-                        // kill threads that haven't returned yet
-                        thread.interrupt();
+            try {
+                int outstanding = numberOfServers;
+                while (outstanding > 0) {
+                    long now = System.currentTimeMillis();
+                    long nextDeadline = now + timeout;
+                    for (Iterator<Map.Entry<Future<Void>, SearchTask>> it = searches.entrySet().iterator();
+                            it.hasNext(); ) {
+                        Map.Entry<Future<Void>, SearchTask> search = it.next();
+                        long startTime = search.getValue().mStartTime;
+                        if (startTime == 0) {
+                            // still queued, its time starts once it runs. check back soon
+                            nextDeadline = Math.min(nextDeadline, now + SECONDS);
+                            continue;
+                        }
+                        if (startTime + timeout <= now) {
+                            it.remove();
+                            cancelSearch(search.getKey(), search.getValue());
+                            outstanding -= 1;
+                        } else {
+                            nextDeadline = Math.min(nextDeadline, startTime + timeout);
+                        }
+                    }
+                    if (outstanding == 0) {
+                        break;
+                    }
+
+                    Future<Void> done = completionService.poll(nextDeadline - now, TimeUnit.MILLISECONDS);
+                    if (cancellationSignal != null) {
+                        cancellationSignal.throwIfCanceled();
+                    }
+                    // timed out searches show up here after they were cancelled, ignore them
+                    if (done == null || searches.remove(done) == null) {
+                        continue;
+                    }
+                    outstanding -= 1;
+
+                    if (listener != null && outstanding > 0) {
+                        // copies, since the remaining servers may still merge into the entries
+                        ArrayList<ImportKeysListEntry> snapshot;
+                        synchronized (results) {
+                            snapshot = new ArrayList<>(results.size());
+                            for (ImportKeysListEntry entry : results) {
+                                snapshot.add(entry.copy());
+                            }
+                        }
+                        listener.onPartialResult(snapshot);
                     }
-                } catch (InterruptedException ignored) {
                 }
+            } catch (InterruptedException ignored) {
+            } finally {
+                // kill searches that haven't returned yet
+                for (Map.Entry<Future<Void>, SearchTask> search : searches.entrySet()) {
+                    cancelSearch(search.getKey(), search.getValue());
+                }
+                if (cancellationSignal != null) {
+                    cancellationSignal.setOnCancelListener(null);
+                }
+                // threads may not notice right away, make sure they leave the results alone
+                results.closeForAdding();
             }
 
             if (results.outstandingSuppliers() > 0) {
@@ -108,4 +204,69 @@ public class CloudSearch {
 
         return results;
     }
+
+    private static void cancelSearch(Future<Void> future, SearchTask task) {
+        if (future.cancel(true)) {
+            Timber.d("Cloud search timed out: " + task.mKeyserverClient.getClass().getSimpleName());
+        }
+        // interrupting the thread doesn't stop it from waiting for the server
+        task.mCalls.cancel();
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sSearchExecutor == null) {
+            sSearchExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            sSearchExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sSearchExecutor;
+    }
+
+    private static class SearchTask implements Callable<Void> {
+        final KeyserverClient mKeyserverClient;
+        final CancelableCallGroup mCalls = new CancelableCallGroup();
+        // zero while the task is queued
+        volatile long mStartTime;
+
+        private final String mQuery;
+        private final ParcelableProxy mProxy;
+        private final ImportKeysList mResults;
+        private final Vector<KeyserverClient.CloudSearchFailureException> mProblems;
+
+        SearchTask(KeyserverClient keyserverClient, String query, ParcelableProxy proxy,
+                ImportKeysList results, Vector<KeyserverClient.CloudSearchFailureException> problems) {
+            mKeyserverClient = keyserverClient;
+            mQuery = query;
+            mProxy = proxy;
+            mResults = results;
+            mProblems = problems;
+        }
+
+        @Override
+        public Void call() {
+            mStartTime = System.currentTimeMillis();
+            mCalls.attachToCurrentThread();
+            try {
+                if (mKeyserverClient instanceof HkpKeyserverClient) {
+                    // keys are added while the index is read, so they are shown
+                    // even if the download doesn't finish in time
+                    ((HkpKeyserverClient) mKeyserverClient).search(mQuery, mProxy,
+                            new HkpIndexParser.EntryListener() {
+                                @Override
+                                public void onEntry(ImportKeysListEntry entry) {
+                                    mResults.add(entry);
+                                }
+                            });
+                } else {
+                    mResults.addAll(mKeyserverClient.search(mQuery, mProxy));
+                }
+            } catch (KeyserverClient.CloudSearchFailureException e) {
+                mProblems.add(e);
+            } finally {
+                CancelableCallGroup.detach();
+            }
+            mResults.finishedAdding();
+            return null;
+        }
+    }
 }
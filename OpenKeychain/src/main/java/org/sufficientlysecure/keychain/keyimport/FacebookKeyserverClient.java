@@ -32,6 +32,7 @@ import android.support.annotation.Nullable;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
+import org.sufficientlysecure.keychain.network.CancelableCallGroup;
 import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
@@ -111,7 +112,7 @@ public class FacebookKeyserverClient implements KeyserverClient {
                     .build();
 
             OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url, proxy.getProxy());
-            Response response = client.newCall(request).execute();
+            Response response = CancelableCallGroup.newCall(client, request).execute();
 
             // contains body both in case of success or failure
             String responseBody = response.body().string();
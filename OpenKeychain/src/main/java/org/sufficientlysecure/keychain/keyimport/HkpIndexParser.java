@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import timber.log.Timber;
+
+
+/**
+ * Line by line parser for the machine readable index returned by HKP keyservers. Entries are
+ * passed on as soon as all of their lines have been read, so only a single key is held in
+ * memory at a time.
+ * <p>
+ * The index consists of one pub line per key, followed by one or more uid lines:
+ * <pre>
+ * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+ * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+ * </pre>
+ * <ul>
+ * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
+ * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
+ * </li>
+ * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+ * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+ * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+ * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
+ * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
+ * desired.</li>
+ * <li>%<b>creationdate</b>%, %<b>expirationdate</b>% = dates in standard
+ * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+ * seconds since 1/1/1970 UTC time)</li>
+ * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+ * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+ * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
+ * detail.
+ * <ul>
+ * <li>r == revoked</li>
+ * <li>d == disabled</li>
+ * <li>e == expired</li>
+ * </ul>
+ * </li>
+ * </ul>
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+ * 5.2. Machine Readable Indexes</a>
+ * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+ */
+class HkpIndexParser {
+
+    interface EntryListener {
+        void onEntry(ImportKeysListEntry entry);
+    }
+
+    private final String mQuery;
+    private final HkpKeyserverAddress mKeyserver;
+    private final int mMaxEntries;
+    private final long mNowMillis;
+
+    // state of the key whose lines are currently being read
+    private ImportKeysListEntry mEntry;
+    private ArrayList<String> mUserIds;
+    private int mEntryCount;
+
+    HkpIndexParser(String query, HkpKeyserverAddress keyserver, int maxEntries) {
+        mQuery = query;
+        mKeyserver = keyserver;
+        mMaxEntries = maxEntries;
+        mNowMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads the index until its end, or until the maximum number of entries was passed on.
+     *
+     * @return true if reading stopped because the maximum number of entries was reached
+     */
+    boolean parse(Reader reader, EntryListener listener) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            line = line.trim();
+            if (startsWithIgnoreCase(line, "pub:")) {
+                finishEntry(listener);
+                if (mEntryCount >= mMaxEntries) {
+                    return true;
+                }
+                startEntry(line);
+            } else if (startsWithIgnoreCase(line, "uid:")) {
+                addUserId(line);
+            }
+        }
+        finishEntry(listener);
+        return false;
+    }
+
+    private void startEntry(String line) {
+        mEntry = null;
+        mUserIds = null;
+
+        // pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+        String[] fields = line.split(":", -1);
+        if (fields.length < 7) {
+            Timber.e("Malformed pub line in keyserver index.");
+            return;
+        }
+
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(mQuery);
+
+        // field 1 contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = fields[1].toLowerCase(Locale.ENGLISH);
+        if (!isHex(fingerprintOrKeyId)) {
+            Timber.e("Malformed fingerprint/long key id.");
+            return;
+        }
+        if (fingerprintOrKeyId.length() == 40) {
+            byte[] fingerprint = KeyFormattingUtils.convertFingerprintHexFingerprint(fingerprintOrKeyId);
+            entry.setFingerprint(fingerprint);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(24));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Timber.e("Wrong length for fingerprint/long key id.");
+            // skip this key
+            return;
+        }
+
+        long expirationDate;
+        try {
+            int bitSize = Integer.parseInt(fields[3]);
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.decode(fields[2]);
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            long creationDate = Long.parseLong(fields[4]);
+            entry.setDate(new Date(creationDate * 1000));
+
+            expirationDate = fields[5].isEmpty() ? 0 : Long.parseLong(fields[5]);
+        } catch (NumberFormatException e) {
+            Timber.e(e, "Conversation for bit size, algorithm, or creation date failed.");
+            // skip this key
+            return;
+        }
+
+        String flags = fields[6];
+        entry.setRevoked(flags.indexOf('r') >= 0 || flags.indexOf('R') >= 0);
+        // It may be expired even without flag, thus check expiration date
+        boolean expired = flags.indexOf('e') >= 0 || flags.indexOf('E') >= 0
+                || (expirationDate != 0 && expirationDate * 1000 <= mNowMillis);
+        entry.setExpired(expired);
+
+        mEntry = entry;
+        mUserIds = new ArrayList<>();
+    }
+
+    private void addUserId(String line) {
+        if (mEntry == null) {
+            // uid of a skipped key
+            return;
+        }
+
+        // uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+        int end = line.indexOf(':', 4);
+        String tmp = (end < 0 ? line.substring(4) : line.substring(4, end)).trim();
+        if (tmp.contains("%")) {
+            if (tmp.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                tmp = tmp.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                tmp = URLDecoder.decode(tmp, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Timber.e(e, "User ID encoding broken");
+                // skip this user id
+                return;
+            }
+        }
+        mUserIds.add(tmp);
+    }
+
+    private void finishEntry(EntryListener listener) {
+        ImportKeysListEntry entry = mEntry;
+        ArrayList<String> userIds = mUserIds;
+        mEntry = null;
+        mUserIds = null;
+
+        // keys without any (readable) user id are skipped
+        if (entry == null || userIds.isEmpty()) {
+            return;
+        }
+
+        entry.setUserIds(userIds);
+        entry.setPrimaryUserId(userIds.get(0));
+        entry.setKeyserver(mKeyserver);
+
+        mEntryCount += 1;
+        listener.onEntry(entry);
+    }
+
+    private static boolean startsWithIgnoreCase(String line, String prefix) {
+        return line.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private static boolean isHex(String str) {
+        if (str.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -19,19 +19,14 @@ package org.sufficientlysecure.keychain.keyimport;
 
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.TimeZone;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.support.annotation.NonNull;
 
@@ -41,9 +36,9 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import org.sufficientlysecure.keychain.network.CancelableCallGroup;
 import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
 import timber.log.Timber;
 
@@ -51,70 +46,8 @@ import static java.util.Locale.ENGLISH;
 
 
 public class HkpKeyserverClient implements KeyserverClient {
-    /**
-     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
-     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
-     * </li>
-     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
-     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
-     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
-     * detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     *
-     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
-     * 5.2. Machine Readable Indexes</a>
-     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
-     */
-    private static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                            + "((uid:([^:]*):([0-9]+):([0-9]*):([rde]*)[ \n\r]*)+)", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE
-            );
-
-    /**
-     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that
-     * isn't 7-bit safe as well as for the ":" character.  Any other characters may be escaped, as
-     * desired.</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of
-     * the detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     */
-    private static final Pattern UID_LINE = Pattern
-            .compile("uid:([^:]*):([0-9]+):([0-9]*):([rde]*)",
-                    Pattern.CASE_INSENSITIVE);
+    // more results are hardly useful, and would only cost memory
+    private static final int MAX_SEARCH_ENTRIES = 1000;
 
     private static final Charset UTF_8 = Charset.forName("utf-8");
 
@@ -134,13 +67,26 @@ public class HkpKeyserverClient implements KeyserverClient {
     @Override
     public ArrayList<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
             throws KeyserverClient.QueryFailedException, KeyserverClient.QueryNeedsRepairException {
-        ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        search(query, proxy, new HkpIndexParser.EntryListener() {
+            @Override
+            public void onEntry(ImportKeysListEntry entry) {
+                results.add(entry);
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Like {@link #search(String, ParcelableProxy)}, but passes on each entry as soon as it was
+     * read from the response, instead of waiting for the whole response.
+     */
+    void search(String query, ParcelableProxy proxy, HkpIndexParser.EntryListener listener)
+            throws KeyserverClient.QueryFailedException, KeyserverClient.QueryNeedsRepairException {
         if (query.length() < 3) {
             throw new KeyserverClient.QueryTooShortException();
         }
 
-        String data;
         try {
             HttpUrl url = getHttpUrl(proxy).newBuilder()
                     .addPathSegment("lookup")
@@ -151,7 +97,21 @@ public class HkpKeyserverClient implements KeyserverClient {
 
             Timber.d("Keyserver search: " + url + " using Proxy: " + proxy.getProxy());
 
-            data = query(url, proxy);
+            Response response = execute(url, proxy);
+            try {
+                if (!response.isSuccessful()) {
+                    throw new HttpError(response.code(), getResponseBodyAsUtf8(response));
+                }
+
+                HkpIndexParser parser = new HkpIndexParser(query, hkpKeyserver, MAX_SEARCH_ENTRIES);
+                if (parser.parse(response.body().charStream(), listener)) {
+                    Timber.d("Keyserver search returned more than " + MAX_SEARCH_ENTRIES + " keys, ignoring the rest");
+                }
+            } finally {
+                response.close();
+            }
+        } catch (IOException e) {
+            throw createNetworkError(e, proxy);
         } catch (URISyntaxException e) {
             throw new IllegalStateException("Unsupported keyserver URI");
         } catch (HttpError e) {
@@ -160,7 +120,7 @@ public class HkpKeyserverClient implements KeyserverClient {
 
                 if (e.getData().toLowerCase(Locale.ENGLISH).contains("no keys found")) {
                     // NOTE: This is also a 404 error for some keyservers!
-                    return results;
+                    return;
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("too many")) {
                     throw new KeyserverClient.TooManyResponsesException();
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("insufficient")) {
@@ -176,96 +136,6 @@ public class HkpKeyserverClient implements KeyserverClient {
 
             throw new KeyserverClient.QueryFailedException("Querying server(s) for '" + hkpKeyserver.getUrl() + "' failed.");
         }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() == 40) {
-                byte[] fingerprint = KeyFormattingUtils.convertFingerprintHexFingerprint(fingerprintOrKeyId);
-                entry.setFingerprint(fingerprint);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else if (fingerprintOrKeyId.length() == 16) {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            } else {
-                Timber.e("Wrong length for fingerprint/long key id.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                int bitSize = Integer.parseInt(matcher.group(3));
-                entry.setBitStrength(bitSize);
-                int algorithmId = Integer.decode(matcher.group(2));
-                entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
-
-                long creationDate = Long.parseLong(matcher.group(4));
-                GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                calendar.setTimeInMillis(creationDate * 1000);
-                entry.setDate(calendar.getTime());
-            } catch (NumberFormatException e) {
-                Timber.e(e, "Conversation for bit size, algorithm, or creation date failed.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                entry.setRevoked(matcher.group(6).contains("r"));
-                boolean expired = matcher.group(6).contains("e");
-
-                // It may be expired even without flag, thus check expiration date
-                String expiration;
-                if (!expired && !(expiration = matcher.group(5)).isEmpty()) {
-                    long expirationDate = Long.parseLong(expiration);
-                    TimeZone timeZoneUTC = TimeZone.getTimeZone("UTC");
-                    GregorianCalendar calendar = new GregorianCalendar(timeZoneUTC);
-                    calendar.setTimeInMillis(expirationDate * 1000);
-                    expired = new GregorianCalendar(timeZoneUTC).compareTo(calendar) >= 0;
-                }
-                entry.setExpired(expired);
-            } catch (NullPointerException e) {
-                Timber.e(e, "Check for revocation or expiry failed.");
-                // skip this key
-                continue;
-            }
-
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    } catch (IllegalArgumentException e) {
-                        Timber.e(e, "User ID encoding broken");
-                        // skip this user id
-                        continue;
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
-            entry.setKeyserver(hkpKeyserver);
-
-            results.add(entry);
-        }
-        return results;
     }
 
     @Override
@@ -355,15 +225,7 @@ public class HkpKeyserverClient implements KeyserverClient {
 
     private String query(HttpUrl url, @NonNull ParcelableProxy proxy) throws KeyserverClient.QueryFailedException, HttpError {
         try {
-            OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url.url(), proxy.getProxy());
-
-            Request request = new Request.Builder()
-                    .url(url)
-                    .build();
-
-            Response response = client
-                    .newCall(request)
-                    .execute();
+            Response response = execute(url, proxy);
 
             // contains body both in case of success or failure
             String responseBody = getResponseBodyAsUtf8(response);
@@ -374,16 +236,30 @@ public class HkpKeyserverClient implements KeyserverClient {
                 throw new HttpError(response.code(), responseBody);
             }
         } catch (IOException e) {
-            Timber.e(e, "IOException at HkpKeyserver");
-            String proxyInfo = proxy.getProxy() == Proxy.NO_PROXY ? "" : " Using proxy " + proxy.getProxy();
-            Throwable cause = e.getCause();
-            String causeName = cause != null ? cause.getClass().getSimpleName() : "generic";
-            throw new KeyserverClient.QueryFailedException(String.format(
-                    "Network error (%s) for '%s'. Check your Internet connection! %s",
-                    causeName, hkpKeyserver.getUrl(), proxyInfo));
+            throw createNetworkError(e, proxy);
         }
     }
 
+    private Response execute(HttpUrl url, @NonNull ParcelableProxy proxy) throws IOException {
+        OkHttpClient client = OkHttpClientFactory.getClientPinnedIfAvailable(url.url(), proxy.getProxy());
+
+        Request request = new Request.Builder()
+                .url(url)
+                .build();
+
+        return CancelableCallGroup.newCall(client, request).execute();
+    }
+
+    private KeyserverClient.QueryFailedException createNetworkError(IOException e, @NonNull ParcelableProxy proxy) {
+        Timber.e(e, "IOException at HkpKeyserver");
+        String proxyInfo = proxy.getProxy() == Proxy.NO_PROXY ? "" : " Using proxy " + proxy.getProxy();
+        Throwable cause = e.getCause();
+        String causeName = cause != null ? cause.getClass().getSimpleName() : "generic";
+        return new KeyserverClient.QueryFailedException(String.format(
+                "Network error (%s) for '%s'. Check your Internet connection! %s",
+                causeName, hkpKeyserver.getUrl(), proxyInfo));
+    }
+
     private String getResponseBodyAsUtf8(Response response) throws IOException {
         String responseBody;
         byte[] responseBytes = response.body().bytes();
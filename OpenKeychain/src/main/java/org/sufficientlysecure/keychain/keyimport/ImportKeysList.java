@@ -17,15 +17,23 @@
 
 package org.sufficientlysecure.keychain.keyimport;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
+ * <p>
+ * Entries are indexed by fingerprint, so finding the dupe of an incoming entry doesn't need a
+ * scan over all previous results. Entries must only be added through add/addAll, or the index
+ * goes out of sync.
  */
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
+    private boolean mClosedForAdding;
+    private final HashMap<ByteBuffer, ImportKeysListEntry> mFingerprintIndex = new HashMap<>();
 
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
@@ -37,8 +45,10 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
         return true; // that’s what the ArrayList#add contract says
     }
 
+    // NOTE: synchronized, once for all entries of a supplier
     @Override
-    public boolean addAll(Collection<? extends ImportKeysListEntry> addThese) {
+    public synchronized boolean addAll(Collection<? extends ImportKeysListEntry> addThese) {
+        ensureCapacity(size() + addThese.size());
         boolean modified = false;
         for (ImportKeysListEntry toAdd : addThese) {
             modified = addOrMerge(toAdd) || modified;
@@ -46,14 +56,31 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
         return modified;
     }
 
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        mFingerprintIndex.clear();
+    }
+
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
-                return mergeDupes(toAdd, existing);
-            }
+        if (mClosedForAdding) {
+            return false;
+        }
+
+        // entries without fingerprint are never the same key as another, see hasSameKeyAs
+        byte[] fingerprint = toAdd.getFingerprint();
+        if (fingerprint == null) {
+            return super.add(toAdd);
         }
+
+        ByteBuffer key = ByteBuffer.wrap(fingerprint);
+        ImportKeysListEntry existing = mFingerprintIndex.get(key);
+        if (existing != null) {
+            return mergeDupes(toAdd, existing);
+        }
+        mFingerprintIndex.put(key, toAdd);
         return super.add(toAdd);
     }
 
@@ -105,6 +132,11 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
         }
     }
 
+    /** Ignores all entries added from now on, for suppliers which didn't finish in time. */
+    public synchronized void closeForAdding() {
+        mClosedForAdding = true;
+    }
+
     public int outstandingSuppliers() {
         return mSupplierCount;
     }
@@ -307,6 +307,33 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         }
     }
 
+    /**
+     * Returns a copy of this entry, which is not affected by dupes merged into this one later on.
+     */
+    public ImportKeysListEntry copy() {
+        ImportKeysListEntry copy = new ImportKeysListEntry();
+        copy.mParcelableKeyRing = mParcelableKeyRing;
+        copy.mKeyIdHex = mKeyIdHex;
+        copy.mSecretKey = mSecretKey;
+        copy.mRevoked = mRevoked;
+        copy.mExpired = mExpired;
+        copy.mSecure = mSecure;
+        copy.mUpdated = mUpdated;
+        copy.mDate = mDate;
+        copy.mFingerprint = mFingerprint;
+        copy.mBitStrength = mBitStrength;
+        copy.mCurveOid = mCurveOid;
+        copy.mAlgorithm = mAlgorithm;
+        copy.mPrimaryUserId = mPrimaryUserId;
+        copy.mKeyserver = mKeyserver;
+        copy.mKeybaseName = mKeybaseName;
+        copy.mFbUsername = mFbUsername;
+        copy.mQuery = mQuery;
+        copy.mHashCode = mHashCode;
+        copy.setUserIds(new ArrayList<>(mUserIds));
+        return copy;
+    }
+
     private void updateMergedUserIds() {
         mMergedUserIds = new HashMap<>();
         for (String userId : mUserIds) {
@@ -18,8 +18,12 @@
 package org.sufficientlysecure.keychain.keyimport.processing;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 
 import org.sufficientlysecure.keychain.keyimport.CloudSearch;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
@@ -47,6 +51,9 @@ public class ImportKeysListCloudLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private CancellationSignal mCancellationSignal;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     /**
      * Searches a keyserver as specified in cloudPrefs, using an explicit proxy if passed
      *
@@ -74,11 +81,24 @@ public class ImportKeysListCloudLoader
             return mEntryListWrapper;
         }
 
-        if (mState.mServerQuery.startsWith("0x") && mState.mServerQuery.length() == 42) {
-            Timber.d("This search is based on a unique fingerprint. Enforce a fingerprint check!");
-            queryServer(true);
-        } else {
-            queryServer(false);
+        // same as in CursorLoader, so a changed query stops the running search
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+        try {
+            if (mState.mServerQuery.startsWith("0x") && mState.mServerQuery.length() == 42) {
+                Timber.d("This search is based on a unique fingerprint. Enforce a fingerprint check!");
+                queryServer(true);
+            } else {
+                queryServer(false);
+            }
+        } finally {
+            synchronized (this) {
+                mCancellationSignal = null;
+            }
         }
 
         // Now we have all the data needed to build the parcelable key ring for this key
@@ -90,6 +110,17 @@ public class ImportKeysListCloudLoader
         return mEntryListWrapper;
     }
 
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
     @Override
     protected void onReset() {
         super.onReset();
@@ -137,10 +168,20 @@ public class ImportKeysListCloudLoader
         }
 
         try {
+            // a fingerprint search must be checked for a single result, so there's nothing to show early
+            CloudSearch.PartialResultListener partialResultListener = enforceFingerprint ? null :
+                    new CloudSearch.PartialResultListener() {
+                        @Override
+                        public void onPartialResult(ArrayList<ImportKeysListEntry> results) {
+                            deliverPartialResult(results);
+                        }
+                    };
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mState.mServerQuery,
                     mState.mCloudPrefs,
-                    proxy
+                    proxy,
+                    mCancellationSignal,
+                    partialResultListener
             );
 
             mEntryList.clear();
@@ -192,4 +233,30 @@ public class ImportKeysListCloudLoader
             mEntryListWrapper = new AsyncTaskResultWrapper<>(mEntryList, getKeyResult);
         }
     }
+
+    /**
+     * Shows the results of the servers which already answered, while the others are still
+     * being waited for.
+     */
+    private void deliverPartialResult(ArrayList<ImportKeysListEntry> results) {
+        if (results.isEmpty()) {
+            return;
+        }
+        for (ImportKeysListEntry e : results) {
+            e.setParcelableKeyRing(ParcelableKeyRing.createFromReference(e.getFingerprint(), e.getKeyIdHex(),
+                    e.getKeybaseName(), e.getFbUsername()));
+        }
+
+        GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialResult =
+                new AsyncTaskResultWrapper<>(results, getKeyResult);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned()) {
+                    deliverResult(partialResult);
+                }
+            }
+        });
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.network;
+
+
+import java.util.ArrayList;
+
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+
+/**
+ * Collects the calls made on a thread while the group is attached to it, so another thread can
+ * cancel them. Interrupting a thread doesn't stop OkHttp from blocking on a socket until its
+ * read timeout, cancelling the call closes the socket right away, even while the response body
+ * is being read.
+ */
+public class CancelableCallGroup {
+    private static final ThreadLocal<CancelableCallGroup> sAttachedGroup = new ThreadLocal<>();
+
+    private final ArrayList<Call> mCalls = new ArrayList<>();
+    private boolean mCancelled;
+
+    /** Creates a call, which joins the group attached to the current thread, if there is one. */
+    public static Call newCall(OkHttpClient client, Request request) {
+        Call call = client.newCall(request);
+        CancelableCallGroup group = sAttachedGroup.get();
+        if (group != null) {
+            group.add(call);
+        }
+        return call;
+    }
+
+    /** Calls made on the current thread join this group, until {@link #detach()} is called. */
+    public void attachToCurrentThread() {
+        sAttachedGroup.set(this);
+    }
+
+    public static void detach() {
+        sAttachedGroup.remove();
+    }
+
+    /** Cancels all calls of this group, including those which are made from now on. */
+    public void cancel() {
+        ArrayList<Call> calls;
+        synchronized (this) {
+            mCancelled = true;
+            calls = new ArrayList<>(mCalls);
+            mCalls.clear();
+        }
+        for (Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    private void add(Call call) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mCalls.add(call);
+                return;
+            }
+        }
+        call.cancel();
+    }
+
+}
@@ -18,36 +18,84 @@
 package org.sufficientlysecure.keychain.network;
 
 
+import java.io.IOException;
 import java.net.Proxy;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.CertificatePinner;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
+import okhttp3.Response;
 
+/**
+ * All clients handed out here are derived from a single base client, so they share its
+ * connection pool and dispatcher. Connections, including their TLS sessions and HTTP/2 streams,
+ * are kept alive and reused across requests to the same host, no matter which client made them.
+ * <p>
+ * Keyserver clients are cached per proxy and certificate pinning configuration.
+ */
 public class OkHttpClientFactory {
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+
+    private static final ConnectionReuseInterceptor sConnectionReuseInterceptor =
+            new ConnectionReuseInterceptor();
+
+    private static OkHttpClient sBaseClient;
     private static OkHttpClient client;
+    private static final HashMap<ClientConfig, OkHttpClient> sKeyserverClients = new HashMap<>();
 
-    public static OkHttpClient getSimpleClient() {
-        if (client == null) {
-            client = new OkHttpClient.Builder()
+    private static synchronized OkHttpClient getBaseClient() {
+        if (sBaseClient == null) {
+            sBaseClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(
+                            MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    .addNetworkInterceptor(sConnectionReuseInterceptor)
                     .connectTimeout(5000, TimeUnit.MILLISECONDS)
                     .readTimeout(25000, TimeUnit.MILLISECONDS)
                     .build();
         }
+        return sBaseClient;
+    }
+
+    public static synchronized OkHttpClient getSimpleClient() {
+        if (client == null) {
+            client = getBaseClient();
+        }
         return client;
     }
 
     public static OkHttpClient getSimpleClientPinned(CertificatePinner pinner) {
-        return new OkHttpClient.Builder()
-                .connectTimeout(5000, TimeUnit.MILLISECONDS)
-                .readTimeout(25000, TimeUnit.MILLISECONDS)
+        return getBaseClient().newBuilder()
                 .certificatePinner(pinner)
                 .build();
     }
 
     public static OkHttpClient getClientPinnedIfAvailable(URL url, Proxy proxy) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        // If a pinned cert is available, use it!
+        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
+        TlsCertificatePinning tlsCertificatePinning = new TlsCertificatePinning(url);
+        boolean isHttpsProtocol = "https".equals(url.getProtocol());
+        boolean isPinAvailable = tlsCertificatePinning.isPinAvailable();
+        boolean usePinning = isHttpsProtocol && isPinAvailable;
+
+        // a pinned client only accepts the certificate of its host, so those are kept per host
+        ClientConfig config = new ClientConfig(proxy, usePinning ? url.getHost() : null);
+        synchronized (sKeyserverClients) {
+            OkHttpClient cachedClient = sKeyserverClients.get(config);
+            if (cachedClient != null) {
+                return cachedClient;
+            }
+        }
+
+        OkHttpClient.Builder builder = getBaseClient().newBuilder();
 
         // don't follow any redirects for keyservers, as discussed in the security audit
         builder.followRedirects(false)
@@ -58,21 +106,91 @@ public class OkHttpClientFactory {
             builder.proxy(proxy);
             builder.connectTimeout(30000, TimeUnit.MILLISECONDS)
                     .readTimeout(45000, TimeUnit.MILLISECONDS);
-        } else {
-            builder.connectTimeout(5000, TimeUnit.MILLISECONDS)
-                    .readTimeout(25000, TimeUnit.MILLISECONDS);
         }
 
-        // If a pinned cert is available, use it!
-        // NOTE: this fails gracefully back to "no pinning" if no cert is available.
-        TlsCertificatePinning tlsCertificatePinning = new TlsCertificatePinning(url);
-        boolean isHttpsProtocol = "https".equals(url.getProtocol());
-        boolean isPinAvailable = tlsCertificatePinning.isPinAvailable();
-        if (isHttpsProtocol && isPinAvailable) {
+        if (usePinning) {
             tlsCertificatePinning.pinCertificate(builder);
         }
 
-        return builder.build();
+        OkHttpClient newClient = builder.build();
+        synchronized (sKeyserverClients) {
+            OkHttpClient cachedClient = sKeyserverClients.get(config);
+            if (cachedClient != null) {
+                return cachedClient;
+            }
+            sKeyserverClients.put(config, newClient);
+        }
+        return newClient;
+    }
+
+    /** Returns the number of requests made through any of the clients. */
+    public static long getRequestCount() {
+        return sConnectionReuseInterceptor.getRequestCount();
+    }
+
+    /** Returns the number of requests which were made on a connection that was used before. */
+    public static long getReusedConnectionCount() {
+        return sConnectionReuseInterceptor.getReusedConnectionCount();
+    }
+
+    /** Returns the number of connections that are currently open, idle or not. */
+    public static int getOpenConnectionCount() {
+        return getBaseClient().connectionPool().connectionCount();
+    }
+
+    private static class ClientConfig {
+        private final Proxy mProxy;
+        private final String mPinnedHost;
+
+        ClientConfig(Proxy proxy, String pinnedHost) {
+            mProxy = proxy;
+            mPinnedHost = pinnedHost;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClientConfig)) {
+                return false;
+            }
+            ClientConfig other = (ClientConfig) o;
+            return (mProxy == null ? other.mProxy == null : mProxy.equals(other.mProxy))
+                    && (mPinnedHost == null ? other.mPinnedHost == null : mPinnedHost.equals(other.mPinnedHost));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mProxy != null ? mProxy.hashCode() : 0;
+            result = 31 * result + (mPinnedHost != null ? mPinnedHost.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /** Counts the requests made on connections which were already used for an earlier one. */
+    private static class ConnectionReuseInterceptor implements Interceptor {
+        private final Set<Connection> mSeenConnections =
+                Collections.newSetFromMap(new WeakHashMap<Connection, Boolean>());
+        private long mRequests;
+        private long mReusedConnections;
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Connection connection = chain.connection();
+            synchronized (this) {
+                mRequests += 1;
+                if (connection != null && !mSeenConnections.add(connection)) {
+                    mReusedConnections += 1;
+                }
+            }
+            return chain.proceed(chain.request());
+        }
+
+        synchronized long getRequestCount() {
+            return mRequests;
+        }
+
+        synchronized long getReusedConnectionCount() {
+            return mReusedConnections;
+        }
     }
 
 }
@@ -43,7 +43,7 @@ public class OkHttpKeybaseClient implements KeybaseUrlConnectionClient {
 
         Request request = new Request.Builder()
                 .url(url).build();
-        okhttp3.Response okResponse = client.newCall(request).execute();
+        okhttp3.Response okResponse = CancelableCallGroup.newCall(client, request).execute();
         return new Response(okResponse.body().byteStream(), okResponse.code(), okResponse.message(), okResponse.headers().toMultimap());
     }
 
@@ -19,13 +19,20 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -53,6 +60,7 @@ import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.KeyRingHeader;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
@@ -86,6 +94,9 @@ import timber.log.Timber;
 public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    /** Local imports of at least this many keys are written in bulk, see bulkKeyRingImport */
+    private static final int BULK_IMPORT_THRESHOLD = 100;
+    private static final int BULK_IMPORT_QUEUE_SIZE = 64;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
     private FacebookKeyserverClient facebookServer;
@@ -103,7 +114,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     // Overloaded functions for using progressable supplied in constructor during import
     public ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
                                                HkpKeyserverAddress keyserver, ParcelableProxy proxy, boolean skipSave) {
-        return serialKeyRingImport(entries, num, keyserver, mProgressable, proxy, skipSave);
+        return serialKeyRingImport(entries, num, keyserver, mProgressable, proxy, skipSave, mKeyWritableRepository);
     }
 
     @NonNull
@@ -115,7 +126,13 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
             int numEntries = it.getSize();
 
-            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave);
+            // keys from a file are all local, so a large one can be written in bulk
+            if (!skipSave && numEntries >= BULK_IMPORT_THRESHOLD) {
+                return bulkKeyRingImport(it, numEntries);
+            }
+
+            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave,
+                    mKeyWritableRepository);
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -137,11 +154,13 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
      * @param hkpKeyserver contains uri of keyserver to import from, if it is an import from cloud
      * @param progressable Allows multi-threaded import to supply a progressable that ignores the
      *                     progress of a single key being imported
+     * @param keyRepository repository to save keys with, so bulk import workers can use their own
      */
     @NonNull
     private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int numTotalKeys,
                                                 HkpKeyserverAddress hkpKeyserver, Progressable progressable,
-                                                @NonNull ParcelableProxy proxy, boolean skipSave) {
+                                                @NonNull ParcelableProxy proxy, boolean skipSave,
+                                                KeyWritableRepository keyRepository) {
         if (progressable != null) {
             progressable.setProgress(R.string.progress_importing, 0, 100);
         }
@@ -157,6 +176,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         int newKeys = 0, updatedKeys = 0, missingKeys = 0, badKeys = 0;
         ArrayList<Long> secretMasterKeyIds = new ArrayList<>();
         ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        HashSet<Long> updatedMasterKeyIds = new HashSet<>();
 
         ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
 
@@ -192,7 +212,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
                         byte[] fingerprintHex = entry.getExpectedFingerprint();
                         if (fingerprintHex != null) {
-                            mKeyWritableRepository.renewKeyLastUpdatedTime(
+                            keyRepository.renewKeyLastUpdatedTime(
                                     KeyFormattingUtils.getKeyIdFromFingerprint(fingerprintHex), false);
                         }
                         continue;
@@ -215,15 +235,33 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                     continue;
                 }
 
+                // if the keyserver returned exactly what was merged last time, there is nothing to do
+                byte[] contentDigest = null;
+                if (keyWasDownloaded && !skipSave && isExpectedKey(entry, key)) {
+                    contentDigest = getContentDigest(key);
+                    byte[] lastContentDigest = keyRepository.getKeyserverContentDigest(key.getMasterKeyId());
+                    if (Arrays.equals(contentDigest, lastContentDigest)) {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED, 2);
+                        keyRepository.renewKeyLastUpdatedTime(key.getMasterKeyId(), true);
+                        updatedKeys += 1;
+                        updatedMasterKeyIds.add(key.getMasterKeyId());
+                        importedMasterKeyIds.add(key.getMasterKeyId());
+
+                        keyImportsFinished += 1;
+                        progressable.setProgress(keyImportsFinished, numTotalKeys);
+                        continue;
+                    }
+                }
+
                 SaveKeyringResult result;
                 // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
                 // and https://github.com/open-keychain/open-keychain/issues/1480
-                synchronized (mKeyRepository) {
-                    mKeyRepository.clearLog();
+                synchronized (keyRepository) {
+                    keyRepository.clearLog();
                     if (key.isSecret()) {
-                        result = mKeyWritableRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
+                        result = keyRepository.saveSecretKeyRing(key, canKeyRings, skipSave);
                     } else {
-                        result = mKeyWritableRepository.savePublicKeyRing(key, entry.getExpectedFingerprint(), canKeyRings,
+                        result = keyRepository.savePublicKeyRing(key, entry.getExpectedFingerprint(), canKeyRings,
                                 false, skipSave);
                     }
                 }
@@ -232,6 +270,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                 } else {
                     if (result.updated()) {
                         updatedKeys += 1;
+                        updatedMasterKeyIds.add(key.getMasterKeyId());
                         importedMasterKeyIds.add(key.getMasterKeyId());
                     } else {
                         newKeys += 1;
@@ -242,7 +281,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                     }
 
                     if (!skipSave) {
-                        mKeyWritableRepository.renewKeyLastUpdatedTime(key.getMasterKeyId(), keyWasDownloaded);
+                        keyRepository.renewKeyLastUpdatedTime(key.getMasterKeyId(), keyWasDownloaded, contentDigest);
                     }
                 }
 
@@ -257,14 +296,29 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             progressable.setProgress(keyImportsFinished, numTotalKeys);
         }
 
+        // write what is left of a bulk import, keys that fail here were counted as saved before
+        if (keyRepository.isBulkImportRunning()) {
+            for (Long failedMasterKeyId : keyRepository.finishBulkImport()) {
+                log.add(LogType.MSG_IMPORT_ERROR_BULK_WRITE, 1,
+                        KeyFormattingUtils.beautifyKeyId(failedMasterKeyId));
+                importedMasterKeyIds.remove(failedMasterKeyId);
+                if (updatedMasterKeyIds.remove(failedMasterKeyId)) {
+                    updatedKeys -= 1;
+                } else {
+                    newKeys -= 1;
+                }
+                badKeys += 1;
+            }
+        }
+
         // Special: consolidate on secret key import (cannot be cancelled!)
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
         // and re-inserts keys, which could conflict with a parallel db key update
         if (!skipSave && !secretMasterKeyIds.isEmpty()) {
             setPreventCancel();
-            synchronized (mKeyRepository) {
-                UpdateTrustResult result = mKeyWritableRepository.updateTrustDb(secretMasterKeyIds, progressable);
+            synchronized (keyRepository) {
+                UpdateTrustResult result = keyRepository.updateTrustDb(secretMasterKeyIds, progressable);
                 log.add(result, 1);
             }
         }
@@ -327,6 +381,19 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return result;
     }
 
+    private static boolean isExpectedKey(ParcelableKeyRing entry, UncachedKeyRing key) {
+        byte[] expectedFingerprint = entry.getExpectedFingerprint();
+        return expectedFingerprint == null || Arrays.equals(expectedFingerprint, key.getFingerprint());
+    }
+
+    private static byte[] getContentDigest(UncachedKeyRing key) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(key.getEncoded());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private UncachedKeyRing fetchKeyFromInternet(HkpKeyserverAddress hkpKeyserver, @NonNull ParcelableProxy proxy,
             OperationLog log, ParcelableKeyRing entry, UncachedKeyRing key)
             throws PgpGeneralException, IOException, QueryNotFoundException {
@@ -502,7 +569,11 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                 proxy = cryptoInput.getParcelableProxy();
             }
 
-            result = multiThreadedKeyImport(keyList, keyServer, proxy, skipSave);
+            if (!skipSave && keyList.size() >= BULK_IMPORT_THRESHOLD && hasOnlyEncodedKeyRings(keyList)) {
+                result = bulkKeyRingImport(keyList.iterator(), keyList.size());
+            } else {
+                result = multiThreadedKeyImport(keyList, keyServer, proxy, skipSave);
+            }
         }
 
         if (!skipSave) {
@@ -543,7 +614,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                     ProgressScaler ignoreProgressable = new ProgressScaler();
 
                     return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave);
+                            proxy, skipSave, mKeyWritableRepository);
                 }
             };
 
@@ -569,6 +640,185 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         return accumulator.getConsolidatedResult();
     }
 
+    private static boolean hasOnlyEncodedKeyRings(List<ParcelableKeyRing> keyList) {
+        for (ParcelableKeyRing entry : keyList) {
+            if (entry.getBytes() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Imports a large number of local keyrings.
+     * <p>
+     * Merging and canonicalization is spread over several workers. Keyrings are distributed by
+     * master key id, so all versions of a key are handled by the same worker, in order. Each worker
+     * saves with its own repository in bulk mode, so there is no lock between them, and the
+     * database sees a few large transactions instead of one per key.
+     * <p>
+     * Secret keyrings are imported normally after all public ones, which also takes care of
+     * updating the trust db.
+     */
+    @NonNull
+    private ImportKeyResult bulkKeyRingImport(Iterator<ParcelableKeyRing> entries, final int numTotalKeys) {
+        Timber.d("Bulk key import starting");
+        long startTime = System.currentTimeMillis();
+
+        int numWorkers = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService importExecutor = new ThreadPoolExecutor(numWorkers, numWorkers, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+
+        final Progressable workerProgressable = new Progressable() {
+            private int mKeysDone = 0;
+
+            @Override
+            public void setProgress(String message, int current, int total) {
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+            }
+
+            @Override
+            public synchronized void setProgress(int current, int total) {
+                // each worker reports its own count, we only care that one more key is done
+                mKeysDone += 1;
+                if (mProgressable != null) {
+                    mProgressable.setProgress(mKeysDone, numTotalKeys);
+                }
+            }
+
+            @Override
+            public void setPreventCancel() {
+            }
+        };
+
+        ArrayList<BlockingQueue<ParcelableKeyRing>> queues = new ArrayList<>(numWorkers);
+        ArrayList<Future<ImportKeyResult>> workers = new ArrayList<>(numWorkers);
+        for (int i = 0; i < numWorkers; i++) {
+            final BlockingQueue<ParcelableKeyRing> queue = new LinkedBlockingQueue<>(BULK_IMPORT_QUEUE_SIZE);
+            queues.add(queue);
+            workers.add(importExecutor.submit(new Callable<ImportKeyResult>() {
+                @Override
+                public ImportKeyResult call() {
+                    KeyWritableRepository workerRepository = KeyWritableRepository.create(mContext);
+                    workerRepository.beginBulkImport();
+                    return serialKeyRingImport(new QueueIterator(queue), numTotalKeys, null, workerProgressable,
+                            ParcelableProxy.getForNoProxy(), false, workerRepository);
+                }
+            }));
+        }
+
+        ArrayList<ParcelableKeyRing> secretEntries = new ArrayList<>();
+        try {
+            while (entries.hasNext() && !checkCancelled()) {
+                ParcelableKeyRing entry = entries.next();
+
+                int worker = 0;
+                try {
+                    // only the primary key packet is read here, the workers parse the whole keyring
+                    KeyRingHeader header = UncachedKeyRing.peekHeader(entry.getBytes());
+                    if (header.isSecret()) {
+                        secretEntries.add(entry);
+                        continue;
+                    }
+                    worker = (int) ((header.getMasterKeyId() & Long.MAX_VALUE) % numWorkers);
+                } catch (IOException | PgpGeneralException e) {
+                    // let the worker deal with it, so it is counted as a bad key
+                }
+
+                if (!dispatchToWorker(queues.get(worker), workers.get(worker), entry)) {
+                    break;
+                }
+            }
+        } finally {
+            for (int i = 0; i < numWorkers; i++) {
+                dispatchToWorker(queues.get(i), workers.get(i), QueueIterator.END_OF_QUEUE);
+            }
+            importExecutor.shutdown();
+        }
+
+        KeyImportAccumulator accumulator = new KeyImportAccumulator(numWorkers + 1, null);
+        for (Future<ImportKeyResult> worker : workers) {
+            try {
+                accumulator.accumulateKeyImport(worker.get());
+            } catch (InterruptedException | ExecutionException e) {
+                Timber.e(e, "A worker failed during bulk key import");
+                // same as in multiThreadedKeyImport
+                throw new RuntimeException(e);
+            }
+        }
+
+        if (secretEntries.isEmpty() || checkCancelled()) {
+            accumulator.accumulateKeyImport(null);
+        } else {
+            accumulator.accumulateKeyImport(serialKeyRingImport(secretEntries.iterator(), secretEntries.size(),
+                    null, new ProgressScaler(mProgressable, 0, 100, 100), ParcelableProxy.getForNoProxy(), false,
+                    mKeyWritableRepository));
+        }
+
+        Timber.d("Bulk key import of " + numTotalKeys + " keys took "
+                + (System.currentTimeMillis() - startTime) + "ms");
+        return accumulator.getConsolidatedResult();
+    }
+
+    /** Hands an entry to a bulk import worker, unless the worker is gone. */
+    private static boolean dispatchToWorker(BlockingQueue<ParcelableKeyRing> queue,
+            Future<ImportKeyResult> worker, ParcelableKeyRing entry) {
+        try {
+            while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                if (worker.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Iterates over the entries handed to a bulk import worker. */
+    private static class QueueIterator implements Iterator<ParcelableKeyRing> {
+        static final ParcelableKeyRing END_OF_QUEUE = ParcelableKeyRing.createFromEncodedBytes(new byte[0]);
+
+        private final BlockingQueue<ParcelableKeyRing> mQueue;
+        private ParcelableKeyRing mNext;
+
+        QueueIterator(BlockingQueue<ParcelableKeyRing> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mNext == null) {
+                try {
+                    mNext = mQueue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mNext = END_OF_QUEUE;
+                }
+            }
+            return mNext != END_OF_QUEUE;
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ParcelableKeyRing next = mNext;
+            mNext = null;
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * Used to accumulate the results of individual key imports
      */
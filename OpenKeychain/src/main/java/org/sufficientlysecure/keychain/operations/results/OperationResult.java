@@ -334,6 +334,7 @@ public abstract class OperationResult implements Parcelable {
         // import public
         MSG_IP(LogLevel.START, R.string.msg_ip),
         MSG_IP_APPLY_BATCH (LogLevel.DEBUG, R.string.msg_ip_apply_batch),
+        MSG_IP_BULK_QUEUED (LogLevel.DEBUG, R.string.msg_ip_bulk_queued),
         MSG_IP_BAD_TYPE_SECRET (LogLevel.WARN, R.string.msg_ip_bad_type_secret),
         MSG_IP_DELETE_OLD_FAIL (LogLevel.DEBUG, R.string.msg_ip_delete_old_fail),
         MSG_IP_DELETE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_delete_old_ok),
@@ -655,6 +656,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_OK_META_ONLY (LogLevel.OK, R.string.msg_dc_ok_meta_only),
         MSG_DC_OK (LogLevel.OK, R.string.msg_dc_ok),
         MSG_DC_PASS_CACHED (LogLevel.DEBUG, R.string.msg_dc_pass_cached),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_cached),
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
@@ -711,6 +713,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_PSE_OK (LogLevel.OK, R.string.msg_pse_ok),
         MSG_PSE_PENDING_NFC (LogLevel.INFO, R.string.msg_pse_pending_nfc),
         MSG_PSE_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_pse_pending_passphrase),
+        MSG_PSE_PIPELINE_STAGE (LogLevel.DEBUG, R.string.msg_pse_pipeline_stage),
         MSG_PSE (LogLevel.DEBUG, R.string.msg_pse),
         MSG_PSE_SIGNING (LogLevel.DEBUG, R.string.msg_pse_signing),
         MSG_PSE_SIGNING_CLEARTEXT (LogLevel.DEBUG, R.string.msg_pse_signing_cleartext),
@@ -761,11 +764,13 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_FETCH_FACEBOOK (LogLevel.INFO, R.string.msg_import_fetch_facebook),
         MSG_IMPORT_FETCH_KEYSERVER (LogLevel.INFO, R.string.msg_import_fetch_keyserver),
         MSG_IMPORT_FETCH_KEYSERVER_OK (LogLevel.DEBUG, R.string.msg_import_fetch_keyserver_ok),
+        MSG_IMPORT_FETCH_KEYSERVER_UNCHANGED (LogLevel.OK, R.string.msg_import_fetch_keyserver_unchanged),
         MSG_IMPORT_KEYSERVER (LogLevel.DEBUG, R.string.msg_import_keyserver),
         MSG_IMPORT_MERGE (LogLevel.DEBUG, R.string.msg_import_merge),
         MSG_IMPORT_MERGE_ERROR (LogLevel.ERROR, R.string.msg_import_merge_error),
         MSG_IMPORT_ERROR (LogLevel.ERROR, R.string.msg_import_error),
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
+        MSG_IMPORT_ERROR_BULK_WRITE (LogLevel.ERROR, R.string.msg_import_error_bulk_write),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
@@ -925,7 +930,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_TRUST_KEY (LogLevel.INFO, R.string.msg_trust_key),
         MSG_TRUST_INITIALIZE (LogLevel.INFO, R.string.msg_trust_initialize),
         MSG_TRUST_COUNT_NONE (LogLevel.DEBUG, R.string.msg_trust_count_none),
-        MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count);
+        MSG_TRUST_COUNT (LogLevel.DEBUG, R.plurals.msg_trust_count),
+        MSG_TRUST_SIGNERS (LogLevel.DEBUG, R.string.msg_trust_signers),
+        MSG_TRUST_INPLACE (LogLevel.DEBUG, R.string.msg_trust_inplace),
+        MSG_TRUST_INPLACE_REORDER (LogLevel.DEBUG, R.string.msg_trust_inplace_reorder),
+        MSG_TRUST_INPLACE_UNTRUSTED (LogLevel.DEBUG, R.string.msg_trust_inplace_untrusted);
 
         public final int mMsgId;
         public final LogLevel mLevel;
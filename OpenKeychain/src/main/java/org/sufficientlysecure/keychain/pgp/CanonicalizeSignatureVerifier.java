@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.bouncycastle.openpgp.PGPKeyRing;
+import org.bouncycastle.openpgp.PGPObjectFactory;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+
+/**
+ * Verifies the self signatures of a keyring for {@link UncachedKeyRing#canonicalize}.
+ * <p>
+ * All self signatures canonicalize will check are collected up front and verified on a shared
+ * pool, while the calling thread helps out. canonicalize itself still walks through the keyring
+ * in order and only looks up the results, so its output and log are exactly the same as with
+ * sequential verification. Signatures which were not verified up front, such as the embedded
+ * primary key binding signatures, are verified when they are asked for.
+ * <p>
+ * If a {@link VerifiedSignatureCache} is given, signatures with a known result are not verified
+ * at all, and fresh results are put into the cache once canonicalize asks for them.
+ * <p>
+ * A PGPSignature holds the state of a verification in progress, and the keyring may be shared
+ * with other threads, e.g. through
+ * {@link org.sufficientlysecure.keychain.provider.PublicKeyRingCache}. Each verification
+ * therefore works on a copy of its signature, never on the instance from the keyring.
+ */
+class CanonicalizeSignatureVerifier {
+    // below this, handing signatures to other threads isn't worth the overhead
+    private static final int MIN_PARALLEL_SIGNATURES = 4;
+    private static final int MAX_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static final ThreadPoolExecutor sExecutor;
+    static {
+        sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static volatile boolean sParallelVerificationEnabled = true;
+
+    private final IdentityHashMap<PGPSignature, Verification> mVerifications = new IdentityHashMap<>();
+    private final VerifiedSignatureCache mCache;
+    private final byte[] mSignerFingerprint;
+
+    @VisibleForTesting
+    static void setParallelVerificationEnabled(boolean enabled) {
+        sParallelVerificationEnabled = enabled;
+    }
+
+    static CanonicalizeSignatureVerifier create(PGPKeyRing ring, @Nullable VerifiedSignatureCache cache) {
+        CanonicalizeSignatureVerifier verifier =
+                new CanonicalizeSignatureVerifier(cache, ring.getPublicKey().getFingerprint());
+        boolean parallel = sParallelVerificationEnabled && MAX_THREADS > 1;
+        if (!parallel && cache == null) {
+            return verifier;
+        }
+
+        verifier.collectSelfSignatures(ring);
+        if (cache != null) {
+            verifier.lookUpCachedResults();
+        }
+        if (parallel) {
+            verifier.verifyCollected();
+        }
+        return verifier;
+    }
+
+    private CanonicalizeSignatureVerifier(VerifiedSignatureCache cache, byte[] signerFingerprint) {
+        mCache = cache;
+        mSignerFingerprint = signerFingerprint;
+    }
+
+    boolean verifySignature(PGPSignature sig, PGPPublicKey masterKey) throws PgpGeneralException {
+        Verification verification = mVerifications.get(sig);
+        if (verification == null) {
+            verification = new KeyVerification(sig, masterKey);
+        }
+        return getResult(verification);
+    }
+
+    boolean verifySignature(PGPSignature sig, PGPPublicKey masterKey, PGPPublicKey subKey)
+            throws PgpGeneralException {
+        Verification verification = mVerifications.get(sig);
+        if (verification == null) {
+            verification = new SubKeyVerification(sig, masterKey, subKey);
+        }
+        return getResult(verification);
+    }
+
+    boolean verifySignature(PGPSignature sig, PGPPublicKey masterKey, byte[] rawUserId)
+            throws PgpGeneralException {
+        Verification verification = mVerifications.get(sig);
+        if (verification == null) {
+            verification = new UserIdVerification(sig, masterKey, rawUserId);
+        }
+        return getResult(verification);
+    }
+
+    boolean verifySignature(PGPSignature sig, PGPPublicKey masterKey, PGPUserAttributeSubpacketVector userAttribute)
+            throws PgpGeneralException {
+        Verification verification = mVerifications.get(sig);
+        if (verification == null) {
+            verification = new UserAttributeVerification(sig, masterKey, userAttribute);
+        }
+        return getResult(verification);
+    }
+
+    private boolean getResult(Verification verification) throws PgpGeneralException {
+        // collected signatures were looked up in create already
+        if (!verification.isDone() && mCache != null && verification.mDigest == null) {
+            lookUpCachedResult(verification);
+        }
+        if (!verification.isDone()) {
+            verification.run();
+        }
+
+        // exceptions are not cached, they are logged differently from bad signatures
+        boolean result = verification.getResult();
+        if (mCache != null && !verification.mInCache && verification.mDigest != null) {
+            mCache.putVerificationResult(verification.mDigest, mSignerFingerprint, result);
+            verification.mInCache = true;
+        }
+        return result;
+    }
+
+    private void lookUpCachedResults() {
+        for (Verification verification : mVerifications.values()) {
+            lookUpCachedResult(verification);
+        }
+    }
+
+    private void lookUpCachedResult(Verification verification) {
+        try {
+            verification.mDigest = verification.computeDigest();
+        } catch (IOException e) {
+            // not cacheable then, it's verified as usual
+            return;
+        }
+        Boolean cachedResult = mCache.getVerificationResult(verification.mDigest, mSignerFingerprint);
+        if (cachedResult != null) {
+            verification.setCachedResult(cachedResult);
+        }
+    }
+
+    /** Collects the signatures which canonicalize will verify, skipping those it drops anyway. */
+    private void collectSelfSignatures(PGPKeyRing ring) {
+        PGPPublicKey masterKey = ring.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+            int type = sig.getSignatureType();
+            if (type == PGPSignature.KEY_REVOCATION || type == PGPSignature.DIRECT_KEY) {
+                mVerifications.put(sig, new KeyVerification(sig, masterKey));
+            }
+        }
+
+        for (byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForID(rawUserId);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature sig : new IterableIterator<>(signaturesIt)) {
+                if (sig.getKeyID() == masterKeyId && isCertification(sig.getSignatureType())) {
+                    mVerifications.put(sig, new UserIdVerification(sig, masterKey, rawUserId));
+                }
+            }
+        }
+
+        for (PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            @SuppressWarnings("unchecked")
+            Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForUserAttribute(userAttribute);
+            if (signaturesIt == null) {
+                continue;
+            }
+            for (PGPSignature sig : new IterableIterator<>(signaturesIt)) {
+                if (sig.getKeyID() == masterKeyId && isCertification(sig.getSignatureType())) {
+                    mVerifications.put(sig, new UserAttributeVerification(sig, masterKey, userAttribute));
+                }
+            }
+        }
+
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                int type = sig.getSignatureType();
+                if (sig.getKeyID() == masterKeyId
+                        && (type == PGPSignature.SUBKEY_BINDING || type == PGPSignature.SUBKEY_REVOCATION)) {
+                    mVerifications.put(sig, new SubKeyVerification(sig, masterKey, key));
+                }
+            }
+        }
+    }
+
+    private void verifyCollected() {
+        final ArrayList<Verification> verifications = new ArrayList<>(mVerifications.size());
+        for (Verification verification : mVerifications.values()) {
+            if (!verification.isDone()) {
+                verifications.add(verification);
+            }
+        }
+        if (verifications.size() < MIN_PARALLEL_SIGNATURES) {
+            // they are verified on demand then
+            return;
+        }
+
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(verifications.size());
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while ((i = nextIndex.getAndIncrement()) < verifications.size()) {
+                    verifications.get(i).run();
+                    done.countDown();
+                }
+            }
+        };
+
+        int helpers = Math.min(MAX_THREADS, verifications.size()) - 1;
+        ArrayList<Future<?>> futures = new ArrayList<>(helpers);
+        for (int i = 0; i < helpers; i++) {
+            futures.add(sExecutor.submit(worker));
+        }
+        worker.run();
+        // helpers which haven't started yet won't find anything left to do
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+
+        // helpers still work on the signatures they took, so they must be waited for in any case
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Returns a private copy of sig, which can be verified without touching shared state. */
+    static PGPSignature copySignature(PGPSignature sig) throws PgpGeneralException {
+        try {
+            PGPObjectFactory factory = new PGPObjectFactory(sig.getEncoded(), new JcaKeyFingerprintCalculator());
+            Object object = factory.nextObject();
+            if (!(object instanceof PGPSignatureList) || ((PGPSignatureList) object).isEmpty()) {
+                throw new PgpGeneralException("Signature could not be copied");
+            }
+            return ((PGPSignatureList) object).get(0);
+        } catch (IOException e) {
+            throw new PgpGeneralException("Signature could not be copied", e);
+        }
+    }
+
+    private static boolean isCertification(int type) {
+        return type == PGPSignature.DEFAULT_CERTIFICATION
+                || type == PGPSignature.NO_CERTIFICATION
+                || type == PGPSignature.CASUAL_CERTIFICATION
+                || type == PGPSignature.POSITIVE_CERTIFICATION
+                || type == PGPSignature.CERTIFICATION_REVOCATION;
+    }
+
+    private static abstract class Verification implements Runnable {
+        final PGPSignature mSignature;
+        final PGPPublicKey mMasterKey;
+
+        byte[] mDigest;
+        boolean mInCache;
+
+        private boolean mDone;
+        private boolean mResult;
+        private PgpGeneralException mException;
+        private RuntimeException mRuntimeException;
+
+        Verification(PGPSignature signature, PGPPublicKey masterKey) {
+            mSignature = signature;
+            mMasterKey = masterKey;
+        }
+
+        abstract boolean verify(WrappedSignature cert) throws PgpGeneralException;
+
+        abstract byte[] computeDigest() throws IOException;
+
+        @Override
+        public void run() {
+            try {
+                WrappedSignature cert = new WrappedSignature(copySignature(mSignature));
+                cert.init(mMasterKey);
+                mResult = verify(cert);
+            } catch (PgpGeneralException e) {
+                mException = e;
+            } catch (RuntimeException e) {
+                // thrown on the thread of the caller, as it would have been without this class
+                mRuntimeException = e;
+            }
+            mDone = true;
+        }
+
+        void setCachedResult(boolean result) {
+            mResult = result;
+            mInCache = true;
+            mDone = true;
+        }
+
+        boolean isDone() {
+            return mDone;
+        }
+
+        boolean getResult() throws PgpGeneralException {
+            if (mException != null) {
+                throw mException;
+            }
+            if (mRuntimeException != null) {
+                throw mRuntimeException;
+            }
+            return mResult;
+        }
+    }
+
+    private static class KeyVerification extends Verification {
+        KeyVerification(PGPSignature signature, PGPPublicKey masterKey) {
+            super(signature, masterKey);
+        }
+
+        @Override
+        boolean verify(WrappedSignature cert) throws PgpGeneralException {
+            return cert.verifySignature(mMasterKey);
+        }
+
+        @Override
+        byte[] computeDigest() throws IOException {
+            return VerificationDigest.forKey(mSignature, mMasterKey);
+        }
+    }
+
+    private static class SubKeyVerification extends Verification {
+        private final PGPPublicKey mSubKey;
+
+        SubKeyVerification(PGPSignature signature, PGPPublicKey masterKey, PGPPublicKey subKey) {
+            super(signature, masterKey);
+            mSubKey = subKey;
+        }
+
+        @Override
+        boolean verify(WrappedSignature cert) throws PgpGeneralException {
+            return cert.verifySignature(mMasterKey, mSubKey);
+        }
+
+        @Override
+        byte[] computeDigest() throws IOException {
+            return VerificationDigest.forSubKey(mSignature, mMasterKey, mSubKey);
+        }
+    }
+
+    private static class UserIdVerification extends Verification {
+        private final byte[] mRawUserId;
+
+        UserIdVerification(PGPSignature signature, PGPPublicKey masterKey, byte[] rawUserId) {
+            super(signature, masterKey);
+            mRawUserId = rawUserId;
+        }
+
+        @Override
+        boolean verify(WrappedSignature cert) throws PgpGeneralException {
+            return cert.verifySignature(mMasterKey, mRawUserId);
+        }
+
+        @Override
+        byte[] computeDigest() throws IOException {
+            return VerificationDigest.forUserId(mSignature, mMasterKey, mRawUserId);
+        }
+    }
+
+    private static class UserAttributeVerification extends Verification {
+        private final PGPUserAttributeSubpacketVector mUserAttribute;
+
+        UserAttributeVerification(PGPSignature signature, PGPPublicKey masterKey,
+                PGPUserAttributeSubpacketVector userAttribute) {
+            super(signature, masterKey);
+            mUserAttribute = userAttribute;
+        }
+
+        @Override
+        boolean verify(WrappedSignature cert) throws PgpGeneralException {
+            return cert.verifySignature(mMasterKey, mUserAttribute);
+        }
+
+        @Override
+        byte[] computeDigest() throws IOException {
+            return VerificationDigest.forUserAttribute(mSignature, mMasterKey, mUserAttribute);
+        }
+    }
+
+}
@@ -25,9 +25,6 @@ import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.openintents.openpgp.OpenPgpSignatureResult.SenderStatusResult;
 import org.openintents.openpgp.util.OpenPgpUtils;
 import org.openintents.openpgp.util.OpenPgpUtils.UserId;
-import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
-import org.sufficientlysecure.keychain.provider.KeyRepository;
-import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
 import timber.log.Timber;
 
 
@@ -36,9 +33,6 @@ import timber.log.Timber;
  * It serves as a constraint which information are returned inside an OpenPgpSignatureResult object.
  */
 public class OpenPgpSignatureResultBuilder {
-    // injected
-    private final KeyRepository mKeyRepository;
-
     // OpenPgpSignatureResult
     private String mPrimaryUserId;
     private ArrayList<String> mUserIds = new ArrayList<>();
@@ -57,10 +51,6 @@ public class OpenPgpSignatureResultBuilder {
     private String mSenderAddress;
     private Date mSignatureTimestamp;
 
-    public OpenPgpSignatureResultBuilder(KeyRepository keyRepository) {
-        this.mKeyRepository = keyRepository;
-    }
-
     public void setPrimaryUserId(String userId) {
         this.mPrimaryUserId = userId;
     }
@@ -110,35 +100,23 @@ public class OpenPgpSignatureResultBuilder {
         return mInsecure;
     }
 
-    public void initValid(CanonicalizedPublicKey signingKey) {
+    void initValid(SignerCache.Signer signer) {
         setSignatureAvailable(true);
         setKnownKey(true);
 
-        CanonicalizedKeyRing signingRing = signingKey.getKeyRing();
-
         // from RING
-        setKeyId(signingRing.getMasterKeyId());
-        try {
-            setPrimaryUserId(signingRing.getPrimaryUserIdWithFallback());
-        } catch (PgpKeyNotFoundException e) {
-            Timber.d("No primary user id in keyring with master key id " + signingRing.getMasterKeyId());
-        }
-        setSignatureKeyCertified(signingRing.getVerified() > 0);
-
-        ArrayList<String> allUserIds = signingRing.getUnorderedUserIds();
-        ArrayList<String> confirmedUserIds;
-        try {
-            confirmedUserIds = mKeyRepository.getConfirmedUserIds(signingRing.getMasterKeyId());
-        } catch (NotFoundException e) {
-            throw new IllegalStateException("Key didn't exist anymore for user id query!", e);
-        }
-        setUserIds(allUserIds, confirmedUserIds);
+        setKeyId(signer.mMasterKeyId);
+        setPrimaryUserId(signer.mPrimaryUserId);
+        setSignatureKeyCertified(signer.mCertified);
+
+        // the signer is shared, so the lists are copied before they are handed out
+        setUserIds(new ArrayList<>(signer.mUserIds), new ArrayList<>(signer.mConfirmedUserIds));
 
-        mSenderStatusResult = processSenderStatusResult(allUserIds, confirmedUserIds);
+        mSenderStatusResult = processSenderStatusResult(signer.mUserIds, signer.mConfirmedUserIds);
 
         // either master key is expired/revoked or this specific subkey is expired/revoked
-        setKeyExpired(signingRing.isExpired() || signingKey.isExpired());
-        setKeyRevoked(signingRing.isRevoked() || signingKey.isRevoked());
+        setKeyExpired(signer.isExpired());
+        setKeyRevoked(signer.mRevoked);
     }
 
     private SenderStatusResult processSenderStatusResult(
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
+
+
+/**
+ * Computes the public key encrypted session key packets for a group of recipients in parallel.
+ * <p>
+ * PGPEncryptedDataGenerator.open() calls generate() on each of its methods one after another,
+ * always with the same session info. The first call on any member of a group submits the work
+ * for all members to a shared, bounded executor, every member then just waits for its own
+ * packet. Packets are still written in the order the methods were added, so the output is
+ * deterministic.
+ */
+class ParallelKeyEncryptionMethodGroup {
+    /** Below this number of recipients, thread handoff costs more than it saves. */
+    static final int PARALLEL_THRESHOLD = 4;
+
+    private static final int MAX_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static ThreadPoolExecutor sExecutor;
+
+    private final List<PGPKeyEncryptionMethodGenerator> mGenerators;
+    private List<Future<ContainedPacket>> mPackets;
+    private int mEncAlgorithm;
+
+    /**
+     * Returns generators which produce the same packets as the ones passed in. If there are
+     * enough of them to be worth it, these are computed in parallel.
+     */
+    static List<PGPKeyEncryptionMethodGenerator> wrapIfWorthwhile(
+            List<PGPKeyEncryptionMethodGenerator> generators) {
+        if (generators.size() < PARALLEL_THRESHOLD) {
+            return generators;
+        }
+
+        ParallelKeyEncryptionMethodGroup group = new ParallelKeyEncryptionMethodGroup(generators);
+        ArrayList<PGPKeyEncryptionMethodGenerator> result = new ArrayList<>(generators.size());
+        for (int i = 0; i < generators.size(); i++) {
+            result.add(group.new Member(i));
+        }
+        return result;
+    }
+
+    private ParallelKeyEncryptionMethodGroup(List<PGPKeyEncryptionMethodGenerator> generators) {
+        mGenerators = new ArrayList<>(generators);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    private synchronized Future<ContainedPacket> getPacket(
+            int index, final int encAlgorithm, final byte[] sessionInfo) throws PGPException {
+        if (mPackets == null) {
+            mEncAlgorithm = encAlgorithm;
+            ThreadPoolExecutor executor = getExecutor();
+            mPackets = new ArrayList<>(mGenerators.size());
+            for (final PGPKeyEncryptionMethodGenerator generator : mGenerators) {
+                mPackets.add(executor.submit(new Callable<ContainedPacket>() {
+                    @Override
+                    public ContainedPacket call() throws PGPException {
+                        return generator.generate(encAlgorithm, sessionInfo);
+                    }
+                }));
+            }
+        } else if (mEncAlgorithm != encAlgorithm) {
+            throw new PGPException("all members of a group must use the same session key!");
+        }
+        return mPackets.get(index);
+    }
+
+    private class Member extends PGPKeyEncryptionMethodGenerator {
+        private final int mIndex;
+
+        Member(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public ContainedPacket generate(int encAlgorithm, byte[] sessionInfo) throws PGPException {
+            Future<ContainedPacket> packet = getPacket(mIndex, encAlgorithm, sessionInfo);
+            try {
+                return packet.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new PGPException("interrupted while encrypting session key", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof PGPException) {
+                    throw (PGPException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new PGPException("error encrypting session key", e);
+            }
+        }
+    }
+
+}
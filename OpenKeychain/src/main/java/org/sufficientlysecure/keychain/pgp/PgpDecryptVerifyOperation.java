@@ -18,22 +18,34 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.SignatureException;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 
 import android.content.Context;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.webkit.MimeTypeMap;
 
@@ -70,6 +82,7 @@ import org.sufficientlysecure.keychain.pgp.DecryptVerifySecurityProblem.DecryptV
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.EncryptionAlgorithmProblem;
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.KeySecurityProblem;
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.MissingMdc;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache.CachedSessionKey;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
@@ -84,6 +97,7 @@ import org.sufficientlysecure.keychain.util.CharsetVerifier;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import timber.log.Timber;
 
@@ -98,6 +112,25 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         super(context, keyRepository, progressable);
     }
 
+    // decryption keys unlocked by this instance, by subkey id, only kept between
+    // retainUnlockedKeys and releaseUnlockedKeys
+    private HashMap<Long, CanonicalizedSecretKey> mRetainedKeys;
+
+    /**
+     * Keeps the decryption keys this instance unlocks, and reuses them for all further messages
+     * passed to it, until {@link #releaseUnlockedKeys} is called. For a batch of messages, this
+     * skips loading, parsing and unlocking the secret key as well as the passphrase cache lookup
+     * for all but the first message encrypted to each key. Keys which divert to a security token
+     * are never retained.
+     */
+    public void retainUnlockedKeys() {
+        mRetainedKeys = new HashMap<>();
+    }
+
+    public void releaseUnlockedKeys() {
+        mRetainedKeys = null;
+    }
+
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
     @NonNull
     public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput) {
@@ -135,7 +168,18 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             }
         }
 
-        DecryptVerifyResult result = executeInternal(input, cryptoInput, inputData, outputStream);
+        DecryptVerifyResult result;
+        try {
+            result = executeInternal(input, cryptoInput, inputData, outputStream);
+        } finally {
+            if (outputStream != null && !(outputStream instanceof ByteArrayOutputStream)) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Timber.e(e, "IOException when closing output uri");
+                }
+            }
+        }
         if (outputStream instanceof ByteArrayOutputStream) {
             byte[] outputData = ((ByteArrayOutputStream) outputStream).toByteArray();
             result.setOutputBytes(outputData);
@@ -153,6 +197,60 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return executeInternal(input, cryptoInput, inputData, outputStream);
     }
 
+    /**
+     * Decrypts and/or verifies data read from a channel, writing the cleartext straight into the
+     * output channel. Data is processed in fixed size chunks, so heap usage stays constant
+     * regardless of message size. Both channels are owned by the caller and are not closed.
+     */
+    @NonNull
+    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            ReadableByteChannel inputChannel, long inputSize, @Nullable WritableByteChannel outputChannel) {
+        long startTime = System.currentTimeMillis();
+
+        InputData inputData = new InputData(Channels.newInputStream(inputChannel), inputSize);
+        OutputStream outputStream =
+                outputChannel != null ? new NonClosingOutputStream(Channels.newOutputStream(outputChannel)) : null;
+
+        DecryptVerifyResult result = executeInternal(input, cryptoInput, inputData, outputStream);
+
+        result.mOperationTime = System.currentTimeMillis() - startTime;
+        Timber.d("total time taken: " + format("%.2f", result.mOperationTime / 1000.0) + "s");
+        return result;
+    }
+
+    /**
+     * Streaming variant of {@link #execute(PgpDecryptVerifyInputParcel, CryptoInputParcel)} for
+     * ParcelFileDescriptors, see {@link #execute(PgpDecryptVerifyInputParcel, CryptoInputParcel,
+     * ReadableByteChannel, long, WritableByteChannel)}. Both descriptors are closed afterwards.
+     */
+    @NonNull
+    public DecryptVerifyResult execute(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
+            ParcelFileDescriptor inputFd, @Nullable ParcelFileDescriptor outputFd) {
+        // getStatSize() returns -1 for pipes and sockets, which matches InputData.UNKNOWN_FILESIZE
+        long inputSize = inputFd.getStatSize();
+
+        FileInputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(inputFd);
+        FileOutputStream outputStream =
+                outputFd != null ? new ParcelFileDescriptor.AutoCloseOutputStream(outputFd) : null;
+        try {
+            return execute(input, cryptoInput, inputStream.getChannel(), inputSize,
+                    outputStream != null ? outputStream.getChannel() : null);
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Timber.e(e, "IOException when closing input ParcelFileDescriptor");
+            }
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Timber.e(e, "IOException when closing output ParcelFileDescriptor");
+                }
+            }
+        }
+    }
+
     @NonNull
     private DecryptVerifyResult executeInternal(PgpDecryptVerifyInputParcel input, CryptoInputParcel cryptoInput,
             InputData inputData, OutputStream outputStream) {
@@ -367,8 +465,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             dataChunk = plainFact.nextObject();
         }
 
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(
-                mKeyRepository, input.getSenderAddress(), securityProblemBuilder);
+        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository,
+                SignerCache.getInstance(mContext), input.getSenderAddress(), securityProblemBuilder);
         if (signatureChecker.initializeOnePassSignature(dataChunk, log, indent +1)) {
             dataChunk = plainFact.nextObject();
         }
@@ -573,6 +671,10 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         boolean symmetricPacketFound = false;
         boolean anyPacketFound = false;
         boolean decryptedSessionKeyAvailable = false;
+        boolean decryptionKeyUnlocked = false;
+        boolean sessionKeyFromCache = false;
+        // session keys are only cached if they were unlocked with a cached passphrase
+        boolean passphraseFromCache = false;
 
         PGPPublicKeyEncryptedData encryptedDataAsymmetric = null;
         PGPPBEEncryptedData encryptedDataSymmetric = null;
@@ -580,6 +682,9 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         CachingDataDecryptorFactory cachedKeyDecryptorFactory = new CachingDataDecryptorFactory(
                 Constants.BOUNCY_CASTLE_PROVIDER_NAME, cryptoInput.getCryptoData());
 
+        SessionKeyCache sessionKeyCache = Preferences.getPreferences(mContext).getSessionKeyCache()
+                ? SessionKeyCache.getInstance(mContext) : null;
+
         Passphrase passphrase = null;
 
         Iterator<?> it = enc.getEncryptedDataObjects();
@@ -605,6 +710,49 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     break;
                 }
 
+                if (sessionKeyCache != null) {
+                    byte[] encryptedSessionKey = encData.getSessionKey()[0];
+                    CachedSessionKey cachedSessionKey =
+                            sessionKeyCache.get(subKeyId, encryptedSessionKey, input.getAllowedKeyIds());
+                    if (cachedSessionKey != null) {
+                        log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1);
+
+                        // same as for a key from the database below
+                        if (cachedSessionKey.mKeySecurityProblem != null) {
+                            log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
+                            result.encryptionKeySecurityProblem = cachedSessionKey.mKeySecurityProblem;
+                        }
+
+                        cachedKeyDecryptorFactory = new CachingDataDecryptorFactory(
+                                Constants.BOUNCY_CASTLE_PROVIDER_NAME, Collections.singletonMap(
+                                        ByteBuffer.wrap(encryptedSessionKey), cachedSessionKey.mSessionData));
+                        decryptedSessionKeyAvailable = true;
+                        sessionKeyFromCache = true;
+                        asymmetricPacketFound = true;
+                        encryptedDataAsymmetric = encData;
+                        break;
+                    }
+                }
+
+                CanonicalizedSecretKey retainedKey = mRetainedKeys != null ? mRetainedKeys.get(subKeyId) : null;
+                if (retainedKey != null && (input.getAllowedKeyIds() == null
+                        || input.getAllowedKeyIds().contains(retainedKey.getRing().getMasterKeyId()))) {
+                    log.add(LogType.MSG_DC_PASS_CACHED, indent + 1);
+
+                    KeySecurityProblem keySecurityProblem =
+                            PgpSecurityConstants.checkForSecurityProblems(retainedKey);
+                    if (keySecurityProblem != null) {
+                        log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
+                        result.encryptionKeySecurityProblem = keySecurityProblem;
+                    }
+
+                    asymmetricPacketFound = true;
+                    encryptedDataAsymmetric = encData;
+                    decryptionKey = retainedKey;
+                    decryptionKeyUnlocked = true;
+                    break;
+                }
+
                 CachedPublicKeyRing cachedPublicKeyRing;
                 try {
                     // get actual keyring object based on master key id
@@ -656,6 +804,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         try {
                             // returns "" if key has no passphrase
                             passphrase = getCachedPassphrase(subKeyId);
+                            passphraseFromCache = passphrase != null;
                             log.add(LogType.MSG_DC_PASS_CACHED, indent + 1);
                         } catch (PassphraseCacheInterface.NoSecretKeyException e) {
                             log.add(LogType.MSG_DC_ERROR_NO_KEY, indent + 1);
@@ -785,15 +934,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             if (decryptedSessionKeyAvailable) {
                 decryptorFactory = cachedKeyDecryptorFactory;
             } else {
-                try {
-                    log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                    if (!decryptionKey.unlock(passphrase)) {
-                        log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                if (!decryptionKeyUnlocked) {
+                    try {
+                        log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
+                        if (!decryptionKey.unlock(passphrase)) {
+                            log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
+                            return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                        }
+                    } catch (PgpGeneralException e) {
+                        log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
                         return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                     }
-                } catch (PgpGeneralException e) {
-                    log.add(LogType.MSG_DC_ERROR_EXTRACT_KEY, indent + 1);
-                    return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
+                    // a null passphrase means the key diverts to a card, which has to be asked each time
+                    if (mRetainedKeys != null && passphrase != null) {
+                        mRetainedKeys.put(decryptionKey.getKeyId(), decryptionKey);
+                    }
                 }
 
                 decryptorFactory = decryptionKey.getCachingDecryptorFactory(cryptoInput);
@@ -827,6 +982,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 Entry<ByteBuffer, byte[]> entry = cachedSessionKeys.entrySet().iterator().next();
                 result.sessionKey = entry.getKey().array();
                 result.decryptedSessionKey = entry.getValue();
+
+                if (sessionKeyCache != null && !sessionKeyFromCache && passphraseFromCache) {
+                    sessionKeyCache.put(encryptedDataAsymmetric.getKeyID(), encryptedDataAsymmetric.getSessionKey()[0],
+                            decryptionKey.getRing().getMasterKeyId(), result.decryptedSessionKey,
+                            result.encryptionKeySecurityProblem);
+                }
             }
         } else {
             // there wasn't even any useful data
@@ -862,44 +1023,57 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     private DecryptVerifyResult verifyCleartextSignature(
             PgpDecryptVerifyInputParcel input, ArmoredInputStream aIn, OutputStream outputStream, int indent) throws IOException, PGPException {
 
+        // the signature follows the cleartext, so it can only be checked once all of it was
+        // read. it is spooled to a file meanwhile, to keep large messages out of memory
+        File clearTextFile = File.createTempFile("cleartext", null, mContext.getCacheDir());
+        try {
+            return verifyCleartextSignature(input, aIn, outputStream, clearTextFile, indent);
+        } finally {
+            if (!clearTextFile.delete()) {
+                Timber.e("Could not delete spooled cleartext");
+            }
+        }
+    }
+
+    private DecryptVerifyResult verifyCleartextSignature(PgpDecryptVerifyInputParcel input, ArmoredInputStream aIn,
+            OutputStream outputStream, File clearTextFile, int indent) throws IOException, PGPException {
+
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
+        long clearTextLength = 0;
         { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputStream spoolOut = new BufferedOutputStream(new FileOutputStream(clearTextFile));
 
             updateProgress(R.string.progress_reading_data, 0, 100);
 
-            ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-            int lookAhead = readInputLine(lineOut, aIn);
-            byte[] lineSep = getLineSeparator();
+            try {
+                ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
+                int lookAhead = readInputLine(lineOut, aIn);
+                byte[] lineSep = getLineSeparator();
 
-            byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+                byte[] line = lineOut.toByteArray();
+                clearTextLength += writeClearTextLine(line, lineSep, spoolOut, outputStream);
 
-            while (lookAhead != -1 && aIn.isClearText()) {
-                lookAhead = readInputLine(lineOut, lookAhead, aIn);
-                line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
+                while (lookAhead != -1 && aIn.isClearText()) {
+                    lookAhead = readInputLine(lineOut, lookAhead, aIn);
+                    line = lineOut.toByteArray();
+                    clearTextLength += writeClearTextLine(line, lineSep, spoolOut, outputStream);
+                }
+            } finally {
+                spoolOut.close();
             }
 
-            out.close();
-            clearText = out.toByteArray();
-        }
-
-        if (outputStream != null) {
-            outputStream.write(clearText);
-            outputStream.close();
+            if (outputStream != null) {
+                outputStream.flush();
+            }
         }
 
         updateProgress(R.string.progress_processing_signature, 60, 100);
         JcaSkipMarkerPGPObjectFactory pgpFact = new JcaSkipMarkerPGPObjectFactory(aIn);
 
         DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
-                securityProblemBuilder);
+        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository,
+                SignerCache.getInstance(mContext), input.getSenderAddress(), securityProblemBuilder);
 
         Object o = pgpFact.nextObject();
         if (!signatureChecker.initializeSignature(o, log, indent+1)) {
@@ -911,7 +1085,12 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             try {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-                signatureChecker.updateSignatureWithCleartext(clearText);
+                InputStream spoolIn = new FileInputStream(clearTextFile);
+                try {
+                    signatureChecker.updateSignatureWithCleartext(spoolIn);
+                } finally {
+                    spoolIn.close();
+                }
                 signatureChecker.verifySignature(log, indent);
 
             } catch (SignatureException e) {
@@ -924,7 +1103,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearTextLength, "utf-8");
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
@@ -956,8 +1135,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         }
 
         DecryptVerifySecurityProblemBuilder securityProblemBuilder = new DecryptVerifySecurityProblemBuilder();
-        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository, input.getSenderAddress(),
-                securityProblemBuilder);
+        PgpSignatureChecker signatureChecker = new PgpSignatureChecker(mKeyRepository,
+                SignerCache.getInstance(mContext), input.getSenderAddress(), securityProblemBuilder);
 
         if ( ! signatureChecker.initializeSignature(o, log, indent+1)) {
             log.add(LogType.MSG_DC_ERROR_INVALID_DATA, 0);
@@ -1084,6 +1263,19 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return nl.getBytes();
     }
 
+    /** Writes a line of cleartext to the spool and the output, and returns the number of bytes in it. */
+    private static int writeClearTextLine(byte[] line, byte[] lineSep, OutputStream spoolOut,
+            @Nullable OutputStream outputStream) throws IOException {
+        int length = getLengthWithoutSeparator(line);
+        spoolOut.write(line, 0, length);
+        spoolOut.write(lineSep);
+        if (outputStream != null) {
+            outputStream.write(line, 0, length);
+            outputStream.write(lineSep);
+        }
+        return length + lineSep.length;
+    }
+
     /// Convenience method - Trivially checks if a byte array matches the bytes of a plain text string
     // Assumes data.length >= needle.length()
     static boolean matchesPrefix(byte[] data, String needle) {
@@ -1096,4 +1288,21 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return true;
     }
 
+    /** Leaves the underlying stream open on close, for output channels owned by the caller. */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
 }
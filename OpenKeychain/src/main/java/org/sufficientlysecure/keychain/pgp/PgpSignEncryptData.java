@@ -60,6 +60,7 @@ public abstract class PgpSignEncryptData implements Parcelable {
     public abstract boolean isDetachedSignature();
     public abstract boolean isAddBackupHeader();
     public abstract boolean isHiddenRecipients();
+    public abstract boolean isEnablePipelinedProcessing();
 
     public static Builder builder() {
         return new AutoValue_PgpSignEncryptData.Builder()
@@ -70,6 +71,7 @@ public abstract class PgpSignEncryptData implements Parcelable {
                 .setDetachedSignature(false)
                 .setAddBackupHeader(false)
                 .setHiddenRecipients(false)
+                .setEnablePipelinedProcessing(false)
                 .setCompressionAlgorithm(OpenKeychainCompressionAlgorithmTags.USE_DEFAULT)
                 .setSignatureHashAlgorithm(OpenKeychainHashAlgorithmTags.USE_DEFAULT)
                 .setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.USE_DEFAULT);
@@ -96,6 +98,8 @@ public abstract class PgpSignEncryptData implements Parcelable {
         public abstract Builder setCleartextSignature(boolean isCleartextSignature);
         public abstract Builder setDetachedSignature(boolean isDetachedSignature);
         public abstract Builder setHiddenRecipients(boolean isHiddenRecipients);
+        /** Runs reading, encryption and armoring on separate threads. Worth it for large files. */
+        public abstract Builder setEnablePipelinedProcessing(boolean enablePipelinedProcessing);
 
         abstract Builder setAllowedSigningKeyIds(List<Long> allowedSigningKeyIds);
         public Builder setAllowedSigningKeyIds(Collection<Long> allowedSigningKeyIds) {
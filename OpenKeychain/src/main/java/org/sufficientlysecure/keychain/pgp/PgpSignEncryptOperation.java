@@ -30,8 +30,11 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -48,6 +51,7 @@ import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPLiteralData;
 import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
 import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.PGPKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEKeyEncryptionMethodGenerator;
 import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.NfcSyncPGPContentSignerBuilder;
@@ -73,7 +77,10 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.PipelineStage;
+import org.sufficientlysecure.keychain.util.PipelinedOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.ReadAheadInputStream;
 import timber.log.Timber;
 
 import static java.lang.String.format;
@@ -331,24 +338,35 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
             } else {
                 log.add(LogType.MSG_PSE_ASYMMETRIC, indent);
 
+                ArrayList<PGPKeyEncryptionMethodGenerator> encryptionMethods = new ArrayList<>();
+                HashSet<Long> processedMasterKeyIds = new HashSet<>();
+
                 long additionalEncryptId = data.getAdditionalEncryptId();
                 for (long encryptMasterKeyId : data.getEncryptionMasterKeyIds()) {
                     if (encryptMasterKeyId == additionalEncryptId) {
                         continue;
                     }
 
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, encryptMasterKeyId);
+                    boolean success = processEncryptionMasterKeyId(
+                            indent, log, data, encryptionMethods, processedMasterKeyIds, encryptMasterKeyId);
                     if (!success) {
                         return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
                 }
 
                 if (additionalEncryptId != Constants.key.none) {
-                    boolean success = processEncryptionMasterKeyId(indent, log, data, cPk, additionalEncryptId);
+                    boolean success = processEncryptionMasterKeyId(
+                            indent, log, data, encryptionMethods, processedMasterKeyIds, additionalEncryptId);
                     if (!success) {
                         return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                     }
                 }
+
+                // for many recipients, session key packets are computed in parallel when the stream is opened
+                for (PGPKeyEncryptionMethodGenerator method :
+                        ParallelKeyEncryptionMethodGroup.wrapIfWorthwhile(encryptionMethods)) {
+                    cPk.addMethod(method);
+                }
             }
         }
 
@@ -384,6 +402,11 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         ArmoredOutputStream detachedArmorOut = null;
         BCPGOutputStream detachedBcpgOut = null;
 
+        // only used if pipelined processing is enabled
+        ReadAheadInputStream readStage = null;
+        PipelinedOutputStream encryptStage = null;
+        PipelinedOutputStream armorStage = null;
+
         long opTime, startTime = System.currentTimeMillis();
 
         try {
@@ -398,15 +421,26 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 );
                 indent += 1;
 
-                encryptionOut = cPk.open(out, new byte[1 << 16]);
+                OutputStream encryptionTarget = out;
+                if (data.isEnablePipelinedProcessing() && armorOut != null) {
+                    armorStage = new PipelinedOutputStream("armor", armorOut);
+                    encryptionTarget = armorStage;
+                }
+                encryptionOut = cPk.open(encryptionTarget, new byte[1 << 16]);
+
+                OutputStream literalTarget = encryptionOut;
+                if (data.isEnablePipelinedProcessing()) {
+                    encryptStage = new PipelinedOutputStream("encrypt", encryptionOut);
+                    literalTarget = encryptStage;
+                }
 
                 if (compressionAlgorithm != CompressionAlgorithmTags.UNCOMPRESSED) {
                     log.add(LogType.MSG_PSE_COMPRESSING, indent);
 
                     compressGen = new PGPCompressedDataGenerator(compressionAlgorithm);
-                    bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+                    bcpgOut = new BCPGOutputStream(compressGen.open(literalTarget));
                 } else {
-                    bcpgOut = new BCPGOutputStream(encryptionOut);
+                    bcpgOut = new BCPGOutputStream(literalTarget);
                 }
 
                 if (enableSignature) {
@@ -426,7 +460,13 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 long alreadyWritten = 0;
                 int length;
                 byte[] buffer = new byte[1 << 16];
-                InputStream in = new BufferedInputStream(inputData.getInputStream());
+                InputStream in;
+                if (data.isEnablePipelinedProcessing()) {
+                    readStage = new ReadAheadInputStream("read", inputData.getInputStream());
+                    in = readStage;
+                } else {
+                    in = new BufferedInputStream(inputData.getInputStream());
+                }
                 while ((length = in.read(buffer)) > 0) {
                     pOut.write(buffer, 0, length);
 
@@ -587,9 +627,16 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                 compressGen.close();
             }
 
+            // drain each pipeline stage before closing the stream it writes to
+            if (encryptStage != null) {
+                encryptStage.finish();
+            }
             if (encryptionOut != null) {
                 encryptionOut.close();
             }
+            if (armorStage != null) {
+                armorStage.finish();
+            }
             // Note: Closing ArmoredOutputStream does not close the underlying stream
             if (armorOut != null) {
                 armorOut.close();
@@ -618,8 +665,13 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         } catch (IOException e) {
             log.add(LogType.MSG_PSE_ERROR_IO, indent);
             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+        } finally {
+            // no-ops if the stages finished normally, stops the threads if we bailed out early
+            abortPipelineStages(readStage, encryptStage, armorStage);
         }
 
+        logPipelineStages(log, indent, readStage, encryptStage, armorStage);
+
         updateProgress(R.string.progress_done, 100, 100);
 
         log.add(LogType.MSG_PSE_OK, indent);
@@ -645,14 +697,19 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
     }
 
     private boolean processEncryptionMasterKeyId(int indent, OperationLog log, PgpSignEncryptData data,
-            PGPEncryptedDataGenerator cPk, long encryptMasterKeyId) {
+            List<PGPKeyEncryptionMethodGenerator> encryptionMethods, Set<Long> processedMasterKeyIds,
+            long encryptMasterKeyId) {
+        // recipient lists may name the same key more than once, look it up and encrypt to it only once
+        if (!processedMasterKeyIds.add(encryptMasterKeyId)) {
+            return true;
+        }
         try {
             CanonicalizedPublicKeyRing keyRing = mKeyRepository.getCanonicalizedPublicKeyRing(
                     KeyRings.buildUnifiedKeyRingUri(encryptMasterKeyId));
             Set<Long> encryptSubKeyIds = keyRing.getEncryptIds();
             for (Long subKeyId : encryptSubKeyIds) {
                 CanonicalizedPublicKey key = keyRing.getPublicKey(subKeyId);
-                cPk.addMethod(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
+                encryptionMethods.add(key.getPubKeyEncryptionGenerator(data.isHiddenRecipients()));
                 log.add(LogType.MSG_PSE_KEY_OK, indent + 1,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
             }
@@ -674,6 +731,45 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
         return true;
     }
 
+    private static void abortPipelineStages(ReadAheadInputStream readStage,
+            PipelinedOutputStream encryptStage, PipelinedOutputStream armorStage) {
+        if (readStage != null) {
+            readStage.getStage().abort();
+        }
+        if (encryptStage != null) {
+            encryptStage.getStage().abort();
+        }
+        if (armorStage != null) {
+            armorStage.getStage().abort();
+        }
+    }
+
+    /**
+     * Logs the throughput of each pipeline stage. The stage with the lowest throughput while
+     * busy, and the least idle time, is the one holding up the others.
+     */
+    private static void logPipelineStages(OperationLog log, int indent, ReadAheadInputStream readStage,
+            PipelinedOutputStream encryptStage, PipelinedOutputStream armorStage) {
+        if (readStage != null) {
+            logPipelineStage(log, indent, readStage.getStage());
+        }
+        if (encryptStage != null) {
+            logPipelineStage(log, indent, encryptStage.getStage());
+        }
+        if (armorStage != null) {
+            logPipelineStage(log, indent, armorStage.getStage());
+        }
+    }
+
+    private static void logPipelineStage(OperationLog log, int indent, PipelineStage stage) {
+        String throughput = format("%.1f", stage.getBusyThroughput());
+        String idleMillis = Long.toString(stage.getIdleNanos() / 1000000);
+        String blockedMillis = Long.toString(stage.getBlockedNanos() / 1000000);
+        Timber.d("pipeline stage " + stage.getName() + ": " + throughput + " MiB/s while busy, idle "
+                + idleMillis + "ms, blocked " + blockedMillis + "ms");
+        log.add(LogType.MSG_PSE_PIPELINE_STAGE, indent, stage.getName(), throughput, idleMillis, blockedMillis);
+    }
+
     /**
      * Remove whitespaces on line endings
      */
@@ -19,7 +19,6 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,8 +38,6 @@ import org.sufficientlysecure.keychain.pgp.DecryptVerifySecurityProblem.DecryptV
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.InsecureSigningAlgorithm;
 import org.sufficientlysecure.keychain.pgp.SecurityProblem.KeySecurityProblem;
 import org.sufficientlysecure.keychain.provider.KeyRepository;
-import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import timber.log.Timber;
 
 
@@ -53,6 +50,7 @@ class PgpSignatureChecker {
     private final OpenPgpSignatureResultBuilder signatureResultBuilder;
     private final DecryptVerifySecurityProblemBuilder securityProblemBuilder;
 
+    private SignerCache.Signer signer;
     private CanonicalizedPublicKey signingKey;
 
     private int signatureIndex;
@@ -60,12 +58,14 @@ class PgpSignatureChecker {
     private PGPSignature signature;
 
     private KeyRepository mKeyRepository;
+    private SignerCache mSignerCache;
 
-    PgpSignatureChecker(KeyRepository keyRepository, String senderAddress,
+    PgpSignatureChecker(KeyRepository keyRepository, SignerCache signerCache, String senderAddress,
             DecryptVerifySecurityProblemBuilder securityProblemBuilder) {
         mKeyRepository = keyRepository;
+        mSignerCache = signerCache;
 
-        signatureResultBuilder = new OpenPgpSignatureResultBuilder(keyRepository);
+        signatureResultBuilder = new OpenPgpSignatureResultBuilder();
         signatureResultBuilder.setSenderAddress(senderAddress);
 
         this.securityProblemBuilder = securityProblemBuilder;
@@ -83,7 +83,7 @@ class PgpSignatureChecker {
         if (signingKey != null) {
 
             // key found in our database!
-            signatureResultBuilder.initValid(signingKey);
+            signatureResultBuilder.initValid(signer);
 
             JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
                     new JcaPGPContentVerifierBuilderProvider()
@@ -118,7 +118,7 @@ class PgpSignatureChecker {
         if (signingKey != null) {
 
             // key found in our database!
-            signatureResultBuilder.initValid(signingKey);
+            signatureResultBuilder.initValid(signer);
 
             JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
                     new JcaPGPContentVerifierBuilderProvider()
@@ -141,8 +141,7 @@ class PgpSignatureChecker {
 
     private void checkKeySecurity(OperationLog log, int indent) {
         // TODO check primary key as well, not only the signing key
-        KeySecurityProblem keySecurityProblem =
-                PgpSecurityConstants.checkForSecurityProblems(signingKey);
+        KeySecurityProblem keySecurityProblem = signer.mKeySecurityProblem;
         if (keySecurityProblem != null) {
             log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
             securityProblemBuilder.addSigningKeyProblem(keySecurityProblem);
@@ -158,22 +157,17 @@ class PgpSignatureChecker {
         // go through all signatures (should be just one), make sure we have
         //  the key and it matches the one we’re looking for
         for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mKeyRepository.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
-                    continue;
-                }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                onePassSignature = sigList.get(i);
-                return;
-            } catch (KeyWritableRepository.NotFoundException e) {
-                Timber.d("key not found, trying next signature...");
+            long sigKeyId = sigList.get(i).getKeyID();
+            SignerCache.Signer signerCandidate = mSignerCache.resolve(mKeyRepository, sigKeyId);
+            if (signerCandidate == null) {
+                Timber.d("key not found or can't sign, trying next signature...");
+                continue;
             }
+            signatureIndex = i;
+            signer = signerCandidate;
+            signingKey = signerCandidate.mSigningKey;
+            onePassSignature = sigList.get(i);
+            return;
         }
     }
 
@@ -181,28 +175,23 @@ class PgpSignatureChecker {
         // go through all signatures (should be just one), make sure we have
         //  the key and it matches the one we’re looking for
         for (int i = 0; i < sigList.size(); ++i) {
-            try {
-                long sigKeyId = sigList.get(i).getKeyID();
-                CanonicalizedPublicKeyRing signingRing = mKeyRepository.getCanonicalizedPublicKeyRing(
-                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(sigKeyId)
-                );
-                CanonicalizedPublicKey keyCandidate = signingRing.getPublicKey(sigKeyId);
-                if ( ! keyCandidate.canSign()) {
-                    continue;
-                }
-                signatureIndex = i;
-                signingKey = keyCandidate;
-                signature = sigList.get(i);
-                return;
-            } catch (KeyWritableRepository.NotFoundException e) {
-                Timber.d("key not found, trying next signature...");
+            long sigKeyId = sigList.get(i).getKeyID();
+            SignerCache.Signer signerCandidate = mSignerCache.resolve(mKeyRepository, sigKeyId);
+            if (signerCandidate == null) {
+                Timber.d("key not found or can't sign, trying next signature...");
+                continue;
             }
+            signatureIndex = i;
+            signer = signerCandidate;
+            signingKey = signerCandidate.mSigningKey;
+            signature = sigList.get(i);
+            return;
         }
     }
 
-    public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
+    public void updateSignatureWithCleartext(InputStream clearText) throws IOException, SignatureException {
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
+        InputStream sigIn = new BufferedInputStream(clearText);
 
         ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.SecurityProblem.KeySecurityProblem;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of decrypted session keys, so a message which is opened again only needs
+ * the symmetric part of its decryption, instead of a private key operation or a round trip to a
+ * security token.
+ * <p>
+ * Entries are keyed by a SHA-256 digest over the key id and encrypted session key of a PKESK
+ * packet, and remember the master key they were decrypted with, so the allowed keys of an api
+ * client are still enforced on a hit, as well as the security problem of the decryption key, so
+ * it is still reported. Session keys are only held in memory, each one for at most
+ * {@link #DEFAULT_TTL_MILLIS}, and are overwritten when they are dropped.
+ * <p>
+ * Only session keys which were decrypted with a passphrase from the passphrase cache are put in
+ * here. PassphraseCacheService broadcasts {@link #BROADCAST_ACTION_SESSION_KEY_CACHE_CLEAR}
+ * whenever it drops passphrases, which wipes the caches of all processes along with them, so no
+ * session key outlives the passphrase it was unlocked with.
+ * <p>
+ * This cache is only used if enabled in the preferences, see
+ * {@link org.sufficientlysecure.keychain.util.Preferences#getSessionKeyCache}.
+ */
+public class SessionKeyCache {
+    public static final String BROADCAST_ACTION_SESSION_KEY_CACHE_CLEAR = Constants.INTENT_PREFIX
+            + "SESSION_KEY_CACHE_CLEAR";
+
+    static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    static final int DEFAULT_MAX_ENTRIES = 64;
+
+    private static SessionKeyCache sInstance;
+
+    private final long mTtlMillis;
+    private final int mMaxEntries;
+    // in access order, so the least recently used entry is dropped first
+    private final LinkedHashMap<ByteBuffer, CacheEntry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mHits;
+    private long mMisses;
+
+    public static synchronized SessionKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SessionKeyCache(DEFAULT_TTL_MILLIS, DEFAULT_MAX_ENTRIES);
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    sInstance.clear();
+                }
+            }, new IntentFilter(BROADCAST_ACTION_SESSION_KEY_CACHE_CLEAR));
+        }
+        return sInstance;
+    }
+
+    /** Wipes the session key caches of all processes. */
+    public static void clearAll(Context context) {
+        Intent intent = new Intent(BROADCAST_ACTION_SESSION_KEY_CACHE_CLEAR);
+        intent.setPackage(context.getPackageName());
+        context.sendBroadcast(intent);
+    }
+
+    SessionKeyCache(long ttlMillis, int maxEntries) {
+        mTtlMillis = ttlMillis;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Returns a copy of the session key cached for a PKESK packet, or null if there is none or it
+     * was decrypted with a master key which is not in allowedMasterKeyIds. A null set allows all keys.
+     */
+    @Nullable
+    public synchronized CachedSessionKey get(long subKeyId, byte[] encryptedSessionKey,
+            @Nullable Collection<Long> allowedMasterKeyIds) {
+        ByteBuffer cacheKey = buildCacheKey(subKeyId, encryptedSessionKey);
+        CacheEntry entry = mEntries.get(cacheKey);
+        if (entry != null && entry.mExpiryTime <= SystemClock.elapsedRealtime()) {
+            mEntries.remove(cacheKey);
+            entry.wipe();
+            entry = null;
+        }
+        if (entry == null || (allowedMasterKeyIds != null && !allowedMasterKeyIds.contains(entry.mMasterKeyId))) {
+            mMisses += 1;
+            return null;
+        }
+        mHits += 1;
+        return new CachedSessionKey(Arrays.copyOf(entry.mSessionData, entry.mSessionData.length),
+                entry.mKeySecurityProblem);
+    }
+
+    /**
+     * Caches the session data of a PKESK packet. An entry which already exists keeps its expiry
+     * time, so reopening a message over and over doesn't keep its session key around forever.
+     */
+    public synchronized void put(long subKeyId, byte[] encryptedSessionKey, long masterKeyId, byte[] sessionData,
+            @Nullable KeySecurityProblem keySecurityProblem) {
+        ByteBuffer cacheKey = buildCacheKey(subKeyId, encryptedSessionKey);
+        if (mEntries.containsKey(cacheKey)) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        mEntries.put(cacheKey, new CacheEntry(masterKeyId,
+                Arrays.copyOf(sessionData, sessionData.length), keySecurityProblem, now + mTtlMillis));
+
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry entry = it.next();
+            if (mEntries.size() > mMaxEntries || entry.mExpiryTime <= now) {
+                it.remove();
+                entry.wipe();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        Timber.d("Wiping " + mEntries.size() + " cached session keys");
+        for (CacheEntry entry : mEntries.values()) {
+            entry.wipe();
+        }
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** Returns the number of calls to {@link #get} which found a usable session key. */
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private static ByteBuffer buildCacheKey(long subKeyId, byte[] encryptedSessionKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(8).putLong(subKeyId).array());
+            digest.update(encryptedSessionKey);
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must be available");
+        }
+    }
+
+    /** A session key handed out by the cache. The session data is a copy owned by the caller. */
+    public static class CachedSessionKey {
+        @NonNull
+        public final byte[] mSessionData;
+        // of the key the session key was decrypted with
+        @Nullable
+        public final KeySecurityProblem mKeySecurityProblem;
+
+        CachedSessionKey(@NonNull byte[] sessionData, @Nullable KeySecurityProblem keySecurityProblem) {
+            mSessionData = sessionData;
+            mKeySecurityProblem = keySecurityProblem;
+        }
+    }
+
+    private static class CacheEntry {
+        final long mMasterKeyId;
+        final byte[] mSessionData;
+        final KeySecurityProblem mKeySecurityProblem;
+        final long mExpiryTime;
+
+        CacheEntry(long masterKeyId, byte[] sessionData, KeySecurityProblem keySecurityProblem, long expiryTime) {
+            mMasterKeyId = masterKeyId;
+            mSessionData = sessionData;
+            mKeySecurityProblem = keySecurityProblem;
+            mExpiryTime = expiryTime;
+        }
+
+        void wipe() {
+            Arrays.fill(mSessionData, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.pgp.SecurityProblem.KeySecurityProblem;
+import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry;
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry.InvalidationListener;
+import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of the signing keys PgpSignatureChecker resolved, keyed by subkey id. A
+ * stream of messages from the same few signers, like mailing list traffic, would otherwise look
+ * up the keyring of the signer, its confirmed user ids and the status of the key for every one of
+ * them.
+ * <p>
+ * Signers which are not in the database, or whose key can't sign, are cached as well, so unknown
+ * signers don't cost a query for each message either. Writing a keyring drops its own entries
+ * along with all unknown signers, since the new keyring may be the one they were missing.
+ * <p>
+ * Expiry is evaluated on each use, everything else about a signer is as of when it was resolved.
+ */
+public class SignerCache implements InvalidationListener {
+    private static final int MAX_ENTRIES = 256;
+
+    private static SignerCache sInstance;
+
+    // in access order, so the least recently used entry is dropped first
+    private final LinkedHashMap<Long, CacheEntry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // incremented on each invalidation, so a lookup that raced with it is not cached
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    public static synchronized SignerCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SignerCache();
+            CacheInvalidationRegistry.register(context, sInstance);
+        }
+        return sInstance;
+    }
+
+    SignerCache() {
+    }
+
+    /**
+     * Returns the signing key with the given subkey id and its status, or null if it is not in the
+     * database or can't sign.
+     */
+    @Nullable
+    Signer resolve(KeyRepository keyRepository, long subKeyId) {
+        long generation;
+        synchronized (this) {
+            CacheEntry entry = mEntries.get(subKeyId);
+            if (entry != null) {
+                mHits += 1;
+                return entry.mSigner;
+            }
+            mMisses += 1;
+            generation = mGeneration;
+        }
+
+        Signer signer = Signer.load(keyRepository, subKeyId);
+
+        synchronized (this) {
+            if (generation != mGeneration) {
+                Timber.d("Keyrings changed while resolving signer, not caching");
+                return signer;
+            }
+            mEntries.put(subKeyId, new CacheEntry(signer));
+            Iterator<CacheEntry> it = mEntries.values().iterator();
+            while (mEntries.size() > MAX_ENTRIES && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        return signer;
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Signer signer = it.next().mSigner;
+            // a new keyring may be the one an unknown signer was missing
+            if (signer == null || signer.mMasterKeyId == masterKeyId) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration += 1;
+        mEntries.clear();
+    }
+
+    /** Drops the signers of the keyring a uri refers to, or all of them if it names none. */
+    @Override
+    public void onInvalidate(@Nullable Uri uri) {
+        if (!CacheInvalidationRegistry.overlaps(uri, KeyRings.CONTENT_URI)) {
+            return;
+        }
+        Long masterKeyId = CacheInvalidationRegistry.getMasterKeyId(uri);
+        if (masterKeyId != null) {
+            invalidate(masterKeyId);
+        } else {
+            invalidateAll();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** Returns the share of lookups that were served from the cache, between 0 and 1. */
+    public synchronized float getHitRate() {
+        long lookups = mHits + mMisses;
+        return lookups == 0 ? 0f : (float) mHits / lookups;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /** A signing key together with the status of it and its keyring. Instances are shared, and never modified. */
+    static class Signer {
+        final CanonicalizedPublicKey mSigningKey;
+        final long mMasterKeyId;
+        @Nullable
+        final String mPrimaryUserId;
+        final ArrayList<String> mUserIds;
+        final ArrayList<String> mConfirmedUserIds;
+        final boolean mCertified;
+        // either the master key or this specific subkey is revoked
+        final boolean mRevoked;
+        @Nullable
+        final KeySecurityProblem mKeySecurityProblem;
+
+        private final Date mRingCreationDate;
+        @Nullable
+        private final Date mRingExpiryDate;
+        @Nullable
+        private final Date mKeyExpiryDate;
+
+        private Signer(CanonicalizedPublicKey signingKey, @Nullable String primaryUserId,
+                ArrayList<String> confirmedUserIds) {
+            CanonicalizedKeyRing signingRing = signingKey.getKeyRing();
+
+            mSigningKey = signingKey;
+            mMasterKeyId = signingRing.getMasterKeyId();
+            mPrimaryUserId = primaryUserId;
+            mUserIds = signingRing.getUnorderedUserIds();
+            mConfirmedUserIds = confirmedUserIds;
+            mCertified = signingRing.getVerified() > 0;
+            mRevoked = signingRing.isRevoked() || signingKey.isRevoked();
+            mKeySecurityProblem = PgpSecurityConstants.checkForSecurityProblems(signingKey);
+
+            mRingCreationDate = signingRing.getCreationDate();
+            mRingExpiryDate = signingRing.getExpirationDate();
+            mKeyExpiryDate = signingKey.getExpiryTime();
+        }
+
+        @Nullable
+        static Signer load(KeyRepository keyRepository, long subKeyId) {
+            try {
+                CanonicalizedPublicKeyRing signingRing = keyRepository.getCanonicalizedPublicKeyRing(
+                        KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId));
+                CanonicalizedPublicKey signingKey = signingRing.getPublicKey(subKeyId);
+                if (!signingKey.canSign()) {
+                    return null;
+                }
+
+                String primaryUserId = null;
+                try {
+                    primaryUserId = signingRing.getPrimaryUserIdWithFallback();
+                } catch (PgpKeyNotFoundException e) {
+                    Timber.d("No primary user id in keyring with master key id " + signingRing.getMasterKeyId());
+                }
+                ArrayList<String> confirmedUserIds = keyRepository.getConfirmedUserIds(signingRing.getMasterKeyId());
+
+                return new Signer(signingKey, primaryUserId, confirmedUserIds);
+            } catch (NotFoundException e) {
+                return null;
+            }
+        }
+
+        /** Returns true if either the master key or this specific subkey is expired right now. */
+        boolean isExpired() {
+            Date now = new Date();
+            return mRingCreationDate.after(now) || (mRingExpiryDate != null && mRingExpiryDate.before(now))
+                    || (mKeyExpiryDate != null && mKeyExpiryDate.before(now));
+        }
+    }
+
+    private static class CacheEntry {
+        // null for a signer which is unknown or can't sign
+        final Signer mSigner;
+
+        CacheEntry(Signer signer) {
+            mSigner = signer;
+        }
+    }
+}
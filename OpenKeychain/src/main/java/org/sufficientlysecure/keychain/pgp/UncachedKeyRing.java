@@ -24,25 +24,32 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
 
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 
 import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.Packet;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyPacket;
+import org.bouncycastle.bcpg.PublicSubkeyPacket;
+import org.bouncycastle.bcpg.SecretKeyPacket;
+import org.bouncycastle.bcpg.SecretSubkeyPacket;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.UserAttributeSubpacketTags;
 import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPKeyRing;
 import org.bouncycastle.openpgp.PGPObjectFactory;
 import org.bouncycastle.openpgp.PGPPrivateKey;
@@ -172,6 +179,34 @@ public class UncachedKeyRing {
 
     }
 
+    /**
+     * Reads only the primary key packet of an encoded keyring, which is enough to tell its master
+     * key id and whether it is a secret keyring, without parsing subkeys, user ids and signatures.
+     */
+    public static KeyRingHeader peekHeader(byte[] data) throws PgpGeneralException, IOException {
+        BCPGInputStream in = new BCPGInputStream(PGPUtil.getDecoderStream(new ByteArrayInputStream(data)));
+        Packet packet = in.readPacket();
+
+        PublicKeyPacket publicKeyPacket;
+        boolean isSecret;
+        if (packet instanceof SecretKeyPacket && !(packet instanceof SecretSubkeyPacket)) {
+            publicKeyPacket = ((SecretKeyPacket) packet).getPublicKeyPacket();
+            isSecret = true;
+        } else if (packet instanceof PublicKeyPacket && !(packet instanceof PublicSubkeyPacket)) {
+            publicKeyPacket = (PublicKeyPacket) packet;
+            isSecret = false;
+        } else {
+            throw new PgpGeneralException("Object not recognized as PGPKeyRing!");
+        }
+
+        try {
+            long masterKeyId = new PGPPublicKey(publicKeyPacket, new JcaKeyFingerprintCalculator()).getKeyID();
+            return new KeyRingHeader(masterKeyId, isSecret);
+        } catch (PGPException e) {
+            throw new PgpGeneralException(e);
+        }
+    }
+
     public boolean containsKeyWithAnyFingerprint(List<byte[]> expectedFingerprints) {
         Iterator<UncachedPublicKey> publicKeys = getPublicKeys();
 
@@ -358,8 +393,16 @@ public class UncachedKeyRing {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, null);
+    }
+
+    /** Like canonicalize(log, indent, forExport), but self signatures with a result in the
+     * given cache are not verified again, and fresh results are put into it.
+     */
+    @SuppressWarnings("ConstantConditions")
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            @Nullable VerifiedSignatureCache verifiedSignatureCache) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -388,6 +431,10 @@ public class UncachedKeyRing {
             return null;
         }
 
+        // verifies the self signatures in parallel, results are looked up in order below
+        CanonicalizeSignatureVerifier verifier =
+                CanonicalizeSignatureVerifier.create(mRing, verifiedSignatureCache);
+
         {
             log.add(LogType.MSG_KC_MASTER,
                     indent, KeyFormattingUtils.convertKeyIdToHex(masterKey.getKeyID()));
@@ -429,8 +476,7 @@ public class UncachedKeyRing {
                 }
 
                 try {
-                    cert.init(masterKey);
-                    if (!cert.verifySignature(masterKey)) {
+                    if (!verifier.verifySignature(zert, masterKey)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
                         badCerts += 1;
@@ -586,8 +632,7 @@ public class UncachedKeyRing {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
-                            if (!cert.verifySignature(masterKey, rawUserId)) {
+                            if (!verifier.verifySignature(zert, masterKey, rawUserId)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
                                 modified = PGPPublicKey.removeCertification(modified, rawUserId, zert);
@@ -751,8 +796,7 @@ public class UncachedKeyRing {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
-                                if (!cert.verifySignature(masterKey, userAttribute)) {
+                                if (!verifier.verifySignature(zert, masterKey, userAttribute)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
                                     modified = PGPPublicKey.removeCertification(modified, userAttribute, zert);
@@ -941,8 +985,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifier.verifySignature(zert, masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1038,8 +1081,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
-                        if (!cert.verifySignature(masterKey, key)) {
+                        if (!verifier.verifySignature(zert, masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
                             continue;
@@ -1127,7 +1169,8 @@ public class UncachedKeyRing {
      *
      * @param other The UncachedKeyRing to merge. Must not be empty, and of the same masterKeyId
      * @return A consolidated UncachedKeyRing with the data of both input keyrings. Same type as
-     * this object, or null on error.
+     * this object, or null on error. If the other keyring contains nothing new, this object
+     * itself is returned.
      *
      */
     public UncachedKeyRing merge(UncachedKeyRing other, OperationLog log, int indent) {
@@ -1145,22 +1188,9 @@ public class UncachedKeyRing {
             return null;
         }
 
-        // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
+        // remember which certs we already added. this is cheaper than semantic deduplication,
+        // and hashing the encoded packets avoids comparing most of them byte by byte
+        HashSet<ByteBuffer> certs = new HashSet<>();
 
         try {
             PGPKeyRing result = mRing;
@@ -1169,7 +1199,7 @@ public class UncachedKeyRing {
             // Pre-load all existing certificates
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
                 for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
+                    certs.add(ByteBuffer.wrap(cert.getEncoded()));
                 }
             }
 
@@ -1202,12 +1232,10 @@ public class UncachedKeyRing {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(ByteBuffer.wrap(cert.getEncoded()))) {
                         continue;
                     }
-                    certs.add(encoded);
                     modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
                 }
@@ -1233,13 +1261,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(ByteBuffer.wrap(cert.getEncoded()))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
                 }
@@ -1258,13 +1284,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(ByteBuffer.wrap(cert.getEncoded()))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, vector, cert);
                     }
                 }
@@ -1283,6 +1307,11 @@ public class UncachedKeyRing {
                 log.add(LogType.MSG_MG_UNCHANGED, indent);
             }
 
+            // nothing was added, callers can tell by identity and skip further processing
+            if (result == mRing) {
+                return this;
+            }
+
             return new UncachedKeyRing(result);
 
         } catch (IOException e) {
@@ -1400,4 +1429,23 @@ public class UncachedKeyRing {
         return new UncachedKeyRing(sKR);
     }
 
+    /** The master key id and type of an encoded keyring, see {@link #peekHeader}. */
+    public static class KeyRingHeader {
+        private final long mMasterKeyId;
+        private final boolean mIsSecret;
+
+        KeyRingHeader(long masterKeyId, boolean isSecret) {
+            mMasterKeyId = masterKeyId;
+            mIsSecret = isSecret;
+        }
+
+        public long getMasterKeyId() {
+            return mMasterKeyId;
+        }
+
+        public boolean isSecret() {
+            return mIsSecret;
+        }
+    }
+
 }
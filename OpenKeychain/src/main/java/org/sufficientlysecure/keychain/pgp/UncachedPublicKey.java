@@ -121,6 +121,9 @@ public class UncachedPublicKey {
      *
      * Returns null if there is no primary user id (as indicated by certificates)
      *
+     * Certificates are verified on private copies, since this key may belong to a keyring
+     * that is shared between threads by the PublicKeyRingCache.
+     *
      */
     public byte[] getRawPrimaryUserId() {
         byte[] found = null;
@@ -142,9 +145,10 @@ public class UncachedPublicKey {
                     // if this is a revocation, this is not the user id
                     if (sig.getSignatureType() == PGPSignature.CERTIFICATION_REVOCATION) {
                         // make sure it's actually valid
-                        sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
+                        PGPSignature copy = CanonicalizeSignatureVerifier.copySignature(sig);
+                        copy.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
                                 Constants.BOUNCY_CASTLE_PROVIDER_NAME), mPublicKey);
-                        if (!sig.verifyCertification(rawUserId, mPublicKey)) {
+                        if (!copy.verifyCertification(rawUserId, mPublicKey)) {
                             continue;
                         }
                         if (found != null && Arrays.equals(found, rawUserId)) {
@@ -164,9 +168,10 @@ public class UncachedPublicKey {
                             continue;
                         }
                         // make sure it's actually valid
-                        sig.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
+                        PGPSignature copy = CanonicalizeSignatureVerifier.copySignature(sig);
+                        copy.init(new JcaPGPContentVerifierBuilderProvider().setProvider(
                                 Constants.BOUNCY_CASTLE_PROVIDER_NAME), mPublicKey);
-                        if (sig.verifyCertification(rawUserId, mPublicKey)) {
+                        if (copy.verifyCertification(rawUserId, mPublicKey)) {
                             found = rawUserId;
                             foundSig = sig;
                             // this one can't be relevant anymore at this point
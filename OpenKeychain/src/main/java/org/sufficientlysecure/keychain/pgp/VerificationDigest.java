@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPUserAttributeSubpacketVector;
+
+
+/**
+ * Identifies a signature for the {@link VerifiedSignatureCache}.
+ * <p>
+ * The digest covers the signature packet as well as the keys and user packet it was made over. A
+ * valid signature copied to another user id or subkey gets a different digest, and is verified
+ * again.
+ */
+final class VerificationDigest {
+    private static final byte TYPE_KEY = 1;
+    private static final byte TYPE_SUBKEY = 2;
+    private static final byte TYPE_USER_ID = 3;
+    private static final byte TYPE_USER_ATTRIBUTE = 4;
+
+    private VerificationDigest() {
+    }
+
+    static byte[] forKey(PGPSignature sig, PGPPublicKey key) throws IOException {
+        return digest(TYPE_KEY, sig, key.getFingerprint(), null);
+    }
+
+    static byte[] forSubKey(PGPSignature sig, PGPPublicKey masterKey, PGPPublicKey subKey) throws IOException {
+        return digest(TYPE_SUBKEY, sig, masterKey.getFingerprint(), subKey.getFingerprint());
+    }
+
+    static byte[] forUserId(PGPSignature sig, PGPPublicKey key, byte[] rawUserId) throws IOException {
+        return digest(TYPE_USER_ID, sig, key.getFingerprint(), rawUserId);
+    }
+
+    static byte[] forUserAttribute(PGPSignature sig, PGPPublicKey key, PGPUserAttributeSubpacketVector attribute)
+            throws IOException {
+        return digest(TYPE_USER_ATTRIBUTE, sig, key.getFingerprint(),
+                new WrappedUserAttribute(attribute).getEncoded());
+    }
+
+    private static byte[] digest(byte type, PGPSignature sig, byte[] keyFingerprint, byte[] subject)
+            throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(type);
+        update(digest, sig.getEncoded());
+        update(digest, keyFingerprint);
+        if (subject != null) {
+            update(digest, subject);
+        }
+        return digest.digest();
+    }
+
+    // length prefixed, so the parts can't be shifted against each other
+    private static void update(MessageDigest digest, byte[] data) {
+        digest.update((byte) (data.length >> 24));
+        digest.update((byte) (data.length >> 16));
+        digest.update((byte) (data.length >> 8));
+        digest.update((byte) data.length);
+        digest.update(data);
+    }
+
+}
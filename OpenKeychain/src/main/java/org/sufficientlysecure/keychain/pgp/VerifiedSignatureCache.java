@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import android.support.annotation.Nullable;
+
+
+/**
+ * Remembers the results of signature verifications, so certifications which were checked before
+ * don't have to be verified again.
+ * <p>
+ * Signatures are identified by a digest over the signature packet and the data it was made over,
+ * see {@link VerificationDigest}, together with the fingerprint of the signing key.
+ */
+public interface VerifiedSignatureCache {
+    /** Returns whether the signature verified, or null if there is no result for it. */
+    @Nullable
+    Boolean getVerificationResult(byte[] signatureDigest, byte[] signerFingerprint);
+
+    void putVerificationResult(byte[] signatureDigest, byte[] signerFingerprint, boolean verified);
+}
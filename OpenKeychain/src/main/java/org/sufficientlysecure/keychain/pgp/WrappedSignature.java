@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.pgp;
 
+import android.support.annotation.Nullable;
+
 import org.bouncycastle.bcpg.SignatureSubpacket;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.sig.Exportable;
@@ -224,6 +226,65 @@ public class WrappedSignature {
         return verifySignature(key.getPublicKey(), attribute.getVector());
     }
 
+    /** Initializes with the signer and verifies, unless the cache already knows the result. */
+    public boolean verifySignature(UncachedPublicKey signer, UncachedPublicKey key, byte[] rawUserId,
+            @Nullable VerifiedSignatureCache cache) throws PgpGeneralException {
+        byte[] digest = null;
+        if (cache != null) {
+            try {
+                digest = VerificationDigest.forUserId(mSig, key.getPublicKey(), rawUserId);
+            } catch (IOException e) {
+                // not cacheable, verify as usual
+            }
+        }
+        Boolean cachedResult = getCachedResult(cache, digest, signer);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        init(signer);
+        boolean result = verifySignature(key, rawUserId);
+        putCachedResult(cache, digest, signer, result);
+        return result;
+    }
+
+    /** Initializes with the signer and verifies, unless the cache already knows the result. */
+    public boolean verifySignature(UncachedPublicKey signer, UncachedPublicKey key, WrappedUserAttribute attribute,
+            @Nullable VerifiedSignatureCache cache) throws PgpGeneralException {
+        byte[] digest = null;
+        if (cache != null) {
+            try {
+                digest = VerificationDigest.forUserAttribute(mSig, key.getPublicKey(), attribute.getVector());
+            } catch (IOException e) {
+                // not cacheable, verify as usual
+            }
+        }
+        Boolean cachedResult = getCachedResult(cache, digest, signer);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        init(signer);
+        boolean result = verifySignature(key, attribute);
+        putCachedResult(cache, digest, signer, result);
+        return result;
+    }
+
+    private static Boolean getCachedResult(VerifiedSignatureCache cache, byte[] digest, UncachedPublicKey signer) {
+        if (cache == null || digest == null) {
+            return null;
+        }
+        return cache.getVerificationResult(digest, signer.getFingerprint());
+    }
+
+    private static void putCachedResult(VerifiedSignatureCache cache, byte[] digest, UncachedPublicKey signer,
+            boolean result) {
+        if (cache == null || digest == null) {
+            return;
+        }
+        cache.putVerificationResult(digest, signer.getFingerprint(), result);
+    }
+
     public static WrappedSignature fromBytes(byte[] data) {
         PGPObjectFactory factory = new PGPObjectFactory(data, new JcaKeyFingerprintCalculator());
         PGPSignatureList signatures = null;
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+
+/**
+ * Invalidates the process-wide caches of data derived from the database whenever KeychainProvider
+ * changes it.
+ * <p>
+ * The provider dispatches each change it notifies on through {@link #invalidate} before sending
+ * the notification, so a cache in the provider's process never serves data from before a write
+ * that already returned. Other processes only learn about changes from the notifications, which
+ * a single ContentObserver on the whole authority forwards to the registered caches there.
+ */
+public class CacheInvalidationRegistry {
+
+    public interface InvalidationListener {
+        /**
+         * Called for each change to the database. The uri is the one the provider notified, or
+         * null if anything may have changed. Listeners must ignore uris they don't care about.
+         */
+        void onInvalidate(@Nullable Uri uri);
+    }
+
+    private static final ArrayList<InvalidationListener> sListeners = new ArrayList<>();
+    private static ContentObserver sObserver;
+
+    /** Registers a cache for the lifetime of the process. */
+    public static synchronized void register(Context context, InvalidationListener listener) {
+        sListeners.add(listener);
+        if (sObserver != null) {
+            return;
+        }
+
+        sObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // api levels before 16 don't pass the uri
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+        Uri authorityUri = new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(KeychainContract.CONTENT_AUTHORITY).build();
+        context.getApplicationContext().getContentResolver()
+                .registerContentObserver(authorityUri, true, sObserver);
+    }
+
+    /** Invalidates what the uri refers to in all caches of this process. */
+    static void invalidate(@Nullable Uri uri) {
+        InvalidationListener[] listeners;
+        synchronized (CacheInvalidationRegistry.class) {
+            listeners = sListeners.toArray(new InvalidationListener[sListeners.size()]);
+        }
+        // outside the lock, the listeners take their own
+        for (InvalidationListener listener : listeners) {
+            listener.onInvalidate(uri);
+        }
+    }
+
+    /** Invalidates all caches of this process entirely. */
+    static void invalidateAll() {
+        invalidate(null);
+    }
+
+    /**
+     * Returns true if a change notified on the uri may concern what is observed at observedUri,
+     * like ContentResolver decides for observers which are notified for descendants. A null uri
+     * concerns everything.
+     */
+    public static boolean overlaps(@Nullable Uri uri, Uri observedUri) {
+        if (uri == null) {
+            return true;
+        }
+        List<String> changed = uri.getPathSegments();
+        List<String> observed = observedUri.getPathSegments();
+        int length = Math.min(changed.size(), observed.size());
+        return changed.subList(0, length).equals(observed.subList(0, length));
+    }
+
+    /**
+     * Returns the master key id of the single keyring a keyring uri refers to, or null if it may
+     * refer to any keyring.
+     */
+    @Nullable
+    public static Long getMasterKeyId(@Nullable Uri uri) {
+        if (uri == null || uri.getPathSegments().size() < 2
+                || !KeychainContract.BASE_KEY_RINGS.equals(uri.getPathSegments().get(0))) {
+            return null;
+        }
+        try {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry.InvalidationListener;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of the email and autocrypt status rows which KeychainExternalProvider
+ * returns for a single queried address, per calling package. Mail clients query the status of
+ * all recipients again on every change to the recipient list, so most addresses were looked up
+ * just before.
+ * <p>
+ * Entries are only kept for a short time, since the status also depends on the current time
+ * through key expiry. Any change to the database may affect them, so all of them are dropped on
+ * every change except to the autocrypt peers of a single package.
+ */
+public class EmailStatusCache implements InvalidationListener {
+    private static final long MAX_AGE_MILLIS = 30 * 1000;
+    private static final int MAX_ENTRIES = 2000;
+
+    private static EmailStatusCache sInstance;
+
+    private final LinkedHashMap<String, CacheEntry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    // incremented on each invalidation, so a lookup that raced with it is not cached
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    public static synchronized EmailStatusCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EmailStatusCache();
+            CacheInvalidationRegistry.register(context, sInstance);
+        }
+        return sInstance;
+    }
+
+    EmailStatusCache() {
+    }
+
+    /** Returns the generation to pass to {@link #put}, must be called before the lookup. */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the cached rows for an address, or null if it needs to be looked up.
+     *
+     * @param query identifies the query, including its projection and selection
+     * @param now   the current time, in milliseconds of the elapsed realtime clock
+     */
+    @Nullable
+    public synchronized List<Object[]> get(String packageName, String query, String address, long now) {
+        String key = buildKey(packageName, query, address);
+        CacheEntry entry = mEntries.get(key);
+        if (entry == null || now - entry.mCreationTime > MAX_AGE_MILLIS || now < entry.mCreationTime) {
+            if (entry != null) {
+                mEntries.remove(key);
+            }
+            mMisses += 1;
+            return null;
+        }
+        mHits += 1;
+        return entry.mRows;
+    }
+
+    public synchronized void put(long generation, String packageName, String query, String address,
+            List<Object[]> rows, long now) {
+        if (generation != mGeneration) {
+            Timber.d("Keys or peers changed during lookup, not caching");
+            return;
+        }
+
+        mEntries.put(buildKey(packageName, query, address), new CacheEntry(packageName, rows, now));
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (mEntries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    synchronized void invalidate(String packageName) {
+        mGeneration += 1;
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (packageName.equals(it.next().mPackageName)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        mGeneration += 1;
+        mEntries.clear();
+    }
+
+    /**
+     * Autocrypt peer uris which name a package only drop the entries of that package, since the
+     * peers of one package don't show up in the status rows of another.
+     */
+    @Override
+    public synchronized void onInvalidate(@Nullable Uri uri) {
+        if (uri == null) {
+            invalidateAll();
+            return;
+        }
+
+        List<String> pathSegments = uri.getPathSegments();
+        if (pathSegments.size() >= 3 && KeychainContract.BASE_AUTOCRYPT_PEERS.equals(pathSegments.get(0))
+                && KeychainContract.PATH_BY_PACKAGE_NAME.equals(pathSegments.get(1))) {
+            invalidate(pathSegments.get(2));
+            return;
+        }
+        invalidateAll();
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private static String buildKey(String packageName, String query, String address) {
+        return packageName + '\0' + query + '\0' + address;
+    }
+
+    private static class CacheEntry {
+        final String mPackageName;
+        final List<Object[]> mRows;
+        final long mCreationTime;
+
+        CacheEntry(String packageName, List<Object[]> rows, long creationTime) {
+            mPackageName = packageName;
+            mRows = rows;
+            mCreationTime = creationTime;
+        }
+    }
+}
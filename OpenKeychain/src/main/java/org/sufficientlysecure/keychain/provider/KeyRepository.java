@@ -55,24 +55,28 @@ public class KeyRepository {
 
     final ContentResolver mContentResolver;
     final LocalPublicKeyStorage mLocalPublicKeyStorage;
+    final PublicKeyRingCache mPublicKeyRingCache;
     OperationLog mLog;
     int mIndent;
 
     public static KeyRepository create(Context context) {
         ContentResolver contentResolver = context.getContentResolver();
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
+        PublicKeyRingCache publicKeyRingCache = PublicKeyRingCache.getInstance(context);
 
-        return new KeyRepository(contentResolver, localPublicKeyStorage);
+        return new KeyRepository(contentResolver, localPublicKeyStorage, publicKeyRingCache);
     }
 
-    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage) {
-        this(contentResolver, localPublicKeyStorage, new OperationLog(), 0);
+    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
+            PublicKeyRingCache publicKeyRingCache) {
+        this(contentResolver, localPublicKeyStorage, publicKeyRingCache, new OperationLog(), 0);
     }
 
     KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
-            OperationLog log, int indent) {
+            PublicKeyRingCache publicKeyRingCache, OperationLog log, int indent) {
         mContentResolver = contentResolver;
         mLocalPublicKeyStorage = localPublicKeyStorage;
+        mPublicKeyRingCache = publicKeyRingCache;
         mIndent = indent;
         mLog = log;
     }
@@ -184,6 +188,8 @@ public class KeyRepository {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
+        // taken before the query, so a change while loading is never cached
+        long generation = mPublicKeyRingCache.getGeneration();
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED }, null, null, null);
         try {
@@ -191,8 +197,15 @@ public class KeyRepository {
                 long masterKeyId = cursor.getLong(0);
                 int verified = cursor.getInt(1);
 
+                CanonicalizedPublicKeyRing keyRing = mPublicKeyRingCache.get(masterKeyId, verified);
+                if (keyRing != null) {
+                    return keyRing;
+                }
+
                 byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
-                return new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                keyRing = new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                mPublicKeyRingCache.put(generation, masterKeyId, keyRing, publicKeyData.length);
+                return keyRing;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -329,6 +342,30 @@ public class KeyRepository {
         return seenOnKeyservers;
     }
 
+    /** Returns the digest of the keyring as it was last retrieved from a keyserver, if known. */
+    @Nullable
+    public byte[] getKeyserverContentDigest(long masterKeyId) {
+        Cursor cursor = mContentResolver.query(
+                UpdatedKeys.CONTENT_URI,
+                new String[] { UpdatedKeys.CONTENT_DIGEST },
+                UpdatedKeys.MASTER_KEY_ID + " = ?",
+                new String[] { "" + masterKeyId },
+                null
+        );
+        if (cursor == null) {
+            return null;
+        }
+
+        try {
+            if (!cursor.moveToNext() || cursor.isNull(0)) {
+                return null;
+            }
+            return cursor.getBlob(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
 
     public final byte[] loadPublicKeyRingData(long masterKeyId) throws NotFoundException {
         byte[] data = (byte[]) getGenericDataOrNull(KeyRingData.buildPublicKeyRingUri(masterKeyId),
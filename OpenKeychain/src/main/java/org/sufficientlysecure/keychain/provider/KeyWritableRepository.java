@@ -24,7 +24,9 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentValues;
@@ -34,8 +36,10 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
 
 import org.openintents.openpgp.util.OpenPgpUtils;
 import org.sufficientlysecure.keychain.R;
@@ -53,6 +57,7 @@ import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
+import org.sufficientlysecure.keychain.pgp.VerifiedSignatureCache;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
@@ -83,8 +88,19 @@ import timber.log.Timber;
  */
 public class KeyWritableRepository extends KeyRepository {
     private static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
+    // roughly 500 average keyrings per transaction
+    private static final int BULK_MAX_PENDING_OPERATIONS = 10000;
 
     private final Context mContext;
+    private final TrustedKeyCache mTrustedKeyCache;
+    // null if disabled in the settings
+    private final VerifiedSignatureRepository mVerifiedSignatureRepository;
+
+    // only used while a bulk import is running, see beginBulkImport
+    private LinkedHashMap<Long, ArrayList<ContentProviderOperation>> mBulkPendingKeyRings;
+    private int mBulkPendingOperationCount;
+    private ArrayList<Long> mBulkFailedMasterKeyIds;
+    private LongSparseArray<CanonicalizedPublicKey> mBulkTrustedKeys;
 
     public static KeyWritableRepository create(Context context) {
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
@@ -99,12 +115,43 @@ public class KeyWritableRepository extends KeyRepository {
 
     private KeyWritableRepository(
             Context context, LocalPublicKeyStorage localPublicKeyStorage, OperationLog log, int indent) {
-        super(context.getContentResolver(), localPublicKeyStorage, log, indent);
+        super(context.getContentResolver(), localPublicKeyStorage, PublicKeyRingCache.getInstance(context),
+                log, indent);
 
         mContext = context;
+        mTrustedKeyCache = TrustedKeyCache.getInstance(context);
+        mVerifiedSignatureRepository = Preferences.getPreferences(context).getVerifiedSignatureCache()
+                ? VerifiedSignatureRepository.create(context) : null;
+    }
+
+    /** Returns the cache for signature verification results, or null if it is disabled. */
+    private VerifiedSignatureCache getVerifiedSignatureCache() {
+        return mVerifiedSignatureRepository;
+    }
+
+    private void flushVerifiedSignatureCache() {
+        if (mVerifiedSignatureRepository != null) {
+            mVerifiedSignatureRepository.flush();
+        }
     }
 
+    /**
+     * Returns the public master keys of all keys we have a secret for. The result is shared with
+     * other callers through the TrustedKeyCache, and must not be modified.
+     */
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = mTrustedKeyCache.get();
+        if (trustedKeys != null) {
+            return trustedKeys;
+        }
+
+        long generation = mTrustedKeyCache.getGeneration();
+        trustedKeys = loadTrustedMasterKeys();
+        mTrustedKeyCache.put(generation, trustedKeys);
+        return trustedKeys;
+    }
+
+    private LongSparseArray<CanonicalizedPublicKey> loadTrustedMasterKeys() {
         Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(), new String[] {
                 KeyRings.MASTER_KEY_ID,
                 // we pick from cache only information that is not easily available from keyrings
@@ -171,12 +218,59 @@ public class KeyWritableRepository extends KeyRepository {
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
      */
-    @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
 
+        long masterKeyId = keyRing.getMasterKeyId();
+        ArrayList<ContentProviderOperation> operations = buildPublicKeyRingOperations(keyRing, selfCertsAreTrusted);
+        if (operations == null) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+        try {
+            // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
+            int deleted = mContentResolver.delete(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+            if (deleted > 0) {
+                log(LogType.MSG_IP_DELETE_OLD_OK);
+                result |= SaveKeyringResult.UPDATED;
+            } else {
+                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+            }
+
+            log(LogType.MSG_IP_APPLY_BATCH);
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            log(LogType.MSG_IP_SUCCESS);
+            return result;
+
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Timber.e(e, "RemoteException during import");
+            return SaveKeyringResult.RESULT_ERROR;
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Timber.e(e, "OperationApplicationException during import");
+            return SaveKeyringResult.RESULT_ERROR;
+        } finally {
+            // other processes are notified by the provider
+            CacheInvalidationRegistry.invalidate(KeyRings.buildGenericKeyRingUri(masterKeyId));
+        }
+
+    }
+
+    /**
+     * Builds the operations which insert all public data of a keyring into the database. The
+     * old version of the keyring must be deleted before these are applied.
+     *
+     * @return the operations, or null if there was an error, which is logged
+     */
+    @SuppressWarnings("unchecked")
+    private ArrayList<ContentProviderOperation> buildPublicKeyRingOperations(
+            CanonicalizedPublicKeyRing keyRing, boolean selfCertsAreTrusted) {
+
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
@@ -194,7 +288,7 @@ public class KeyWritableRepository extends KeyRepository {
                 writePublicKeyRing(keyRing, masterKeyId, operations);
             } catch (IOException e) {
                 log(LogType.MSG_IP_ENCODE_FAIL);
-                return SaveKeyringResult.RESULT_ERROR;
+                return null;
             }
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
@@ -265,220 +359,22 @@ public class KeyWritableRepository extends KeyRepository {
             }
             mIndent -= 1;
 
-            // get a list of owned secret keys, for verification filtering
-            LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
-
-            // classify and order user ids. primary are moved to the front, revoked to the back,
-            // otherwise the order in the keyfile is preserved.
-            List<UserPacketItem> uids = new ArrayList<>();
+            // get a list of owned secret keys, for verification filtering. these don't change
+            // during a bulk import, so they are only loaded once for it
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys =
+                    mBulkTrustedKeys != null ? mBulkTrustedKeys : getTrustedMasterKeys();
 
             List<Long> signerKeyIds = new ArrayList<>();
-
-            if (trustedKeys.size() == 0) {
-                log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
-            } else {
-                log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
-            }
-            mIndent += 1;
-            for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
-                String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                OpenPgpUtils.UserId splitUserId = KeyRing.splitUserId(userId);
-                item.userId = userId;
-                item.name = splitUserId.name;
-                item.email = splitUserId.email;
-                item.comment = splitUserId.comment;
-                int unknownCerts = 0;
-
-                log(LogType.MSG_IP_UID_PROCESSING, userId);
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForRawId(rawUserId))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                            item.isPrimary = cert.isPrimaryUserId();
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UID_REVOKED);
-                        }
-                        continue;
-
-                    }
-
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        if (!signerKeyIds.contains(certId)) {
-                            operations.add(ContentProviderOperation.newInsert(KeySignatures.CONTENT_URI)
-                                    .withValue(KeySignatures.MASTER_KEY_ID, masterKeyId)
-                                    .withValue(KeySignatures.SIGNER_KEY_ID, certId)
-                                    .build());
-                            signerKeyIds.add(certId);
-                        }
-                        unknownCerts += 1;
-                        continue;
-                    }
-
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
-
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, rawUserId)) {
-                            log(LogType.MSG_IP_UID_CERT_BAD);
-                            continue;
-                        }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UID_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UID_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UID_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UID_CERT_NEW);
-                        }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UID_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
-                    }
-
-                }
-
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
-
-            }
-            mIndent -= 1;
-
-            ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
-            // Don't spam the log if there aren't even any attributes
-            if (!userAttributes.isEmpty()) {
-                log(LogType.MSG_IP_UAT_CLASSIFYING);
-            }
-
-            mIndent += 1;
-            for (WrappedUserAttribute userAttribute : userAttributes) {
-
-                UserPacketItem item = new UserPacketItem();
-                uids.add(item);
-                item.type = userAttribute.getType();
-                item.attributeData = userAttribute.getEncoded();
-
-                int unknownCerts = 0;
-
-                switch (item.type) {
-                    case WrappedUserAttribute.UAT_IMAGE:
-                        log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
-                        break;
-                    default:
-                        log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
-                        break;
-                }
-                mIndent += 1;
-                // look through signatures for this specific key
-                for (WrappedSignature cert : new IterableIterator<>(
-                        masterKey.getSignaturesForUserAttribute(userAttribute))) {
-                    long certId = cert.getKeyId();
-                    // self signature
-                    if (certId == masterKeyId) {
-
-                        // NOTE self-certificates are already verified during canonicalization,
-                        // AND we know there is at most one cert plus at most one revocation
-                        // AND the revocation only exists if there is no newer certification
-                        if (!cert.isRevocation()) {
-                            item.selfCert = cert;
-                        } else {
-                            item.selfRevocation = cert;
-                            log(LogType.MSG_IP_UAT_REVOKED);
-                        }
-                        continue;
-
-                    }
-
-                    // do we have a trusted key for this?
-                    if (trustedKeys.indexOfKey(certId) < 0) {
-                        unknownCerts += 1;
-                        continue;
-                    }
-
-                    // verify signatures from known private keys
-                    CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
-
-                    try {
-                        cert.init(trustedKey);
-                        // if it doesn't certify, leave a note and skip
-                        if (!cert.verifySignature(masterKey, userAttribute)) {
-                            log(LogType.MSG_IP_UAT_CERT_BAD);
-                            continue;
-                        }
-
-                        log(cert.isRevocation()
-                                        ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
-                                        : LogType.MSG_IP_UAT_CERT_GOOD,
-                                KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
-                        );
-
-                        // check if there is a previous certificate
-                        WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
-                        if (prev != null) {
-                            // if it's newer, skip this one
-                            if (prev.getCreationTime().after(cert.getCreationTime())) {
-                                log(LogType.MSG_IP_UAT_CERT_OLD);
-                                continue;
-                            }
-                            // if the previous one was a non-revokable certification, no need to look further
-                            if (!prev.isRevocation() && !prev.isRevokable()) {
-                                log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
-                                continue;
-                            }
-                            log(LogType.MSG_IP_UAT_CERT_NEW);
-                        }
-                        item.trustedCerts.put(cert.getKeyId(), cert);
-
-                    } catch (PgpGeneralException e) {
-                        log(LogType.MSG_IP_UAT_CERT_ERROR,
-                                KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
-                    }
-
-                }
-
-                if (unknownCerts > 0) {
-                    log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
-                }
-                mIndent -= 1;
-
+            List<UserPacketItem> uids = classifyUserPackets(masterKey, masterKeyId, trustedKeys, signerKeyIds);
+            for (Long signerKeyId : signerKeyIds) {
+                operations.add(buildKeySignatureOperation(masterKeyId, signerKeyId));
             }
-            mIndent -= 1;
 
             log(LogType.MSG_IP_UID_REORDER);
             // primary before regular before revoked (see UserIdItem.compareTo)
             // this is a stable sort, so the order of keys is otherwise preserved.
             Collections.sort(uids);
+
             // iterate and put into db
             for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
                 UserPacketItem item = uids.get(userIdRank);
@@ -515,7 +411,7 @@ public class KeyWritableRepository extends KeyRepository {
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Timber.e(e, "IOException during import");
-            return SaveKeyringResult.RESULT_ERROR;
+            return null;
         } finally {
             mIndent -= 1;
         }
@@ -525,33 +421,322 @@ public class KeyWritableRepository extends KeyRepository {
             operations.add(lastUpdateReinsertOp);
         }
 
-        try {
-            // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
-                log(LogType.MSG_IP_DELETE_OLD_OK);
-                result |= SaveKeyringResult.UPDATED;
-            } else {
-                log(LogType.MSG_IP_DELETE_OLD_FAIL);
+        return operations;
+    }
+
+    /**
+     * Classifies the user ids and attributes of a keyring, and verifies their certificates made by
+     * trusted keys. The result is in the order of the keyring, and must be sorted to get the
+     * ranks of the user packets in the database.
+     *
+     * @param signerKeyIds receives the ids of all certifying keys which are not trusted
+     */
+    private List<UserPacketItem> classifyUserPackets(UncachedPublicKey masterKey, long masterKeyId,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys, List<Long> signerKeyIds) throws IOException {
+        // classify and order user ids. primary are moved to the front, revoked to the back,
+        // otherwise the order in the keyfile is preserved.
+        List<UserPacketItem> uids = new ArrayList<>();
+
+        if (trustedKeys.size() == 0) {
+            log(LogType.MSG_IP_UID_CLASSIFYING_ZERO);
+        } else {
+            log(LogType.MSG_IP_UID_CLASSIFYING, trustedKeys.size());
+        }
+        mIndent += 1;
+        for (byte[] rawUserId : masterKey.getUnorderedRawUserIds()) {
+            String userId = Utf8Util.fromUTF8ByteArrayReplaceBadEncoding(rawUserId);
+            UserPacketItem item = new UserPacketItem();
+            uids.add(item);
+            OpenPgpUtils.UserId splitUserId = KeyRing.splitUserId(userId);
+            item.userId = userId;
+            item.name = splitUserId.name;
+            item.email = splitUserId.email;
+            item.comment = splitUserId.comment;
+            int unknownCerts = 0;
+
+            log(LogType.MSG_IP_UID_PROCESSING, userId);
+            mIndent += 1;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForRawId(rawUserId))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                        item.isPrimary = cert.isPrimaryUserId();
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UID_REVOKED);
+                    }
+                    continue;
+
+                }
+
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    if (!signerKeyIds.contains(certId)) {
+                        signerKeyIds.add(certId);
+                    }
+                    unknownCerts += 1;
+                    continue;
+                }
+
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    // if it doesn't certify, leave a note and skip
+                    if (!cert.verifySignature(trustedKey, masterKey, rawUserId, getVerifiedSignatureCache())) {
+                        log(LogType.MSG_IP_UID_CERT_BAD);
+                        continue;
+                    }
+
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UID_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UID_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
+
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UID_CERT_OLD);
+                            continue;
+                        }
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UID_CERT_NONREVOKE);
+                            continue;
+                        }
+                        log(LogType.MSG_IP_UID_CERT_NEW);
+                    }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
+
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UID_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                }
+
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UID_CERTS_UNKNOWN, unknownCerts);
+            }
+            mIndent -= 1;
 
-            log(LogType.MSG_IP_SUCCESS);
-            return result;
+        }
+        mIndent -= 1;
 
-        } catch (RemoteException e) {
-            log(LogType.MSG_IP_ERROR_REMOTE_EX);
-            Timber.e(e, "RemoteException during import");
-            return SaveKeyringResult.RESULT_ERROR;
-        } catch (OperationApplicationException e) {
-            log(LogType.MSG_IP_ERROR_OP_EXC);
-            Timber.e(e, "OperationApplicationException during import");
+        ArrayList<WrappedUserAttribute> userAttributes = masterKey.getUnorderedUserAttributes();
+        // Don't spam the log if there aren't even any attributes
+        if (!userAttributes.isEmpty()) {
+            log(LogType.MSG_IP_UAT_CLASSIFYING);
+        }
+
+        mIndent += 1;
+        for (WrappedUserAttribute userAttribute : userAttributes) {
+
+            UserPacketItem item = new UserPacketItem();
+            uids.add(item);
+            item.type = userAttribute.getType();
+            item.attributeData = userAttribute.getEncoded();
+
+            int unknownCerts = 0;
+
+            switch (item.type) {
+                case WrappedUserAttribute.UAT_IMAGE:
+                    log(LogType.MSG_IP_UAT_PROCESSING_IMAGE);
+                    break;
+                default:
+                    log(LogType.MSG_IP_UAT_PROCESSING_UNKNOWN);
+                    break;
+            }
+            mIndent += 1;
+            // look through signatures for this specific key
+            for (WrappedSignature cert : new IterableIterator<>(
+                    masterKey.getSignaturesForUserAttribute(userAttribute))) {
+                long certId = cert.getKeyId();
+                // self signature
+                if (certId == masterKeyId) {
+
+                    // NOTE self-certificates are already verified during canonicalization,
+                    // AND we know there is at most one cert plus at most one revocation
+                    // AND the revocation only exists if there is no newer certification
+                    if (!cert.isRevocation()) {
+                        item.selfCert = cert;
+                    } else {
+                        item.selfRevocation = cert;
+                        log(LogType.MSG_IP_UAT_REVOKED);
+                    }
+                    continue;
+
+                }
+
+                // do we have a trusted key for this?
+                if (trustedKeys.indexOfKey(certId) < 0) {
+                    unknownCerts += 1;
+                    continue;
+                }
+
+                // verify signatures from known private keys
+                CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
+
+                try {
+                    // if it doesn't certify, leave a note and skip
+                    if (!cert.verifySignature(trustedKey, masterKey, userAttribute, getVerifiedSignatureCache())) {
+                        log(LogType.MSG_IP_UAT_CERT_BAD);
+                        continue;
+                    }
+
+                    log(cert.isRevocation()
+                                    ? LogType.MSG_IP_UAT_CERT_GOOD_REVOKE
+                                    : LogType.MSG_IP_UAT_CERT_GOOD,
+                            KeyFormattingUtils.convertKeyIdToHexShort(trustedKey.getKeyId())
+                    );
+
+                    // check if there is a previous certificate
+                    WrappedSignature prev = item.trustedCerts.get(cert.getKeyId());
+                    if (prev != null) {
+                        // if it's newer, skip this one
+                        if (prev.getCreationTime().after(cert.getCreationTime())) {
+                            log(LogType.MSG_IP_UAT_CERT_OLD);
+                            continue;
+                        }
+                        // if the previous one was a non-revokable certification, no need to look further
+                        if (!prev.isRevocation() && !prev.isRevokable()) {
+                            log(LogType.MSG_IP_UAT_CERT_NONREVOKE);
+                            continue;
+                        }
+                        log(LogType.MSG_IP_UAT_CERT_NEW);
+                    }
+                    item.trustedCerts.put(cert.getKeyId(), cert);
+
+                } catch (PgpGeneralException e) {
+                    log(LogType.MSG_IP_UAT_CERT_ERROR,
+                            KeyFormattingUtils.convertKeyIdToHex(cert.getKeyId()));
+                }
+
+            }
+
+            if (unknownCerts > 0) {
+                log(LogType.MSG_IP_UAT_CERTS_UNKNOWN, unknownCerts);
+            }
+            mIndent -= 1;
+
+        }
+        mIndent -= 1;
+
+        return uids;
+    }
+
+    /**
+     * Like saveCanonicalizedPublicKeyRing, but queues the operations for the running bulk import
+     * instead of applying them right away. The old version of the keyring is deleted as part of
+     * the same batch.
+     */
+    private int queueCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing, boolean alreadyExists) {
+        long masterKeyId = keyRing.getMasterKeyId();
+        ArrayList<ContentProviderOperation> operations = buildPublicKeyRingOperations(keyRing, false);
+        if (operations == null) {
             return SaveKeyringResult.RESULT_ERROR;
         }
 
+        operations.add(0, ContentProviderOperation.newDelete(KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+        mBulkPendingKeyRings.put(masterKeyId, operations);
+        mBulkPendingOperationCount += operations.size();
+        log(LogType.MSG_IP_BULK_QUEUED);
+
+        if (mBulkPendingOperationCount >= BULK_MAX_PENDING_OPERATIONS) {
+            flushBulkImport();
+        }
+
+        int result = SaveKeyringResult.SAVED_PUBLIC;
+        if (alreadyExists) {
+            result |= SaveKeyringResult.UPDATED;
+        }
+        return result;
+    }
+
+    /**
+     * Starts a bulk import. Until finishBulkImport is called, public keyrings saved through this
+     * object are not written one at a time, but collected and applied in large batches, each of
+     * which runs in a single transaction.
+     * <p>
+     * Keyrings which have a secret part are still saved immediately, since that part can only be
+     * updated once the public one is in the database.
+     */
+    public void beginBulkImport() {
+        if (mBulkPendingKeyRings != null) {
+            throw new IllegalStateException("bulk import already running!");
+        }
+        mBulkPendingKeyRings = new LinkedHashMap<>();
+        mBulkPendingOperationCount = 0;
+        mBulkFailedMasterKeyIds = new ArrayList<>();
+        mBulkTrustedKeys = getTrustedMasterKeys();
+    }
+
+    public boolean isBulkImportRunning() {
+        return mBulkPendingKeyRings != null;
+    }
+
+    /**
+     * Writes all keyrings still pending from the bulk import, and ends it.
+     *
+     * @return master key ids of keyrings which were reported as saved, but could not be written
+     */
+    public List<Long> finishBulkImport() {
+        if (mBulkPendingKeyRings == null) {
+            throw new IllegalStateException("no bulk import running!");
+        }
+
+        flushBulkImport();
+        flushVerifiedSignatureCache();
+        List<Long> failedMasterKeyIds = mBulkFailedMasterKeyIds;
+
+        mBulkPendingKeyRings = null;
+        mBulkFailedMasterKeyIds = null;
+        mBulkTrustedKeys = null;
+
+        return failedMasterKeyIds;
+    }
+
+    private void flushBulkImport() {
+        if (mBulkPendingKeyRings.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(mBulkPendingOperationCount);
+        for (ArrayList<ContentProviderOperation> keyRingOperations : mBulkPendingKeyRings.values()) {
+            operations.addAll(keyRingOperations);
+        }
+
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Timber.e(e, "Error applying bulk import batch, falling back to one keyring at a time");
+
+            // the whole batch was rolled back, find out which of the keyrings is to blame
+            for (Map.Entry<Long, ArrayList<ContentProviderOperation>> entry : mBulkPendingKeyRings.entrySet()) {
+                try {
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, entry.getValue());
+                } catch (RemoteException | OperationApplicationException keyRingException) {
+                    Timber.e(keyRingException, "Error saving keyring during bulk import");
+                    mBulkFailedMasterKeyIds.add(entry.getKey());
+                }
+            }
+        } finally {
+            for (long masterKeyId : mBulkPendingKeyRings.keySet()) {
+                CacheInvalidationRegistry.invalidate(KeyRings.buildGenericKeyRingUri(masterKeyId));
+            }
+            mBulkPendingKeyRings.clear();
+            mBulkPendingOperationCount = 0;
+        }
     }
 
     private ContentProviderOperation getLastUpdatedReinsertOperationByMasterKeyId(long masterKeyId) {
@@ -560,9 +745,14 @@ public class KeyWritableRepository extends KeyRepository {
             return null;
         }
 
-        ContentValues lastUpdatedEntry = new ContentValues(2);
+        ContentValues lastUpdatedEntry = new ContentValues(3);
         lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
         lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED, lastUpdateTime);
+        // local changes don't affect what the keyserver has, so its digest stays valid
+        byte[] contentDigest = getKeyserverContentDigest(masterKeyId);
+        if (contentDigest != null) {
+            lastUpdatedEntry.put(UpdatedKeys.CONTENT_DIGEST, contentDigest);
+        }
         return ContentProviderOperation
                 .newInsert(UpdatedKeys.CONTENT_URI)
                 .withValues(lastUpdatedEntry)
@@ -572,13 +762,15 @@ public class KeyWritableRepository extends KeyRepository {
     private void writePublicKeyRing(CanonicalizedPublicKeyRing keyRing, long masterKeyId,
             ArrayList<ContentProviderOperation> operations) throws IOException {
         byte[] encodedKey = keyRing.getEncoded();
-        mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey);
 
+        // large keyrings go to the local storage, all others are kept in the database only
         ContentValues values = new ContentValues();
         values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
         if (encodedKey.length < MAX_CACHED_KEY_SIZE) {
+            mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
             values.put(KeyRingData.KEY_RING_DATA, encodedKey);
         } else {
+            mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey);
             values.put(KeyRingData.KEY_RING_DATA, (byte[]) null);
         }
 
@@ -607,6 +799,7 @@ public class KeyWritableRepository extends KeyRepository {
         }
         mContentResolver.delete(ApiAutocryptPeer.buildByMasterKeyId(masterKeyId),null, null);
         int deletedRows = mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        CacheInvalidationRegistry.invalidate(KeyRings.buildGenericKeyRingUri(masterKeyId));
         return deletedRows > 0;
     }
 
@@ -622,6 +815,31 @@ public class KeyWritableRepository extends KeyRepository {
         WrappedSignature selfRevocation;
         LongSparseArray<WrappedSignature> trustedCerts = new LongSparseArray<>();
 
+        /** Returns a copy of this item, which doesn't include the certs by the given keys. */
+        UserPacketItem withoutCertsBy(List<Long> certifierKeyIds) {
+            UserPacketItem item = new UserPacketItem();
+            item.type = type;
+            item.userId = userId;
+            item.name = name;
+            item.email = email;
+            item.comment = comment;
+            item.attributeData = attributeData;
+            item.isPrimary = isPrimary;
+            item.selfCert = selfCert;
+            item.selfRevocation = selfRevocation;
+            for (int i = 0; i < trustedCerts.size(); i++) {
+                if (!certifierKeyIds.contains(trustedCerts.keyAt(i))) {
+                    item.trustedCerts.put(trustedCerts.keyAt(i), trustedCerts.valueAt(i));
+                }
+            }
+            return item;
+        }
+
+        boolean isSamePacket(UserPacketItem o) {
+            return type == null ? o.type == null && userId.equals(o.userId)
+                    : type.equals(o.type) && Arrays.equals(attributeData, o.attributeData);
+        }
+
         @Override
         public int compareTo(@NonNull UserPacketItem o) {
             // revoked keys always come last!
@@ -756,6 +974,11 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IP, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
+            // if an earlier version of this keyring is still pending, we need to merge with that
+            if (mBulkPendingKeyRings != null && mBulkPendingKeyRings.containsKey(masterKeyId)) {
+                flushBulkImport();
+            }
+
             if (publicRing.isSecret()) {
                 log(LogType.MSG_IP_BAD_TYPE_SECRET);
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
@@ -766,7 +989,8 @@ public class KeyWritableRepository extends KeyRepository {
 
             // If there is an old keyring, merge it
             try {
-                UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
+                CanonicalizedPublicKeyRing oldCanPublicRing = getCanonicalizedPublicKeyRing(masterKeyId);
+                UncachedKeyRing oldPublicRing = oldCanPublicRing.getUncachedKeyRing();
                 alreadyExists = true;
 
                 // Merge data from new public ring into the old one
@@ -778,8 +1002,15 @@ public class KeyWritableRepository extends KeyRepository {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
+                // Early breakout if the merge added nothing, the old keyring is canonical already
+                if (!forceRefresh && publicRing == oldPublicRing) {
+                    if (canKeyRings != null) canKeyRings.add(oldCanPublicRing);
+                    log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                    return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                }
+
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false, getVerifiedSignatureCache());
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -795,7 +1026,7 @@ public class KeyWritableRepository extends KeyRepository {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false, getVerifiedSignatureCache());
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -815,7 +1046,7 @@ public class KeyWritableRepository extends KeyRepository {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 // This has always been a secret key ring, this is a safe cast
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, getVerifiedSignatureCache());
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -841,6 +1072,8 @@ public class KeyWritableRepository extends KeyRepository {
                 // skip save method, set fixed result
                 result = SaveKeyringResult.SAVED_PUBLIC
                         | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+            } else if (mBulkPendingKeyRings != null && canSecretRing == null) {
+                result = queueCanonicalizedPublicKeyRing(canPublicRing, alreadyExists);
             } else {
                 result = saveCanonicalizedPublicKeyRing(canPublicRing, canSecretRing != null);
             }
@@ -865,6 +1098,10 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
+            // during a bulk import, this is done once it finishes
+            if (mBulkPendingKeyRings == null) {
+                flushVerifiedSignatureCache();
+            }
             mIndent -= 1;
         }
     }
@@ -895,6 +1132,11 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
             mIndent += 1;
 
+            // the public part must be in the database before the secret one can be saved
+            if (mBulkPendingKeyRings != null && mBulkPendingKeyRings.containsKey(masterKeyId)) {
+                flushBulkImport();
+            }
+
             if (!secretRing.isSecret()) {
                 log(LogType.MSG_IS_BAD_TYPE_PUBLIC);
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
@@ -919,7 +1161,7 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, getVerifiedSignatureCache());
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -937,7 +1179,7 @@ public class KeyWritableRepository extends KeyRepository {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, getVerifiedSignatureCache());
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -946,7 +1188,7 @@ public class KeyWritableRepository extends KeyRepository {
                         log(LogType.MSG_IS_MERGE_SPECIAL);
                         UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
                         secretRing = secretRing.merge(oldPublicRing, mLog, mIndent);
-                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, getVerifiedSignatureCache());
                     } catch (NotFoundException e2) {
                         // nothing, this is handled right in the next line
                     }
@@ -976,7 +1218,7 @@ public class KeyWritableRepository extends KeyRepository {
             }
 
             CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
-                    mIndent);
+                    mIndent, false, getVerifiedSignatureCache());
             if (canPublicRing == null) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
@@ -1007,6 +1249,9 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IS_ERROR_IO_EXC);
             return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
         } finally {
+            if (mBulkPendingKeyRings == null) {
+                flushVerifiedSignatureCache();
+            }
             mIndent -= 1;
         }
     }
@@ -1015,6 +1260,134 @@ public class KeyWritableRepository extends KeyRepository {
         return saveSecretKeyRing(secretRing, null, false);
     }
 
+    /**
+     * Records which untrusted keys certified a keyring, for the initialization of the key
+     * signatures table. This is only enough if none of the certifications are by trusted keys:
+     * those may not be in the database yet, or be stored without their verified status, so such
+     * keyrings are left to a full save.
+     *
+     * @return the result, or null if the keyring must be saved again instead
+     */
+    private SaveKeyringResult initializeKeySignatures(UncachedKeyRing keyRing,
+            LongSparseArray<CanonicalizedPublicKey> trustedKeys) throws IOException {
+        long masterKeyId = keyRing.getMasterKeyId();
+        log(LogType.MSG_TRUST_SIGNERS, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        mIndent += 1;
+        try {
+            List<Long> signerKeyIds = new ArrayList<>();
+            List<UserPacketItem> uids =
+                    classifyUserPackets(keyRing.getPublicKey(), masterKeyId, trustedKeys, signerKeyIds);
+            for (UserPacketItem item : uids) {
+                if (item.trustedCerts.size() > 0) {
+                    return null;
+                }
+            }
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            for (Long signerKeyId : signerKeyIds) {
+                operations.add(buildKeySignatureOperation(masterKeyId, signerKeyId));
+            }
+
+            return applyTrustOperations(operations);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
+    /**
+     * Adds the certifications by newly trusted keys to a keyring which is already in the
+     * database. Since the keyring itself doesn't change, this only needs to insert the
+     * certifications instead of canonicalizing and saving it again. Certifications are stored
+     * by the rank of their user id though, so this only works as long as the new trust doesn't
+     * change the order of the user ids.
+     *
+     * @return the result, or null if the keyring must be saved again instead
+     */
+    private SaveKeyringResult updateTrustedCertsInPlace(UncachedKeyRing keyRing,
+            List<Long> signerMasterKeyIds, LongSparseArray<CanonicalizedPublicKey> trustedKeys)
+            throws IOException {
+        long masterKeyId = keyRing.getMasterKeyId();
+        log(LogType.MSG_TRUST_INPLACE, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+        mIndent += 1;
+        try {
+            // certifications by keys that are no longer trusted have to be removed, which is
+            // left to a full save
+            for (Long signerMasterKeyId : signerMasterKeyIds) {
+                if (trustedKeys.indexOfKey(signerMasterKeyId) < 0) {
+                    log(LogType.MSG_TRUST_INPLACE_UNTRUSTED,
+                            KeyFormattingUtils.convertKeyIdToHex(signerMasterKeyId));
+                    return null;
+                }
+            }
+
+            List<Long> signerKeyIds = new ArrayList<>();
+            List<UserPacketItem> uids =
+                    classifyUserPackets(keyRing.getPublicKey(), masterKeyId, trustedKeys, signerKeyIds);
+
+            // the ranks in the database were assigned without the certs by the new keys. user
+            // packets with trusted certs are sorted first, so check they still hold
+            List<UserPacketItem> previousUids = new ArrayList<>(uids.size());
+            for (UserPacketItem item : uids) {
+                previousUids.add(item.withoutCertsBy(signerMasterKeyIds));
+            }
+            Collections.sort(uids);
+            Collections.sort(previousUids);
+            for (int i = 0; i < uids.size(); i++) {
+                if (!uids.get(i).isSamePacket(previousUids.get(i))) {
+                    log(LogType.MSG_TRUST_INPLACE_REORDER);
+                    return null;
+                }
+            }
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            for (int userIdRank = 0; userIdRank < uids.size(); userIdRank++) {
+                UserPacketItem item = uids.get(userIdRank);
+
+                // same as in buildPublicKeyRingOperations
+                if (item.selfRevocation != null) {
+                    continue;
+                }
+                for (int i = 0; i < item.trustedCerts.size(); i++) {
+                    WrappedSignature sig = item.trustedCerts.valueAt(i);
+                    if (sig.isRevocation() || !signerMasterKeyIds.contains(item.trustedCerts.keyAt(i))) {
+                        continue;
+                    }
+                    operations.add(buildCertOperations(
+                            masterKeyId, userIdRank, sig, Certs.VERIFIED_SECRET));
+                }
+            }
+
+            // the certifying keys are trusted now, so they are no longer noted as signers
+            operations.add(ContentProviderOperation.newDelete(KeySignatures.CONTENT_URI)
+                    .withSelection(KeySignatures.MASTER_KEY_ID + " = " + masterKeyId + " AND "
+                            + KeySignatures.SIGNER_KEY_ID + " IN ("
+                            + TextUtils.join(",", signerMasterKeyIds) + ")", null)
+                    .build());
+
+            return applyTrustOperations(operations);
+        } finally {
+            mIndent -= 1;
+        }
+    }
+
+    private SaveKeyringResult applyTrustOperations(ArrayList<ContentProviderOperation> operations) {
+        try {
+            log(LogType.MSG_IP_APPLY_BATCH);
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            log(LogType.MSG_IP_SUCCESS);
+            return new SaveKeyringResult(SaveKeyringResult.SAVED_PUBLIC | SaveKeyringResult.UPDATED, mLog, null);
+        } catch (RemoteException e) {
+            log(LogType.MSG_IP_ERROR_REMOTE_EX);
+            Timber.e(e, "RemoteException during trust update");
+            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+        } catch (OperationApplicationException e) {
+            log(LogType.MSG_IP_ERROR_OP_EXC);
+            Timber.e(e, "OperationApplicationException during trust update");
+            return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+        }
+    }
+
     @NonNull
     public UpdateTrustResult updateTrustDb(List<Long> signerMasterKeyIds, Progressable progress) {
         OperationLog log = new OperationLog();
@@ -1054,6 +1427,9 @@ public class KeyWritableRepository extends KeyRepository {
             log.add(LogType.MSG_TRUST_COUNT, 1, totalKeys);
         }
 
+        // the set of trusted keys doesn't change during this operation, so only load it once
+        LongSparseArray<CanonicalizedPublicKey> trustedKeys = getTrustedMasterKeys();
+
         try {
             while (cursor.moveToNext()) {
                 try {
@@ -1063,7 +1439,15 @@ public class KeyWritableRepository extends KeyRepository {
                     UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(pubKeyData);
 
                     clearLog();
-                    SaveKeyringResult result = savePublicKeyRing(uncachedKeyRing, true);
+                    SaveKeyringResult result;
+                    if (!isTrustDbInitialized) {
+                        result = initializeKeySignatures(uncachedKeyRing, trustedKeys);
+                    } else {
+                        result = updateTrustedCertsInPlace(uncachedKeyRing, signerMasterKeyIds, trustedKeys);
+                    }
+                    if (result == null) {
+                        result = savePublicKeyRing(uncachedKeyRing, true);
+                    }
 
                     log.add(result, 1);
                     progress.setProgress(processedKeys++, totalKeys);
@@ -1081,6 +1465,7 @@ public class KeyWritableRepository extends KeyRepository {
             return new UpdateTrustResult(UpdateTrustResult.RESULT_OK, log);
         } finally {
             cursor.close();
+            flushVerifiedSignatureCache();
         }
     }
 
@@ -1126,8 +1511,29 @@ public class KeyWritableRepository extends KeyRepository {
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
+    /**
+     * Build ContentProviderOperation to note that a keyring is certified by a key we don't trust (yet)
+     */
+    private ContentProviderOperation buildKeySignatureOperation(long masterKeyId, long signerKeyId) {
+        return ContentProviderOperation.newInsert(KeySignatures.CONTENT_URI)
+                .withValue(KeySignatures.MASTER_KEY_ID, masterKeyId)
+                .withValue(KeySignatures.SIGNER_KEY_ID, signerKeyId)
+                .build();
+    }
+
     public Uri renewKeyLastUpdatedTime(long masterKeyId, boolean seenOnKeyservers) {
-        boolean isFirstKeyserverStatusCheck = getSeenOnKeyservers(masterKeyId) == null;
+        return renewKeyLastUpdatedTime(masterKeyId, seenOnKeyservers, null);
+    }
+
+    /**
+     * @param contentDigest digest of the keyring as retrieved from the keyserver, which was
+     *                      successfully merged. Kept unchanged if null.
+     */
+    public Uri renewKeyLastUpdatedTime(long masterKeyId, boolean seenOnKeyservers, @Nullable byte[] contentDigest) {
+        ArrayList<ContentProviderOperation> pendingOperations =
+                mBulkPendingKeyRings != null ? mBulkPendingKeyRings.get(masterKeyId) : null;
+        // a pending keyring is reinserted without keyserver status, as if it was already saved
+        boolean isFirstKeyserverStatusCheck = pendingOperations != null || getSeenOnKeyservers(masterKeyId) == null;
 
         ContentValues values = new ContentValues();
         values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
@@ -1135,6 +1541,16 @@ public class KeyWritableRepository extends KeyRepository {
         if (seenOnKeyservers || isFirstKeyserverStatusCheck) {
             values.put(UpdatedKeys.SEEN_ON_KEYSERVERS, seenOnKeyservers);
         }
+        if (contentDigest != null) {
+            values.put(UpdatedKeys.CONTENT_DIGEST, contentDigest);
+        }
+
+        if (pendingOperations != null) {
+            // must be applied after the keyring itself, which is in the same batch
+            pendingOperations.add(ContentProviderOperation.newInsert(UpdatedKeys.CONTENT_URI).withValues(values).build());
+            mBulkPendingOperationCount += 1;
+            return UpdatedKeys.CONTENT_URI;
+        }
 
         // this will actually update/replace, doing the right thing™ for seenOnKeyservers value
         // see `KeychainProvider.insert()`
@@ -1145,6 +1561,7 @@ public class KeyWritableRepository extends KeyRepository {
         ContentValues values = new ContentValues();
         values.putNull(UpdatedKeys.LAST_UPDATED);
         values.putNull(UpdatedKeys.SEEN_ON_KEYSERVERS);
+        values.putNull(UpdatedKeys.CONTENT_DIGEST);
         mContentResolver.update(UpdatedKeys.CONTENT_URI, values, null, null);
     }
 
@@ -55,6 +55,7 @@ public class KeychainContract {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String LAST_UPDATED = "last_updated"; // time since epoch in seconds
         String SEEN_ON_KEYSERVERS = "seen_on_keyservers";
+        String CONTENT_DIGEST = "content_digest"; // sha-256 of the keyring last retrieved from keyservers
     }
 
     interface KeySignaturesColumns {
@@ -62,6 +63,13 @@ public class KeychainContract {
         String SIGNER_KEY_ID = "signer_key_id";
     }
 
+    interface VerifiedSignaturesColumns {
+        String SIGNATURE_DIGEST = "signature_digest"; // sha-256 of the signature and the data it was made over
+        String SIGNER_FINGERPRINT = "signer_fingerprint";
+        String VERIFIED = "verified";
+        String LAST_USED = "last_used"; // time since epoch in seconds
+    }
+
     interface UserPacketsColumns {
         String MASTER_KEY_ID = "master_key_id"; // foreign key to key_rings._ID
         String TYPE = "type"; // not a database id
@@ -171,6 +179,11 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_UNIFIED).build();
         }
 
+        /** Notified when secret keyrings are added, edited or deleted. */
+        public static Uri buildSecretKeyRingsUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).build();
+        }
+
         public static Uri buildGenericKeyRingUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).build();
         }
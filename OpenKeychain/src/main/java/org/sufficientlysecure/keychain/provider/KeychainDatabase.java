@@ -40,6 +40,7 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.OverriddenWarnings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignaturesColumns;
 import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
 
@@ -54,7 +55,7 @@ import timber.log.Timber;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 24;
+    private static final int DATABASE_VERSION = 27;
     private Context mContext;
 
     public interface Tables {
@@ -63,6 +64,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
         String KEY_SIGNATURES = "key_signatures";
+        String VERIFIED_SIGNATURES = "verified_signatures";
         String USER_PACKETS = "user_packets";
         String CERTS = "certs";
         String API_APPS = "api_apps";
@@ -156,6 +158,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
                     + UpdatedKeysColumns.LAST_UPDATED + " INTEGER, "
                     + UpdatedKeysColumns.SEEN_ON_KEYSERVERS + " INTEGER, "
+                    + UpdatedKeysColumns.CONTENT_DIGEST + " BLOB, "
                     + "FOREIGN KEY(" + UpdatedKeysColumns.MASTER_KEY_ID + ") REFERENCES "
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
@@ -169,6 +172,16 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
                     + ")";
 
+    private static final String CREATE_VERIFIED_SIGNATURES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.VERIFIED_SIGNATURES + " ("
+                    + VerifiedSignaturesColumns.SIGNATURE_DIGEST + " BLOB NOT NULL, "
+                    + VerifiedSignaturesColumns.SIGNER_FINGERPRINT + " BLOB NOT NULL, "
+                    + VerifiedSignaturesColumns.VERIFIED + " INTEGER NOT NULL, "
+                    + VerifiedSignaturesColumns.LAST_USED + " INTEGER NOT NULL, "
+                    + "PRIMARY KEY(" + VerifiedSignaturesColumns.SIGNATURE_DIGEST + ", "
+                        + VerifiedSignaturesColumns.SIGNER_FINGERPRINT + ")"
+                    + ")";
+
     private static final String CREATE_API_AUTOCRYPT_PEERS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_AUTOCRYPT_PEERS + " ("
                     + ApiAutocryptPeerColumns.PACKAGE_NAME + " TEXT NOT NULL, "
@@ -224,6 +237,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_CERTS);
         db.execSQL(CREATE_UPDATE_KEYS);
         db.execSQL(CREATE_KEY_SIGNATURES);
+        db.execSQL(CREATE_VERIFIED_SIGNATURES);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
         db.execSQL(CREATE_OVERRIDDEN_WARNINGS);
@@ -234,6 +248,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL("CREATE INDEX verified_signatures_by_last_used ON verified_signatures ("
+                + VerifiedSignaturesColumns.LAST_USED + ");");
+        db.execSQL("CREATE INDEX uids_by_email ON user_packets (email COLLATE NOCASE)");
 
         Preferences.getPreferences(mContext).setKeySignaturesTableInitialized();
     }
@@ -406,6 +423,28 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                         + "PRIMARY KEY(master_key_id, signer_key_id), "
                         + "FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE"
                         + ")");
+
+            case 24:
+                try {
+                    db.execSQL("ALTER TABLE updated_keys ADD COLUMN content_digest BLOB;");
+                } catch (SQLiteException e) {
+                    // don't bother, the column probably already existed
+                }
+
+            case 25:
+                db.execSQL("CREATE TABLE IF NOT EXISTS verified_signatures ("
+                        + "signature_digest BLOB NOT NULL, "
+                        + "signer_fingerprint BLOB NOT NULL, "
+                        + "verified INTEGER NOT NULL, "
+                        + "last_used INTEGER NOT NULL, "
+                        + "PRIMARY KEY(signature_digest, signer_fingerprint)"
+                        + ")");
+                db.execSQL("CREATE INDEX IF NOT EXISTS verified_signatures_by_last_used "
+                        + "ON verified_signatures (last_used);");
+
+            case 26:
+                // only created on upgrades before, email status lookups depend on it
+                db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email ON user_packets (email COLLATE NOCASE)");
         }
     }
 
@@ -465,6 +504,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
         getWritableDatabase().execSQL("delete from " + Tables.API_ALLOWED_KEYS);
         getWritableDatabase().execSQL("delete from " + Tables.API_APPS);
+        getWritableDatabase().execSQL("delete from " + Tables.VERIFIED_SIGNATURES);
+        CacheInvalidationRegistry.invalidateAll();
     }
 
 }
@@ -18,14 +18,18 @@
 package org.sufficientlysecure.keychain.provider;
 
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.content.ContentProvider;
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -235,6 +239,8 @@ public class KeychainProvider extends ContentProvider {
     }
 
     private KeychainDatabase mKeychainDatabase;
+    // uris changed by the batch running on this thread, notified once the batch is committed
+    private final ThreadLocal<HashSet<Uri>> mBatchChangedUris = new ThreadLocal<>();
 
     /**
      * {@inheritDoc}
@@ -246,11 +252,65 @@ public class KeychainProvider extends ContentProvider {
     }
 
     public KeychainDatabase getDb() {
-        if(mKeychainDatabase == null)
+        if(mKeychainDatabase == null) {
             mKeychainDatabase = new KeychainDatabase(getContext());
+            // whatever was cached before doesn't necessarily belong to this database
+            CacheInvalidationRegistry.invalidateAll();
+        }
         return mKeychainDatabase;
     }
 
+    /**
+     * Applies the whole batch in a single transaction.
+     * <p>
+     * Besides making the batch atomic, this saves a journal sync per inserted row, which is what
+     * dominates the time it takes to save a key. Change notifications are collected and sent
+     * once after the commit, so observers don't requery for every single row.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (mBatchChangedUris.get() != null) {
+            // nested batch, simply becomes part of the outer one
+            return super.applyBatch(operations);
+        }
+
+        HashSet<Uri> changedUris = new HashSet<>();
+        mBatchChangedUris.set(changedUris);
+
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.remove();
+        }
+
+        for (Uri uri : changedUris) {
+            dispatchChange(uri);
+        }
+        return results;
+    }
+
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(uri);
+        } else {
+            dispatchChange(uri);
+        }
+    }
+
+    private void dispatchChange(Uri uri) {
+        // observers are notified asynchronously, the caches of this process right away
+        CacheInvalidationRegistry.invalidate(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -761,6 +821,8 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(UpdatedKeys.LAST_UPDATED, Tables.UPDATED_KEYS + "." + UpdatedKeys.LAST_UPDATED);
                 projectionMap.put(UpdatedKeys.SEEN_ON_KEYSERVERS,
                         Tables.UPDATED_KEYS + "." + UpdatedKeys.SEEN_ON_KEYSERVERS);
+                projectionMap.put(UpdatedKeys.CONTENT_DIGEST,
+                        Tables.UPDATED_KEYS + "." + UpdatedKeys.CONTENT_DIGEST);
                 qb.setProjectionMap(projectionMap);
                 if (match == UPDATED_KEYS_SPECIFIC) {
                     qb.appendWhere(UpdatedKeys.MASTER_KEY_ID + " = ");
@@ -867,6 +929,7 @@ public class KeychainProvider extends ContentProvider {
                 case KEY_RING_SECRET: {
                     db.insertOrThrow(Tables.KEY_RINGS_SECRET, null, values);
                     keyId = values.getAsLong(KeyRings.MASTER_KEY_ID);
+                    notifyChange(KeyRings.buildSecretKeyRingsUri());
                     break;
                 }
                 case KEY_RING_KEYS: {
@@ -936,7 +999,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Timber.d(e, "Constraint exception on insert! Entry already existing?");
@@ -957,11 +1020,11 @@ public class KeychainProvider extends ContentProvider {
         int count;
         final int match = mUriMatcher.match(uri);
 
-        ContentResolver contentResolver = getContext().getContentResolver();
         switch (match) {
             // dangerous
             case KEY_RINGS_UNIFIED: {
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                notifyChange(KeyRings.buildSecretKeyRingsUri());
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -970,9 +1033,16 @@ public class KeychainProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(additionalSelection)) {
                     selection += " AND (" + additionalSelection + ")";
                 }
+                // a secret keyring is deleted with it, but that's rare. don't make everyone
+                // reload their trusted keys for every public keyring that is saved
+                boolean hasSecret = DatabaseUtils.queryNumEntries(db, Tables.KEY_RINGS_SECRET,
+                        KeyRings.MASTER_KEY_ID + " = " + uri.getPathSegments().get(1)) > 0;
                 // corresponding keys and userIds are deleted by ON DELETE CASCADE
                 count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
-                contentResolver.notifyChange(KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1)), null);
+                notifyChange(KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1)));
+                if (hasSecret && count > 0) {
+                    notifyChange(KeyRings.buildSecretKeyRingsUri());
+                }
                 break;
             }
             case KEY_RING_SECRET: {
@@ -982,7 +1052,10 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.KEY_RINGS_SECRET, selection, selectionArgs);
-                contentResolver.notifyChange(KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1)), null);
+                notifyChange(KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1)));
+                if (count > 0) {
+                    notifyChange(KeyRings.buildSecretKeyRingsUri());
+                }
                 break;
             }
 
@@ -1003,10 +1076,9 @@ public class KeychainProvider extends ContentProvider {
                 count = db.delete(Tables.API_AUTOCRYPT_PEERS, selection, selectionArgs);
 
                 if (masterKeyId != null) {
-                    contentResolver.notifyChange(KeyRings.buildGenericKeyRingUri(masterKeyId), null);
+                    notifyChange(KeyRings.buildGenericKeyRingUri(masterKeyId));
                 }
-                contentResolver.notifyChange(
-                        ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptPeer), null);
+                notifyChange(ApiAutocryptPeer.buildByPackageNameAndAutocryptId(packageName, autocryptPeer));
                 break;
             }
 
@@ -1016,12 +1088,19 @@ public class KeychainProvider extends ContentProvider {
                     selection += " AND (" + additionalSelection + ")";
                 }
                 count = db.delete(Tables.API_AUTOCRYPT_PEERS, selection, selectionArgs);
-                contentResolver.notifyChange(KeyRings.buildGenericKeyRingUri(uri.getLastPathSegment()), null);
+                notifyChange(KeyRings.buildGenericKeyRingUri(uri.getLastPathSegment()));
                 break;
 
+            case KEY_SIGNATURES: {
+                count = db.delete(Tables.KEY_SIGNATURES, additionalSelection, selectionArgs);
+                notifyChange(uri);
+                break;
+            }
+
             case API_APPS_BY_PACKAGE_NAME: {
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, additionalSelection),
                         selectionArgs);
+                notifyChange(uri);
                 break;
             }
             case API_ALLOWED_KEYS: {
@@ -1045,7 +1124,6 @@ public class KeychainProvider extends ContentProvider {
         Timber.v("update(uri=" + uri + ", values=" + values.toString() + ")");
 
         final SQLiteDatabase db = getDb().getWritableDatabase();
-        ContentResolver contentResolver = getContext().getContentResolver();
 
         int count = 0;
         try {
@@ -1063,6 +1141,7 @@ public class KeychainProvider extends ContentProvider {
                         actualSelection += " AND (" + selection + ")";
                     }
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
+                    notifyChange(KeyRings.buildSecretKeyRingsUri());
                     break;
                 }
                 case API_APPS_BY_PACKAGE_NAME: {
@@ -1071,11 +1150,13 @@ public class KeychainProvider extends ContentProvider {
                     break;
                 }
                 case UPDATED_KEYS: {
-                    if (values.size() != 2 ||
+                    if (values.size() != 3 ||
                             !values.containsKey(UpdatedKeys.SEEN_ON_KEYSERVERS) ||
                             !values.containsKey(UpdatedKeys.LAST_UPDATED) ||
+                            !values.containsKey(UpdatedKeys.CONTENT_DIGEST) ||
                             values.get(UpdatedKeys.LAST_UPDATED) != null ||
                             values.get(UpdatedKeys.SEEN_ON_KEYSERVERS) != null ||
+                            values.get(UpdatedKeys.CONTENT_DIGEST) != null ||
                             selection != null || selectionArgs != null) {
                         throw new UnsupportedOperationException("can only reset all keys");
                     }
@@ -1109,7 +1190,7 @@ public class KeychainProvider extends ContentProvider {
                                 values.getAsLong(ApiAutocryptPeer.STATE));
                     }
 
-                    contentResolver.notifyChange(KeyRings.buildGenericKeyRingUri(masterKeyId), null);
+                    notifyChange(KeyRings.buildGenericKeyRingUri(masterKeyId));
 
                     db.replace(Tables.API_AUTOCRYPT_PEERS, null, actualValues);
                     break;
@@ -1120,7 +1201,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            contentResolver.notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Timber.d(e, "Constraint exception on update! Entry already existing?");
@@ -19,87 +19,539 @@ package org.sufficientlysecure.keychain.provider;
 
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
 
 import android.content.Context;
+import android.support.annotation.VisibleForTesting;
 
 import okhttp3.internal.Util;
+import timber.log.Timber;
 
 
+/**
+ * Storage for public keyrings which are too large to be kept in the database.
+ * <p>
+ * All keyrings are appended to a single pack file, which is indexed by master key id in memory
+ * and memory-mapped for reading. Updates and deletions append a new record, the old one is left
+ * as garbage until it makes up half of the file, at which point the live records are copied to
+ * a new file that replaces the old one.
+ * <p>
+ * The pack is shared by all processes of the app. Writes are serialized by a lock on the file,
+ * and other processes pick them up by scanning whatever was appended since they last looked.
+ * When a pack is replaced, a MOVED record is appended to the old one, which tells processes
+ * that still have it open to reopen the new file.
+ * <p>
+ * Each record carries a checksum, so a write that was torn by a crash is detected and dropped
+ * by the next writer. Since records are only ever appended under the lock, and forced to disk
+ * before the write returns, only the last record of the file can be incomplete. Checksums are
+ * verified for all records as they are scanned though, and a record which is corrupt anywhere
+ * else makes its keyring unavailable rather than returning bad or outdated data.
+ */
 class LocalPublicKeyStorage {
-    private static final String FORMAT_STR_PUBLIC_KEY = "0x%016x.pub";
-    private static final String PUBLIC_KEYS_DIR_NAME = "public_keys";
+    private static final String PACK_FILE_NAME = "public_keys.pack";
+    private static final String PACK_TEMP_FILE_NAME = "public_keys.pack.tmp";
+    // one file per key, the layout before the pack file. migrated on first open
+    private static final String LEGACY_DIR_NAME = "public_keys";
+    private static final String LEGACY_FILE_PREFIX = "0x";
+    private static final String LEGACY_FILE_SUFFIX = ".pub";
+
+    private static final int FILE_MAGIC = 0x4f4b504b; // "OKPK"
+    private static final int FILE_VERSION = 1;
+    // magic, version, generation
+    private static final int FILE_HEADER_SIZE = 16;
+    // length, master key id, crc, type
+    private static final int RECORD_HEADER_SIZE = 17;
+
+    private static final byte TYPE_KEY = 1;
+    private static final byte TYPE_DELETED = 2;
+    // the pack is replaced by one with the generation in the master key id field
+    private static final byte TYPE_MOVED = 3;
+
+    // don't bother compacting until there is at least this much garbage
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+    // records appended after the file was mapped are read with plain reads, until there are
+    // this many bytes of them. this avoids a new mapping for every write in between reads
+    private static final long MAX_UNMAPPED_BYTES = 1024 * 1024;
+
+    private static LocalPublicKeyStorage sInstance;
+
+    private final File mPackFile;
+    private final File mTempFile;
+    private final File mLegacyDir;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    // random id of the open pack, to tell if the file at its path was replaced
+    private long mGeneration;
+    private MappedByteBuffer mMap;
+    private final HashMap<Long, Record> mIndex = new HashMap<>();
+    // end of the last record that was indexed
+    private long mScannedEnd;
+    // size of the file when it was last scanned
+    private long mKnownSize;
+    private long mGarbageBytes;
+    private boolean mLegacyChecked;
+
+    private static final class Record {
+        final long offset;
+        final int length;
+
+        Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public static synchronized LocalPublicKeyStorage getInstance(Context context) {
+        File filesDir = context.getFilesDir();
+        if (sInstance == null || !sInstance.mPackFile.getParentFile().equals(filesDir)) {
+            if (sInstance != null) {
+                sInstance.close();
+            }
+            sInstance = new LocalPublicKeyStorage(filesDir);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    LocalPublicKeyStorage(File directory) {
+        mPackFile = new File(directory, PACK_FILE_NAME);
+        mTempFile = new File(directory, PACK_TEMP_FILE_NAME);
+        mLegacyDir = new File(directory, LEGACY_DIR_NAME);
+    }
+
+    synchronized void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
+        refresh();
+        FileLock lock = lockForWriting();
+        try {
+            appendRecord(TYPE_KEY, masterKeyId, encoded);
+            mChannel.force(false);
+            compactIfWorthwhile();
+        } finally {
+            releaseLock(lock);
+        }
+    }
+
+    /** Returns the keyring, or null if it isn't in here. */
+    synchronized byte[] readPublicKey(long masterKeyId) throws IOException {
+        refresh();
+
+        Record record = mIndex.get(masterKeyId);
+        if (record == null) {
+            return null;
+        }
+
+        byte[] result = new byte[record.length];
+        readAt(record.offset, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    synchronized void deletePublicKey(long masterKeyId) throws IOException {
+        refresh();
+        // most keyrings are small, don't take the lock for those
+        if (!mIndex.containsKey(masterKeyId)) {
+            return;
+        }
+
+        FileLock lock = lockForWriting();
+        try {
+            if (mIndex.containsKey(masterKeyId)) {
+                appendRecord(TYPE_DELETED, masterKeyId, new byte[0]);
+                mChannel.force(false);
+                compactIfWorthwhile();
+            }
+        } finally {
+            releaseLock(lock);
+        }
+    }
+
+    synchronized void close() {
+        closeFile();
+    }
+
+    /** Makes sure the pack is open, and the index covers everything written to it so far. */
+    private void refresh() throws IOException {
+        while (true) {
+            if (mChannel == null) {
+                openFile();
+            }
+            if (scan()) {
+                break;
+            }
+            // the pack was replaced, start over with the new one
+            closeFile();
+        }
+
+        if (!mLegacyChecked) {
+            mLegacyChecked = true;
+            if (mLegacyDir.isDirectory()) {
+                migrateLegacyFiles();
+            }
+        }
+    }
+
+    /** Takes the write lock. Afterwards, the index is complete and any torn record is dropped. */
+    private FileLock lockForWriting() throws IOException {
+        while (true) {
+            FileLock lock = mChannel.lock();
+            if (scan()) {
+                // nobody else is writing, so anything after the last valid record is garbage
+                if (mKnownSize > mScannedEnd) {
+                    Timber.d("Dropping %d bytes of incomplete records from public key pack",
+                            mKnownSize - mScannedEnd);
+                    mChannel.truncate(mScannedEnd);
+                    mKnownSize = mScannedEnd;
+                }
+                return lock;
+            }
+            closeFile();
+            refresh();
+        }
+    }
+
+    private void releaseLock(FileLock lock) throws IOException {
+        // compaction closes the channel, which already releases the lock
+        if (lock.isValid()) {
+            lock.release();
+        }
+    }
+
+    private void openFile() throws IOException {
+        mFile = new RandomAccessFile(mPackFile, "rw");
+        mChannel = mFile.getChannel();
+        mIndex.clear();
+        mGarbageBytes = 0;
+        mMap = null;
+
+        if (mChannel.size() < FILE_HEADER_SIZE) {
+            FileLock lock = mChannel.lock();
+            try {
+                if (mChannel.size() < FILE_HEADER_SIZE) {
+                    mChannel.truncate(0);
+                    writeFully(mChannel, buildFileHeader(new Random().nextLong()), 0);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(mChannel, header, 0);
+        header.flip();
+        if (header.getInt() != FILE_MAGIC || header.getInt() != FILE_VERSION) {
+            closeFile();
+            throw new IOException("Unknown format of public key pack!");
+        }
+        mGeneration = header.getLong();
+
+        mScannedEnd = FILE_HEADER_SIZE;
+        mKnownSize = FILE_HEADER_SIZE;
+    }
+
+    private void closeFile() {
+        Util.closeQuietly(mFile);
+        mFile = null;
+        mChannel = null;
+        mMap = null;
+        mIndex.clear();
+    }
+
+    /**
+     * Indexes all records appended since the last scan.
+     *
+     * @return false if the pack was replaced, and must be reopened
+     */
+    private boolean scan() throws IOException {
+        long size = mChannel.size();
+        if (size == mKnownSize && mScannedEnd == size) {
+            return true;
+        }
+        mKnownSize = size;
 
+        // the tail is read without the mapping. if a writer truncates a torn record while we
+        // look at it, a read from the mapping would crash rather than fail
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        long position = mScannedEnd;
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            if (!readTail(position, header)) {
+                break;
+            }
+            header.flip();
+            int length = header.getInt();
+            long masterKeyId = header.getLong();
+            int crc = header.getInt();
+            byte type = header.get();
 
-    private final File localPublicKeysDir;
+            long end = position + RECORD_HEADER_SIZE + length;
+            if (length < 0 || end > size) {
+                break;
+            }
+            byte[] data = new byte[length];
+            if (!readTail(position + RECORD_HEADER_SIZE, ByteBuffer.wrap(data))) {
+                break;
+            }
+            if (crc != computeCrc(type, masterKeyId, data)) {
+                // only the last record can be torn, see class comment
+                if (end == size) {
+                    break;
+                }
+                Timber.e("Corrupt record in public key pack at offset %d", position);
+                dropCorruptRecord(masterKeyId, length);
+                position = end;
+                continue;
+            }
+
+            if (type == TYPE_MOVED) {
+                // the pack may have been replaced several times since, so this only checks
+                // whether it was replaced at all
+                if (readGenerationOfPackFile() != mGeneration) {
+                    return false;
+                }
+                // the replacement isn't in place (yet). don't scan past this, so we look again
+                // next time. if the process doing it died, the next writer drops this record.
+                break;
+            }
+
+            indexRecord(type, masterKeyId, position, length);
+            position = end;
+        }
 
+        mScannedEnd = position;
 
-    public static LocalPublicKeyStorage getInstance(Context context) {
-        File localPublicKeysDir = new File(context.getFilesDir(), PUBLIC_KEYS_DIR_NAME);
-        return new LocalPublicKeyStorage(localPublicKeysDir);
+        long mapped = mMap != null ? mMap.capacity() : 0;
+        if (mScannedEnd - mapped > MAX_UNMAPPED_BYTES && mScannedEnd <= Integer.MAX_VALUE) {
+            mMap = mChannel.map(MapMode.READ_ONLY, 0, mScannedEnd);
+        }
+        return true;
     }
 
-    private LocalPublicKeyStorage(File localPublicKeysDir) {
-        this.localPublicKeysDir = localPublicKeysDir;
+    /**
+     * Forgets the keyring a corrupt record may have belonged to, so neither the corrupt nor an
+     * older version of it is returned. Its master key id may be corrupt as well, but then there
+     * is nothing better to do anyway.
+     */
+    private void dropCorruptRecord(long masterKeyId, int length) {
+        Record previous = mIndex.remove(masterKeyId);
+        mGarbageBytes += RECORD_HEADER_SIZE + length;
+        if (previous != null) {
+            mGarbageBytes += RECORD_HEADER_SIZE + previous.length;
+        }
     }
 
-    private File getPublicKeyFile(long masterKeyId) throws IOException {
-        if (!localPublicKeysDir.exists()) {
-            localPublicKeysDir.mkdir();
+    private boolean readTail(long position, ByteBuffer dst) throws IOException {
+        try {
+            readFully(mChannel, dst, position);
+            return true;
+        } catch (EOFException e) {
+            // truncated under our feet
+            return false;
         }
-        if (!localPublicKeysDir.isDirectory()) {
-            throw new IOException("Failed creating public key directory!");
+    }
+
+    private void indexRecord(byte type, long masterKeyId, long position, int length) {
+        Record previous;
+        switch (type) {
+            case TYPE_KEY:
+                previous = mIndex.put(masterKeyId, new Record(position + RECORD_HEADER_SIZE, length));
+                break;
+            case TYPE_DELETED:
+                previous = mIndex.remove(masterKeyId);
+                mGarbageBytes += RECORD_HEADER_SIZE;
+                break;
+            default:
+                previous = null;
+                mGarbageBytes += RECORD_HEADER_SIZE + length;
+                break;
+        }
+        if (previous != null) {
+            mGarbageBytes += RECORD_HEADER_SIZE + previous.length;
         }
+    }
 
-        String keyFilename = String.format(FORMAT_STR_PUBLIC_KEY, masterKeyId);
-        return new File(localPublicKeysDir, keyFilename);
+    /** Must hold the write lock, and the index must be complete. */
+    private void appendRecord(byte type, long masterKeyId, byte[] data) throws IOException {
+        long position = mScannedEnd;
+        writeFully(mChannel, buildRecord(type, masterKeyId, data), position);
+        if (type != TYPE_MOVED) {
+            indexRecord(type, masterKeyId, position, data.length);
+        }
+        mScannedEnd = position + RECORD_HEADER_SIZE + data.length;
+        mKnownSize = mScannedEnd;
     }
 
-    void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    private void compactIfWorthwhile() throws IOException {
+        if (mGarbageBytes < MIN_COMPACTION_GARBAGE || mGarbageBytes < mScannedEnd / 2) {
+            return;
+        }
+        Timber.d("Compacting public key pack, %d of %d bytes are garbage", mGarbageBytes, mScannedEnd);
+
+        long generation = new Random().nextLong();
+        RandomAccessFile tempFile = new RandomAccessFile(mTempFile, "rw");
+        try {
+            FileChannel tempChannel = tempFile.getChannel();
+            tempChannel.truncate(0);
+            writeFully(tempChannel, buildFileHeader(generation), 0);
+
+            long position = FILE_HEADER_SIZE;
+            for (Map.Entry<Long, Record> entry : mIndex.entrySet()) {
+                byte[] data = new byte[entry.getValue().length];
+                readAt(entry.getValue().offset, ByteBuffer.wrap(data));
+                ByteBuffer record = buildRecord(TYPE_KEY, entry.getKey(), data);
+                writeFully(tempChannel, record, position);
+                position += record.capacity();
+            }
+            tempChannel.force(true);
+        } finally {
+            Util.closeQuietly(tempFile);
+        }
+
+        // tell everyone who has the old pack open to move on. they only do so once the new
+        // one is in place, so this is safe to do before the rename.
+        appendRecord(TYPE_MOVED, generation, new byte[0]);
+        if (!mTempFile.renameTo(mPackFile)) {
+            throw new IOException("Could not replace public key pack!");
+        }
+        // this also releases the lock
+        closeFile();
+    }
 
-        FileOutputStream fileOutputStream = new FileOutputStream(publicKeyFile);
+    private void migrateLegacyFiles() throws IOException {
+        FileLock lock = lockForWriting();
         try {
-            fileOutputStream.write(encoded);
+            File[] files = mLegacyDir.listFiles();
+            if (files == null) {
+                return;
+            }
+
+            int migrated = 0;
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(LEGACY_FILE_PREFIX) || !name.endsWith(LEGACY_FILE_SUFFIX)) {
+                    continue;
+                }
+                long masterKeyId = new BigInteger(name.substring(LEGACY_FILE_PREFIX.length(),
+                        name.length() - LEGACY_FILE_SUFFIX.length()), 16).longValue();
+                // if we crashed during an earlier migration, the pack may be more recent
+                if (!mIndex.containsKey(masterKeyId)) {
+                    appendRecord(TYPE_KEY, masterKeyId, readLegacyFile(file));
+                    migrated += 1;
+                }
+            }
+            // the old files are only deleted once their contents are safely in the pack
+            mChannel.force(true);
+            for (File file : files) {
+                if (!file.delete()) {
+                    Timber.e("Could not delete %s", file.getName());
+                }
+            }
+            if (!mLegacyDir.delete()) {
+                Timber.e("Could not delete legacy public key directory");
+            }
+            Timber.d("Migrated %d public keys to pack file", migrated);
         } finally {
-            Util.closeQuietly(fileOutputStream);
+            releaseLock(lock);
         }
     }
 
-    byte[] readPublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    private static byte[] readLegacyFile(File file) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int) file.length());
+            byte[] buf = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = fileInputStream.read(buf)) != -1) {
+                baos.write(buf, 0, bytesRead);
+            }
+            return baos.toByteArray();
+        } finally {
+            Util.closeQuietly(fileInputStream);
+        }
+    }
 
+    private long readGenerationOfPackFile() throws IOException {
+        RandomAccessFile file;
         try {
-            FileInputStream fileInputStream = new FileInputStream(publicKeyFile);
-            return readIntoByteArray(fileInputStream);
+            file = new RandomAccessFile(mPackFile, "r");
         } catch (FileNotFoundException e) {
-            return null;
+            return 0;
+        }
+        try {
+            if (file.length() < FILE_HEADER_SIZE || file.readInt() != FILE_MAGIC) {
+                return 0;
+            }
+            file.readInt();
+            return file.readLong();
+        } finally {
+            Util.closeQuietly(file);
+        }
+    }
+
+    /** Reads indexed records, from the mapped part of the file where possible. */
+    private void readAt(long position, ByteBuffer dst) throws IOException {
+        if (mMap != null && position + dst.remaining() <= mMap.capacity()) {
+            ByteBuffer src = mMap.duplicate();
+            src.position((int) position);
+            src.limit((int) position + dst.remaining());
+            dst.put(src);
+        } else {
+            readFully(mChannel, dst, position);
         }
     }
 
-    private static byte[] readIntoByteArray(FileInputStream fileInputStream) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
 
-        byte[] buf = new byte[128];
-        int bytesRead;
-        while ((bytesRead = fileInputStream.read(buf)) != -1) {
-            baos.write(buf, 0, bytesRead);
+    private static void writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
         }
+    }
 
-        return baos.toByteArray();
+    private static ByteBuffer buildFileHeader(long generation) {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(FILE_MAGIC).putInt(FILE_VERSION).putLong(generation);
+        header.flip();
+        return header;
     }
 
-    void deletePublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
-        if (publicKeyFile.exists()) {
-            boolean deleteSuccess = publicKeyFile.delete();
-            if (!deleteSuccess) {
-                throw new IOException("File exists, but could not be deleted!");
-            }
+    private static ByteBuffer buildRecord(byte type, long masterKeyId, byte[] data) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        record.putInt(data.length).putLong(masterKeyId).putInt(computeCrc(type, masterKeyId, data))
+                .put(type).put(data);
+        record.flip();
+        return record;
+    }
+
+    private static int computeCrc(byte type, long masterKeyId, byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (masterKeyId >>> shift));
         }
+        crc.update(data);
+        return (int) crc.getValue();
     }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry.InvalidationListener;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of parsed public keyrings, keyed by master key id. Repeated operations on
+ * the same keys, like encrypting to the same recipient again, skip loading and parsing the
+ * keyring entirely.
+ * <p>
+ * The cache is bounded by the encoded size of the keyrings it retains, and evicts the least
+ * recently used ones first. Parsed keyrings take up a small multiple of their encoded size.
+ * <p>
+ * A keyring is dropped whenever it is written, see {@link CacheInvalidationRegistry}.
+ * <p>
+ * Secret keyrings are deliberately not cached here, to keep secret key material out of
+ * long-lived memory.
+ */
+public class PublicKeyRingCache implements InvalidationListener {
+    private static final int MAX_RETAINED_BYTES = 1024 * 1024;
+    // a single keyring may not push out most of the others
+    private static final int MAX_ENTRY_BYTES = MAX_RETAINED_BYTES / 8;
+
+    private static PublicKeyRingCache sInstance;
+
+    private final LinkedHashMap<Long, CacheEntry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mRetainedBytes;
+    // incremented on each invalidation, so a load that raced with it is not cached
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    public static synchronized PublicKeyRingCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PublicKeyRingCache();
+            CacheInvalidationRegistry.register(context, sInstance);
+        }
+        return sInstance;
+    }
+
+    private PublicKeyRingCache() {
+    }
+
+    /**
+     * Returns the cached keyring, or null if it needs to be loaded. A cached keyring is only
+     * returned if its trust level still matches, since that is updated in the database without
+     * touching the keyring itself.
+     */
+    synchronized CanonicalizedPublicKeyRing get(long masterKeyId, int verified) {
+        CacheEntry entry = mEntries.get(masterKeyId);
+        if (entry == null || entry.mKeyRing.getVerified() != verified) {
+            mMisses += 1;
+            return null;
+        }
+        mHits += 1;
+        return entry.mKeyRing;
+    }
+
+    /** Returns the generation to pass to {@link #put}, must be called before loading. */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void put(long generation, long masterKeyId, CanonicalizedPublicKeyRing keyRing,
+            int encodedSize) {
+        if (generation != mGeneration) {
+            Timber.d("Keyrings changed while loading, not caching");
+            return;
+        }
+        if (encodedSize > MAX_ENTRY_BYTES) {
+            return;
+        }
+
+        CacheEntry previous = mEntries.put(masterKeyId, new CacheEntry(keyRing, encodedSize));
+        if (previous != null) {
+            mRetainedBytes -= previous.mEncodedSize;
+        }
+        mRetainedBytes += encodedSize;
+
+        Iterator<CacheEntry> it = mEntries.values().iterator();
+        while (mRetainedBytes > MAX_RETAINED_BYTES && it.hasNext()) {
+            CacheEntry eldest = it.next();
+            it.remove();
+            mRetainedBytes -= eldest.mEncodedSize;
+            mEvictions += 1;
+        }
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        mGeneration += 1;
+        CacheEntry entry = mEntries.remove(masterKeyId);
+        if (entry != null) {
+            mRetainedBytes -= entry.mEncodedSize;
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration += 1;
+        mEntries.clear();
+        mRetainedBytes = 0;
+    }
+
+    /** Drops the keyring a uri refers to, or all of them if it doesn't name a single one. */
+    @Override
+    public void onInvalidate(@Nullable Uri uri) {
+        if (!CacheInvalidationRegistry.overlaps(uri, KeyRings.CONTENT_URI)) {
+            return;
+        }
+        Long masterKeyId = CacheInvalidationRegistry.getMasterKeyId(uri);
+        if (masterKeyId != null) {
+            invalidate(masterKeyId);
+        } else {
+            invalidateAll();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /** Returns the share of lookups that were served from the cache, between 0 and 1. */
+    public synchronized float getHitRate() {
+        long lookups = mHits + mMisses;
+        return lookups == 0 ? 0f : (float) mHits / lookups;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    /** Returns the encoded size of all cached keyrings. */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    private static class CacheEntry {
+        final CanonicalizedPublicKeyRing mKeyRing;
+        final int mEncodedSize;
+
+        CacheEntry(CanonicalizedPublicKeyRing keyRing, int encodedSize) {
+            mKeyRing = keyRing;
+            mEncodedSize = encodedSize;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry.InvalidationListener;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of the public master keys of all keys we have a secret for. These are
+ * needed to verify certifications whenever a public keyring is saved, but only change when a
+ * secret keyring is added, edited or deleted.
+ * <p>
+ * The keys are loaded again after each change notified on
+ * {@link KeyRings#buildSecretKeyRingsUri()}, so a new secret key takes part in the next save.
+ */
+public class TrustedKeyCache implements InvalidationListener {
+    private static TrustedKeyCache sInstance;
+
+    private LongSparseArray<CanonicalizedPublicKey> mTrustedKeys;
+    // incremented on each invalidation, so a load that raced with it is not cached
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+    private long mInvalidations;
+
+    public static synchronized TrustedKeyCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new TrustedKeyCache();
+            CacheInvalidationRegistry.register(context, sInstance);
+        }
+        return sInstance;
+    }
+
+    private TrustedKeyCache() {
+    }
+
+    /**
+     * Returns the cached trusted keys, or null if they need to be loaded. The returned array is
+     * shared, and must not be modified.
+     */
+    synchronized LongSparseArray<CanonicalizedPublicKey> get() {
+        if (mTrustedKeys == null) {
+            mMisses += 1;
+            return null;
+        }
+        mHits += 1;
+        return mTrustedKeys;
+    }
+
+    /** Returns the generation to pass to {@link #put}, must be called before loading. */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void put(long generation, LongSparseArray<CanonicalizedPublicKey> trustedKeys) {
+        if (generation != mGeneration) {
+            Timber.d("Secret keys changed while loading trusted keys, not caching");
+            return;
+        }
+        mTrustedKeys = trustedKeys;
+    }
+
+    synchronized void invalidate() {
+        mGeneration += 1;
+        mInvalidations += 1;
+        mTrustedKeys = null;
+    }
+
+    @Override
+    public void onInvalidate(@Nullable Uri uri) {
+        if (CacheInvalidationRegistry.overlaps(uri, KeyRings.buildSecretKeyRingsUri())) {
+            invalidate();
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return mInvalidations;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import org.sufficientlysecure.keychain.pgp.VerifiedSignatureCache;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignaturesColumns;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import timber.log.Timber;
+
+
+/**
+ * Persistent {@link VerifiedSignatureCache}, backed by the verified_signatures table.
+ * <p>
+ * Results are looked up one at a time with a precompiled statement. New results, and the last
+ * use of known ones, are kept in memory and written in a single transaction by {@link #flush}.
+ * Results which haven't been used for a long time are evicted, as are the least recently used
+ * ones if the table grows too large.
+ * <p>
+ * All instances in a process share one connection and its compiled statements, which stay open
+ * for the lifetime of the process like the one of KeychainProvider, so neither a lookup nor a
+ * flush has to open the database again. Access to them is serialized.
+ * <p>
+ * Instances are not thread safe. The cache can be turned off in the settings, in which case
+ * KeyWritableRepository doesn't create any, see {@link #clearAll}.
+ */
+public class VerifiedSignatureRepository implements VerifiedSignatureCache {
+    private static final long MAX_UNUSED_SECONDS = TimeUnit.DAYS.toSeconds(180);
+    private static final int MAX_ENTRIES = 50000;
+    private static final long EVICTION_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+    // written early, so a large import doesn't collect all of its results in memory
+    private static final int MAX_PENDING_RESULTS = 1000;
+
+    private static final String LOOKUP_QUERY = "SELECT COALESCE((SELECT " + VerifiedSignaturesColumns.VERIFIED
+            + " FROM " + Tables.VERIFIED_SIGNATURES
+            + " WHERE " + VerifiedSignaturesColumns.SIGNATURE_DIGEST + " = ?"
+            + " AND " + VerifiedSignaturesColumns.SIGNER_FINGERPRINT + " = ?), -1)";
+    private static final String INSERT_STATEMENT = "INSERT OR REPLACE INTO " + Tables.VERIFIED_SIGNATURES + " ("
+            + VerifiedSignaturesColumns.SIGNATURE_DIGEST + ", "
+            + VerifiedSignaturesColumns.SIGNER_FINGERPRINT + ", "
+            + VerifiedSignaturesColumns.VERIFIED + ", "
+            + VerifiedSignaturesColumns.LAST_USED + ") VALUES (?, ?, ?, ?)";
+
+    private static long sLastEvictionTime;
+
+    // shared by all instances, guarded by the class lock
+    private static Context sDatabaseContext;
+    private static KeychainDatabase sKeychainDatabase;
+    private static SQLiteDatabase sDatabase;
+    private static SQLiteStatement sLookupStatement;
+    private static SQLiteStatement sInsertStatement;
+
+    private final Context mContext;
+    private final LinkedHashMap<ByteBuffer, PendingResult> mPendingResults = new LinkedHashMap<>();
+
+    public static VerifiedSignatureRepository create(Context context) {
+        return new VerifiedSignatureRepository(context);
+    }
+
+    private VerifiedSignatureRepository(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Deletes all stored results, for when the cache is turned off in the settings. Results
+     * which other instances didn't write yet may still be added afterwards.
+     */
+    public static void clearAll(Context context) {
+        try {
+            synchronized (VerifiedSignatureRepository.class) {
+                openDatabase(context.getApplicationContext());
+                sDatabase.delete(Tables.VERIFIED_SIGNATURES, null, null);
+            }
+        } catch (SQLiteException e) {
+            Timber.e(e, "Error clearing verified signatures");
+        }
+    }
+
+    @Nullable
+    @Override
+    public Boolean getVerificationResult(byte[] signatureDigest, byte[] signerFingerprint) {
+        ByteBuffer key = buildKey(signatureDigest, signerFingerprint);
+        PendingResult pendingResult = mPendingResults.get(key);
+        if (pendingResult != null) {
+            return pendingResult.mVerified;
+        }
+
+        long verified;
+        try {
+            synchronized (VerifiedSignatureRepository.class) {
+                openDatabase(mContext);
+                sLookupStatement.bindBlob(1, signatureDigest);
+                sLookupStatement.bindBlob(2, signerFingerprint);
+                verified = sLookupStatement.simpleQueryForLong();
+            }
+        } catch (SQLiteException e) {
+            Timber.e(e, "Error looking up verified signature");
+            return null;
+        }
+        if (verified < 0) {
+            return null;
+        }
+
+        // written again to renew its last use
+        addPendingResult(key, signatureDigest, signerFingerprint, verified != 0);
+        return verified != 0;
+    }
+
+    @Override
+    public void putVerificationResult(byte[] signatureDigest, byte[] signerFingerprint, boolean verified) {
+        addPendingResult(buildKey(signatureDigest, signerFingerprint), signatureDigest, signerFingerprint, verified);
+    }
+
+    /** Writes all pending results. */
+    public void flush() {
+        try {
+            synchronized (VerifiedSignatureRepository.class) {
+                openDatabase(mContext);
+                if (!mPendingResults.isEmpty()) {
+                    writePendingResults();
+                }
+                evictIfDue();
+            }
+        } catch (SQLiteException e) {
+            // this is only a cache, losing some results does no harm
+            Timber.e(e, "Error writing verified signatures");
+        } finally {
+            mPendingResults.clear();
+        }
+    }
+
+    @VisibleForTesting
+    int getPendingResultCount() {
+        return mPendingResults.size();
+    }
+
+    private void addPendingResult(ByteBuffer key, byte[] signatureDigest, byte[] signerFingerprint,
+            boolean verified) {
+        mPendingResults.put(key, new PendingResult(signatureDigest, signerFingerprint, verified));
+        if (mPendingResults.size() >= MAX_PENDING_RESULTS) {
+            flush();
+        }
+    }
+
+    /** Must hold the class lock, with the database open. */
+    private void writePendingResults() {
+        long now = System.currentTimeMillis() / 1000;
+
+        sDatabase.beginTransaction();
+        try {
+            for (PendingResult pendingResult : mPendingResults.values()) {
+                sInsertStatement.bindBlob(1, pendingResult.mSignatureDigest);
+                sInsertStatement.bindBlob(2, pendingResult.mSignerFingerprint);
+                sInsertStatement.bindLong(3, pendingResult.mVerified ? 1 : 0);
+                sInsertStatement.bindLong(4, now);
+                sInsertStatement.executeInsert();
+            }
+            sDatabase.setTransactionSuccessful();
+        } finally {
+            sDatabase.endTransaction();
+        }
+    }
+
+    /** Must hold the class lock, with the database open. */
+    private static void evictIfDue() {
+        long nowMillis = System.currentTimeMillis();
+        if (nowMillis - sLastEvictionTime < EVICTION_INTERVAL_MILLIS) {
+            return;
+        }
+        sLastEvictionTime = nowMillis;
+
+        SQLiteDatabase db = sDatabase;
+        db.delete(Tables.VERIFIED_SIGNATURES, VerifiedSignaturesColumns.LAST_USED + " < ?",
+                new String[] { Long.toString(nowMillis / 1000 - MAX_UNUSED_SECONDS) });
+        db.execSQL("DELETE FROM " + Tables.VERIFIED_SIGNATURES + " WHERE rowid IN (SELECT rowid FROM "
+                + Tables.VERIFIED_SIGNATURES + " ORDER BY " + VerifiedSignaturesColumns.LAST_USED + " DESC"
+                + " LIMIT -1 OFFSET " + MAX_ENTRIES + ")");
+    }
+
+    /** Closes the shared connection. It is opened again on the next use. */
+    @VisibleForTesting
+    static synchronized void closeSharedDatabase() {
+        closeDatabase();
+    }
+
+    @VisibleForTesting
+    static void resetEvictionTime() {
+        synchronized (VerifiedSignatureRepository.class) {
+            sLastEvictionTime = 0;
+        }
+    }
+
+    /**
+     * Opens the shared connection and compiles the statements, unless that was already done.
+     * Must hold the class lock.
+     */
+    private static void openDatabase(Context context) {
+        if (sDatabase != null && sDatabase.isOpen() && sDatabaseContext == context) {
+            return;
+        }
+        closeDatabase();
+
+        sKeychainDatabase = new KeychainDatabase(context);
+        sDatabaseContext = context;
+        sDatabase = sKeychainDatabase.getWritableDatabase();
+        sLookupStatement = sDatabase.compileStatement(LOOKUP_QUERY);
+        sInsertStatement = sDatabase.compileStatement(INSERT_STATEMENT);
+    }
+
+    /** Must hold the class lock. */
+    private static void closeDatabase() {
+        if (sLookupStatement != null) {
+            sLookupStatement.close();
+            sLookupStatement = null;
+        }
+        if (sInsertStatement != null) {
+            sInsertStatement.close();
+            sInsertStatement = null;
+        }
+        if (sKeychainDatabase != null) {
+            sKeychainDatabase.close();
+            sKeychainDatabase = null;
+        }
+        sDatabase = null;
+        sDatabaseContext = null;
+    }
+
+    private static ByteBuffer buildKey(byte[] signatureDigest, byte[] signerFingerprint) {
+        ByteBuffer key = ByteBuffer.allocate(signatureDigest.length + signerFingerprint.length);
+        key.put(signatureDigest).put(signerFingerprint);
+        key.flip();
+        return key;
+    }
+
+    private static class PendingResult {
+        final byte[] mSignatureDigest;
+        final byte[] mSignerFingerprint;
+        final boolean mVerified;
+
+        PendingResult(byte[] signatureDigest, byte[] signerFingerprint, boolean verified) {
+            mSignatureDigest = signatureDigest;
+            mSignerFingerprint = signerFingerprint;
+            mVerified = verified;
+        }
+    }
+}
@@ -46,12 +46,14 @@ public class ApiPermissionHelper {
 
     private final Context mContext;
     private final ApiDataAccessObject mApiDao;
+    private final CallerVerificationCache mCallerCache;
     private PackageManager mPackageManager;
 
     public ApiPermissionHelper(Context context, ApiDataAccessObject apiDao) {
         mContext = context;
         mPackageManager = context.getPackageManager();
         mApiDao = apiDao;
+        mCallerCache = CallerVerificationCache.getInstance(context);
     }
 
     public static class WrongPackageCertificateException extends Exception {
@@ -151,7 +153,7 @@ public class ApiPermissionHelper {
      * @return package name
      */
     protected String getCurrentCallingPackage() {
-        String[] callingPackages = mPackageManager.getPackagesForUid(Binder.getCallingUid());
+        String[] callingPackages = getPackagesForUid(Binder.getCallingUid());
 
         // NOTE: No support for sharedUserIds
         // callingPackages contains more than one entry when sharedUserId has been used
@@ -176,12 +178,17 @@ public class ApiPermissionHelper {
 
     private boolean isUidAllowed(int uid)
             throws WrongPackageCertificateException {
+        if (mCallerCache.isVerified(uid)) {
+            return true;
+        }
 
-        String[] callingPackages = mPackageManager.getPackagesForUid(uid);
+        long generation = mCallerCache.getGeneration();
+        String[] callingPackages = getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
         for (String currentPkg : callingPackages) {
             if (isPackageAllowed(currentPkg)) {
+                mCallerCache.putVerified(generation, uid, callingPackages);
                 return true;
             }
         }
@@ -190,6 +197,18 @@ public class ApiPermissionHelper {
         return false;
     }
 
+    private String[] getPackagesForUid(int uid) {
+        String[] packages = mCallerCache.getPackagesForUid(uid);
+        if (packages == null) {
+            long generation = mCallerCache.getGeneration();
+            packages = mPackageManager.getPackagesForUid(uid);
+            if (packages != null) {
+                mCallerCache.putPackagesForUid(generation, uid, packages);
+            }
+        }
+        return packages;
+    }
+
     /**
      * Checks if packageName is a registered app for the API. Does not return true for own package!
      *
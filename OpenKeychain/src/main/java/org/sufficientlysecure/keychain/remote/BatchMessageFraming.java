@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.openintents.openpgp.util.OpenPgpApi;
+
+
+/**
+ * Reads the messages and writes the results of a {@link OpenPgpService#ACTION_DECRYPT_VERIFY_BATCH}
+ * call, with big endian ints as written by a DataOutputStream. A message is framed as:
+ * <pre>
+ * int    length of the extras, 0 for none
+ * byte[] extras, a Bundle as marshalled by Parcel#writeBundle
+ * int    length of the data
+ * byte[] data
+ * </pre>
+ * A result streams its data as it is decrypted, so it comes before the extras:
+ * <pre>
+ * int    length of a data chunk, repeated with the chunk until a length of 0
+ * byte[] data chunk
+ * int    length of the extras
+ * byte[] extras
+ * </pre>
+ * The extras of a message override those of the batch intent for this message only, e.g.
+ * {@link OpenPgpApi#EXTRA_SENDER_ADDRESS}. The extras of a result are those of the result intent of
+ * a single message call, except for PendingIntents, which can't be marshalled. Like the output of a
+ * single call, the data of a failed message may be incomplete. The input ends with the end of the
+ * stream after a complete frame.
+ */
+class BatchMessageFraming {
+    private static final int MAX_EXTRAS_LENGTH = 256 * 1024;
+    private static final int RESULT_CHUNK_SIZE = 64 * 1024;
+
+    /** Extras which apply to a single message, and are never taken over from the batch intent. */
+    private static final String[] MESSAGE_EXTRAS = {
+            OpenPgpApi.EXTRA_SENDER_ADDRESS,
+            OpenPgpApi.EXTRA_DETACHED_SIGNATURE,
+            OpenPgpApi.EXTRA_DECRYPTION_RESULT,
+            OpenPgpApi.EXTRA_AUTOCRYPT_PEER_ID,
+            OpenPgpApi.EXTRA_AUTOCRYPT_PEER_UPDATE,
+            OpenPgpApi.EXTRA_DATA_LENGTH,
+    };
+
+    /** Returns the extras of the next message, or null if the input ended. */
+    @Nullable
+    static Bundle readExtras(DataInputStream in, ClassLoader classLoader) throws IOException {
+        int firstByte = in.read();
+        if (firstByte == -1) {
+            return null;
+        }
+        int length = (firstByte << 24) | (in.readUnsignedByte() << 16)
+                | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < 0 || length > MAX_EXTRAS_LENGTH) {
+            throw new IOException("invalid extras length: " + length);
+        }
+        if (length == 0) {
+            return new Bundle();
+        }
+
+        byte[] marshalled = new byte[length];
+        in.readFully(marshalled);
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(marshalled, 0, length);
+            parcel.setDataPosition(0);
+            Bundle extras = parcel.readBundle(classLoader);
+            return extras != null ? extras : new Bundle();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static int readDataLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("invalid data length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Returns a stream of the data of the current message. Closing it skips whatever was not read,
+     * but leaves the underlying stream open for the next message.
+     */
+    static InputStream openData(DataInputStream in, int length) {
+        return new FrameInputStream(in, length);
+    }
+
+    /** Returns the intent for a single message, made up from the batch intent and the message extras. */
+    static Intent buildMessageIntent(Intent batchData, Bundle messageExtras) {
+        Intent messageData = new Intent(batchData);
+        for (String extra : MESSAGE_EXTRAS) {
+            messageData.removeExtra(extra);
+        }
+        messageData.putExtras(messageExtras);
+        return messageData;
+    }
+
+    /**
+     * Returns a stream for the data of the next result. Its data must be finished with
+     * {@link ResultDataOutputStream#finish} before the extras are written.
+     */
+    static ResultDataOutputStream openResultData(DataOutputStream out) {
+        return new ResultDataOutputStream(out);
+    }
+
+    static void writeResultExtras(DataOutputStream out, Intent result) throws IOException {
+        Bundle extras = result.getExtras() != null ? new Bundle(result.getExtras()) : new Bundle();
+        extras.remove(OpenPgpApi.RESULT_INTENT);
+        extras.remove(OpenPgpApi.RESULT_INSECURE_DETAIL_INTENT);
+
+        Parcel parcel = Parcel.obtain();
+        byte[] marshalled;
+        try {
+            parcel.writeBundle(extras);
+            marshalled = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+
+        out.writeInt(marshalled.length);
+        out.write(marshalled);
+    }
+
+    /**
+     * Writes data in chunks of at most RESULT_CHUNK_SIZE, so no result is held in memory as a
+     * whole. Closing it leaves the underlying stream open.
+     */
+    static class ResultDataOutputStream extends OutputStream {
+        private final DataOutputStream mOut;
+        private final byte[] mChunk = new byte[RESULT_CHUNK_SIZE];
+        private int mChunkLength;
+        private boolean mHasData;
+        private boolean mFinished;
+
+        private ResultDataOutputStream(DataOutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkNotFinished();
+            if (mChunkLength == mChunk.length) {
+                writeChunk();
+            }
+            mChunk[mChunkLength++] = (byte) b;
+            mHasData = true;
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            checkNotFinished();
+            while (count > 0) {
+                if (mChunkLength == mChunk.length) {
+                    writeChunk();
+                }
+                int length = Math.min(count, mChunk.length - mChunkLength);
+                System.arraycopy(buffer, offset, mChunk, mChunkLength, length);
+                mChunkLength += length;
+                offset += length;
+                count -= length;
+                mHasData = true;
+            }
+        }
+
+        /** Returns true if any data was written, in which case the frame has to be finished. */
+        boolean hasData() {
+            return mHasData;
+        }
+
+        /** Writes what is left of the data, and the end of the data. */
+        void finish() throws IOException {
+            if (mFinished) {
+                return;
+            }
+            if (mChunkLength > 0) {
+                writeChunk();
+            }
+            mOut.writeInt(0);
+            mFinished = true;
+        }
+
+        @Override
+        public void close() {
+            // the operation may close its output, but the frame goes on with the extras
+        }
+
+        private void writeChunk() throws IOException {
+            mOut.writeInt(mChunkLength);
+            mOut.write(mChunk, 0, mChunkLength);
+            mChunkLength = 0;
+        }
+
+        private void checkNotFinished() throws IOException {
+            if (mFinished) {
+                throw new IOException("data of this result was already finished");
+            }
+        }
+    }
+
+    private static class FrameInputStream extends FilterInputStream {
+        private int mRemaining;
+
+        FrameInputStream(InputStream in, int length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("input ended within a message");
+            }
+            mRemaining -= 1;
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, Math.min(count, mRemaining));
+            if (read == -1) {
+                throw new EOFException("input ended within a message");
+            }
+            mRemaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(in.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (mRemaining > 0) {
+                read(buffer, 0, buffer.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.remote;
+
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry;
+import org.sufficientlysecure.keychain.provider.CacheInvalidationRegistry.InvalidationListener;
+import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
+import timber.log.Timber;
+
+
+/**
+ * Process-wide cache of the callers ApiPermissionHelper has verified, keyed by uid. Clients of
+ * the remote APIs make many calls in a row, each of which would otherwise look up the packages
+ * of the calling uid and their certificates in the PackageManager, and the registered apps in the
+ * database.
+ * <p>
+ * Only successful verifications are cached, so a caller which was just registered is never
+ * turned away because of a stale entry. The entry of a uid is dropped when a package of that uid
+ * is added, replaced, changed or removed, and all of them whenever the registered apps change.
+ */
+public class CallerVerificationCache implements InvalidationListener {
+    private static CallerVerificationCache sInstance;
+
+    private final SparseArray<CacheEntry> mEntries = new SparseArray<>();
+    // incremented on each invalidation, so a verification that raced with it is not cached
+    private long mGeneration;
+
+    private long mHits;
+    private long mMisses;
+
+    public static synchronized CallerVerificationCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CallerVerificationCache();
+            CacheInvalidationRegistry.register(context, sInstance);
+
+            // PACKAGE_REPLACED and PACKAGE_CHANGED are not delivered to manifest receivers on
+            // newer android versions, so this is registered for the lifetime of the process
+            IntentFilter packageFilter = new IntentFilter();
+            packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            packageFilter.addDataScheme("package");
+            context.getApplicationContext().registerReceiver(new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    sInstance.onPackageChanged(intent);
+                }
+            }, packageFilter);
+        }
+        return sInstance;
+    }
+
+    /** Invalidates the entry of the package this broadcast is about in this process, if there is one. */
+    static synchronized void invalidateIfInstantiated(Intent packageIntent) {
+        if (sInstance != null) {
+            sInstance.onPackageChanged(packageIntent);
+        }
+    }
+
+    CallerVerificationCache() {
+    }
+
+    /** Returns the generation to pass to the put methods, must be called before the lookup. */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /** Returns the cached packages of a uid, or null if they need to be looked up. */
+    @Nullable
+    synchronized String[] getPackagesForUid(int uid) {
+        CacheEntry entry = mEntries.get(uid);
+        return entry != null ? entry.mPackages : null;
+    }
+
+    synchronized void putPackagesForUid(long generation, int uid, String[] packages) {
+        if (generation != mGeneration) {
+            return;
+        }
+        CacheEntry entry = mEntries.get(uid);
+        if (entry == null) {
+            mEntries.put(uid, new CacheEntry(packages));
+        }
+    }
+
+    /** Returns true if the uid was verified to be allowed before. */
+    synchronized boolean isVerified(int uid) {
+        CacheEntry entry = mEntries.get(uid);
+        if (entry == null || !entry.mVerified) {
+            mMisses += 1;
+            return false;
+        }
+        mHits += 1;
+        return true;
+    }
+
+    synchronized void putVerified(long generation, int uid, String[] packages) {
+        if (generation != mGeneration) {
+            Timber.d("Registered apps or packages changed during verification, not caching");
+            return;
+        }
+        CacheEntry entry = new CacheEntry(packages);
+        entry.mVerified = true;
+        mEntries.put(uid, entry);
+    }
+
+    synchronized void invalidate(int uid) {
+        mGeneration += 1;
+        mEntries.remove(uid);
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration += 1;
+        mEntries.clear();
+    }
+
+    /** A revoked app must not be let through by a verification from before. */
+    @Override
+    public void onInvalidate(@Nullable Uri uri) {
+        if (CacheInvalidationRegistry.overlaps(uri, ApiApps.CONTENT_URI)) {
+            invalidateAll();
+        }
+    }
+
+    /** Drops the entry of the uid a package broadcast is about, or all entries if it names none. */
+    void onPackageChanged(Intent intent) {
+        int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+        if (uid == -1) {
+            invalidateAll();
+        } else {
+            invalidate(uid);
+        }
+    }
+
+    /** Returns the number of calls to {@link #isVerified} which found a verified uid. */
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    private static class CacheEntry {
+        final String[] mPackages;
+        boolean mVerified;
+
+        CacheEntry(String[] packages) {
+            mPackages = packages;
+        }
+    }
+}
@@ -19,10 +19,11 @@ package org.sufficientlysecure.keychain.remote;
 
 
 import java.security.AccessControlException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeSet;
 
 import android.content.ContentProvider;
 import android.content.ContentValues;
@@ -30,16 +31,19 @@ import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
+import org.sufficientlysecure.keychain.provider.EmailStatusCache;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAutocryptPeer;
@@ -53,7 +57,6 @@ import org.sufficientlysecure.keychain.provider.KeychainExternalContract;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.AutocryptStatus;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract.EmailStatus;
 import org.sufficientlysecure.keychain.provider.SimpleContentResolverInterface;
-import org.sufficientlysecure.keychain.util.CloseDatabaseCursorFactory;
 import timber.log.Timber;
 
 
@@ -66,12 +69,16 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_PACKAGE_NAME = 302;
 
-    public static final String TEMP_TABLE_QUERIED_ADDRESSES = "queried_addresses";
-    public static final String TEMP_TABLE_COLUMN_ADDRES = "address";
+    private static final String QUERIED_ADDRESSES = "queried_addresses";
+    private static final String QUERIED_ADDRESSES_COLUMN_ADDRESS = "address";
+    // SQLite refuses compound selects of more terms, and statements with more than 999 arguments
+    private static final int MAX_COMPOUND_SELECT_TERMS = 500;
 
 
     private UriMatcher mUriMatcher;
     private ApiPermissionHelper mApiPermissionHelper;
+    private KeychainDatabase mKeychainDatabase;
+    private EmailStatusCache mEmailStatusCache;
 
 
     /**
@@ -106,9 +113,19 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
         mApiPermissionHelper = new ApiPermissionHelper(getContext(), new ApiDataAccessObject(this));
+        mEmailStatusCache = EmailStatusCache.getInstance(getContext());
         return true;
     }
 
+    private KeychainDatabase getDb() {
+        if (mKeychainDatabase == null) {
+            mKeychainDatabase = new KeychainDatabase(getContext());
+            // whatever was cached before doesn't necessarily belong to this database
+            mEmailStatusCache.invalidateAll();
+        }
+        return mKeychainDatabase;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -143,8 +160,12 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
         int match = mUriMatcher.match(uri);
 
         String groupBy = null;
+        // arguments of the address status queries, bound after the queried address
+        String[] addressStatusArgs = null;
+        // if set, addresses are looked up one by one, rather than in a single query
+        boolean lookupPerAddress = false;
 
-        SQLiteDatabase db = new KeychainDatabase(getContext()).getReadableDatabase();
+        SQLiteDatabase db = getDb().getReadableDatabase();
 
         String callingPackageName = mApiPermissionHelper.getCurrentCallingPackage();
 
@@ -155,17 +176,16 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                     throw new AccessControlException("An application must register before use of KeychainExternalProvider!");
                 }
 
-                db.execSQL("CREATE TEMPORARY TABLE " + TEMP_TABLE_QUERIED_ADDRESSES + " (" + TEMP_TABLE_COLUMN_ADDRES + " TEXT);");
-                ContentValues cv = new ContentValues();
-                for (String address : selectionArgs) {
-                    cv.put(TEMP_TABLE_COLUMN_ADDRES, address);
-                    db.insert(TEMP_TABLE_QUERIED_ADDRESSES, null, cv);
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = EmailStatus.EMAIL_ADDRESS;
                 }
+                lookupPerAddress = EmailStatus.EMAIL_ADDRESS.equals(sortOrder);
+                addressStatusArgs = new String[0];
 
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(EmailStatus._ID, "email AS _id");
                 projectionMap.put(EmailStatus.EMAIL_ADDRESS, // this is actually the queried address
-                        TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES + " AS " + EmailStatus.EMAIL_ADDRESS);
+                        QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + " AS " + EmailStatus.EMAIL_ADDRESS);
                 projectionMap.put(EmailStatus.USER_ID,
                         Tables.USER_PACKETS + "." + UserPackets.USER_ID + " AS " + EmailStatus.USER_ID);
                 // we take the minimum (>0) here, where "1" is "verified by known secret key", "2" is "self-certified"
@@ -185,10 +205,11 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 }
 
                 qb.setTables(
-                        TEMP_TABLE_QUERIED_ADDRESSES
+                        buildQueriedAddressesTable(lookupPerAddress, selectionArgs)
                                 + " LEFT JOIN " + Tables.USER_PACKETS + " ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.USER_ID + " IS NOT NULL"
-                                + " AND " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " LIKE " + TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES
+                                + " AND " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " = "
+                                + QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + " COLLATE NOCASE"
                                 + ")"
                                 + " LEFT JOIN " + Tables.CERTS + " ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " = " + Tables.CERTS + "." + Certs.MASTER_KEY_ID
@@ -196,7 +217,7 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                                 + ")"
                 );
                 // in case there are multiple verifying certificates
-                groupBy = TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES;
+                groupBy = QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS;
                 List<String> plist = Arrays.asList(projection);
                 if (plist.contains(EmailStatus.USER_ID)) {
                     groupBy += ", " + Tables.USER_PACKETS + "." + UserPackets.USER_ID;
@@ -206,10 +227,6 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 // verified == null is fine, because it means there was no join partner
                 qb.appendWhere(Tables.CERTS + "." + Certs.VERIFIED + " IS NULL OR " + Tables.CERTS + "." + Certs.VERIFIED + " > 0");
 
-                if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = EmailStatus.EMAIL_ADDRESS;
-                }
-
                 // uri to watch is all /key_rings/
                 uri = KeyRings.CONTENT_URI;
 
@@ -230,17 +247,16 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                     throw new AccessControlException("An application must register before use of KeychainExternalProvider!");
                 }
 
-                db.execSQL("CREATE TEMPORARY TABLE " + TEMP_TABLE_QUERIED_ADDRESSES + " (" + TEMP_TABLE_COLUMN_ADDRES + " TEXT);");
-                ContentValues cv = new ContentValues();
-                for (String address : selectionArgs) {
-                    cv.put(TEMP_TABLE_COLUMN_ADDRES, address);
-                    db.insert(TEMP_TABLE_QUERIED_ADDRESSES, null, cv);
+                if (TextUtils.isEmpty(sortOrder)) {
+                    sortOrder = AutocryptStatus.ADDRESS;
                 }
+                lookupPerAddress = AutocryptStatus.ADDRESS.equals(sortOrder);
+                addressStatusArgs = new String[] { callingPackageName, Long.toString(System.currentTimeMillis() / 1000) };
 
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(AutocryptStatus._ID, "email AS _id");
                 projectionMap.put(AutocryptStatus.ADDRESS, // this is actually the queried address
-                        TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES + " AS " + AutocryptStatus.ADDRESS);
+                        QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + " AS " + AutocryptStatus.ADDRESS);
 
                 projectionMap.put(AutocryptStatus.UID_ADDRESS,
                         Tables.USER_PACKETS + "." + UserPackets.USER_ID + " AS " + AutocryptStatus.UID_ADDRESS);
@@ -278,38 +294,36 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
                 }
 
                 qb.setTables(
-                        TEMP_TABLE_QUERIED_ADDRESSES
+                        buildQueriedAddressesTable(lookupPerAddress, selectionArgs)
                                 + " LEFT JOIN " + Tables.USER_PACKETS + " ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.USER_ID + " IS NOT NULL"
-                                + " AND " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " LIKE " + TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES
+                                + " AND " + Tables.USER_PACKETS + "." + UserPackets.EMAIL + " = "
+                                + QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + " COLLATE NOCASE"
                                 + ")"
                                 + " LEFT JOIN " + Tables.CERTS + " AS certs_user_id ON ("
                                 + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " = certs_user_id." + Certs.MASTER_KEY_ID
                                 + " AND " + Tables.USER_PACKETS + "." + UserPackets.RANK + " = certs_user_id." + Certs.RANK
                                 + ")"
                                 + " LEFT JOIN " + Tables.API_AUTOCRYPT_PEERS + " ON ("
-                                + Tables.API_AUTOCRYPT_PEERS + "." + ApiAutocryptPeer.IDENTIFIER + " LIKE queried_addresses.address"
-                                + " AND " + Tables.API_AUTOCRYPT_PEERS + "." + ApiAutocryptPeer.PACKAGE_NAME + " = \"" + callingPackageName + "\""
+                                + Tables.API_AUTOCRYPT_PEERS + "." + ApiAutocryptPeer.IDENTIFIER + " = "
+                                + QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS + " COLLATE NOCASE"
+                                + " AND " + Tables.API_AUTOCRYPT_PEERS + "." + ApiAutocryptPeer.PACKAGE_NAME + " = ?"
                                 + ")"
                                 + " LEFT JOIN " + Tables.CERTS + " AS certs_autocrypt_peer ON ("
                                 + Tables.API_AUTOCRYPT_PEERS + "." + ApiAutocryptPeer.MASTER_KEY_ID + " = certs_autocrypt_peer." + Certs.MASTER_KEY_ID
                                 + ")"
                 );
                 // in case there are multiple verifying certificates
-                groupBy = TEMP_TABLE_QUERIED_ADDRESSES + "." + TEMP_TABLE_COLUMN_ADDRES;
+                groupBy = QUERIED_ADDRESSES + "." + QUERIED_ADDRESSES_COLUMN_ADDRESS;
 
                 // can't have an expired master key for the uid candidate
                 qb.appendWhere("(EXISTS (SELECT * FROM " + Tables.KEYS + " WHERE "
                         + Tables.KEYS + "." + Keys.KEY_ID + " = " + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID
                         + " AND " + Tables.KEYS + "." + Keys.IS_REVOKED + " = 0"
                         + " AND NOT " + "(" + Tables.KEYS + "." + Keys.EXPIRY + " IS NOT NULL AND " + Tables.KEYS + "." + Keys.EXPIRY
-                        + " < " + new Date().getTime() / 1000 + ")"
+                        + " < CAST(? AS INTEGER))"
                         + ")) OR " + Tables.USER_PACKETS + "." + UserPackets.MASTER_KEY_ID + " IS NULL");
 
-                if (TextUtils.isEmpty(sortOrder)) {
-                    sortOrder = AutocryptStatus.ADDRESS;
-                }
-
                 // uri to watch is all /key_rings/
                 uri = KeyRings.CONTENT_URI;
                 break;
@@ -340,8 +354,19 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
             orderBy = sortOrder;
         }
 
-        Cursor cursor = qb.query(db, projection, selection, null, groupBy, null, orderBy);
-        qb.setCursorFactory(new CloseDatabaseCursorFactory());
+        Cursor cursor;
+        if (lookupPerAddress) {
+            cursor = queryStatusPerAddress(db, qb, projection, selection, groupBy, callingPackageName,
+                    selectionArgs, addressStatusArgs);
+        } else if (addressStatusArgs != null) {
+            // too many addresses to bind are part of the query itself, see buildQueriedAddressesTable
+            String[] boundAddresses =
+                    countAddresses(selectionArgs) <= MAX_COMPOUND_SELECT_TERMS ? selectionArgs : null;
+            cursor = qb.query(db, projection, selection, buildStatusQueryArgs(boundAddresses, addressStatusArgs),
+                    groupBy, null, orderBy);
+        } else {
+            cursor = qb.query(db, projection, selection, null, groupBy, null, orderBy);
+        }
         if (cursor != null) {
             // Tell the cursor what uri to watch, so it knows when its source data changes
             cursor.setNotificationUri(getContext().getContentResolver(), uri);
@@ -355,6 +380,156 @@ public class KeychainExternalProvider extends ContentProvider implements SimpleC
         return cursor;
     }
 
+    /**
+     * Looks up the status of each queried address on its own. The query is the same for every
+     * address, so it is only compiled once per database connection, and finds its user ids
+     * through the uids_by_email index. Results are cached per calling package for a short time,
+     * so only addresses which weren't queried just before are looked up at all.
+     * <p>
+     * Rows are returned ordered by address, like the single query sorted by address would.
+     */
+    private Cursor queryStatusPerAddress(SQLiteDatabase db, SQLiteQueryBuilder qb, String[] projection,
+            String selection, String groupBy, String packageName, String[] addresses, String[] addressStatusArgs) {
+        String query = qb.buildQuery(projection, selection, groupBy, null, null, null);
+
+        // grouped by address, so each address is only returned once
+        TreeSet<String> sortedAddresses = new TreeSet<>();
+        if (addresses != null) {
+            for (String address : addresses) {
+                if (address != null) {
+                    sortedAddresses.add(address);
+                }
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long generation = mEmailStatusCache.getGeneration();
+        String[] queryArgs = new String[1 + addressStatusArgs.length];
+        System.arraycopy(addressStatusArgs, 0, queryArgs, 1, addressStatusArgs.length);
+
+        MatrixCursor cursor = new MatrixCursor(projection, sortedAddresses.size());
+        for (String address : sortedAddresses) {
+            List<Object[]> rows = mEmailStatusCache.get(packageName, query, address, now);
+            if (rows == null) {
+                queryArgs[0] = address;
+                rows = readRows(db.rawQuery(query, queryArgs));
+                mEmailStatusCache.put(generation, packageName, query, address, rows, now);
+            }
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+        }
+        return cursor;
+    }
+
+    private static List<Object[]> readRows(Cursor cursor) {
+        ArrayList<Object[]> rows = new ArrayList<>();
+        try {
+            int columnCount = cursor.getColumnCount();
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[columnCount];
+                for (int i = 0; i < columnCount; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            row[i] = null;
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[i] = cursor.getLong(i);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[i] = cursor.getDouble(i);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[i] = cursor.getBlob(i);
+                            break;
+                        default:
+                            row[i] = cursor.getString(i);
+                            break;
+                    }
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns a subquery with a single address column, with one row per queried address, or a
+     * single bound row if the addresses are looked up one by one.
+     * <p>
+     * Rows are bound as arguments, up to the number of terms SQLite allows in a compound select.
+     * Larger lists are written into the query as literals, nested in chunks of that size.
+     */
+    private static String buildQueriedAddressesTable(boolean lookupPerAddress, String[] addresses) {
+        if (lookupPerAddress) {
+            return buildQueriedAddressesTable(1);
+        }
+        int addressCount = countAddresses(addresses);
+        if (addressCount <= MAX_COMPOUND_SELECT_TERMS) {
+            return buildQueriedAddressesTable(addressCount);
+        }
+        return "(" + buildAddressLiteralsSelect(Arrays.asList(addresses)) + ") AS " + QUERIED_ADDRESSES;
+    }
+
+    private static String buildAddressLiteralsSelect(List<String> addresses) {
+        StringBuilder select = new StringBuilder();
+        if (addresses.size() <= MAX_COMPOUND_SELECT_TERMS) {
+            for (int i = 0; i < addresses.size(); i++) {
+                if (i > 0) {
+                    select.append(" UNION ALL ");
+                }
+                String address = addresses.get(i);
+                select.append("SELECT ").append(address != null ? DatabaseUtils.sqlEscapeString(address) : "NULL")
+                        .append(" AS ").append(QUERIED_ADDRESSES_COLUMN_ADDRESS);
+            }
+            return select.toString();
+        }
+
+        // each chunk is a compound select of its own, so none has too many terms
+        int chunkSize = Math.max(MAX_COMPOUND_SELECT_TERMS,
+                (addresses.size() + MAX_COMPOUND_SELECT_TERMS - 1) / MAX_COMPOUND_SELECT_TERMS);
+        for (int start = 0; start < addresses.size(); start += chunkSize) {
+            if (start > 0) {
+                select.append(" UNION ALL ");
+            }
+            List<String> chunk = addresses.subList(start, Math.min(start + chunkSize, addresses.size()));
+            select.append("SELECT ").append(QUERIED_ADDRESSES_COLUMN_ADDRESS).append(" FROM (")
+                    .append(buildAddressLiteralsSelect(chunk)).append(")");
+        }
+        return select.toString();
+    }
+
+    /** Returns a subquery with a single address column, with one bound row per queried address. */
+    private static String buildQueriedAddressesTable(int addressCount) {
+        StringBuilder table = new StringBuilder("(");
+        if (addressCount == 0) {
+            table.append("SELECT NULL AS ").append(QUERIED_ADDRESSES_COLUMN_ADDRESS).append(" LIMIT 0");
+        }
+        for (int i = 0; i < addressCount; i++) {
+            if (i > 0) {
+                table.append(" UNION ALL ");
+            }
+            table.append("SELECT ? AS ").append(QUERIED_ADDRESSES_COLUMN_ADDRESS);
+        }
+        return table.append(") AS ").append(QUERIED_ADDRESSES).toString();
+    }
+
+    private static int countAddresses(String[] addresses) {
+        return addresses != null ? addresses.length : 0;
+    }
+
+    private static String[] buildStatusQueryArgs(String[] addresses, String[] addressStatusArgs) {
+        int addressCount = countAddresses(addresses);
+        String[] queryArgs = new String[addressCount + addressStatusArgs.length];
+        if (addressCount > 0) {
+            System.arraycopy(addresses, 0, queryArgs, 0, addressCount);
+        }
+        System.arraycopy(addressStatusArgs, 0, queryArgs, addressCount, addressStatusArgs.length);
+        return queryArgs;
+    }
+
     private void checkIfPackageBelongsToCaller(Context context, String requestedPackageName) {
         int callerUid = Binder.getCallingUid();
         String[] callerPackageNames = context.getPackageManager().getPackagesForUid(callerUid);
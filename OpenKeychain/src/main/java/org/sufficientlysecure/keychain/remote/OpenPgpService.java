@@ -18,6 +18,12 @@
 package org.sufficientlysecure.keychain.remote;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,6 +37,7 @@ import java.util.List;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
@@ -95,6 +102,14 @@ public class OpenPgpService extends Service {
     public static final List<Integer> SUPPORTED_VERSIONS =
             Collections.unmodifiableList(Arrays.asList(7, 8, 9, 10, 11, 12));
 
+    /**
+     * Decrypts and verifies many messages with a single call. The input holds the framed messages,
+     * the output receives their framed results, see {@link BatchMessageFraming}.
+     */
+    public static final String ACTION_DECRYPT_VERIFY_BATCH = Constants.INTENT_PREFIX + "DECRYPT_VERIFY_BATCH";
+    /** Number of messages of a batch whose results were written to the output. */
+    public static final String RESULT_BATCH_MESSAGE_COUNT = "batch_message_count";
+
     private ApiPermissionHelper mApiPermissionHelper;
     private KeyRepository mKeyRepository;
     private ApiDataAccessObject mApiDao;
@@ -365,90 +380,188 @@ public class OpenPgpService extends Service {
             }
 
             int targetApiVersion = data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1);
+            CryptoInputParcel cryptoInput = getDecryptCryptoInput(data);
 
-            CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
-            if (cryptoInput == null) {
-                cryptoInput = CryptoInputParcel.createCryptoInputParcel();
-            }
-            // override passphrase in input parcel if given by API call
-            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                cryptoInput = cryptoInput.withPassphrase(
-                        new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE)), null);
-            }
-            if (data.hasExtra(OpenPgpApi.EXTRA_DECRYPTION_RESULT)) {
-                OpenPgpDecryptionResult decryptionResult = data.getParcelableExtra(OpenPgpApi.EXTRA_DECRYPTION_RESULT);
-                if (decryptionResult != null && decryptionResult.hasDecryptedSessionKey()) {
-                    cryptoInput = cryptoInput.withCryptoData(
-                            decryptionResult.getSessionKey(), decryptionResult.getDecryptedSessionKey());
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mKeyRepository, progressable);
+
+            long inputLength = data.getLongExtra(OpenPgpApi.EXTRA_DATA_LENGTH, InputData.UNKNOWN_FILESIZE);
+            InputData inputData = new InputData(inputStream, inputLength);
+
+            return decryptAndVerifyMessage(data, targetApiVersion, op, cryptoInput,
+                    new ArrayList<>(getAllowedKeyIds()), decryptMetadataOnly, inputData, outputStream);
+        } catch (Exception e) {
+            Timber.e(e, "decryptAndVerifyImpl");
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Decrypts and verifies all messages framed into the input stream, and writes their results
+     * framed into the output stream, see {@link BatchMessageFraming}. The permission check, the
+     * allowed keys of the app and the crypto input are resolved only once for the whole batch,
+     * and each decryption key is unlocked only once.
+     * <p>
+     * If a message requires user interaction, the batch stops before that message, and the
+     * result intent of that message is returned. {@link #RESULT_BATCH_MESSAGE_COUNT} holds the
+     * number of messages which were processed in either case.
+     */
+    private Intent decryptAndVerifyBatchImpl(Intent data, InputStream inputStream, OutputStream outputStream) {
+        if (inputStream == null || outputStream == null) {
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, "Batch requires input and output!");
+        }
+
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mKeyRepository, null);
+        op.retainUnlockedKeys();
+        try {
+            int targetApiVersion = data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1);
+            CryptoInputParcel cryptoInput = getDecryptCryptoInput(data);
+            List<Long> allowedKeyIds = new ArrayList<>(getAllowedKeyIds());
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream));
+
+            int messageCount = 0;
+            Bundle messageExtras;
+            while ((messageExtras = BatchMessageFraming.readExtras(in, getClassLoader())) != null) {
+                Intent messageData = BatchMessageFraming.buildMessageIntent(data, messageExtras);
+                BatchMessageFraming.ResultDataOutputStream messageOut =
+                        BatchMessageFraming.openResultData(out);
+
+                Intent messageResult;
+                int messageLength = BatchMessageFraming.readDataLength(in);
+                InputStream messageIn = BatchMessageFraming.openData(in, messageLength);
+                try {
+                    messageResult = decryptAndVerifyMessage(messageData, targetApiVersion, op, cryptoInput,
+                            allowedKeyIds, false, new InputData(messageIn, messageLength), messageOut);
+                } catch (Exception e) {
+                    // fails this message only, just like a single call would
+                    Timber.e(e, "decryptAndVerifyBatchImpl");
+                    messageResult = createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+                } finally {
+                    // skips whatever the operation didn't read, up to the next message
+                    messageIn.close();
                 }
-            }
 
-            byte[] detachedSignature = data.getByteArrayExtra(OpenPgpApi.EXTRA_DETACHED_SIGNATURE);
-            String senderAddress = data.getStringExtra(OpenPgpApi.EXTRA_SENDER_ADDRESS);
+                if (messageResult.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR)
+                        == OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED) {
+                    if (!messageOut.hasData()) {
+                        // the client continues with this message after the user interaction
+                        out.flush();
+                        messageResult.putExtra(RESULT_BATCH_MESSAGE_COUNT, messageCount);
+                        return messageResult;
+                    }
+                    // part of its result is out already, so this message can't be repeated
+                    messageResult = createErrorResultIntent(OpenPgpError.GENERIC_ERROR,
+                            "User interaction required after data was written");
+                }
 
-            AutocryptPeerDataAccessObject autocryptPeerentityDao = new AutocryptPeerDataAccessObject(
-                    getBaseContext(), mApiPermissionHelper.getCurrentCallingPackage());
-            updateAutocryptPeerStateFromIntent(data, autocryptPeerentityDao);
+                messageOut.finish();
+                BatchMessageFraming.writeResultExtras(out, messageResult);
+                messageCount += 1;
+            }
+            out.flush();
 
-            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(this, mKeyRepository, progressable);
+            Intent result = new Intent();
+            result.putExtra(RESULT_BATCH_MESSAGE_COUNT, messageCount);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } catch (Exception e) {
+            Timber.e(e, "decryptAndVerifyBatchImpl");
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+        } finally {
+            op.releaseUnlockedKeys();
+        }
+    }
 
-            long inputLength = data.getLongExtra(OpenPgpApi.EXTRA_DATA_LENGTH, InputData.UNKNOWN_FILESIZE);
-            InputData inputData = new InputData(inputStream, inputLength);
+    private CryptoInputParcel getDecryptCryptoInput(Intent data) {
+        CryptoInputParcel cryptoInput = CryptoInputParcelCacheService.getCryptoInputParcel(this, data);
+        if (cryptoInput == null) {
+            cryptoInput = CryptoInputParcel.createCryptoInputParcel();
+        }
+        // override passphrase in input parcel if given by API call
+        if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+            cryptoInput = cryptoInput.withPassphrase(
+                    new Passphrase(data.getCharArrayExtra(OpenPgpApi.EXTRA_PASSPHRASE)), null);
+        }
+        return cryptoInput;
+    }
 
-            // allow only private keys associated with accounts of this app
-            // no support for symmetric encryption
-            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
-                    .setAllowSymmetricDecryption(false)
-                    .setAllowedKeyIds(new ArrayList<>(getAllowedKeyIds()))
-                    .setDecryptMetadataOnly(decryptMetadataOnly)
-                    .setDetachedSignature(detachedSignature)
-                    .setSenderAddress(senderAddress)
-                    .build();
+    private Intent decryptAndVerifyMessage(Intent data, int targetApiVersion, PgpDecryptVerifyOperation op,
+            CryptoInputParcel cryptoInput, List<Long> allowedKeyIds, boolean decryptMetadataOnly,
+            InputData inputData, OutputStream outputStream) throws PgpGeneralException, IOException {
+        if (data.hasExtra(OpenPgpApi.EXTRA_DECRYPTION_RESULT)) {
+            OpenPgpDecryptionResult decryptionResult = data.getParcelableExtra(OpenPgpApi.EXTRA_DECRYPTION_RESULT);
+            if (decryptionResult != null && decryptionResult.hasDecryptedSessionKey()) {
+                cryptoInput = cryptoInput.withCryptoData(
+                        decryptionResult.getSessionKey(), decryptionResult.getDecryptedSessionKey());
+            }
+        }
 
-            DecryptVerifyResult pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
+        byte[] detachedSignature = data.getByteArrayExtra(OpenPgpApi.EXTRA_DETACHED_SIGNATURE);
+        String senderAddress = data.getStringExtra(OpenPgpApi.EXTRA_SENDER_ADDRESS);
+
+        AutocryptPeerDataAccessObject autocryptPeerentityDao = new AutocryptPeerDataAccessObject(
+                getBaseContext(), mApiPermissionHelper.getCurrentCallingPackage());
+        updateAutocryptPeerStateFromIntent(data, autocryptPeerentityDao);
+
+        // allow only private keys associated with accounts of this app
+        // no support for symmetric encryption
+        PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                .setAllowSymmetricDecryption(false)
+                .setAllowedKeyIds(allowedKeyIds)
+                .setDecryptMetadataOnly(decryptMetadataOnly)
+                .setDetachedSignature(detachedSignature)
+                .setSenderAddress(senderAddress)
+                .build();
+
+        DecryptVerifyResult pgpResult;
+        InputStream inputStream = inputData.getInputStream();
+        if (inputStream instanceof FileInputStream
+                && (outputStream == null || outputStream instanceof FileOutputStream)) {
+            // file descriptors passed in through the binder, decrypt straight between their channels
+            pgpResult = op.execute(input, cryptoInput, ((FileInputStream) inputStream).getChannel(),
+                    inputData.getSize(), outputStream != null ? ((FileOutputStream) outputStream).getChannel() : null);
+        } else {
+            pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
+        }
 
-            if (pgpResult.isPending()) {
-                // prepare and return PendingIntent to be executed by client
-                RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
-                PendingIntent pIntent = mApiPendingIntentFactory.requiredInputPi(data,
-                        requiredInput, pgpResult.mCryptoInputParcel);
+        if (pgpResult.isPending()) {
+            // prepare and return PendingIntent to be executed by client
+            RequiredInputParcel requiredInput = pgpResult.getRequiredInputParcel();
+            PendingIntent pIntent = mApiPendingIntentFactory.requiredInputPi(data,
+                    requiredInput, pgpResult.mCryptoInputParcel);
 
-                Intent result = new Intent();
-                result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                return result;
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_INTENT, pIntent);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
+            return result;
 
-            } else if (pgpResult.success()) {
-                Intent result = new Intent();
+        } else if (pgpResult.success()) {
+            Intent result = new Intent();
 
-                processDecryptionResultForResultIntent(targetApiVersion, result, pgpResult.getDecryptionResult());
-                processMetadataForResultIntent(result, pgpResult.getDecryptionMetadata());
-                processSignatureResultForResultIntent(targetApiVersion, data, result, pgpResult);
-                processSecurityProblemsPendingIntent(data, result, pgpResult);
+            processDecryptionResultForResultIntent(targetApiVersion, result, pgpResult.getDecryptionResult());
+            processMetadataForResultIntent(result, pgpResult.getDecryptionMetadata());
+            processSignatureResultForResultIntent(targetApiVersion, data, result, pgpResult);
+            processSecurityProblemsPendingIntent(data, result, pgpResult);
 
-                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } else {
+            long[] skippedDisallowedEncryptionKeys = pgpResult.getSkippedDisallowedKeys();
+            if (pgpResult.isKeysDisallowed() &&
+                    skippedDisallowedEncryptionKeys != null && skippedDisallowedEncryptionKeys.length > 0) {
+                // allow user to select allowed keys
+                Intent result = new Intent();
+                String packageName = mApiPermissionHelper.getCurrentCallingPackage();
+                result.putExtra(OpenPgpApi.RESULT_INTENT,
+                        mApiPendingIntentFactory.createRequestKeyPermissionPendingIntent(
+                                data, packageName, skippedDisallowedEncryptionKeys));
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
                 return result;
-            } else {
-                long[] skippedDisallowedEncryptionKeys = pgpResult.getSkippedDisallowedKeys();
-                if (pgpResult.isKeysDisallowed() &&
-                        skippedDisallowedEncryptionKeys != null && skippedDisallowedEncryptionKeys.length > 0) {
-                    // allow user to select allowed keys
-                    Intent result = new Intent();
-                    String packageName = mApiPermissionHelper.getCurrentCallingPackage();
-                    result.putExtra(OpenPgpApi.RESULT_INTENT,
-                            mApiPendingIntentFactory.createRequestKeyPermissionPendingIntent(
-                                    data, packageName, skippedDisallowedEncryptionKeys));
-                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED);
-                    return result;
-                }
-
-                String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
-                return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, errorMsg);
             }
 
-        } catch (Exception e) {
-            Timber.e(e, "decryptAndVerifyImpl");
-            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, e.getMessage());
+            String errorMsg = getString(pgpResult.getLog().getLast().mType.getMsgId());
+            return createErrorResultIntent(OpenPgpError.GENERIC_ERROR, errorMsg);
         }
     }
 
@@ -966,6 +1079,9 @@ public class OpenPgpService extends Service {
             case OpenPgpApi.ACTION_DECRYPT_METADATA: {
                 return decryptAndVerifyImpl(data, inputStream, outputStream, true, null);
             }
+            case ACTION_DECRYPT_VERIFY_BATCH: {
+                return decryptAndVerifyBatchImpl(data, inputStream, outputStream);
+            }
             case OpenPgpApi.ACTION_GET_SIGN_KEY_ID: {
                 return getSignKeyIdImpl(data);
             }
@@ -29,6 +29,9 @@ public class PackageUninstallReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
         if (Intent.ACTION_PACKAGE_FULLY_REMOVED.equals(intent.getAction())) {
+            // the uid may be reused by another package from now on
+            CallerVerificationCache.invalidateIfInstantiated(intent);
+
             Uri uri = intent.getData();
             if (uri == null) {
                 return;
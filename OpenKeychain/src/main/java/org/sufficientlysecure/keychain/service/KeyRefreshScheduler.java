@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.ImportOperation.KeyImportAccumulator;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
+import timber.log.Timber;
+
+
+/**
+ * Refreshes keys from a keyserver in a number of parallel lanes. Each lane waits a fixed delay
+ * plus random jitter between two of its keys, and all lanes draw from a shared token bucket for
+ * the keyserver, so it isn't hammered with requests.
+ * <p>
+ * Progress is not kept here: every refreshed key gets its last update time renewed in the
+ * updated_keys table, and is not picked up again by the next sync if this one is interrupted.
+ */
+class KeyRefreshScheduler {
+    // buckets live as long as the process, so consecutive syncs share the limit
+    private static final HashMap<String, TokenBucket> sTokenBuckets = new HashMap<>();
+
+    interface KeyRefresher {
+        ImportKeyResult refresh(ParcelableKeyRing keyRing);
+    }
+
+    private final int mParallelism;
+    private final long mLaneDelayMillis;
+    private final long mLaneJitterMillis;
+    private final TokenBucket mTokenBucket;
+    private final AtomicBoolean mCancelled;
+    private final Random mRandom = new Random();
+
+    /**
+     * @param laneDelayMillis  minimum time between two keys of the same lane
+     * @param laneJitterMillis maximum random time added to that
+     */
+    KeyRefreshScheduler(int parallelism, long laneDelayMillis, long laneJitterMillis,
+            TokenBucket tokenBucket, AtomicBoolean cancelled) {
+        mParallelism = parallelism;
+        mLaneDelayMillis = laneDelayMillis;
+        mLaneJitterMillis = laneJitterMillis;
+        mTokenBucket = tokenBucket;
+        mCancelled = cancelled;
+    }
+
+    static synchronized TokenBucket getTokenBucket(String keyserver, double keysPerSecond, int burst) {
+        TokenBucket tokenBucket = sTokenBuckets.get(keyserver);
+        if (tokenBucket == null) {
+            tokenBucket = new TokenBucket(keysPerSecond, burst);
+            sTokenBuckets.put(keyserver, tokenBucket);
+        }
+        return tokenBucket;
+    }
+
+    /**
+     * Refreshes the keys in the order of the passed list, and returns the consolidated result.
+     * If any refresh returns a pending result, e.g. because Orbot needs to be started, all lanes
+     * are stopped and that result is returned instead.
+     */
+    ImportKeyResult run(List<ParcelableKeyRing> keyList, final KeyRefresher refresher) {
+        final ConcurrentLinkedQueue<ParcelableKeyRing> queue = new ConcurrentLinkedQueue<>(keyList);
+        final KeyImportAccumulator accumulator = new KeyImportAccumulator(keyList.size(), null);
+        final AtomicReference<ImportKeyResult> pendingResult = new AtomicReference<>();
+
+        int lanes = Math.max(1, Math.min(mParallelism, keyList.size()));
+        final CountDownLatch lanesDone = new CountDownLatch(lanes);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(lanes, lanes, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        for (int i = 0; i < lanes; i++) {
+            // lanes start spread out over the delay, so their keys aren't fetched at the same time
+            final long startDelay = i * mLaneDelayMillis / lanes;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runLane(queue, refresher, accumulator, pendingResult, startDelay);
+                    } finally {
+                        lanesDone.countDown();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            lanesDone.await();
+        } catch (InterruptedException e) {
+            Timber.e(e, "Interrupted while waiting for key refresh");
+            mCancelled.set(true);
+        }
+
+        if (pendingResult.get() != null) {
+            return pendingResult.get();
+        }
+        if (mCancelled.get()) {
+            return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED, new OperationResult.OperationLog());
+        }
+        synchronized (accumulator) {
+            return accumulator.getConsolidatedResult();
+        }
+    }
+
+    private void runLane(ConcurrentLinkedQueue<ParcelableKeyRing> queue, KeyRefresher refresher,
+            KeyImportAccumulator accumulator, AtomicReference<ImportKeyResult> pendingResult, long startDelay) {
+        long waitTime = startDelay;
+        ParcelableKeyRing keyRing;
+        while ((keyRing = queue.poll()) != null) {
+            if (!sleepUnlessStopped(waitTime, pendingResult)) {
+                return;
+            }
+            try {
+                mTokenBucket.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (isStopped(pendingResult)) {
+                return;
+            }
+
+            ImportKeyResult result = refresher.refresh(keyRing);
+            if (result.isPending()) {
+                pendingResult.compareAndSet(null, result);
+                return;
+            }
+            synchronized (accumulator) {
+                accumulator.accumulateKeyImport(result);
+            }
+
+            waitTime = mLaneDelayMillis;
+            if (mLaneJitterMillis > 0) {
+                synchronized (mRandom) {
+                    waitTime += (long) (mRandom.nextDouble() * mLaneJitterMillis);
+                }
+            }
+        }
+    }
+
+    private boolean isStopped(AtomicReference<ImportKeyResult> pendingResult) {
+        return mCancelled.get() || pendingResult.get() != null;
+    }
+
+    /** Sleeps in short steps, so a cancelled sync doesn't have to wait for the whole delay. */
+    private boolean sleepUnlessStopped(long millis, AtomicReference<ImportKeyResult> pendingResult) {
+        long end = System.currentTimeMillis() + millis;
+        while (!isStopped(pendingResult)) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(Math.min(remaining, 1000));
+            } catch (InterruptedException e) {
+                Timber.e(e, "Exception during sleep between key updates");
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Orders keys by how urgently they should be refreshed: keys which expire soon or have
+     * recently expired first, since a new expiry date is likely published for them. Then keys
+     * which have never been refreshed, and finally the ones refreshed longest ago.
+     */
+    static void sortByPriority(List<RefreshCandidate> candidates, final long now, final long expiryWindow) {
+        Collections.sort(candidates, new Comparator<RefreshCandidate>() {
+            @Override
+            public int compare(RefreshCandidate lhs, RefreshCandidate rhs) {
+                boolean lhsExpiring = lhs.isExpiringAround(now, expiryWindow);
+                boolean rhsExpiring = rhs.isExpiringAround(now, expiryWindow);
+                if (lhsExpiring != rhsExpiring) {
+                    return lhsExpiring ? -1 : 1;
+                }
+                if (lhsExpiring) {
+                    return compareLong(lhs.mExpiry, rhs.mExpiry);
+                }
+                return compareLong(lhs.mLastUpdated, rhs.mLastUpdated);
+            }
+        });
+    }
+
+    static ArrayList<ParcelableKeyRing> toKeyList(List<RefreshCandidate> candidates) {
+        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>(candidates.size());
+        for (RefreshCandidate candidate : candidates) {
+            keyList.add(candidate.mKeyRing);
+        }
+        return keyList;
+    }
+
+    private static int compareLong(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+
+    static class RefreshCandidate {
+        final ParcelableKeyRing mKeyRing;
+        // in seconds, 0 if there is none
+        final long mExpiry;
+        // in seconds, 0 if never updated
+        final long mLastUpdated;
+
+        RefreshCandidate(ParcelableKeyRing keyRing, long expiry, long lastUpdated) {
+            mKeyRing = keyRing;
+            mExpiry = expiry;
+            mLastUpdated = lastUpdated;
+        }
+
+        boolean isExpiringAround(long now, long window) {
+            return mExpiry != 0 && Math.abs(mExpiry - now) <= window;
+        }
+    }
+
+    /** Hands out up to a burst of permits right away, and refills at a steady rate. */
+    static class TokenBucket {
+        private final double mPermitsPerMilli;
+        private final int mBurst;
+        private double mTokens;
+        private long mLastRefill;
+
+        TokenBucket(double permitsPerSecond, int burst) {
+            mPermitsPerMilli = permitsPerSecond / 1000;
+            mBurst = burst;
+            mTokens = burst;
+            mLastRefill = System.currentTimeMillis();
+        }
+
+        void acquire() throws InterruptedException {
+            long waitTime;
+            while ((waitTime = tryAcquire()) > 0) {
+                Thread.sleep(waitTime);
+            }
+        }
+
+        /** Takes a permit if one is available and returns 0, or the time until one is. */
+        synchronized long tryAcquire() {
+            long now = System.currentTimeMillis();
+            mTokens = Math.min(mBurst, mTokens + (now - mLastRefill) * mPermitsPerMilli);
+            mLastRefill = now;
+            if (mTokens >= 1) {
+                mTokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - mTokens) / mPermitsPerMilli));
+        }
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Messenger;
+import android.os.Process;
+import android.support.annotation.Nullable;
+
+import timber.log.Timber;
+
+
+/**
+ * Runs the operations of the {@link KeychainService} on bounded worker pools.
+ * <p>
+ * Interactive operations, which a user is waiting for, and background operations such as imports
+ * or backups have separate pools, so a long running backup never delays a decryption. Every
+ * operation gets its own cancellation token. A request which is identical to a background
+ * operation that is still queued or running is attached to that operation instead of running
+ * it twice, and receives the same progress and result.
+ */
+class KeychainOperationScheduler {
+    private static final int INTERACTIVE_THREADS = 2;
+    private static final int BACKGROUND_THREADS = 2;
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    enum Lane {
+        INTERACTIVE, BACKGROUND
+    }
+
+    interface OperationRunner {
+        void run(ScheduledOperation operation);
+    }
+
+    private final ThreadPoolExecutor mInteractiveExecutor;
+    private final ThreadPoolExecutor mBackgroundExecutor;
+    private final LaneMetrics mInteractiveMetrics = new LaneMetrics();
+    private final LaneMetrics mBackgroundMetrics = new LaneMetrics();
+
+    // guarded by this
+    private final HashMap<String, ScheduledOperation> mOperationsById = new HashMap<>();
+    private final HashMap<Object, ScheduledOperation> mOperationsByKey = new HashMap<>();
+    private final ArrayList<ScheduledOperation> mOperations = new ArrayList<>();
+
+    KeychainOperationScheduler() {
+        this(INTERACTIVE_THREADS, BACKGROUND_THREADS);
+    }
+
+    KeychainOperationScheduler(int interactiveThreads, int backgroundThreads) {
+        mInteractiveExecutor = createExecutor(interactiveThreads, "interactive",
+                Process.THREAD_PRIORITY_DEFAULT);
+        mBackgroundExecutor = createExecutor(backgroundThreads, "background",
+                Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, final String name, final int priority) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        runnable.run();
+                    }
+                }, "KeychainService-" + name + "-" + mThreadNumber.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Schedules an operation.
+     *
+     * @param operationId   identifies the request for {@link #cancel}, may be null
+     * @param coalescingKey requests of the background lane with equal keys are run only once,
+     *                      may be null if the request must not be coalesced
+     * @return the scheduled operation, which may be one that was scheduled before
+     */
+    synchronized ScheduledOperation submit(Lane lane, @Nullable String operationId, @Nullable Object coalescingKey,
+            @Nullable Messenger messenger, final OperationRunner runner) {
+        if (lane == Lane.BACKGROUND && coalescingKey != null) {
+            ScheduledOperation existing = mOperationsByKey.get(coalescingKey);
+            if (existing != null && existing.mCancelled.get()) {
+                // all of its requests were cancelled, it will only report that
+                mOperationsByKey.remove(coalescingKey);
+            } else if (existing != null) {
+                Timber.d("Attaching request to identical operation which is already scheduled");
+                existing.addRequest(operationId, messenger);
+                if (operationId != null) {
+                    mOperationsById.put(operationId, existing);
+                }
+                return existing;
+            }
+        }
+
+        final ScheduledOperation operation = new ScheduledOperation(lane, coalescingKey);
+        operation.addRequest(operationId, messenger);
+        mOperations.add(operation);
+        if (operationId != null) {
+            mOperationsById.put(operationId, operation);
+        }
+        if (lane == Lane.BACKGROUND && coalescingKey != null) {
+            mOperationsByKey.put(coalescingKey, operation);
+        }
+
+        final LaneMetrics metrics = getMetrics(lane);
+        getExecutor(lane).execute(new Runnable() {
+            @Override
+            public void run() {
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - operation.mSubmitTime);
+                metrics.addWaitTime(waitMillis);
+                Timber.d("Starting " + operation.mLane + " operation after " + waitMillis + "ms, "
+                        + getQueueDepth(operation.mLane) + " more queued");
+                try {
+                    runner.run(operation);
+                } finally {
+                    finish(operation);
+                }
+            }
+        });
+        return operation;
+    }
+
+    /**
+     * Cancels the request with the given id. An operation shared by several identical requests is
+     * only cancelled once all of them are.
+     *
+     * @return true if a request with this id was found
+     */
+    synchronized boolean cancel(String operationId) {
+        ScheduledOperation operation = mOperationsById.remove(operationId);
+        if (operation == null) {
+            return false;
+        }
+        operation.cancelRequest(operationId);
+        return true;
+    }
+
+    /** Cancels all queued and running operations. */
+    synchronized void cancelAll() {
+        for (ScheduledOperation operation : mOperations) {
+            operation.mCancelled.set(true);
+        }
+    }
+
+    int getQueueDepth(Lane lane) {
+        return getExecutor(lane).getQueue().size();
+    }
+
+    long getAverageWaitMillis(Lane lane) {
+        return getMetrics(lane).getAverageWaitMillis();
+    }
+
+    long getMaxWaitMillis(Lane lane) {
+        return getMetrics(lane).mMaxWaitMillis.get();
+    }
+
+    /**
+     * Stops attaching new requests to an operation. Must be called before the operation sends its
+     * final result, requests attached afterwards would never receive it.
+     */
+    synchronized void stopCoalescing(ScheduledOperation operation) {
+        if (operation.mCoalescingKey != null && mOperationsByKey.get(operation.mCoalescingKey) == operation) {
+            mOperationsByKey.remove(operation.mCoalescingKey);
+        }
+    }
+
+    private synchronized void finish(ScheduledOperation operation) {
+        mOperations.remove(operation);
+        stopCoalescing(operation);
+        for (String operationId : operation.getOperationIds()) {
+            if (mOperationsById.get(operationId) == operation) {
+                mOperationsById.remove(operationId);
+            }
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor(Lane lane) {
+        return lane == Lane.INTERACTIVE ? mInteractiveExecutor : mBackgroundExecutor;
+    }
+
+    private LaneMetrics getMetrics(Lane lane) {
+        return lane == Lane.INTERACTIVE ? mInteractiveMetrics : mBackgroundMetrics;
+    }
+
+    static class ScheduledOperation {
+        final Lane mLane;
+        final Object mCoalescingKey;
+        final AtomicBoolean mCancelled = new AtomicBoolean(false);
+        final long mSubmitTime = System.nanoTime();
+
+        // guarded by this
+        private final ArrayList<Messenger> mMessengers = new ArrayList<>();
+        private final ArrayList<String> mOperationIds = new ArrayList<>();
+        private int mActiveRequests;
+
+        ScheduledOperation(Lane lane, Object coalescingKey) {
+            mLane = lane;
+            mCoalescingKey = coalescingKey;
+        }
+
+        /** Returns the messengers of all requests this operation runs for. */
+        synchronized List<Messenger> getMessengers() {
+            return new ArrayList<>(mMessengers);
+        }
+
+        synchronized List<String> getOperationIds() {
+            return new ArrayList<>(mOperationIds);
+        }
+
+        private synchronized void addRequest(String operationId, Messenger messenger) {
+            if (messenger != null) {
+                mMessengers.add(messenger);
+            }
+            if (operationId != null) {
+                mOperationIds.add(operationId);
+            }
+            mActiveRequests += 1;
+        }
+
+        private synchronized void cancelRequest(String operationId) {
+            if (!mOperationIds.contains(operationId)) {
+                return;
+            }
+            // the messenger stays, the cancelled request still waits for a result
+            mActiveRequests -= 1;
+            if (mActiveRequests <= 0) {
+                mCancelled.set(true);
+            }
+        }
+    }
+
+    private static class LaneMetrics {
+        private final AtomicLong mOperationCount = new AtomicLong();
+        private final AtomicLong mTotalWaitMillis = new AtomicLong();
+        private final AtomicLong mMaxWaitMillis = new AtomicLong();
+
+        void addWaitTime(long waitMillis) {
+            mOperationCount.incrementAndGet();
+            mTotalWaitMillis.addAndGet(waitMillis);
+            long max;
+            while ((max = mMaxWaitMillis.get()) < waitMillis) {
+                if (mMaxWaitMillis.compareAndSet(max, waitMillis)) {
+                    break;
+                }
+            }
+        }
+
+        long getAverageWaitMillis() {
+            long count = mOperationCount.get();
+            return count == 0 ? 0 : mTotalWaitMillis.get() / count;
+        }
+    }
+
+}
@@ -18,6 +18,9 @@
 package org.sufficientlysecure.keychain.service;
 
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Service;
@@ -26,6 +29,7 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.RemoteException;
 
@@ -49,6 +53,9 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.KeychainOperationScheduler.Lane;
+import org.sufficientlysecure.keychain.service.KeychainOperationScheduler.OperationRunner;
+import org.sufficientlysecure.keychain.service.KeychainOperationScheduler.ScheduledOperation;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import timber.log.Timber;
@@ -57,6 +64,9 @@ import timber.log.Timber;
 /**
  * This Service contains all important long lasting operations for OpenKeychain. It receives Intents with
  * data from the activities or other apps, executes them, and stops itself after doing them.
+ * <p>
+ * Operations are run by a {@link KeychainOperationScheduler}, which keeps interactive operations
+ * apart from background ones such as imports and backups.
  */
 public class KeychainService extends Service implements Progressable {
 
@@ -66,13 +76,17 @@ public class KeychainService extends Service implements Progressable {
     // extras for operation
     public static final String EXTRA_OPERATION_INPUT = "op_input";
     public static final String EXTRA_CRYPTO_INPUT = "crypto_input";
+    // optional, identifies the operation for ACTION_CANCEL
+    public static final String EXTRA_OPERATION_ID = "operation_id";
 
+    // cancels the operation given by EXTRA_OPERATION_ID, or all operations if there is none
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
+    // operations outlive the service instance, so the scheduler is shared
+    private static final KeychainOperationScheduler sScheduler = new KeychainOperationScheduler();
 
-    ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
+    // the operation which is run on this particular thread
+    ThreadLocal<ScheduledOperation> mOperation = new ThreadLocal<>();
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -80,30 +94,38 @@ public class KeychainService extends Service implements Progressable {
     }
 
     /**
-     * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
+     * This is run on the main thread, the actual operation is scheduled to run on a worker thread
      */
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            String operationId = intent.getStringExtra(EXTRA_OPERATION_ID);
+            if (operationId != null) {
+                if (!sScheduler.cancel(operationId)) {
+                    Timber.d("Operation to cancel is already finished");
+                }
+            } else {
+                sScheduler.cancelAll();
+            }
             return START_NOT_STICKY;
         }
 
-        Runnable actionRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
-
-                Bundle extras = intent.getExtras();
+        Bundle extras = intent.getExtras();
+        final Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
+        final CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+        Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
+        String operationId = extras.getString(EXTRA_OPERATION_ID);
 
-                // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.getParcelable(EXTRA_MESSENGER));
+        Lane lane = getLane(inputParcel);
+        Object coalescingKey = lane == Lane.BACKGROUND ? getCoalescingKey(inputParcel, cryptoInput) : null;
 
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
-                CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+        OperationRunner operationRunner = new OperationRunner() {
+            @Override
+            public void run(ScheduledOperation operation) {
+                // Set operation for communication (for this particular thread)
+                mOperation.set(operation);
+                AtomicBoolean cancelled = operation.mCancelled;
 
                 // Operation
                 BaseOperation op;
@@ -113,27 +135,27 @@ public class KeychainService extends Service implements Progressable {
                 KeyWritableRepository databaseInteractor =
                         KeyWritableRepository.create(outerThis);
                 if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new SignEncryptOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
                     op = new PgpDecryptVerifyOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new EditKeyOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof  ChangeUnlockParcel) {
                     op = new ChangeUnlockOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof RevokeKeyringParcel) {
                     op = new RevokeOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new CertifyOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof DeleteKeyringParcel) {
                     op = new DeleteOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new ImportOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new BackupOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
+                    op = new UploadOperation(outerThis, databaseInteractor, outerThis, cancelled);
                 } else if (inputParcel instanceof KeybaseVerificationParcel) {
                     op = new KeybaseVerificationOperation(outerThis, databaseInteractor, outerThis);
                 } else if (inputParcel instanceof InputDataParcel) {
@@ -144,19 +166,67 @@ public class KeychainService extends Service implements Progressable {
                     throw new AssertionError("Unrecognized input parcel in KeychainService!");
                 }
 
-                @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
-                sendMessageToHandler(MessageStatus.OKAY, result);
+                try {
+                    @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
+                    OperationResult result = op.execute(inputParcel, cryptoInput);
+                    // a request attached after this point would never see the result
+                    sScheduler.stopCoalescing(operation);
+                    sendMessageToHandler(MessageStatus.OKAY, result);
+                } finally {
+                    mOperation.remove();
+                }
 
             }
         };
 
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+        sScheduler.submit(lane, operationId, coalescingKey, messenger, operationRunner);
 
         return START_NOT_STICKY;
     }
 
+    /** Operations which a user usually waits for are interactive, everything else runs in the background. */
+    private static Lane getLane(Parcelable inputParcel) {
+        if (inputParcel instanceof ImportKeyringParcel
+                || inputParcel instanceof BackupKeyringParcel
+                || inputParcel instanceof UploadKeyringParcel
+                || inputParcel instanceof BenchmarkInputParcel) {
+            return Lane.BACKGROUND;
+        }
+        return Lane.INTERACTIVE;
+    }
+
+    /**
+     * Returns a key which is equal for identical requests, or null if the request must not be
+     * coalesced with others. Requests carrying user input, such as a passphrase, are never coalesced.
+     * Neither are requests whose input is not part of the parcel, since equal parcels don't mean
+     * equal requests then.
+     */
+    private static Object getCoalescingKey(Parcelable inputParcel, CryptoInputParcel cryptoInput) {
+        if (cryptoInput != null
+                && (cryptoInput.getPassphrase() != null || !cryptoInput.getCryptoData().isEmpty())) {
+            return null;
+        }
+        // without a key list, the keys are read from the ParcelableFileCache, which is shared
+        if (inputParcel instanceof ImportKeyringParcel && ((ImportKeyringParcel) inputParcel).getKeyList() == null) {
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(inputParcel, 0);
+            // the signature time differs between requests, but the proxy must match
+            parcel.writeParcelable(cryptoInput != null ? cryptoInput.getParcelableProxy() : null, 0);
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(parcel.marshall()));
+        } catch (RuntimeException e) {
+            // parcels with file descriptors can't be marshalled, these are not coalesced
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
 
         Message msg = Message.obtain();
@@ -169,13 +239,21 @@ public class KeychainService extends Service implements Progressable {
             msg.setData(data);
         }
 
-        try {
-            mMessenger.get().send(msg);
-        } catch (RemoteException e) {
-            Timber.w(e, "Exception sending message, Is handler present?");
-        } catch (NullPointerException e) {
-            Timber.w(e, "Messenger is null!");
+        ScheduledOperation operation = mOperation.get();
+        if (operation == null) {
+            Timber.w("No operation running on this thread!");
+            return;
+        }
+
+        for (Messenger messenger : operation.getMessengers()) {
+            try {
+                // each messenger needs its own message, a sent message is recycled by its handler
+                messenger.send(Message.obtain(msg));
+            } catch (RemoteException e) {
+                Timber.w(e, "Exception sending message, Is handler present?");
+            }
         }
+        msg.recycle();
     }
 
     private void sendMessageToHandler(MessageStatus status, OperationResult data) {
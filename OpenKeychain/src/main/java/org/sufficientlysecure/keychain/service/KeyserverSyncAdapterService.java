@@ -20,7 +20,7 @@ package org.sufficientlysecure.keychain.service;
 
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
-import java.util.Random;
+import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -55,6 +55,7 @@ import android.support.v4.app.NotificationCompat;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.keyimport.HkpKeyserverAddress;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.network.NetworkReceiver;
 import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
@@ -86,6 +87,15 @@ public class KeyserverSyncAdapterService extends Service {
     // Time taken by Orbot before a new circuit is created
     public static final int ORBOT_CIRCUIT_TIMEOUT_SECONDS =
             Constants.DEBUG_KEYSERVER_SYNC ? 2 : (int) TimeUnit.MINUTES.toSeconds(10);
+    // keys which expire or have expired within this time are refreshed first, in s
+    private static final long KEY_EXPIRY_PRIORITY_WINDOW = TimeUnit.DAYS.toSeconds(30);
+    // number of keys refreshed at the same time without Tor
+    private static final int DIRECT_PARALLELISM = 4;
+    // lanes over Tor share Orbot's circuits, so more than one would link the refreshed keys
+    private static final int TOR_PARALLELISM = 1;
+    // rate limit for requests to a single keyserver
+    private static final double KEYSERVER_KEYS_PER_SECOND = 2;
+    private static final int KEYSERVER_BURST = 8;
 
 
     private static final String ACTION_IGNORE_TOR = "ignore_tor";
@@ -339,13 +349,10 @@ public class KeyserverSyncAdapterService extends Service {
     private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
                                          CryptoInputParcel cryptoInputParcel) {
         Timber.d("Starting normal update");
-        ImportOperation importOp = new ImportOperation(context,
-                KeyWritableRepository.create(context), null);
-        return importOp.execute(
-                ImportKeyringParcel.createImportKeyringParcel(keyList,
-                        Preferences.getPreferences(context).getPreferredKeyserver()),
-                cryptoInputParcel
-        );
+        HkpKeyserverAddress keyserver = Preferences.getPreferences(context).getPreferredKeyserver();
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler(DIRECT_PARALLELISM, 0, 0,
+                getTokenBucket(keyserver), mCancelled);
+        return scheduler.run(keyList, createKeyRefresher(context, keyserver, cryptoInputParcel));
     }
 
     /**
@@ -358,75 +365,45 @@ public class KeyserverSyncAdapterService extends Service {
     private ImportKeyResult staggeredUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
                                             CryptoInputParcel cryptoInputParcel) {
         Timber.d("Starting staggered update");
-        // final int WEEK_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(7);
-        // we are limiting our randomness to ORBOT_CIRCUIT_TIMEOUT_SECONDS for now
-        final int WEEK_IN_SECONDS = 0;
-
-        ImportOperation.KeyImportAccumulator accumulator
-                = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
-
-        // so that the first key can be updated without waiting. This is so that there isn't a
-        // large gap between a "Start Orbot" notification and the next key update
-        boolean first = true;
-
-        for (ParcelableKeyRing keyRing : keyList) {
-            int waitTime;
-            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
-            if (staggeredTime >= ORBOT_CIRCUIT_TIMEOUT_SECONDS) {
-                waitTime = staggeredTime;
-            } else {
-                waitTime = ORBOT_CIRCUIT_TIMEOUT_SECONDS
-                        + new Random().nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
-            }
+        HkpKeyserverAddress keyserver = Preferences.getPreferences(context).getPreferredKeyserver();
+        // the first key is updated without waiting. This is so that there isn't a large gap
+        // between a "Start Orbot" notification and the next key update
+        long circuitTimeout = TimeUnit.SECONDS.toMillis(ORBOT_CIRCUIT_TIMEOUT_SECONDS);
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler(TOR_PARALLELISM,
+                circuitTimeout, circuitTimeout, getTokenBucket(keyserver), mCancelled);
+        return scheduler.run(keyList, createKeyRefresher(context, keyserver, cryptoInputParcel));
+    }
 
-            if (first) {
-                waitTime = 0;
-                first = false;
+    private KeyRefreshScheduler.KeyRefresher createKeyRefresher(final Context context,
+            final HkpKeyserverAddress keyserver, final CryptoInputParcel cryptoInputParcel) {
+        return new KeyRefreshScheduler.KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                ArrayList<ParcelableKeyRing> keyWrapper = new ArrayList<>();
+                keyWrapper.add(keyRing);
+                return new ImportOperation(context, KeyWritableRepository.create(context), null, mCancelled)
+                        .execute(ImportKeyringParcel.createImportKeyringParcel(keyWrapper, keyserver),
+                                cryptoInputParcel);
             }
+        };
+    }
 
-            Timber.d("Updating key with a wait time of " + waitTime + "s");
-            try {
-                Thread.sleep(waitTime * 1000);
-            } catch (InterruptedException e) {
-                Timber.e(e, "Exception during sleep between key updates");
-                // skip this one
-                continue;
-            }
-            ArrayList<ParcelableKeyRing> keyWrapper = new ArrayList<>();
-            keyWrapper.add(keyRing);
-            if (isUpdateCancelled()) {
-                return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
-                        new OperationResult.OperationLog());
-            }
-            ImportKeyResult result =
-                    new ImportOperation(context, KeyWritableRepository.create(context), null, mCancelled)
-                            .execute(
-                                    ImportKeyringParcel.createImportKeyringParcel(
-                                            keyWrapper,
-                                            Preferences.getPreferences(context)
-                                                    .getPreferredKeyserver()
-                                    ),
-                                    cryptoInputParcel
-                            );
-            if (result.isPending()) {
-                return result;
-            }
-            accumulator.accumulateKeyImport(result);
-        }
-        return accumulator.getConsolidatedResult();
+    private static KeyRefreshScheduler.TokenBucket getTokenBucket(HkpKeyserverAddress keyserver) {
+        String keyserverUrl = keyserver == null ? "" : keyserver.getUrl();
+        return KeyRefreshScheduler.getTokenBucket(keyserverUrl, KEYSERVER_KEYS_PER_SECOND, KEYSERVER_BURST);
     }
 
     /**
-     * 1. Get keys which have been updated recently and therefore do not need to
-     * be updated now
+     * 1. Get last update times of all keys, to filter out the ones which have been updated
+     * recently and therefore do not need to be updated now
      * 2. Get list of all keys and filter out ones that don't need to be updated
-     * 3. Return keys to be updated
+     * 3. Return keys to be updated, most urgent ones first
      *
      * @return list of keys that require update
      */
     private ArrayList<ParcelableKeyRing> getKeysToUpdate(Context context) {
 
-        // 1. Get keys which have been updated recently and don't need to updated now
+        // 1. Get last update times
         final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
         final int INDEX_LAST_UPDATED = 1;
 
@@ -438,17 +415,15 @@ public class KeyserverSyncAdapterService extends Service {
                         KeychainContract.UpdatedKeys.MASTER_KEY_ID,
                         KeychainContract.UpdatedKeys.LAST_UPDATED
                 },
-                "? - " + KeychainContract.UpdatedKeys.LAST_UPDATED + " < " + KEY_UPDATE_LIMIT,
-                new String[]{"" + CURRENT_TIME},
+                null,
+                null,
                 null
         );
 
-        ArrayList<Long> ignoreMasterKeyIds = new ArrayList<>();
+        HashMap<Long, Long> lastUpdatedTimes = new HashMap<>();
         while (updatedKeysCursor != null && updatedKeysCursor.moveToNext()) {
-            long masterKeyId = updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID);
-            Timber.d("Keyserver sync: Ignoring {" + masterKeyId + "} last updated at {"
-                    + updatedKeysCursor.getLong(INDEX_LAST_UPDATED) + "}s");
-            ignoreMasterKeyIds.add(masterKeyId);
+            lastUpdatedTimes.put(updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID),
+                    updatedKeysCursor.getLong(INDEX_LAST_UPDATED));
         }
         if (updatedKeysCursor != null) {
             updatedKeysCursor.close();
@@ -457,11 +432,13 @@ public class KeyserverSyncAdapterService extends Service {
         // 2. Make a list of public keys which should be updated
         final int INDEX_MASTER_KEY_ID = 0;
         final int INDEX_FINGERPRINT = 1;
+        final int INDEX_EXPIRY = 2;
         Cursor keyCursor = context.getContentResolver().query(
                 KeychainContract.KeyRings.buildUnifiedKeyRingsUri(),
                 new String[]{
                         KeychainContract.KeyRings.MASTER_KEY_ID,
-                        KeychainContract.KeyRings.FINGERPRINT
+                        KeychainContract.KeyRings.FINGERPRINT,
+                        KeychainContract.KeyRings.EXPIRY
                 },
                 null,
                 null,
@@ -472,21 +449,28 @@ public class KeyserverSyncAdapterService extends Service {
             return new ArrayList<>();
         }
 
-        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        ArrayList<KeyRefreshScheduler.RefreshCandidate> candidates = new ArrayList<>();
         while (keyCursor.moveToNext()) {
             long keyId = keyCursor.getLong(INDEX_MASTER_KEY_ID);
-            if (ignoreMasterKeyIds.contains(keyId)) {
+            Long lastUpdated = lastUpdatedTimes.get(keyId);
+            if (lastUpdated != null && CURRENT_TIME - lastUpdated < KEY_UPDATE_LIMIT) {
+                Timber.d("Keyserver sync: Ignoring {" + keyId + "} last updated at {" + lastUpdated + "}s");
                 continue;
             }
             Timber.d("Keyserver sync: Updating {" + keyId + "}");
             byte[] fingerprint = keyCursor.getBlob(INDEX_FINGERPRINT);
             String hexKeyId = KeyFormattingUtils.convertKeyIdToHex(keyId);
+            long expiry = keyCursor.isNull(INDEX_EXPIRY) ? 0 : keyCursor.getLong(INDEX_EXPIRY);
             // we aren't updating from keybase as of now
-            keyList.add(ParcelableKeyRing.createFromReference(fingerprint, hexKeyId, null, null));
+            candidates.add(new KeyRefreshScheduler.RefreshCandidate(
+                    ParcelableKeyRing.createFromReference(fingerprint, hexKeyId, null, null),
+                    expiry, lastUpdated == null ? 0 : lastUpdated));
         }
         keyCursor.close();
 
-        return keyList;
+        // 3. Most urgent keys first, so they are refreshed even if the sync is interrupted
+        KeyRefreshScheduler.sortByPriority(candidates, CURRENT_TIME, KEY_EXPIRY_PRIORITY_WINDOW);
+        return KeyRefreshScheduler.toKeyList(candidates);
     }
 
     private boolean isUpdateCancelled() {
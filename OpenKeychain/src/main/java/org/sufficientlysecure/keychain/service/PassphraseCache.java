@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.support.annotation.Nullable;
+
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * In-memory store of the {@link PassphraseCacheService}.
+ * <p>
+ * Passphrases are kept in a concurrent map, so lookups never block. Passphrases with a time to
+ * live are additionally scheduled on a {@link TimerWheel}, which removes them from memory once
+ * they expire. Since the wheel is only advanced when the next deadline is due, a lookup also
+ * checks the deadline itself, and never returns a passphrase after it expired.
+ * <p>
+ * All times are in milliseconds of the same monotonic clock, which is passed in by the caller.
+ */
+class PassphraseCache {
+    static final long TICK_MILLIS = 1000L;
+    private static final int WHEEL_BUCKETS = 512;
+
+    enum TimeoutMode {
+        NEVER, TTL, LOCK
+    }
+
+    private final ConcurrentHashMap<Long, CachedPassphrase> mPassphrases = new ConcurrentHashMap<>();
+    private final TimerWheel<CachedPassphrase> mTimerWheel = new TimerWheel<>(TICK_MILLIS, WHEEL_BUCKETS);
+
+    private final TimerWheel.ExpiryListener<CachedPassphrase> mExpiryListener =
+            new TimerWheel.ExpiryListener<CachedPassphrase>() {
+                @Override
+                public void onExpired(CachedPassphrase cachedPassphrase) {
+                    remove(cachedPassphrase);
+                }
+            };
+
+    /**
+     * Caches a passphrase.
+     *
+     * @param timeToLiveSeconds 0 to keep the passphrase until the screen is locked,
+     *                          Integer.MAX_VALUE or more to keep it until it is cleared
+     */
+    void put(long referenceKeyId, Passphrase passphrase, String primaryUserId, long timeToLiveSeconds,
+            long now) {
+        CachedPassphrase cachedPassphrase;
+        if (timeToLiveSeconds == 0L) {
+            cachedPassphrase = new CachedPassphrase(referenceKeyId, passphrase, primaryUserId,
+                    TimeoutMode.LOCK, 0L);
+        } else if (timeToLiveSeconds >= Integer.MAX_VALUE) {
+            cachedPassphrase = new CachedPassphrase(referenceKeyId, passphrase, primaryUserId,
+                    TimeoutMode.NEVER, 0L);
+        } else {
+            cachedPassphrase = new CachedPassphrase(referenceKeyId, passphrase, primaryUserId,
+                    TimeoutMode.TTL, now + timeToLiveSeconds * 1000L);
+            mTimerWheel.schedule(cachedPassphrase, cachedPassphrase.mTimeoutTime);
+        }
+
+        // the replaced passphrase may still be in use by the caller, so it is not wiped here.
+        // its pending timeout is ignored once it expires.
+        mPassphrases.put(referenceKeyId, cachedPassphrase);
+    }
+
+    /**
+     * Returns a copy of the cached passphrase, or null if there is none or it has expired. The
+     * copy is owned by the caller, and not affected when the cached passphrase is wiped.
+     */
+    @Nullable
+    Passphrase get(long referenceKeyId, long now) {
+        CachedPassphrase cachedPassphrase = mPassphrases.get(referenceKeyId);
+        if (cachedPassphrase == null) {
+            return null;
+        }
+        if (cachedPassphrase.isExpired(now)) {
+            remove(cachedPassphrase);
+            return null;
+        }
+        return cachedPassphrase.mPassphrase != null ? cachedPassphrase.mPassphrase.copy() : null;
+    }
+
+    void remove(long referenceKeyId) {
+        CachedPassphrase cachedPassphrase = mPassphrases.remove(referenceKeyId);
+        if (cachedPassphrase != null) {
+            cachedPassphrase.removeFromMemory();
+        }
+    }
+
+    void clear() {
+        mTimerWheel.clear();
+        for (Long referenceKeyId : mPassphrases.keySet()) {
+            remove(referenceKeyId);
+        }
+    }
+
+    /** Removes all passphrases which are cached until the screen is locked. */
+    void removeScreenLockPassphrases() {
+        for (CachedPassphrase cachedPassphrase : mPassphrases.values()) {
+            if (cachedPassphrase.mTimeoutMode == TimeoutMode.LOCK) {
+                remove(cachedPassphrase);
+            }
+        }
+    }
+
+    /**
+     * Removes all passphrases which expired at the given time.
+     *
+     * @return the number of expired timeouts, including those of passphrases that were replaced
+     * or removed in the meantime
+     */
+    int expire(long now) {
+        return mTimerWheel.advance(now, mExpiryListener);
+    }
+
+    /** Returns true if the timer wheel has timeouts which have not expired yet. */
+    boolean hasPendingTimeouts() {
+        return mTimerWheel.getPendingCount() > 0;
+    }
+
+    /**
+     * Returns the earliest time at which {@link #expire} removes a cached passphrase, or -1 if none
+     * has a time to live.
+     */
+    long getNextExpiryTime() {
+        long nextExpiryTime = -1;
+        for (CachedPassphrase cachedPassphrase : mPassphrases.values()) {
+            if (cachedPassphrase.mTimeoutMode != TimeoutMode.TTL) {
+                continue;
+            }
+            if (nextExpiryTime < 0 || cachedPassphrase.mTimeoutTime < nextExpiryTime) {
+                nextExpiryTime = cachedPassphrase.mTimeoutTime;
+            }
+        }
+        if (nextExpiryTime < 0) {
+            return -1;
+        }
+        // the wheel hands out timeouts at the first tick boundary after their deadline
+        return (nextExpiryTime + TICK_MILLIS - 1) / TICK_MILLIS * TICK_MILLIS;
+    }
+
+    int size() {
+        return mPassphrases.size();
+    }
+
+    List<String> getPrimaryUserIds() {
+        ArrayList<String> primaryUserIds = new ArrayList<>(mPassphrases.size());
+        for (CachedPassphrase cachedPassphrase : mPassphrases.values()) {
+            primaryUserIds.add(cachedPassphrase.mPrimaryUserId);
+        }
+        return primaryUserIds;
+    }
+
+    /** Removes this exact entry, unless it was replaced by a newer passphrase in the meantime. */
+    private void remove(CachedPassphrase cachedPassphrase) {
+        if (mPassphrases.remove(cachedPassphrase.mReferenceKeyId, cachedPassphrase)) {
+            cachedPassphrase.removeFromMemory();
+        }
+    }
+
+    private static class CachedPassphrase {
+        final long mReferenceKeyId;
+        final Passphrase mPassphrase;
+        final String mPrimaryUserId;
+        final TimeoutMode mTimeoutMode;
+        final long mTimeoutTime;
+
+        CachedPassphrase(long referenceKeyId, Passphrase passphrase, String primaryUserId,
+                TimeoutMode timeoutMode, long timeoutTime) {
+            mReferenceKeyId = referenceKeyId;
+            mPassphrase = passphrase;
+            mPrimaryUserId = primaryUserId;
+            mTimeoutMode = timeoutMode;
+            mTimeoutTime = timeoutTime;
+        }
+
+        boolean isExpired(long now) {
+            return mTimeoutMode == TimeoutMode.TTL && now >= mTimeoutTime;
+        }
+
+        void removeFromMemory() {
+            if (mPassphrase != null) {
+                // clean internal char[] from memory!
+                mPassphrase.removeFromMemory();
+            }
+        }
+    }
+}
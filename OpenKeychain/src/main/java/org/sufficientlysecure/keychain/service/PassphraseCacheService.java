@@ -23,30 +23,37 @@ import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.NotificationCompat;
-import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.Preferences;
 import timber.log.Timber;
 
-import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service runs in its own process, but is available to all other processes as the main
@@ -73,6 +80,17 @@ import java.util.Date;
  * rare occurrence, and caching by keyring is what the user expects in the vast majority of
  * cases, this is not the default behavior.
  *
+ * Passphrases are held in a {@link PassphraseCache}, which organizes their timeouts on a timer
+ * wheel. This service only advances the wheel when the next passphrase is due, with a single
+ * delayed message while awake and a single alarm which wakes the device for it, so passphrases
+ * are also removed while it sleeps.
+ *
+ * Callers in other processes bind to the service without creating it. While it runs, they look up
+ * passphrases with a single synchronous binder call, and only fall back to an intent if it doesn't.
+ *
+ * Whenever passphrases are dropped, the {@link SessionKeyCache} of every process is wiped as well,
+ * so messages can't be opened again with the session keys they left behind.
+ *
  */
 public class PassphraseCacheService extends Service {
 
@@ -98,9 +116,29 @@ public class PassphraseCacheService extends Service {
     private static final int MSG_PASSPHRASE_CACHE_GET_OKAY = 1;
     private static final int MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND = 2;
 
+    // replies to getCachedPassphrase from other processes are all received on this thread
+    private static HandlerThread sReplyThread;
+    // bound without BIND_AUTO_CREATE, the binder is only set while the service runs
+    private static ServiceConnection sServiceConnection;
+    private static volatile IBinder sServiceBinder;
+
+    private static final int TRANSACTION_GET_PASSPHRASE = IBinder.FIRST_CALL_TRANSACTION;
+
     private BroadcastReceiver mIntentReceiver;
 
-    private LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+    private final PassphraseCache mPassphraseCache = new PassphraseCache();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mExpiryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExpiryMessageTime = -1;
+            expirePassphrases();
+        }
+    };
+    private long mExpiryMessageTime = -1;
+    private long mExpiryAlarmTime = -1;
+    private volatile boolean mDestroyed;
 
     Context mContext;
 
@@ -158,8 +196,9 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from memory. If the service is running and bound, the passphrase
+     * is looked up with a binder call. Otherwise, an intent is sent to the service, and this
+     * method waits until the service returns the passphrase.
      *
      * @return passphrase or null (if no passphrase is cached for this keyId)
      */
@@ -167,25 +206,29 @@ public class PassphraseCacheService extends Service {
         Timber.d("PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        bindRunningService(context);
+        IBinder serviceBinder = sServiceBinder;
+        if (serviceBinder != null) {
+            try {
+                return getCachedPassphrase(serviceBinder, masterKeyId, subKeyId);
+            } catch (RemoteException e) {
+                Timber.d("Bound PassphraseCacheService unavailable, falling back to intent");
+            }
+        }
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
-        final Object mutex = new Object();
+        final CountDownLatch replyLatch = new CountDownLatch(1);
         final Message returnMessage = Message.obtain();
 
-        HandlerThread handlerThread = new HandlerThread("getPassphraseThread");
-        handlerThread.start();
-        Handler returnHandler = new Handler(handlerThread.getLooper()) {
+        Handler returnHandler = new Handler(getReplyLooper()) {
             @Override
             public void handleMessage(Message message) {
-                // copy over result to handle after mutex.wait
+                // copy over result to handle after replyLatch.await
                 returnMessage.what = message.what;
                 returnMessage.copyFrom(message);
-                synchronized (mutex) {
-                    mutex.notify();
-                }
-                // quit handlerThread
-                getLooper().quit();
+                replyLatch.countDown();
             }
         };
 
@@ -197,15 +240,11 @@ public class PassphraseCacheService extends Service {
         // send intent to this service
         context.startService(intent);
 
-        // Wait on mutex until passphrase is returned to handlerThread. Note that this local
-        // variable is used in the handler closure above, so it does make sense here!
-        // noinspection SynchronizationOnLocalVariableOrMethodParameter
-        synchronized (mutex) {
-            try {
-                mutex.wait(3000);
-            } catch (InterruptedException e) {
-                // don't care
-            }
+        // Wait until passphrase is returned to the reply thread
+        try {
+            replyLatch.await(3000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // don't care
         }
 
         switch (returnMessage.what) {
@@ -221,6 +260,81 @@ public class PassphraseCacheService extends Service {
         }
     }
 
+    /**
+     * Gets a cached passphrase from the binder returned by {@link #onBind}.
+     *
+     * @throws RemoteException if the service is gone, or was destroyed in the meantime
+     */
+    @VisibleForTesting
+    static Passphrase getCachedPassphrase(IBinder serviceBinder, long masterKeyId, long subKeyId)
+            throws RemoteException, KeyNotFoundException {
+        Parcel data = Parcel.obtain();
+        Parcel reply = Parcel.obtain();
+        try {
+            data.writeLong(masterKeyId);
+            data.writeLong(subKeyId);
+            if (!serviceBinder.transact(TRANSACTION_GET_PASSPHRASE, data, reply, 0)) {
+                throw new RemoteException();
+            }
+            if (reply.readInt() != MSG_PASSPHRASE_CACHE_GET_OKAY) {
+                throw new KeyNotFoundException();
+            }
+            return reply.readParcelable(Passphrase.class.getClassLoader());
+        } finally {
+            data.recycle();
+            reply.recycle();
+        }
+    }
+
+    /**
+     * Binds to the service once per process, without creating it. The connection comes up
+     * whenever the service is started, and goes down when it stops.
+     */
+    private static synchronized void bindRunningService(Context context) {
+        if (sServiceConnection != null) {
+            return;
+        }
+        sServiceConnection = new ServiceConnection() {
+            @Override
+            public void onServiceConnected(ComponentName name, IBinder service) {
+                sServiceBinder = service;
+            }
+
+            @Override
+            public void onServiceDisconnected(ComponentName name) {
+                sServiceBinder = null;
+            }
+        };
+        Context appContext = context.getApplicationContext();
+        appContext.bindService(new Intent(appContext, PassphraseCacheService.class), sServiceConnection, 0);
+    }
+
+    private static synchronized Looper getReplyLooper() {
+        if (sReplyThread == null) {
+            sReplyThread = new HandlerThread("getPassphraseThread");
+            sReplyThread.start();
+        }
+        return sReplyThread.getLooper();
+    }
+
+    /**
+     * Gets a cached passphrase, for both intents and binder calls.
+     */
+    private Passphrase getCachedPassphraseChecked(long masterKeyId, long subKeyId) throws KeyNotFoundException {
+        // If only one of these is symmetric, error out!
+        if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
+            Timber.e("PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
+            throw new KeyNotFoundException();
+        }
+
+        try {
+            return getCachedPassphraseImpl(masterKeyId, subKeyId);
+        } catch (KeyRepository.NotFoundException e) {
+            Timber.e("PassphraseCacheService: Passphrase for unknown key was requested!");
+            throw new KeyNotFoundException();
+        }
+    }
+
     /**
      * Internal implementation to get cached passphrase.
      */
@@ -230,14 +344,12 @@ public class PassphraseCacheService extends Service {
             return null;
         }
 
+        long now = SystemClock.elapsedRealtime();
+
         // passphrase for symmetric encryption?
         if (masterKeyId == Constants.key.symmetric) {
             Timber.d("PassphraseCacheService.getCachedPassphraseImpl() for symmetric encryption");
-            CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
-            if (cachedPassphrase == null) {
-                return null;
-            }
-            return cachedPassphrase.mPassphrase;
+            return mPassphraseCache.get(Constants.key.symmetric, now);
         }
 
         // try to get master key id which is used as an identifier for cached passphrases
@@ -258,8 +370,8 @@ public class PassphraseCacheService extends Service {
         }
 
         // get cached passphrase
-        CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
-        if (cachedPassphrase == null) {
+        Passphrase passphrase = mPassphraseCache.get(subKeyId, now);
+        if (passphrase == null) {
 
             // If we cache strictly by subkey, exit early
             if (Preferences.getPreferences(mContext).getPassphraseCacheSubs()) {
@@ -274,9 +386,9 @@ public class PassphraseCacheService extends Service {
                 return null;
             }
 
-            cachedPassphrase = mPassphraseCache.get(masterKeyId);
+            passphrase = mPassphraseCache.get(masterKeyId, now);
             // If we cache strictly by subkey, exit early
-            if (cachedPassphrase == null) {
+            if (passphrase == null) {
                 Timber.d("PassphraseCacheService: keyring passphrase not (yet) cached, returning null");
                 // not really an error, just means the passphrase is not cached but not empty either
                 return null;
@@ -284,13 +396,13 @@ public class PassphraseCacheService extends Service {
 
         }
 
-        return cachedPassphrase.mPassphrase;
+        return passphrase;
     }
 
     /**
      * Register BroadcastReceiver that is unregistered when service is destroyed. This
      * BroadcastReceiver hears on intents with ACTION_PASSPHRASE_CACHE_SERVICE to then timeout
-     * specific passphrases in memory.
+     * passphrases in memory.
      */
     private void registerReceiver() {
         if (mIntentReceiver == null) {
@@ -302,8 +414,7 @@ public class PassphraseCacheService extends Service {
                     Timber.d("PassphraseCacheService: Received broadcast...");
 
                     if (action.equals(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE)) {
-                        long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
-                        removeTimeoutedPassphrase(keyId);
+                        expirePassphrases();
                     }
 
                     if (action.equals(Intent.ACTION_SCREEN_OFF)) {
@@ -320,14 +431,11 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Build pending intent that is executed by alarm manager to time out a specific passphrase
+     * Build pending intent that is executed by alarm manager to time out passphrases
      */
-    private static PendingIntent buildIntent(Context context, long referenceKeyId) {
+    private static PendingIntent buildExpiryIntent(Context context) {
         Intent intent = new Intent(BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
-        intent.putExtra(EXTRA_KEY_ID, referenceKeyId);
-        // request code should be unique for each PendingIntent, thus keyId is used
-        return PendingIntent.getBroadcast(context, (int) referenceKeyId, intent,
-                PendingIntent.FLAG_CANCEL_CURRENT);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     /**
@@ -362,21 +470,9 @@ public class PassphraseCacheService extends Service {
                 long referenceKeyId =
                         Preferences.getPreferences(mContext).getPassphraseCacheSubs() ? subKeyId : masterKeyId;
 
-                CachedPassphrase cachedPassphrase;
-                if (timeoutTtl == 0L) {
-                    cachedPassphrase = CachedPassphrase.getPassphraseLock(passphrase, primaryUserID);
-                } else if (timeoutTtl >= Integer.MAX_VALUE) {
-                    cachedPassphrase = CachedPassphrase.getPassphraseNoTimeout(passphrase, primaryUserID);
-                } else {
-                    cachedPassphrase = CachedPassphrase.getPassphraseTtlTimeout(passphrase, primaryUserID, timeoutTtl);
-
-                    long triggerTime = new Date().getTime() + (timeoutTtl * 1000);
-                    // register new alarm with keyId for this passphrase
-                    AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                    am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, referenceKeyId));
-                }
-
-                mPassphraseCache.put(referenceKeyId, cachedPassphrase);
+                mPassphraseCache.put(referenceKeyId, passphrase, primaryUserID, timeoutTtl,
+                        SystemClock.elapsedRealtime());
+                scheduleExpiry();
 
                 break;
             }
@@ -387,19 +483,12 @@ public class PassphraseCacheService extends Service {
 
                 Message msg = Message.obtain();
                 try {
-                    // If only one of these is symmetric, error out!
-                    if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
-                        Timber.e("PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
-                    } else {
-                        Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
-                        msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
-                        Bundle bundle = new Bundle();
-                        bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
-                        msg.setData(bundle);
-                    }
-                } catch (KeyRepository.NotFoundException e) {
-                    Timber.e("PassphraseCacheService: Passphrase for unknown key was requested!");
+                    Passphrase passphrase = getCachedPassphraseChecked(masterKeyId, subKeyId);
+                    msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
+                    Bundle bundle = new Bundle();
+                    bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
+                    msg.setData(bundle);
+                } catch (KeyNotFoundException e) {
                     msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                 }
 
@@ -411,8 +500,6 @@ public class PassphraseCacheService extends Service {
                 break;
             }
             case ACTION_PASSPHRASE_CACHE_CLEAR: {
-                AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-
                 if (intent.hasExtra(EXTRA_SUBKEY_ID) && intent.hasExtra(EXTRA_KEY_ID)) {
 
                     long referenceKeyId;
@@ -421,22 +508,15 @@ public class PassphraseCacheService extends Service {
                     } else {
                         referenceKeyId = intent.getLongExtra(EXTRA_KEY_ID, 0L);
                     }
-                    // Stop specific ttl alarm and
-                    am.cancel(buildIntent(this, referenceKeyId));
-                    mPassphraseCache.delete(referenceKeyId);
+                    mPassphraseCache.remove(referenceKeyId);
 
                 } else {
 
-                    // Stop all ttl alarms
-                    for (int i = 0; i < mPassphraseCache.size(); i++) {
-                        CachedPassphrase cachedPassphrase = mPassphraseCache.valueAt(i);
-                        if (cachedPassphrase.mTimeoutMode == TimeoutMode.TTL) {
-                            am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
-                        }
-                    }
                     mPassphraseCache.clear();
 
                 }
+                SessionKeyCache.clearAll(mContext);
+                scheduleExpiry();
                 break;
             }
             default: {
@@ -450,36 +530,47 @@ public class PassphraseCacheService extends Service {
         return START_STICKY;
     }
 
-    /** Called when one specific passphrase for keyId timed out. */
-    private void removeTimeoutedPassphrase(long keyId) {
+    /** Called when the next passphrase is due, by the delayed message or the expiry alarm. */
+    private void expirePassphrases() {
+        int expiredCount = mPassphraseCache.expire(SystemClock.elapsedRealtime());
+        if (expiredCount > 0) {
+            Timber.d("PassphraseCacheService Timeout of " + expiredCount + " passphrases, removed from memory!");
+            SessionKeyCache.clearAll(mContext);
+            updateService();
+        }
+        scheduleExpiry();
+    }
 
-        CachedPassphrase cPass = mPassphraseCache.get(keyId);
-        if (cPass != null) {
-            if (cPass.mPassphrase != null) {
-                // clean internal char[] from memory!
-                cPass.mPassphrase.removeFromMemory();
+    /**
+     * Posts a single delayed message for the next expiry, if there is one. Messages are not
+     * delivered while the device sleeps, so an alarm additionally wakes it up for the same time.
+     */
+    private void scheduleExpiry() {
+        long nextExpiryTime = mPassphraseCache.getNextExpiryTime();
+        if (nextExpiryTime != mExpiryMessageTime) {
+            mHandler.removeCallbacks(mExpiryRunnable);
+            mExpiryMessageTime = nextExpiryTime;
+            if (nextExpiryTime >= 0) {
+                mHandler.postDelayed(mExpiryRunnable,
+                        Math.max(0L, nextExpiryTime - SystemClock.elapsedRealtime()));
             }
-            // remove passphrase object
-            mPassphraseCache.remove(keyId);
         }
 
-        Timber.d("PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
-
-        updateService();
+        if (nextExpiryTime == mExpiryAlarmTime) {
+            return;
+        }
+        AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+        if (nextExpiryTime < 0) {
+            am.cancel(buildExpiryIntent(this));
+        } else {
+            am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, nextExpiryTime, buildExpiryIntent(this));
+        }
+        mExpiryAlarmTime = nextExpiryTime;
     }
 
     private void removeScreenLockPassphrases() {
-
-        for (int i = 0; i < mPassphraseCache.size(); ) {
-            CachedPassphrase cPass = mPassphraseCache.valueAt(i);
-            if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
-                // remove passphrase object
-                mPassphraseCache.removeAt(i);
-                continue;
-            }
-            // only do this if we didn't remove at, which continues loop by reducing size!
-            i += 1;
-        }
+        mPassphraseCache.removeScreenLockPassphrases();
+        SessionKeyCache.clearAll(mContext);
 
         Timber.d("PassphraseCacheService Removing all cached-until-lock passphrases from memory!");
 
@@ -511,8 +602,8 @@ public class PassphraseCacheService extends Service {
         inboxStyle.setBigContentTitle(getString(R.string.passp_cache_notif_keys));
 
         // Moves events into the big view
-        for (int i = 0; i < mPassphraseCache.size(); i++) {
-            inboxStyle.addLine(mPassphraseCache.valueAt(i).mPrimaryUserId);
+        for (String primaryUserId : mPassphraseCache.getPrimaryUserIds()) {
+            inboxStyle.addLine(primaryUserId);
         }
 
         // Moves the big view style object into the notification object.
@@ -554,7 +645,16 @@ public class PassphraseCacheService extends Service {
         super.onDestroy();
         Timber.d("PassphraseCacheService, onDestroy()");
 
+        mDestroyed = true;
         unregisterReceiver(mIntentReceiver);
+
+        mHandler.removeCallbacks(mExpiryRunnable);
+        mPassphraseCache.clear();
+        SessionKeyCache.clearAll(mContext);
+        if (mExpiryAlarmTime >= 0) {
+            AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+            am.cancel(buildExpiryIntent(this));
+        }
     }
 
     @Override
@@ -562,42 +662,34 @@ public class PassphraseCacheService extends Service {
         return mBinder;
     }
 
-    public class PassphraseCacheBinder extends Binder {
-        public PassphraseCacheService getService() {
-            return PassphraseCacheService.this;
+    /**
+     * Answers lookups from {@link #getCachedPassphrase(IBinder, long, long)}. Runs on binder
+     * threads, which is fine since the PassphraseCache never blocks lookups.
+     */
+    private class PassphraseCacheBinder extends Binder {
+        @Override
+        protected boolean onTransact(int code, Parcel data, Parcel reply, int flags) throws RemoteException {
+            if (code != TRANSACTION_GET_PASSPHRASE) {
+                return super.onTransact(code, data, reply, flags);
+            }
+            // the binder may outlive the service for a moment, let the caller use an intent
+            if (mDestroyed) {
+                return false;
+            }
+
+            long masterKeyId = data.readLong();
+            long subKeyId = data.readLong();
+            try {
+                Passphrase passphrase = getCachedPassphraseChecked(masterKeyId, subKeyId);
+                reply.writeInt(MSG_PASSPHRASE_CACHE_GET_OKAY);
+                reply.writeParcelable(passphrase, 0);
+            } catch (KeyNotFoundException e) {
+                reply.writeInt(MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND);
+            }
+            return true;
         }
     }
 
     private final IBinder mBinder = new PassphraseCacheBinder();
 
-    private enum TimeoutMode {
-        NEVER, TTL, LOCK
-    }
-
-    private static class CachedPassphrase {
-        private String mPrimaryUserId;
-        private Passphrase mPassphrase;
-        private TimeoutMode mTimeoutMode;
-        private Long mTimeoutTime;
-
-        private CachedPassphrase(Passphrase passphrase, String primaryUserId, TimeoutMode timeoutMode, Long timeoutTime) {
-            mPassphrase = passphrase;
-            mPrimaryUserId = primaryUserId;
-            mTimeoutMode = timeoutMode;
-            mTimeoutTime = timeoutTime;
-        }
-
-        static CachedPassphrase getPassphraseNoTimeout(Passphrase passphrase, String primaryUserId) {
-            return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.NEVER, null);
-        }
-
-        static CachedPassphrase getPassphraseTtlTimeout(Passphrase passphrase, String primaryUserId, long timeoutTime) {
-            return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.TTL, timeoutTime);
-        }
-
-        static CachedPassphrase getPassphraseLock(Passphrase passphrase, String primaryUserId) {
-            return new CachedPassphrase(passphrase, primaryUserId, TimeoutMode.LOCK, null);
-        }
-    }
-
 }
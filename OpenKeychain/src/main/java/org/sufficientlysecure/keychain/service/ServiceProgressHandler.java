@@ -73,16 +73,20 @@ public class ServiceProgressHandler extends Handler {
     }
 
     public void showProgressDialog() {
-        showProgressDialog("", ProgressDialog.STYLE_SPINNER, false);
+        showProgressDialog("", ProgressDialog.STYLE_SPINNER, false, null);
     }
 
-    public void showProgressDialog(
-            String progressDialogMessage, int progressDialogStyle, boolean cancelable) {
+    /**
+     * @param operationId the operation to cancel if the user asks to, see KeychainService.EXTRA_OPERATION_ID
+     */
+    public void showProgressDialog(String progressDialogMessage, int progressDialogStyle, boolean cancelable,
+            String operationId) {
 
         final ProgressDialogFragment frag = ProgressDialogFragment.newInstance(
                 progressDialogMessage,
                 progressDialogStyle,
-                cancelable);
+                cancelable,
+                operationId);
 
         // TODO: This is a hack!, see
         // http://stackoverflow.com/questions/10114324/show-dialogfragment-from-onactivityresult
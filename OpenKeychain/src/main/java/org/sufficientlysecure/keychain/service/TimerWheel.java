@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A hashed timer wheel. Timeouts are put into the bucket of the tick their deadline falls into,
+ * so scheduling is constant time, and each {@link #advance} only looks at the buckets of the
+ * ticks that passed since the last one. Deadlines further away than one rotation of the wheel
+ * simply stay in their bucket until they are due.
+ * <p>
+ * Timeouts may be scheduled from any thread without locking. Only one thread at a time advances
+ * the wheel.
+ */
+class TimerWheel<T> {
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    interface ExpiryListener<T> {
+        void onExpired(T item);
+    }
+
+    private final long mTickMillis;
+    private final int mMask;
+    private final ArrayList<ConcurrentLinkedQueue<Timeout<T>>> mBuckets;
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    // written only by advance, which is synchronized
+    private volatile long mLastTick = NOT_STARTED;
+
+    /**
+     * @param tickMillis  resolution of the wheel
+     * @param bucketCount number of buckets, must be a power of two
+     */
+    TimerWheel(long tickMillis, int bucketCount) {
+        if (tickMillis <= 0 || bucketCount <= 0 || Integer.bitCount(bucketCount) != 1) {
+            throw new IllegalArgumentException("tick must be positive, bucket count a power of two");
+        }
+        mTickMillis = tickMillis;
+        mMask = bucketCount - 1;
+        mBuckets = new ArrayList<>(bucketCount);
+        for (int i = 0; i < bucketCount; i++) {
+            mBuckets.add(new ConcurrentLinkedQueue<Timeout<T>>());
+        }
+    }
+
+    void schedule(T item, long deadline) {
+        // round up, so a timeout is never handed out before its deadline
+        long tick = (deadline + mTickMillis - 1) / mTickMillis;
+        long lastTick = mLastTick;
+        if (lastTick != NOT_STARTED && tick <= lastTick) {
+            // already due, picked up by the next advance
+            tick = lastTick + 1;
+        }
+        mBuckets.get((int) (tick & mMask)).add(new Timeout<>(item, deadline));
+        mPendingCount.incrementAndGet();
+    }
+
+    /**
+     * Removes all timeouts which are due at the given time, and passes them to the listener.
+     *
+     * @return the number of expired timeouts
+     */
+    synchronized int advance(long now, ExpiryListener<T> listener) {
+        long currentTick = now / mTickMillis;
+        int bucketCount = mMask + 1;
+
+        long ticks;
+        if (mLastTick == NOT_STARTED) {
+            ticks = bucketCount;
+        } else if (currentTick <= mLastTick) {
+            // a later timeout may be due within the current tick, so look at its bucket again
+            ticks = 1;
+        } else {
+            ticks = Math.min(currentTick - mLastTick, bucketCount);
+        }
+
+        int expiredCount = 0;
+        for (long i = 0; i < ticks; i++) {
+            Iterator<Timeout<T>> it = mBuckets.get((int) ((currentTick - i) & mMask)).iterator();
+            while (it.hasNext()) {
+                Timeout<T> timeout = it.next();
+                if (timeout.mDeadline > now) {
+                    continue;
+                }
+                it.remove();
+                mPendingCount.decrementAndGet();
+                listener.onExpired(timeout.mItem);
+                expiredCount += 1;
+            }
+        }
+
+        if (mLastTick == NOT_STARTED || currentTick > mLastTick) {
+            mLastTick = currentTick;
+        }
+        return expiredCount;
+    }
+
+    /** Returns the number of timeouts which have not expired yet. */
+    int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    synchronized void clear() {
+        for (ConcurrentLinkedQueue<Timeout<T>> bucket : mBuckets) {
+            while (bucket.poll() != null) {
+                mPendingCount.decrementAndGet();
+            }
+        }
+    }
+
+    private static class Timeout<T> {
+        final T mItem;
+        final long mDeadline;
+
+        Timeout(T item, long deadline) {
+            mItem = item;
+            mDeadline = deadline;
+        }
+    }
+}
@@ -94,6 +94,9 @@ public class EncryptFilesFragment
     private static final int REQUEST_CODE_OUTPUT = 0x00007007;
     private static final int REQUEST_PERMISSION_READ_EXTERNAL_STORAGE = 12;
 
+    /** Below this size, starting the pipeline threads costs more than it saves. */
+    private static final long PIPELINED_PROCESSING_MIN_SIZE = 8 * 1024 * 1024;
+
     private boolean mUseArmor;
     private boolean mUseCompression;
     private boolean mDeleteAfterEncrypt;
@@ -627,6 +630,9 @@ public class EncryptFilesFragment
         }
         data.setHiddenRecipients(mHiddenRecipients);
         data.setEnableAsciiArmorOutput(mAfterEncryptAction == AfterEncryptAction.COPY || mUseArmor);
+        // keep all cores busy for large files, if there is more than one
+        data.setEnablePipelinedProcessing(Runtime.getRuntime().availableProcessors() > 1
+                && getLargestInputSize() >= PIPELINED_PROCESSING_MIN_SIZE);
 
         EncryptActivity encryptActivity = (EncryptActivity) getActivity();
         EncryptModeFragment modeFragment = encryptActivity.getModeFragment();
@@ -672,6 +678,15 @@ public class EncryptFilesFragment
         return builder.build();
     }
 
+    /** Returns the largest known input file size, or -1 if none is known. */
+    private long getLargestInputSize() {
+        long largestSize = -1;
+        for (FilesAdapter.ViewModel model : mFilesAdapter.mDataset) {
+            largestSize = Math.max(largestSize, model.fileSize);
+        }
+        return largestSize;
+    }
+
     private Intent createSendIntent() {
         Intent sendIntent;
         // file
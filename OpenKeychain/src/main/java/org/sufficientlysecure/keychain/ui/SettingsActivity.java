@@ -27,6 +27,7 @@ import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
@@ -48,6 +49,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.compatibility.AppCompatPreferenceActivity;
+import org.sufficientlysecure.keychain.provider.VerifiedSignatureRepository;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.base.BaseActivity;
 import org.sufficientlysecure.keychain.ui.util.Notify;
@@ -555,6 +557,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             addPreferencesFromResource(R.xml.experimental_preferences);
 
             initializeTheme((ListPreference) findPreference(Constants.Pref.THEME));
+            initializeVerifiedSignatureCache(
+                    (SwitchPreference) findPreference(Constants.Pref.VERIFIED_SIGNATURE_CACHE));
 
             mSmartPGPAuthoritiesPreference = (PreferenceScreen) findPreference(Constants.Pref.EXPERIMENTAL_SMARTPGP_AUTHORITIES);
 
@@ -603,6 +607,24 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             }
         }
 
+        private static void initializeVerifiedSignatureCache(SwitchPreference cachePref) {
+            final Context context = cachePref.getContext().getApplicationContext();
+            cachePref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    if (!(Boolean) newValue) {
+                        // results may be outdated by the time it's turned on again
+                        AsyncTask.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                VerifiedSignatureRepository.clearAll(context);
+                            }
+                        });
+                    }
+                    return true;
+                }
+            });
+        }
+
         private static void initializeTheme(final ListPreference themePref) {
             themePref.setSummary(themePref.getEntry() + "\n"
                     + themePref.getContext().getString(R.string.label_experimental_settings_theme_summary));
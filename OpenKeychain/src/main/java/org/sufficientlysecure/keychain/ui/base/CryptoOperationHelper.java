@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.ui.base;
 
 import java.util.Date;
+import java.util.UUID;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
@@ -296,8 +297,12 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         // Send all information needed to service to edit key in other thread
         Intent intent = new Intent(activity, KeychainService.class);
 
+        // identifies this operation, so a cancel doesn't affect others
+        String operationId = UUID.randomUUID().toString();
+
         intent.putExtra(KeychainService.EXTRA_OPERATION_INPUT, operationInput);
         intent.putExtra(KeychainService.EXTRA_CRYPTO_INPUT, cryptoInput);
+        intent.putExtra(KeychainService.EXTRA_OPERATION_ID, operationId);
 
         ServiceProgressHandler saveHandler = new ServiceProgressHandler(activity) {
             @Override
@@ -336,7 +341,7 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         if (mProgressMessageResource != null) {
             saveHandler.showProgressDialog(
                     activity.getString(mProgressMessageResource),
-                    ProgressDialog.STYLE_HORIZONTAL, mCancellable);
+                    ProgressDialog.STYLE_HORIZONTAL, mCancellable, operationId);
         }
 
         activity.startService(intent);
@@ -45,6 +45,7 @@ public class ProgressDialogFragment extends DialogFragment {
     private static final String ARG_STYLE = "style";
     private static final String ARG_CANCELABLE = "cancelable";
     private static final String ARG_SERVICE_TYPE = "service_class";
+    private static final String ARG_OPERATION_ID = "operation_id";
 
     boolean mCanCancel = false, mPreventCancel = false, mIsCancelled = false;
 
@@ -53,14 +54,17 @@ public class ProgressDialogFragment extends DialogFragment {
      * @param message the message to be displayed initially above the progress bar
      * @param style the progress bar style, as defined in ProgressDialog (horizontal or spinner)
      * @param cancelable should we let the user cancel this operation
+     * @param operationId the operation which is cancelled, or null to cancel all running operations
      * @return
      */
-    public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable) {
+    public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable,
+            String operationId) {
         ProgressDialogFragment frag = new ProgressDialogFragment();
         Bundle args = new Bundle();
         args.putString(ARG_MESSAGE, message);
         args.putInt(ARG_STYLE, style);
         args.putBoolean(ARG_CANCELABLE, cancelable);
+        args.putString(ARG_OPERATION_ID, operationId);
 
         frag.setArguments(args);
 
@@ -182,6 +186,8 @@ public class ProgressDialogFragment extends DialogFragment {
                 Intent serviceIntent = new Intent(getActivity(), KeychainService.class);
 
                 serviceIntent.setAction(KeychainService.ACTION_CANCEL);
+                serviceIntent.putExtra(KeychainService.EXTRA_OPERATION_ID,
+                        getArguments().getString(ARG_OPERATION_ID));
                 getActivity().startService(serviceIntent);
 
                 // Set the progress bar accordingly
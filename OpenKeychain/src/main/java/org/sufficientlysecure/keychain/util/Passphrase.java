@@ -81,6 +81,21 @@ public class Passphrase implements Parcelable {
         setEmpty();
     }
 
+    /**
+     * Creates an independent copy of this passphrase and its cached session keys, which can be
+     * removed from memory without affecting this object.
+     */
+    public Passphrase copy() {
+        Passphrase copy = new Passphrase(mPassphrase.clone());
+        if (mCachedSessionKeys != null) {
+            copy.mCachedSessionKeys = new HashMap<>(mCachedSessionKeys.size());
+            for (Entry<ParcelableS2K, byte[]> entry : mCachedSessionKeys.entrySet()) {
+                copy.mCachedSessionKeys.put(entry.getKey(), entry.getValue().clone());
+            }
+        }
+        return copy;
+    }
+
     public char[] getCharArray() {
         return mPassphrase;
     }
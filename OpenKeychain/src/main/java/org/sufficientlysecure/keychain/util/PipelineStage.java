@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Common parts of the stages of a stream pipeline.
+ * <p>
+ * Each stage owns a worker thread and a fixed ring of chunk buffers. Filled chunks are handed
+ * from producer to consumer through a bounded queue, and return to the producer through a
+ * second one once they have been processed. This bounds the memory held by each stage to
+ * chunkCount * chunkSize, and blocks the faster side when the ring is exhausted.
+ * <p>
+ * The stage keeps track of how long its worker was busy, how long it sat idle waiting for
+ * work, and how long its caller was blocked on it. This can be used to find the bottleneck.
+ */
+public abstract class PipelineStage {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    public static final int DEFAULT_CHUNK_COUNT = 4;
+    private static final long WORKER_CHECK_INTERVAL_MS = 100;
+
+    static final class Chunk {
+        final byte[] buf;
+        int length;
+
+        Chunk(int size) {
+            buf = new byte[size];
+        }
+    }
+
+    /** Marks the end of the stream in the filled queue. */
+    static final Chunk END_OF_STREAM = new Chunk(0);
+
+    private final String mName;
+    final BlockingQueue<Chunk> mFilled;
+    final BlockingQueue<Chunk> mFree;
+    final Thread mWorker;
+
+    volatile IOException mWorkerError;
+
+    volatile long mBytes;
+    volatile long mBusyNanos;
+    volatile long mIdleNanos;
+    volatile long mBlockedNanos;
+
+    PipelineStage(String name, int chunkSize, int chunkCount) {
+        mName = name;
+        // one extra slot, so the end of stream marker always fits
+        mFilled = new ArrayBlockingQueue<>(chunkCount + 1);
+        mFree = new ArrayBlockingQueue<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            mFree.add(new Chunk(chunkSize));
+        }
+
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runWorker();
+                } catch (IOException e) {
+                    mWorkerError = e;
+                } catch (InterruptedException e) {
+                    // aborted
+                } catch (RuntimeException e) {
+                    mWorkerError = new IOException("error in pipeline stage " + mName, e);
+                }
+            }
+        }, "pipeline-" + name);
+        mWorker.setDaemon(true);
+    }
+
+    abstract void runWorker() throws IOException, InterruptedException;
+
+    /** Stops the worker thread, discarding all data that has not been processed yet. */
+    public void abort() {
+        mWorker.interrupt();
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /** Number of bytes that passed through this stage. */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    /** Time the worker of this stage spent actually doing work. */
+    public long getBusyNanos() {
+        return mBusyNanos;
+    }
+
+    /** Time the worker of this stage spent waiting for work, i.e. the stage was starved. */
+    public long getIdleNanos() {
+        return mIdleNanos;
+    }
+
+    /** Time the caller of this stage spent blocked on it, i.e. the stage was the bottleneck. */
+    public long getBlockedNanos() {
+        return mBlockedNanos;
+    }
+
+    /** Throughput while busy, in MiB/s. This is what the stage could do if it never waited. */
+    public double getBusyThroughput() {
+        if (mBusyNanos == 0) {
+            return 0;
+        }
+        return (mBytes / (1024.0 * 1024.0)) / (mBusyNanos / 1e9);
+    }
+
+    void checkWorkerError() throws IOException {
+        if (mWorkerError != null) {
+            throw mWorkerError;
+        }
+    }
+
+    /** Takes a chunk from the given queue on the worker thread, accounting the time as idle. */
+    Chunk workerTake(BlockingQueue<Chunk> queue) throws InterruptedException {
+        long start = System.nanoTime();
+        Chunk chunk = queue.take();
+        mIdleNanos += System.nanoTime() - start;
+        return chunk;
+    }
+
+    /**
+     * Takes a chunk from the given queue on the caller's thread, accounting the time as blocked.
+     * Unlike on the worker thread, this needs to watch out for the worker dying on us.
+     */
+    Chunk callerTake(BlockingQueue<Chunk> queue) throws IOException {
+        long start = System.nanoTime();
+        try {
+            while (true) {
+                Chunk chunk = queue.poll(WORKER_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (chunk != null) {
+                    return chunk;
+                }
+                checkWorkerError();
+                if (!mWorker.isAlive()) {
+                    throw new IOException("pipeline stage " + mName + " stopped unexpectedly");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for pipeline");
+        } finally {
+            mBlockedNanos += System.nanoTime() - start;
+        }
+    }
+
+}
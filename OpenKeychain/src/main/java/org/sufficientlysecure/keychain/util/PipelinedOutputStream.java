@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * An OutputStream which writes to its downstream on a separate thread.
+ * <p>
+ * Writes are collected into chunks, which are handed to a worker thread that writes them
+ * to the wrapped stream. This lets whatever is producing the data run concurrently with
+ * whatever the downstream does to it, e.g. compression with encryption, or encryption with
+ * ascii armoring.
+ * <p>
+ * Errors of the worker are rethrown on the next write, or latest on finish(). Since data is
+ * written asynchronously, the wrapped stream must not be used by anyone else until finish()
+ * has returned.
+ */
+public class PipelinedOutputStream extends OutputStream {
+    private final OutputStream mDownstream;
+    private final Stage mStage;
+
+    private PipelineStage.Chunk mCurrent;
+    private boolean mFinished;
+
+    public PipelinedOutputStream(String name, OutputStream downstream) {
+        this(name, downstream, PipelineStage.DEFAULT_CHUNK_SIZE, PipelineStage.DEFAULT_CHUNK_COUNT);
+    }
+
+    public PipelinedOutputStream(String name, OutputStream downstream, int chunkSize, int chunkCount) {
+        mDownstream = downstream;
+        mStage = new Stage(name, chunkSize, chunkCount);
+        mStage.mWorker.start();
+    }
+
+    public PipelineStage getStage() {
+        return mStage;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureChunk();
+        mCurrent.buf[mCurrent.length++] = (byte) b;
+        if (mCurrent.length == mCurrent.buf.length) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensureChunk();
+            int n = Math.min(len, mCurrent.buf.length - mCurrent.length);
+            System.arraycopy(b, off, mCurrent.buf, mCurrent.length, n);
+            mCurrent.length += n;
+            off += n;
+            len -= n;
+            if (mCurrent.length == mCurrent.buf.length) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Flushes only the data buffered so far to the worker, the downstream is not flushed,
+     * since that would need to synchronize with the worker thread.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (mCurrent != null && mCurrent.length > 0) {
+            handOff();
+        }
+    }
+
+    /**
+     * Writes all remaining data to the downstream and waits for the worker to finish, but
+     * does not close the downstream.
+     */
+    public void finish() throws IOException {
+        if (mFinished) {
+            return;
+        }
+        mFinished = true;
+
+        flush();
+        if (mCurrent != null) {
+            mStage.mFree.add(mCurrent);
+            mCurrent = null;
+        }
+        mStage.mFilled.add(PipelineStage.END_OF_STREAM);
+
+        try {
+            mStage.mWorker.join();
+        } catch (InterruptedException e) {
+            mStage.abort();
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while finishing pipeline stage", e);
+        }
+        mStage.checkWorkerError();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mStage.abort();
+            mDownstream.close();
+        }
+    }
+
+    private void ensureChunk() throws IOException {
+        if (mFinished) {
+            throw new IOException("write after finish");
+        }
+        if (mCurrent == null) {
+            mCurrent = mStage.callerTake(mStage.mFree);
+            mCurrent.length = 0;
+        }
+    }
+
+    private void handOff() throws IOException {
+        mStage.checkWorkerError();
+        // mFilled has room for all chunks, so this never blocks
+        mStage.mFilled.add(mCurrent);
+        mCurrent = null;
+    }
+
+    private class Stage extends PipelineStage {
+        Stage(String name, int chunkSize, int chunkCount) {
+            super(name, chunkSize, chunkCount);
+        }
+
+        @Override
+        void runWorker() throws IOException, InterruptedException {
+            while (true) {
+                Chunk chunk = workerTake(mFilled);
+                if (chunk == END_OF_STREAM) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                mDownstream.write(chunk.buf, 0, chunk.length);
+                mBusyNanos += System.nanoTime() - start;
+                mBytes += chunk.length;
+
+                mFree.put(chunk);
+            }
+        }
+    }
+
+}
@@ -98,6 +98,26 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_SUBS, false);
     }
 
+    public boolean getSessionKeyCache() {
+        return mSharedPreferences.getBoolean(Pref.SESSION_KEY_CACHE, false);
+    }
+
+    public void setSessionKeyCache(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.SESSION_KEY_CACHE, value);
+        editor.commit();
+    }
+
+    public boolean getVerifiedSignatureCache() {
+        return mSharedPreferences.getBoolean(Pref.VERIFIED_SIGNATURE_CACHE, true);
+    }
+
+    public void setVerifiedSignatureCache(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.VERIFIED_SIGNATURE_CACHE, value);
+        editor.commit();
+    }
+
     public int getCacheTtlSeconds() {
         return mSharedPreferences.getInt(Pref.PASSPHRASE_CACHE_LAST_TTL, Integer.MAX_VALUE);
     }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * An InputStream which reads ahead from its source on a separate thread.
+ * <p>
+ * This takes slow reads, e.g. from a content provider or network backed file, off the
+ * thread which is processing the data. At most chunkCount chunks are read ahead.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private final InputStream mSource;
+    private final Stage mStage;
+
+    private PipelineStage.Chunk mCurrent;
+    private int mPosition;
+    private boolean mEndOfStream;
+
+    public ReadAheadInputStream(String name, InputStream source) {
+        this(name, source, PipelineStage.DEFAULT_CHUNK_SIZE, PipelineStage.DEFAULT_CHUNK_COUNT);
+    }
+
+    public ReadAheadInputStream(String name, InputStream source, int chunkSize, int chunkCount) {
+        mSource = source;
+        mStage = new Stage(name, chunkSize, chunkCount);
+        mStage.mWorker.start();
+    }
+
+    public PipelineStage getStage() {
+        return mStage;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int b = mCurrent.buf[mPosition++] & 0xff;
+        releaseIfConsumed();
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, mCurrent.length - mPosition);
+        System.arraycopy(mCurrent.buf, mPosition, b, off, n);
+        mPosition += n;
+        releaseIfConsumed();
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mCurrent == null ? 0 : mCurrent.length - mPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStage.abort();
+        mSource.close();
+    }
+
+    private boolean ensureChunk() throws IOException {
+        if (mEndOfStream) {
+            return false;
+        }
+        if (mCurrent == null) {
+            PipelineStage.Chunk chunk = mStage.callerTake(mStage.mFilled);
+            if (chunk == PipelineStage.END_OF_STREAM) {
+                // the worker may have stopped because of an error, rather than end of stream
+                mStage.checkWorkerError();
+                mEndOfStream = true;
+                return false;
+            }
+            mCurrent = chunk;
+            mPosition = 0;
+        }
+        return true;
+    }
+
+    private void releaseIfConsumed() {
+        if (mPosition == mCurrent.length) {
+            // mFree has room for all chunks, so this never blocks
+            mStage.mFree.add(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    private class Stage extends PipelineStage {
+        Stage(String name, int chunkSize, int chunkCount) {
+            super(name, chunkSize, chunkCount);
+        }
+
+        @Override
+        void runWorker() throws IOException, InterruptedException {
+            try {
+                while (true) {
+                    Chunk chunk = workerTake(mFree);
+
+                    long start = System.nanoTime();
+                    int read = mSource.read(chunk.buf, 0, chunk.buf.length);
+                    mBusyNanos += System.nanoTime() - start;
+
+                    if (read < 0) {
+                        return;
+                    }
+                    chunk.length = read;
+                    mBytes += read;
+                    mFilled.put(chunk);
+                }
+            } finally {
+                // always signal the end, so a reader is never left waiting for a dead worker
+                mFilled.offer(END_OF_STREAM);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class HkpIndexParserTest {
+    static final HkpKeyserverAddress KEYSERVER = HkpKeyserverAddress.createFromUri("hkps://keyserver.example.com");
+
+    static final String INDEX = "info:1:3\n"
+            + "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1400000000::\n"
+            + "uid:Alice%20%3Calice@example.com%3E:1400000000::\n"
+            + "uid:Universit%C3%A4t:1400000000::\n"
+            + "pub:89abcdef01234567:17:1024:1100000000:1200000000:r\n"
+            + "uid:Bob <bob@example.com>:1100000000::\n"
+            + "pub:fedcba9876543210:1:4096:1400000000::\n";
+
+    @Test
+    public void testParse() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse(INDEX, 10);
+
+        assertEquals("key without user id should be skipped", 2, entries.size());
+
+        ImportKeysListEntry alice = entries.get(0);
+        assertEquals("0x89abcdef01234567", alice.getKeyIdHex());
+        assertEquals(20, alice.getFingerprint().length);
+        assertEquals(2048, (int) alice.getBitStrength());
+        assertEquals(1400000000L * 1000, alice.getDate().getTime());
+        assertFalse(alice.isRevoked());
+        assertFalse(alice.isExpired());
+        assertEquals(2, alice.getUserIds().size());
+        assertEquals("Alice <alice@example.com>", alice.getUserIds().get(0));
+        assertEquals("Universität", alice.getUserIds().get(1));
+        assertEquals("query", alice.getQuery());
+        assertEquals(KEYSERVER, alice.getKeyserver());
+
+        ImportKeysListEntry bob = entries.get(1);
+        assertEquals("0x89abcdef01234567", bob.getKeyIdHex());
+        assertNull(bob.getFingerprint());
+        assertTrue(bob.isRevoked());
+        assertTrue("expiry date in the past should mark key expired", bob.isExpired());
+    }
+
+    @Test
+    public void testMaxEntries() throws Exception {
+        final ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+        HkpIndexParser parser = new HkpIndexParser("query", KEYSERVER, 1);
+        boolean truncated = parser.parse(new StringReader(INDEX), new HkpIndexParser.EntryListener() {
+            @Override
+            public void onEntry(ImportKeysListEntry entry) {
+                entries.add(entry);
+            }
+        });
+
+        assertTrue(truncated);
+        assertEquals(1, entries.size());
+    }
+
+    private static ArrayList<ImportKeysListEntry> parse(String index, int maxEntries) throws Exception {
+        final ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+        HkpIndexParser parser = new HkpIndexParser("query", KEYSERVER, maxEntries);
+        boolean truncated = parser.parse(new StringReader(index), new HkpIndexParser.EntryListener() {
+            @Override
+            public void onEntry(ImportKeysListEntry entry) {
+                entries.add(entry);
+            }
+        });
+        assertFalse(truncated);
+        return entries;
+    }
+
+}
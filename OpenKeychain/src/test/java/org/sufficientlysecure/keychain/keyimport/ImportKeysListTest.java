@@ -0,0 +1,57 @@
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ImportKeysListTest {
+
+    @Test
+    public void testMergeByFingerprint() {
+        ImportKeysList list = new ImportKeysList(2);
+
+        ImportKeysListEntry first = createEntry(new byte[] { 1, 2, 3 }, "Alice <alice@example.com>");
+        ImportKeysListEntry other = createEntry(new byte[] { 4, 5, 6 }, "Bob <bob@example.com>");
+        list.addAll(Arrays.asList(first, other));
+
+        ImportKeysListEntry dupe = createEntry(new byte[] { 1, 2, 3 }, "Alice <alice@example.org>");
+        dupe.setRevoked(true);
+        list.addAll(Arrays.asList(dupe));
+
+        assertEquals(2, list.size());
+        assertSame(first, list.get(0));
+        assertTrue("merged entry should be revoked", first.isRevoked());
+        assertEquals("merged entry should have user ids of both", 2, first.getUserIds().size());
+    }
+
+    @Test
+    public void testEntriesWithoutFingerprintAreNotMerged() {
+        ImportKeysList list = new ImportKeysList(1);
+
+        list.add(createEntry(null, "Alice <alice@example.com>"));
+        list.add(createEntry(null, "Alice <alice@example.com>"));
+
+        assertEquals(2, list.size());
+    }
+
+    private static ImportKeysListEntry createEntry(byte[] fingerprint, String userId) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setFingerprint(fingerprint);
+        entry.setSecure(true);
+        ArrayList<String> userIds = new ArrayList<>();
+        userIds.add(userId);
+        entry.setUserIds(userIds);
+        return entry;
+    }
+
+}
@@ -0,0 +1,56 @@
+package org.sufficientlysecure.keychain.network;
+
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+
+import okhttp3.OkHttpClient;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+
+public class OkHttpClientFactoryTest {
+
+    @Test
+    public void testKeyserverClientIsCached() throws Exception {
+        OkHttpClient first = OkHttpClientFactory.getClientPinnedIfAvailable(
+                new URL("https://keyserver.example.com/pks/lookup"), null);
+        OkHttpClient second = OkHttpClientFactory.getClientPinnedIfAvailable(
+                new URL("https://keyserver.example.com/pks/add"), null);
+
+        assertSame(first, second);
+        assertFalse(first.followRedirects());
+    }
+
+    @Test
+    public void testKeyserverClientPerProxy() throws Exception {
+        URL url = new URL("https://keyserver.example.com/pks/lookup");
+        Proxy proxy = new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("127.0.0.1", 8118));
+
+        OkHttpClient direct = OkHttpClientFactory.getClientPinnedIfAvailable(url, null);
+        OkHttpClient proxied = OkHttpClientFactory.getClientPinnedIfAvailable(url, proxy);
+        OkHttpClient proxiedAgain = OkHttpClientFactory.getClientPinnedIfAvailable(url,
+                new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("127.0.0.1", 8118)));
+
+        assertNotSame(direct, proxied);
+        assertSame(proxied, proxiedAgain);
+        assertEquals(proxy, proxied.proxy());
+    }
+
+    @Test
+    public void testClientsSharePoolAndDispatcher() throws Exception {
+        OkHttpClient simple = OkHttpClientFactory.getSimpleClient();
+        OkHttpClient keyserver = OkHttpClientFactory.getClientPinnedIfAvailable(
+                new URL("https://keyserver.example.com/pks/lookup"),
+                new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("127.0.0.1", 8118)));
+
+        assertSame(simple.connectionPool(), keyserver.connectionPool());
+        assertSame(simple.dispatcher(), keyserver.dispatcher());
+    }
+
+}
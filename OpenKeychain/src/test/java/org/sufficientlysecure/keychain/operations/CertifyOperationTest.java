@@ -21,9 +21,12 @@ package org.sufficientlysecure.keychain.operations;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Random;
 
+import android.content.Context;
+
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.Assert;
@@ -33,16 +36,19 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.Constants.Pref;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.UpdateTrustResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
@@ -51,6 +57,7 @@ import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
 @RunWith(KeychainTestRunner.class)
@@ -198,6 +205,62 @@ public class CertifyOperationTest {
     }
 
 
+    @Test
+    public void testUpdateTrustDbAfterSecretImport() throws Exception {
+        checkTrustAfterSecretImport(true);
+    }
+
+    @Test
+    public void testInitializeTrustDbAfterSecretImport() throws Exception {
+        checkTrustAfterSecretImport(false);
+    }
+
+    private void checkTrustAfterSecretImport(boolean trustDbInitialized) throws Exception {
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.create(RuntimeEnvironment.application), null, null);
+
+        CertifyActionsParcel.Builder actions = CertifyActionsParcel.builder(mStaticRing1.getMasterKeyId());
+        actions.addAction(CertifyAction.createForUserIds(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        CertifyResult result = op.execute(actions.build(), CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase1));
+        Assert.assertTrue("certification must succeed", result.success());
+
+        KeyWritableRepository databaseInteractor =
+                KeyWritableRepository.create(RuntimeEnvironment.application);
+        UncachedKeyRing certifiedRing = databaseInteractor
+                .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId()).getUncachedKeyRing();
+
+        // start over, with the certifying key only known as a public key
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        databaseInteractor.savePublicKeyRing(mStaticRing1.extractPublicKeyRing());
+        databaseInteractor.savePublicKeyRing(certifiedRing);
+        if (!trustDbInitialized) {
+            RuntimeEnvironment.application.getSharedPreferences("APG.main", Context.MODE_PRIVATE).edit()
+                    .putBoolean(Pref.KEY_SIGNATURES_TABLE_INITIALIZED, false).commit();
+        }
+
+        {
+            CanonicalizedPublicKeyRing ring = databaseInteractor
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("certification by public key must not be trusted",
+                    Certs.UNVERIFIED, ring.getVerified());
+        }
+
+        databaseInteractor.saveSecretKeyRing(mStaticRing1);
+        UpdateTrustResult trustResult = databaseInteractor.updateTrustDb(
+                Collections.singletonList(mStaticRing1.getMasterKeyId()), new ProgressScaler());
+        Assert.assertTrue("trust update must succeed", trustResult.success());
+
+        {
+            CanonicalizedPublicKeyRing ring = databaseInteractor
+                    .getCanonicalizedPublicKeyRing(mStaticRing2.getMasterKeyId());
+            Assert.assertEquals("certification must be trusted after secret key import",
+                    Certs.VERIFIED_SECRET, ring.getVerified());
+        }
+
+    }
+
+
     @Test
     public void testCertifySelf() throws Exception {
         CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
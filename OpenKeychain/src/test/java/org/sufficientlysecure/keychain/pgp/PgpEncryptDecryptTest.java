@@ -26,9 +26,11 @@ import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Random;
 
 import org.apache.tools.ant.util.StringUtils;
 import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
 import org.bouncycastle.bcpg.Packet;
 import org.bouncycastle.bcpg.PacketTags;
 import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
@@ -64,6 +66,7 @@ import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import static org.hamcrest.core.AnyOf.anyOf;
@@ -344,6 +347,69 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricVerifySignerCached() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // sign data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            pgpData.setCleartextSignature(false);
+            pgpData.setDetachedSignature(false);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("signing must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        SignerCache signerCache = SignerCache.getInstance(RuntimeEnvironment.application);
+        verifySignedLiteral(ciphertext, plaintext);
+
+        { // the signer is resolved from the cache for the next message
+            long hits = signerCache.getHitCount();
+            verifySignedLiteral(ciphertext, plaintext);
+            Assert.assertEquals("signer must be resolved from the cache", hits + 1, signerCache.getHitCount());
+        }
+
+        { // writing the keyring drops its signers
+            KeyWritableRepository.create(RuntimeEnvironment.application).saveSecretKeyRing(mStaticRing1);
+
+            long misses = signerCache.getMissCount();
+            verifySignedLiteral(ciphertext, plaintext);
+            Assert.assertEquals("signer must be resolved again after a write", misses + 1, signerCache.getMissCount());
+        }
+
+    }
+
+    private void verifySignedLiteral(byte[] ciphertext, String plaintext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+        InputData data = new InputData(in, in.available());
+
+        PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+        PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+        DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+        Assert.assertTrue("verification must succeed", result.success());
+        Assert.assertArrayEquals("verification text should equal plaintext",
+                out.toByteArray(), plaintext.getBytes());
+        Assert.assertEquals("signatureResult should be RESULT_VALID_CONFIRMED",
+                OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, result.getSignatureResult().getResult());
+    }
+
     @Test
     public void testAsymmetricSignCleartext() {
 
@@ -561,6 +627,129 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testAsymmetricDecryptSessionKeyCached() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // encrypt data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+            pgpData.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date()),
+                    data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        Preferences.getPreferences(RuntimeEnvironment.application).setSessionKeyCache(true);
+        SessionKeyCache sessionKeyCache = SessionKeyCache.getInstance(RuntimeEnvironment.application);
+        try {
+
+            { // decryption with provided passphrase doesn't cache the session key
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+                DecryptVerifyResult result = op.execute(input,
+                        CryptoInputParcel.createCryptoInputParcel(mKeyPhrase1), data, out);
+
+                Assert.assertTrue("decryption with provided passphrase must succeed", result.success());
+                Assert.assertEquals("session key must only be cached along with its passphrase",
+                        0, sessionKeyCache.size());
+            }
+
+            { // decryption with cached passphrase caches the session key
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                        mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+                DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+                Assert.assertTrue("decryption with cached passphrase must succeed", result.success());
+                Assert.assertFalse("session key must not come from the cache yet",
+                        result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+                Assert.assertEquals("session key must be cached", 1, sessionKeyCache.size());
+            }
+
+            { // decryption without passphrase succeeds with the cached session key
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                        null, mStaticRing1.getMasterKeyId(), null);
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+                DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+                Assert.assertTrue("decryption with cached session key must succeed", result.success());
+                Assert.assertArrayEquals("decrypted ciphertext with cached session key should equal plaintext",
+                        out.toByteArray(), plaintext.getBytes());
+                Assert.assertTrue("session key must come from the cache",
+                        result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            }
+
+            { // the cached session key is not used if its key isn't allowed
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                ArrayList<Long> allowed = new ArrayList<>();
+                allowed.add(mStaticRing2.getMasterKeyId());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                        null, mStaticRing1.getMasterKeyId(), null);
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                        .setAllowedKeyIds(allowed)
+                        .build();
+                DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+                Assert.assertEquals("decryption must fail with key disallowed status",
+                        DecryptVerifyResult.RESULT_KEY_DISALLOWED, result.getResult());
+            }
+
+            sessionKeyCache.clear();
+
+            { // once wiped, the passphrase is required again
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+                InputData data = new InputData(in, in.available());
+
+                PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                        null, mStaticRing1.getMasterKeyId(), null);
+                PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+                DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+                Assert.assertTrue("decryption after wipe should return pending", result.isPending());
+                Assert.assertEquals("decryption after wipe should return pending passphrase",
+                        RequiredInputType.PASSPHRASE, result.getRequiredInputParcel().mType);
+            }
+
+        } finally {
+            sessionKeyCache.clear();
+            Preferences.getPreferences(RuntimeEnvironment.application).setSessionKeyCache(false);
+        }
+
+    }
+
     @Test
     public void testMultiSubkeyEncryptSkipStripOrBadFlag() throws Exception {
 
@@ -855,6 +1044,92 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testManyRecipientsEncryptDecrypt() throws Exception {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // encrypt to enough subkeys that session key packets are generated in parallel
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            // the second key is listed twice, but must only be encrypted to once
+            pgpData.setEncryptionMasterKeyIds(new long[] {
+                    mStaticRing1.getMasterKeyId(),
+                    mStaticRing2.getMasterKeyId(),
+                    mStaticRingInsecure.getMasterKeyId(),
+                    mStaticRing2.getMasterKeyId()
+            });
+            pgpData.setSymmetricEncryptionAlgorithm(
+                    PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date()),
+                    data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+
+            Iterator<RawPacket> packets = KeyringTestingHelper.parseKeyring(ciphertext);
+            long[] expectedKeyIds = new long[] {
+                    KeyringTestingHelper.getSubkeyId(mStaticRing1, 2),
+                    KeyringTestingHelper.getSubkeyId(mStaticRing1, 3),
+                    KeyringTestingHelper.getSubkeyId(mStaticRing2, 2),
+                    KeyringTestingHelper.getSubkeyId(mStaticRingInsecure, 2),
+            };
+            ArrayList<Long> encKeyIds = new ArrayList<>();
+            for (int i = 0; i < expectedKeyIds.length; i++) {
+                Packet p = new BCPGInputStream(new ByteArrayInputStream(packets.next().buf)).readPacket();
+                Assert.assertTrue("packet must be session packet", p instanceof PublicKeyEncSessionPacket);
+                encKeyIds.add(((PublicKeyEncSessionPacket) p).getKeyID());
+            }
+            Assert.assertEquals("last packet must be encrypted data packet",
+                    PacketTags.SYM_ENC_INTEGRITY_PRO, packets.next().tag);
+            Assert.assertFalse("no further packets", packets.hasNext());
+
+            Assert.assertThat("first packet must be encrypted to one of the first key's subkeys",
+                    encKeyIds.get(0), anyOf(is(expectedKeyIds[0]), is(expectedKeyIds[1])));
+            Assert.assertThat("second packet must be encrypted to one of the first key's subkeys",
+                    encKeyIds.get(1), anyOf(is(expectedKeyIds[0]), is(expectedKeyIds[1])));
+            Assert.assertNotEquals("encrypted-to subkey ids must not be equal",
+                    encKeyIds.get(0), encKeyIds.get(1));
+            Assert.assertEquals("third packet must be encrypted to the second key",
+                    expectedKeyIds[2], (long) encKeyIds.get(2));
+            Assert.assertEquals("fourth packet must be encrypted to the third key",
+                    expectedKeyIds[3], (long) encKeyIds.get(3));
+        }
+
+        { // decryption with passphrase cached should succeed for the second key
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            ArrayList<Long> allowed = new ArrayList<>();
+            allowed.add(mStaticRing2.getMasterKeyId());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase2, mStaticRing2.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder()
+                    .setAllowedKeyIds(allowed)
+                    .build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached passphrase must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext with cached passphrase should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+        }
+
+    }
+
     @Test
     public void testMultiAsymmetricSignEncryptDecryptVerify() {
 
@@ -935,6 +1210,59 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testPipelinedSignEncryptDecryptVerify() {
+
+        // several chunks worth of data, so the stages actually overlap
+        byte[] plaintext = new byte[5 * (1 << 16) + 123];
+        new Random(42).nextBytes(plaintext);
+        byte[] ciphertext;
+
+        { // sign and encrypt with compression and armor, so all stages are in use
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.create(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData.Builder pgpData = PgpSignEncryptData.builder();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing2.getMasterKeyId() });
+            pgpData.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            pgpData.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            pgpData.setCompressionAlgorithm(CompressionAlgorithmTags.ZLIB);
+            pgpData.setEnableAsciiArmorOutput(true);
+            pgpData.setEnablePipelinedProcessing(true);
+
+            PgpSignEncryptResult result = op.execute(pgpData.build(),
+                    CryptoInputParcel.createCryptoInputParcel(new Date(), mKeyPhrase1), data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+            Assert.assertTrue("pipeline stages must be logged",
+                    result.getLog().containsType(LogType.MSG_PSE_PIPELINE_STAGE));
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // decryption must yield the exact plaintext and a valid signature
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase2, mStaticRing2.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = PgpDecryptVerifyInputParcel.builder().build();
+            DecryptVerifyResult result = op.execute(input, CryptoInputParcel.createCryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertArrayEquals("decrypted ciphertext should equal plaintext",
+                    plaintext, out.toByteArray());
+            Assert.assertEquals("signature should be verified and certified",
+                    OpenPgpSignatureResult.RESULT_VALID_KEY_CONFIRMED, result.getSignatureResult().getResult());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
@@ -0,0 +1,566 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.app.Application;
+import android.support.annotation.NonNull;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainCompressionAlgorithmTags;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Throughput benchmarks for the message processing hot paths: sign/encrypt, decrypt/verify,
+ * signature checking, and keyring canonicalization and merging.
+ * <p>
+ * These run in the local JVM like all other unit tests, but are skipped unless the
+ * keychain.benchmark system property is set, e.g.
+ * <pre>./gradlew :OpenKeychain:testFdroidDebugUnitTest -Dkeychain.benchmark=true \
+ *         --tests '*PgpOperationsBenchmarkTest'</pre>
+ * The parameter space can be narrowed with keychain.benchmark.sizes (comma separated payload
+ * sizes in bytes), keychain.benchmark.iterations and keychain.benchmark.warmup. The streaming
+ * decrypt benchmark uses keychain.benchmark.stream.sizes instead, reports peak heap usage, and
+ * fails if the live heap grows by more than a fixed bound.
+ * The number of user ids of the large keyring for canonicalization is set by
+ * keychain.benchmark.uids.
+ */
+@RunWith(KeychainTestRunner.class)
+public class PgpOperationsBenchmarkTest {
+    private static final String PROPERTY_ENABLED = "keychain.benchmark";
+    private static final String PROPERTY_SIZES = "keychain.benchmark.sizes";
+    private static final String PROPERTY_ITERATIONS = "keychain.benchmark.iterations";
+    private static final String PROPERTY_WARMUP = "keychain.benchmark.warmup";
+    private static final String PROPERTY_STREAM_SIZES = "keychain.benchmark.stream.sizes";
+    private static final String PROPERTY_USER_IDS = "keychain.benchmark.uids";
+
+    // streaming buffers are a few hundred KiB at most, well below the smallest stream size
+    private static final long MAX_STREAMING_LIVE_HEAP = 32 * 1024 * 1024;
+
+    private static final int[] CIPHERS = {
+            OpenKeychainSymmetricKeyAlgorithmTags.AES_128,
+            OpenKeychainSymmetricKeyAlgorithmTags.AES_256,
+    };
+    private static final int[] COMPRESSIONS = {
+            OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED,
+            OpenKeychainCompressionAlgorithmTags.ZLIB,
+    };
+    private static final boolean[] ARMOR = { false, true };
+
+    private static PrintStream oldShadowStream;
+    private static List<BenchmarkKey> benchmarkKeys;
+    private static int[] payloadSizes;
+    private static int iterations;
+    private static int warmup;
+
+    private Application context;
+    private KeyWritableRepository keyRepository;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Assume.assumeTrue("benchmarks are only run with -D" + PROPERTY_ENABLED,
+                System.getProperty(PROPERTY_ENABLED) != null);
+
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        oldShadowStream = ShadowLog.stream;
+
+        payloadSizes = parseSizes(System.getProperty(PROPERTY_SIZES, "1024,1048576,16777216"));
+        iterations = Integer.parseInt(System.getProperty(PROPERTY_ITERATIONS, "5"));
+        warmup = Integer.parseInt(System.getProperty(PROPERTY_WARMUP, "2"));
+
+        benchmarkKeys = new ArrayList<>();
+        benchmarkKeys.add(new BenchmarkKey("rsa", createKey(
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 3072, null, KeyFlags.CERTIFY_OTHER, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 3072, null, KeyFlags.SIGN_DATA, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 3072, null, KeyFlags.ENCRYPT_COMMS, 0L))));
+        benchmarkKeys.add(new BenchmarkKey("ecc", createKey(
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L))));
+        // there is no cv25519 support for key creation, so the eddsa key encrypts with ecdh over p-256
+        benchmarkKeys.add(new BenchmarkKey("eddsa", createKey(
+                SubkeyAdd.createSubkeyAdd(Algorithm.EDDSA, 0, null, KeyFlags.CERTIFY_OTHER, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.EDDSA, 0, null, KeyFlags.SIGN_DATA, 0L),
+                SubkeyAdd.createSubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L))));
+    }
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.application;
+        keyRepository = KeyWritableRepository.create(context);
+
+        // don't log verbosely here, we're not here to test imports
+        ShadowLog.stream = oldShadowStream;
+        for (BenchmarkKey key : benchmarkKeys) {
+            Assert.assertTrue(keyRepository.saveSecretKeyRing(key.ring).success());
+        }
+    }
+
+    @Test
+    public void benchmarkSignEncryptDecryptVerify() throws Exception {
+        printHeader("sign+encrypt / decrypt+verify");
+
+        for (BenchmarkKey key : benchmarkKeys) {
+            for (int size : payloadSizes) {
+                byte[] plaintext = randomBytes(size);
+                for (int cipher : CIPHERS) {
+                    for (int compression : COMPRESSIONS) {
+                        for (boolean armor : ARMOR) {
+                            PgpSignEncryptData data = PgpSignEncryptData.builder()
+                                    .setSignatureMasterKeyId(key.masterKeyId)
+                                    .setEncryptionMasterKeyIds(new long[] { key.masterKeyId })
+                                    .setSymmetricEncryptionAlgorithm(cipher)
+                                    .setCompressionAlgorithm(compression)
+                                    .setEnableAsciiArmorOutput(armor)
+                                    .build();
+                            String label = String.format(Locale.ENGLISH, "%s/%s/%s/%s", key.name,
+                                    cipherName(cipher), compressionName(compression), armor ? "armor" : "binary");
+
+                            byte[] ciphertext = null;
+                            long encryptNanos = 0;
+                            for (int i = -warmup; i < iterations; i++) {
+                                long start = System.nanoTime();
+                                ciphertext = signEncrypt(data, plaintext);
+                                if (i >= 0) {
+                                    encryptNanos += System.nanoTime() - start;
+                                }
+                            }
+                            printResult("encrypt " + label, size, encryptNanos);
+
+                            long decryptNanos = 0;
+                            for (int i = -warmup; i < iterations; i++) {
+                                long start = System.nanoTime();
+                                decryptVerify(PgpDecryptVerifyInputParcel.builder(), ciphertext);
+                                if (i >= 0) {
+                                    decryptNanos += System.nanoTime() - start;
+                                }
+                            }
+                            printResult("decrypt " + label, size, decryptNanos);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkSignatureChecker() throws Exception {
+        printHeader("detached signature verification");
+
+        for (BenchmarkKey key : benchmarkKeys) {
+            for (int size : payloadSizes) {
+                byte[] plaintext = randomBytes(size);
+
+                PgpSignEncryptData data = PgpSignEncryptData.builder()
+                        .setSignatureMasterKeyId(key.masterKeyId)
+                        .setDetachedSignature(true)
+                        .build();
+                PgpSignEncryptResult signResult = signEncryptResult(data, plaintext, new ByteArrayOutputStream());
+                byte[] detachedSignature = signResult.getDetachedSignature();
+
+                long verifyNanos = 0;
+                for (int i = -warmup; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    decryptVerify(PgpDecryptVerifyInputParcel.builder()
+                            .setDetachedSignature(detachedSignature), plaintext);
+                    if (i >= 0) {
+                        verifyNanos += System.nanoTime() - start;
+                    }
+                }
+                printResult("verify " + key.name, size, verifyNanos);
+            }
+        }
+    }
+
+    @Test
+    public void benchmarkCanonicalizeAndMerge() throws Exception {
+        printHeader("canonicalize / merge");
+
+        List<UncachedKeyRing> rings = new ArrayList<>();
+        for (BenchmarkKey key : benchmarkKeys) {
+            rings.add(key.ring.extractPublicKeyRing());
+        }
+        rings.add(UncachedKeyRing.fromStream(
+                getClass().getResourceAsStream("/test-keys/testring.pub")).next());
+
+        for (UncachedKeyRing ring : rings) {
+            String label = String.format(Locale.ENGLISH, "%016x", ring.getMasterKeyId());
+            int size = ring.getEncoded().length;
+
+            long canonicalizeNanos = 0;
+            for (int i = -warmup; i < iterations; i++) {
+                long start = System.nanoTime();
+                Assert.assertNotNull(ring.canonicalize(new OperationLog(), 0));
+                if (i >= 0) {
+                    canonicalizeNanos += System.nanoTime() - start;
+                }
+            }
+            printResult("canonicalize " + label, size, canonicalizeNanos);
+
+            long mergeNanos = 0;
+            for (int i = -warmup; i < iterations; i++) {
+                long start = System.nanoTime();
+                Assert.assertNotNull(ring.merge(ring, new OperationLog(), 0));
+                if (i >= 0) {
+                    mergeNanos += System.nanoTime() - start;
+                }
+            }
+            printResult("merge " + label, size, mergeNanos);
+        }
+    }
+
+    @Test
+    public void benchmarkCanonicalizeLargeKeyRing() throws Exception {
+        int userIds = Integer.parseInt(System.getProperty(PROPERTY_USER_IDS, "200"));
+        printHeader("canonicalize " + userIds + " user ids");
+
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 3072, null, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.RSA, 3072, null, KeyFlags.SIGN_DATA, 0L));
+        for (int i = 0; i < userIds; i++) {
+            builder.addUserId("bench " + i + " <bench" + i + "@example.com>");
+        }
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("benchmark key creation must succeed", result.success());
+        UncachedKeyRing ring = result.getRing().extractPublicKeyRing();
+        int size = ring.getEncoded().length;
+
+        byte[] sequentialEncoded = null, parallelEncoded = null;
+        for (boolean parallel : new boolean[] { false, true }) {
+            CanonicalizeSignatureVerifier.setParallelVerificationEnabled(parallel);
+            try {
+                long nanos = 0;
+                for (int i = -warmup; i < iterations; i++) {
+                    long start = System.nanoTime();
+                    CanonicalizedKeyRing canonicalized = ring.canonicalize(new OperationLog(), 0);
+                    if (i >= 0) {
+                        nanos += System.nanoTime() - start;
+                    }
+                    Assert.assertNotNull(canonicalized);
+                    if (parallel) {
+                        parallelEncoded = canonicalized.getEncoded();
+                    } else {
+                        sequentialEncoded = canonicalized.getEncoded();
+                    }
+                }
+                printResult("canonicalize " + (parallel ? "parallel" : "sequential"), size, nanos);
+            } finally {
+                CanonicalizeSignatureVerifier.setParallelVerificationEnabled(true);
+            }
+        }
+
+        Assert.assertArrayEquals("parallel canonicalization must be byte-identical",
+                sequentialEncoded, parallelEncoded);
+    }
+
+    @Test
+    public void benchmarkStreamingDecryptHeap() throws Exception {
+        printHeader("streaming decrypt, peak heap");
+
+        int[] streamSizes = parseSizes(System.getProperty(PROPERTY_STREAM_SIZES, "16777216,67108864,268435456"));
+        BenchmarkKey key = benchmarkKeys.get(1);
+        PgpSignEncryptData data = PgpSignEncryptData.builder()
+                .setEncryptionMasterKeyIds(new long[] { key.masterKeyId })
+                .setCompressionAlgorithm(OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED)
+                .build();
+
+        for (int size : streamSizes) {
+            File ciphertextFile = File.createTempFile("benchmark", ".pgp");
+            try {
+                // encrypt a generated stream into a file, so neither side is ever held in memory
+                InputStream plaintextIn = new RandomInputStream(size);
+                FileOutputStream ciphertextOut = new FileOutputStream(ciphertextFile);
+                PgpSignEncryptResult encryptResult = new PgpSignEncryptOperation(context, keyRepository, null)
+                        .execute(data, CryptoInputParcel.createCryptoInputParcel(new Date()),
+                                new InputData(plaintextIn, size), ciphertextOut);
+                Assert.assertTrue("encryption must succeed", encryptResult.success());
+
+                HeapSampler heapSampler = new HeapSampler(false);
+                long start = System.nanoTime();
+                decryptToDiscardingChannel(ciphertextFile, size);
+                long nanos = System.nanoTime() - start;
+                long peakHeap = heapSampler.stop();
+
+                // second pass with a collection before each sample, which measures what is actually
+                // retained rather than how lazily the collector runs
+                HeapSampler liveHeapSampler = new HeapSampler(true);
+                decryptToDiscardingChannel(ciphertextFile, size);
+                long peakLiveHeap = liveHeapSampler.stop();
+
+                System.out.println(String.format(Locale.ENGLISH,
+                        "%-40s %12d %12.2f %12.2f  peak heap +%d KiB, live +%d KiB",
+                        "decrypt channel " + key.name, size, nanos / 1e6,
+                        (size / (1024.0 * 1024.0)) / (nanos / 1e9), peakHeap / 1024, peakLiveHeap / 1024));
+                Assert.assertTrue("streaming decryption must not retain memory in proportion to the message, "
+                        + "live heap grew by " + peakLiveHeap + " bytes for " + size + " bytes",
+                        peakLiveHeap < MAX_STREAMING_LIVE_HEAP);
+            } finally {
+                //noinspection ResultOfMethodCallIgnored
+                ciphertextFile.delete();
+            }
+        }
+    }
+
+    private void decryptToDiscardingChannel(File ciphertextFile, int size) throws IOException {
+        FileInputStream ciphertextIn = new FileInputStream(ciphertextFile);
+        try {
+            DecryptVerifyResult result = new PgpDecryptVerifyOperation(context, keyRepository, null)
+                    .execute(PgpDecryptVerifyInputParcel.builder().build(),
+                            CryptoInputParcel.createCryptoInputParcel(), ciphertextIn.getChannel(),
+                            ciphertextFile.length(), new DiscardingChannel());
+            Assert.assertTrue("decryption must succeed", result.success());
+            Assert.assertEquals(size, result.getDecryptionMetadata().getOriginalSize());
+        } finally {
+            ciphertextIn.close();
+        }
+    }
+
+    private byte[] signEncrypt(PgpSignEncryptData data, byte[] plaintext) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        signEncryptResult(data, plaintext, out);
+        return out.toByteArray();
+    }
+
+    private PgpSignEncryptResult signEncryptResult(PgpSignEncryptData data, byte[] plaintext,
+            ByteArrayOutputStream out) {
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext);
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(context, keyRepository, null);
+        PgpSignEncryptResult result = op.execute(data, CryptoInputParcel.createCryptoInputParcel(new Date()),
+                new InputData(in, plaintext.length), out);
+        Assert.assertTrue("sign/encrypt must succeed", result.success());
+        return result;
+    }
+
+    private void decryptVerify(PgpDecryptVerifyInputParcel.Builder builder, byte[] input) {
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(context, keyRepository, null);
+        DecryptVerifyResult result = op.execute(builder.build(), CryptoInputParcel.createCryptoInputParcel(),
+                new InputData(in, input.length), new ByteArrayOutputStream());
+        Assert.assertTrue("decrypt/verify must succeed", result.success());
+    }
+
+    private static UncachedKeyRing createKey(SubkeyAdd... subkeys) {
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        for (SubkeyAdd subkey : subkeys) {
+            builder.addSubkeyAdd(subkey);
+        }
+        builder.addUserId("bench");
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        Assert.assertTrue("benchmark key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    private static int[] parseSizes(String sizes) {
+        String[] pieces = sizes.split(",");
+        int[] result = new int[pieces.length];
+        for (int i = 0; i < pieces.length; i++) {
+            result[i] = Integer.parseInt(pieces[i].trim());
+        }
+        return result;
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] buf = new byte[size];
+        new Random(size).nextBytes(buf);
+        return buf;
+    }
+
+    private static String cipherName(int cipher) {
+        switch (cipher) {
+            case OpenKeychainSymmetricKeyAlgorithmTags.AES_128: return "aes128";
+            case OpenKeychainSymmetricKeyAlgorithmTags.AES_256: return "aes256";
+            default: return Integer.toString(cipher);
+        }
+    }
+
+    private static String compressionName(int compression) {
+        switch (compression) {
+            case OpenKeychainCompressionAlgorithmTags.UNCOMPRESSED: return "none";
+            case OpenKeychainCompressionAlgorithmTags.ZLIB: return "zlib";
+            default: return Integer.toString(compression);
+        }
+    }
+
+    private static void printHeader(String title) {
+        System.out.println();
+        System.out.println("== " + title + " (" + iterations + " iterations, " + warmup + " warmup)");
+        System.out.println(String.format(Locale.ENGLISH, "%-40s %12s %12s %12s",
+                "benchmark", "bytes", "ms/op", "MiB/s"));
+    }
+
+    private static void printResult(String label, int size, long totalNanos) {
+        double msPerOp = totalNanos / 1e6 / iterations;
+        double mibPerSecond = (size / (1024.0 * 1024.0)) / (msPerOp / 1000.0);
+        System.out.println(String.format(Locale.ENGLISH, "%-40s %12d %12.2f %12.2f",
+                label, size, msPerOp, mibPerSecond));
+    }
+
+    /** Generates pseudo-random data of a fixed length, without ever buffering it. */
+    private static class RandomInputStream extends InputStream {
+        private final Random random;
+        private long remaining;
+
+        RandomInputStream(long size) {
+            random = new Random(size);
+            remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining -= 1;
+            return random.nextInt(256);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(len, remaining);
+            byte[] chunk = new byte[count];
+            random.nextBytes(chunk);
+            System.arraycopy(chunk, 0, b, off, count);
+            remaining -= count;
+            return count;
+        }
+    }
+
+    private static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int remaining = src.remaining();
+            src.position(src.limit());
+            return remaining;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Polls used heap in the background, reporting the peak above the baseline at start. If
+     * collecting, each sample is preceded by a collection, so only reachable objects are counted.
+     */
+    private static class HeapSampler implements Runnable {
+        private final Thread thread;
+        private final boolean collecting;
+        private final long baseline;
+        private volatile boolean running = true;
+        private volatile long peak;
+
+        HeapSampler(boolean collecting) {
+            this.collecting = collecting;
+            System.gc();
+            baseline = usedHeap();
+            thread = new Thread(this, "heap-sampler");
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                if (collecting) {
+                    System.gc();
+                }
+                peak = Math.max(peak, usedHeap() - baseline);
+                try {
+                    Thread.sleep(collecting ? 50 : 5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stop() throws InterruptedException {
+            running = false;
+            thread.join();
+            return peak;
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+
+    private static class BenchmarkKey {
+        final String name;
+        final UncachedKeyRing ring;
+        final long masterKeyId;
+
+        BenchmarkKey(String name, UncachedKeyRing ring) {
+            this.name = name;
+            this.ring = ring;
+            this.masterKeyId = ring.getMasterKeyId();
+        }
+    }
+
+}
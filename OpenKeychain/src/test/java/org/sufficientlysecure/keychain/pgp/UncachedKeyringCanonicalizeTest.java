@@ -43,6 +43,7 @@ import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.Strings;
 import org.junit.Assert;
 import org.junit.Before;
@@ -66,10 +67,12 @@ import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 
 
@@ -140,6 +143,86 @@ public class UncachedKeyringCanonicalizeTest {
                 .getSecretKey();
     }
 
+    /** Parallel verification of self signatures must not change the canonical form or the log. */
+    @Test public void testParallelVerificationIdentical() throws Exception {
+
+        UncachedKeyRing[] rings = {
+                ring,
+                ring.extractPublicKeyRing(),
+                UncachedKeyRing.fromStream(getClass().getResourceAsStream("/test-keys/testring.pub")).next(),
+        };
+
+        for (UncachedKeyRing testRing : rings) {
+            OperationLog sequentialLog = new OperationLog();
+            OperationLog parallelLog = new OperationLog();
+            CanonicalizedKeyRing sequential, parallel;
+            try {
+                CanonicalizeSignatureVerifier.setParallelVerificationEnabled(false);
+                sequential = testRing.canonicalize(sequentialLog, 0);
+            } finally {
+                CanonicalizeSignatureVerifier.setParallelVerificationEnabled(true);
+            }
+            parallel = testRing.canonicalize(parallelLog, 0);
+
+            Assert.assertNotNull("sequential canonicalization must succeed", sequential);
+            Assert.assertNotNull("parallel canonicalization must succeed", parallel);
+            Assert.assertArrayEquals("canonical forms must be identical",
+                    sequential.getEncoded(), parallel.getEncoded());
+
+            Assert.assertEquals("logs must have the same size",
+                    sequentialLog.toList().size(), parallelLog.toList().size());
+            for (int i = 0; i < sequentialLog.toList().size(); i++) {
+                Assert.assertEquals("log entries must be identical",
+                        sequentialLog.toList().get(i).mType, parallelLog.toList().get(i).mType);
+                Assert.assertEquals("log entries must be identical",
+                        sequentialLog.toList().get(i).mIndent, parallelLog.toList().get(i).mIndent);
+            }
+        }
+
+    }
+
+    @Test public void testVerifiedSignatureCache() throws Exception {
+
+        final HashMap<ByteBuffer, Boolean> results = new HashMap<>();
+        final int[] lookups = { 0 }, puts = { 0 };
+        VerifiedSignatureCache cache = new VerifiedSignatureCache() {
+            @Override
+            public Boolean getVerificationResult(byte[] signatureDigest, byte[] signerFingerprint) {
+                lookups[0] += 1;
+                return results.get(ByteBuffer.wrap(Arrays.concatenate(signatureDigest, signerFingerprint)));
+            }
+
+            @Override
+            public void putVerificationResult(byte[] signatureDigest, byte[] signerFingerprint, boolean verified) {
+                puts[0] += 1;
+                results.put(ByteBuffer.wrap(Arrays.concatenate(signatureDigest, signerFingerprint)), verified);
+            }
+        };
+
+        CanonicalizedKeyRing uncached = ring.canonicalize(new OperationLog(), 0);
+        CanonicalizedKeyRing first = ring.canonicalize(new OperationLog(), 0, false, cache);
+        Assert.assertNotNull("canonicalization must succeed", first);
+        Assert.assertArrayEquals("canonical forms must be identical", uncached.getEncoded(), first.getEncoded());
+        Assert.assertFalse("verification results must be cached", results.isEmpty());
+        Assert.assertEquals("each result must be put once", results.size(), puts[0]);
+
+        lookups[0] = 0;
+        puts[0] = 0;
+        CanonicalizedKeyRing second = ring.canonicalize(new OperationLog(), 0, false, cache);
+        Assert.assertNotNull("canonicalization must succeed", second);
+        Assert.assertArrayEquals("canonical forms must be identical", uncached.getEncoded(), second.getEncoded());
+        Assert.assertTrue("all results must be looked up", lookups[0] >= results.size());
+        Assert.assertEquals("no results must be put again", 0, puts[0]);
+
+        // cached results are trusted, so if all of them say invalid, nothing is left
+        for (ByteBuffer key : results.keySet()) {
+            results.put(key, false);
+        }
+        Assert.assertNull("canonicalization must fail with only invalid self certificates",
+                ring.canonicalize(new OperationLog(), 0, false, cache));
+
+    }
+
     /** Make sure the assumptions made about the generated ring packet structure are valid. */
     @Test public void testGeneratedRingStructure() throws Exception {
 
@@ -183,6 +183,31 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    @Test
+    public void testSubsetMergeReturnsSameRing() throws Exception {
+
+        UncachedKeyRing modifiedA; {
+            CanonicalizedSecretKeyRing secretRing =
+                    new CanonicalizedSecretKeyRing(ringA.getEncoded(), 0);
+
+            resetBuilder();
+            builder.addUserId("flim");
+            modifiedA = op.modifySecretKeyRing(secretRing,
+                    CryptoInputParcel.createCryptoInputParcel(new Date(), new Passphrase()), builder.build()).getRing();
+        }
+
+        UncachedKeyRing pubA = ringA.extractPublicKeyRing();
+        UncachedKeyRing pubModifiedA = modifiedA.extractPublicKeyRing();
+
+        Assert.assertSame("merging a subset must return the keyring itself",
+                pubModifiedA, pubModifiedA.merge(pubA, log, 0));
+        Assert.assertSame("merging a keyring with itself must return the keyring itself",
+                pubA, pubA.merge(pubA, log, 0));
+        Assert.assertNotSame("merging new data must return a new keyring",
+                pubA, pubA.merge(pubModifiedA, log, 0));
+
+    }
+
     @Test
     public void testAddedUserId() throws Exception {
 
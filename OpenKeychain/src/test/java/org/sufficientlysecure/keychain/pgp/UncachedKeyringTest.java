@@ -29,6 +29,7 @@ import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.KeyRingHeader;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
@@ -117,6 +118,21 @@ public class UncachedKeyringTest {
             UncachedKeyRing.decodeFromData(out.toByteArray()).getEncoded());
     }
 
+    @Test
+    public void testPeekHeader() throws Exception {
+        KeyRingHeader header = UncachedKeyRing.peekHeader(ring.getEncoded());
+        Assert.assertEquals("master key id of secret ring must match",
+                ring.getMasterKeyId(), header.getMasterKeyId());
+        Assert.assertTrue("secret ring must be recognized as secret", header.isSecret());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pubRing.encodeArmored(out, "OpenKeychain");
+        header = UncachedKeyRing.peekHeader(out.toByteArray());
+        Assert.assertEquals("master key id of armored public ring must match",
+                pubRing.getMasterKeyId(), header.getMasterKeyId());
+        Assert.assertFalse("public ring must not be recognized as secret", header.isSecret());
+    }
+
     @Test(expected = PgpGeneralException.class)
     public void testDecodeEncodeMulti() throws Exception {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -18,6 +18,8 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
@@ -35,9 +37,18 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Preferences;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(KeychainTestRunner.class)
 public class KeyRepositorySaveTest {
@@ -245,6 +256,257 @@ public class KeyRepositorySaveTest {
 
     }
 
+    @Test public void testBulkImport() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+
+        SaveKeyringResult result;
+
+        mDatabaseInteractor.beginBulkImport();
+
+        result = mDatabaseInteractor.savePublicKeyRing(first);
+        Assert.assertTrue("import of first keyring should succeed", result.success());
+        Assert.assertFalse("first keyring should be new", result.updated());
+        result = mDatabaseInteractor.savePublicKeyRing(second);
+        Assert.assertTrue("import of second keyring should succeed", result.success());
+
+        try {
+            mDatabaseInteractor.getCanonicalizedPublicKeyRing(second.getMasterKeyId());
+            Assert.fail("keyring should not be in the database before the bulk import is finished");
+        } catch (KeyRepository.NotFoundException e) {
+            // expected
+        }
+
+        // saving a pending keyring again must merge with the pending version
+        result = mDatabaseInteractor.savePublicKeyRing(first);
+        Assert.assertTrue("second import of first keyring should succeed", result.success());
+        Assert.assertTrue("first keyring should be updated the second time", result.updated());
+
+        Assert.assertTrue("no keyring should fail to be written",
+                mDatabaseInteractor.finishBulkImport().isEmpty());
+        Assert.assertFalse("bulk import should be finished", mDatabaseInteractor.isBulkImportRunning());
+
+        Assert.assertEquals("first keyring should be in the database after the bulk import",
+                first.getMasterKeyId(),
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(first.getMasterKeyId()).getMasterKeyId());
+        Assert.assertEquals("second keyring should be in the database after the bulk import",
+                second.getMasterKeyId(),
+                mDatabaseInteractor.getCanonicalizedPublicKeyRing(second.getMasterKeyId()).getMasterKeyId());
+
+    }
+
+    @Test public void testTrustedKeyCache() throws Exception {
+
+        TrustedKeyCache cache = TrustedKeyCache.getInstance(RuntimeEnvironment.application);
+
+        SaveKeyringResult result;
+
+        result = mDatabaseInteractor.savePublicKeyRing(
+                readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc"));
+        Assert.assertTrue("import of first keyring should succeed", result.success());
+
+        long hits = cache.getHitCount();
+        long misses = cache.getMissCount();
+        result = mDatabaseInteractor.savePublicKeyRing(
+                readRingFromResource("/test-keys/bad_user_id_encoding.asc"));
+        Assert.assertTrue("import of second keyring should succeed", result.success());
+        Assert.assertEquals("trusted keys should be taken from the cache", hits + 1, cache.getHitCount());
+        Assert.assertEquals("trusted keys should not be loaded again", misses, cache.getMissCount());
+
+        long invalidations = cache.getInvalidationCount();
+        UncachedKeyRing sec = readRingFromResource("/test-keys/divert_to_card_sec.asc");
+        result = mDatabaseInteractor.saveSecretKeyRing(sec);
+        Assert.assertTrue("import of secret keyring should succeed", result.success());
+        Assert.assertTrue("secret key import should invalidate the cache",
+                cache.getInvalidationCount() > invalidations);
+
+        result = mDatabaseInteractor.savePublicKeyRing(
+                readRingFromResource("/test-keys/symantec_public.asc"));
+        Assert.assertTrue("import of third keyring should succeed", result.success());
+        Assert.assertTrue("cached trusted keys should include the new secret key",
+                cache.get().indexOfKey(sec.getMasterKeyId()) >= 0);
+
+    }
+
+    @Test public void testPublicKeyRingCache() throws Exception {
+
+        PublicKeyRingCache cache = PublicKeyRingCache.getInstance(RuntimeEnvironment.application);
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = ring.getMasterKeyId();
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(ring);
+        Assert.assertTrue("import of keyring should succeed", result.success());
+
+        long hits = cache.getHitCount();
+        CanonicalizedPublicKeyRing first = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        CanonicalizedPublicKeyRing second = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("second load should be taken from the cache", first, second);
+        Assert.assertEquals("second load should be counted as a hit", hits + 1, cache.getHitCount());
+        Assert.assertTrue("cache should account for the retained keyring", cache.getRetainedBytes() > 0);
+
+        result = mDatabaseInteractor.savePublicKeyRing(ring, true);
+        Assert.assertTrue("second import of keyring should succeed", result.success());
+        CanonicalizedPublicKeyRing third = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertNotSame("saving the keyring should invalidate the cache", first, third);
+
+        Assert.assertTrue("deleting the keyring should succeed", mDatabaseInteractor.deleteKeyRing(masterKeyId));
+        Assert.assertEquals("deleting the keyring should release its bytes", 0, cache.getRetainedBytes());
+
+    }
+
+    @Test public void testPublicKeyRingCacheConcurrentPrimaryUserId() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        final long masterKeyId = ring.getMasterKeyId();
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(ring);
+        Assert.assertTrue("import of keyring should succeed", result.success());
+
+        final CanonicalizedPublicKeyRing cached = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        final String expected = cached.getPrimaryUserId();
+        Assert.assertNotNull("keyring should have a primary user id", expected);
+
+        // all threads verify the certificates of the one shared keyring at the same time
+        int threadCount = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        barrier.await();
+                        for (int j = 0; j < 20; j++) {
+                            CanonicalizedPublicKeyRing keyRing =
+                                    mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+                            if (keyRing != cached || !expected.equals(keyRing.getPrimaryUserId())) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                Assert.assertTrue("every thread should see the cached ring's primary user id",
+                        future.get(30, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    @Test public void testKeyserverContentDigest() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        long masterKeyId = ring.getMasterKeyId();
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(ring);
+        Assert.assertTrue("import of keyring should succeed", result.success());
+        Assert.assertNull("keyring not retrieved from keyserver should have no digest",
+                mDatabaseInteractor.getKeyserverContentDigest(masterKeyId));
+
+        byte[] digest = new byte[] { 1, 2, 3, 4 };
+        mDatabaseInteractor.renewKeyLastUpdatedTime(masterKeyId, true, digest);
+        Assert.assertArrayEquals(digest, mDatabaseInteractor.getKeyserverContentDigest(masterKeyId));
+
+        mDatabaseInteractor.renewKeyLastUpdatedTime(masterKeyId, false);
+        Assert.assertArrayEquals("renewing without digest should keep it",
+                digest, mDatabaseInteractor.getKeyserverContentDigest(masterKeyId));
+
+        result = mDatabaseInteractor.savePublicKeyRing(ring, true);
+        Assert.assertTrue("second import of keyring should succeed", result.success());
+        Assert.assertArrayEquals("rewriting the keyring should keep the digest",
+                digest, mDatabaseInteractor.getKeyserverContentDigest(masterKeyId));
+
+        mDatabaseInteractor.resetAllLastUpdatedTimes();
+        Assert.assertNull("reset should clear the digest", mDatabaseInteractor.getKeyserverContentDigest(masterKeyId));
+
+    }
+
+    @Test public void testVerifiedSignatureRepository() throws Exception {
+
+        byte[] digest = new byte[32], otherDigest = new byte[32], fingerprint = new byte[20];
+        otherDigest[0] = 1;
+
+        VerifiedSignatureRepository repository = VerifiedSignatureRepository.create(RuntimeEnvironment.application);
+        Assert.assertNull("unknown signature should have no result",
+                repository.getVerificationResult(digest, fingerprint));
+
+        repository.putVerificationResult(digest, fingerprint, true);
+        repository.putVerificationResult(otherDigest, fingerprint, false);
+        Assert.assertTrue("pending result should be returned", repository.getVerificationResult(digest, fingerprint));
+        repository.flush();
+        Assert.assertEquals("flush should write all pending results", 0, repository.getPendingResultCount());
+
+        // results must have been written to the database, not only kept by the shared connection
+        VerifiedSignatureRepository.closeSharedDatabase();
+        repository = VerifiedSignatureRepository.create(RuntimeEnvironment.application);
+        Assert.assertTrue("written result should be read back", repository.getVerificationResult(digest, fingerprint));
+        Assert.assertFalse("invalid signatures should be remembered as well",
+                repository.getVerificationResult(otherDigest, fingerprint));
+        Assert.assertNull("result should be bound to the signer",
+                repository.getVerificationResult(digest, new byte[20 - 1]));
+        repository.flush();
+
+        VerifiedSignatureRepository.clearAll(RuntimeEnvironment.application);
+        Assert.assertNull("cleared cache should not return results",
+                repository.getVerificationResult(digest, fingerprint));
+
+    }
+
+    @Test public void testSaveFillsVerifiedSignatures() throws Exception {
+
+        UncachedKeyRing ring = readRingFromResource("/test-keys/symantec_public.asc");
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(ring);
+        Assert.assertTrue("import of keyring should succeed", result.success());
+
+        byte[] fingerprint = ring.getFingerprint();
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().query(
+                KeychainDatabase.Tables.VERIFIED_SIGNATURES, null,
+                KeychainContract.VerifiedSignaturesColumns.VERIFIED + " = 1", null, null, null, null);
+        try {
+            Assert.assertTrue("self signatures should be cached after save", cursor.getCount() > 0);
+            while (cursor.moveToNext()) {
+                Assert.assertArrayEquals("self signatures should be cached for the master key", fingerprint,
+                        cursor.getBlob(cursor.getColumnIndexOrThrow(
+                                KeychainContract.VerifiedSignaturesColumns.SIGNER_FINGERPRINT)));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        result = mDatabaseInteractor.savePublicKeyRing(ring, true);
+        Assert.assertTrue("second import of keyring should succeed with cached results", result.success());
+
+    }
+
+    @Test public void testVerifiedSignatureCacheDisabled() throws Exception {
+
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        VerifiedSignatureRepository.clearAll(RuntimeEnvironment.application);
+        try {
+            preferences.setVerifiedSignatureCache(false);
+            KeyWritableRepository repository = KeyWritableRepository.create(RuntimeEnvironment.application);
+
+            SaveKeyringResult result = repository.savePublicKeyRing(
+                    readRingFromResource("/test-keys/symantec_public.asc"));
+            Assert.assertTrue("import of keyring should succeed", result.success());
+
+            Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase().query(
+                    KeychainDatabase.Tables.VERIFIED_SIGNATURES, null, null, null, null, null, null);
+            try {
+                Assert.assertEquals("disabled cache should not be filled", 0, cursor.getCount());
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            preferences.setVerifiedSignatureCache(true);
+        }
+
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
     }
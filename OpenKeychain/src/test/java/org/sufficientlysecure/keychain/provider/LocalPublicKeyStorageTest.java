@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+@RunWith(KeychainTestRunner.class)
+public class LocalPublicKeyStorageTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mTempFolder.newFolder();
+    }
+
+    @Test
+    public void testWriteReadDelete() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+        byte[] first = randomBytes(1, 60 * 1024);
+        byte[] second = randomBytes(2, 70 * 1024);
+
+        storage.writePublicKey(1L, first);
+        storage.writePublicKey(-1L, second);
+        Assert.assertArrayEquals("first key should be read back", first, storage.readPublicKey(1L));
+        Assert.assertArrayEquals("second key should be read back", second, storage.readPublicKey(-1L));
+        Assert.assertNull("unknown key should not be found", storage.readPublicKey(2L));
+
+        storage.writePublicKey(1L, second);
+        Assert.assertArrayEquals("key should be updated", second, storage.readPublicKey(1L));
+
+        storage.deletePublicKey(1L);
+        Assert.assertNull("deleted key should not be found", storage.readPublicKey(1L));
+        storage.close();
+
+        storage = new LocalPublicKeyStorage(mDirectory);
+        Assert.assertNull("deleted key should not be found after reopening", storage.readPublicKey(1L));
+        Assert.assertArrayEquals("second key should be found after reopening",
+                second, storage.readPublicKey(-1L));
+        storage.close();
+    }
+
+    @Test
+    public void testTornWriteIsDropped() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+        byte[] first = randomBytes(1, 60 * 1024);
+        storage.writePublicKey(1L, first);
+        storage.close();
+
+        // simulate a crash halfway through writing a record
+        File packFile = new File(mDirectory, "public_keys.pack");
+        long validSize = packFile.length();
+        RandomAccessFile file = new RandomAccessFile(packFile, "rw");
+        file.seek(validSize);
+        file.write(new byte[] { 0, 1, 0, 0, 1, 2, 3, 4, 5 });
+        file.close();
+
+        storage = new LocalPublicKeyStorage(mDirectory);
+        Assert.assertArrayEquals("key before torn record should be intact", first, storage.readPublicKey(1L));
+
+        byte[] second = randomBytes(2, 60 * 1024);
+        storage.writePublicKey(2L, second);
+        Assert.assertArrayEquals("key written after torn record should be read back",
+                second, storage.readPublicKey(2L));
+        Assert.assertEquals("torn record should be dropped",
+                validSize + 17 + second.length, packFile.length());
+        storage.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsNotReturned() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+        byte[] first = randomBytes(1, 60 * 1024);
+        byte[] updated = randomBytes(2, 60 * 1024);
+        byte[] second = randomBytes(3, 60 * 1024);
+        storage.writePublicKey(1L, first);
+        storage.writePublicKey(1L, updated);
+        storage.writePublicKey(2L, second);
+        storage.close();
+
+        // flip a byte in the data of the updated record, which is not at the end of the file
+        File packFile = new File(mDirectory, "public_keys.pack");
+        long corruptOffset = 16 + 17 + first.length + 17 + 100;
+        RandomAccessFile file = new RandomAccessFile(packFile, "rw");
+        file.seek(corruptOffset);
+        int value = file.read();
+        file.seek(corruptOffset);
+        file.write(value ^ 0xff);
+        file.close();
+
+        storage = new LocalPublicKeyStorage(mDirectory);
+        Assert.assertNull("neither the corrupt nor an outdated version should be returned",
+                storage.readPublicKey(1L));
+        Assert.assertArrayEquals("key after corrupt record should be intact", second, storage.readPublicKey(2L));
+        storage.close();
+    }
+
+    @Test
+    public void testCompactionIsFollowedByOtherInstances() throws Exception {
+        LocalPublicKeyStorage writer = new LocalPublicKeyStorage(mDirectory);
+        // stands in for another process, which has the pack open when it is replaced
+        LocalPublicKeyStorage reader = new LocalPublicKeyStorage(mDirectory);
+
+        byte[] kept = randomBytes(1, 60 * 1024);
+        writer.writePublicKey(1L, kept);
+        Assert.assertArrayEquals("reader should see key", kept, reader.readPublicKey(1L));
+
+        byte[] latest = null;
+        for (int i = 0; i < 50; i++) {
+            latest = randomBytes(100 + i, 60 * 1024);
+            writer.writePublicKey(2L, latest);
+        }
+
+        File packFile = new File(mDirectory, "public_keys.pack");
+        Assert.assertTrue("pack should have been compacted", packFile.length() < 25 * 60 * 1024);
+        Assert.assertArrayEquals("writer should see latest key", latest, writer.readPublicKey(2L));
+        Assert.assertArrayEquals("reader should follow to compacted pack", latest, reader.readPublicKey(2L));
+        Assert.assertArrayEquals("reader should still see other key", kept, reader.readPublicKey(1L));
+
+        writer.close();
+        reader.close();
+    }
+
+    @Test
+    public void testMigrateLegacyFiles() throws Exception {
+        File legacyDir = new File(mDirectory, "public_keys");
+        Assert.assertTrue(legacyDir.mkdir());
+        byte[] first = randomBytes(1, 60 * 1024);
+        byte[] second = randomBytes(2, 60 * 1024);
+        writeLegacyFile(legacyDir, 0x1234L, first);
+        writeLegacyFile(legacyDir, 0xfedcba9876543210L, second);
+
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+        Assert.assertArrayEquals("first key should be migrated", first, storage.readPublicKey(0x1234L));
+        Assert.assertArrayEquals("second key should be migrated",
+                second, storage.readPublicKey(0xfedcba9876543210L));
+        Assert.assertFalse("legacy directory should be removed", legacyDir.exists());
+        storage.close();
+    }
+
+    /**
+     * Compares the pack file to the previous layout of one file per key. Skipped unless the
+     * keychain.benchmark system property is set, the number of keys can be set with
+     * keychain.benchmark.keys.
+     */
+    @Test
+    public void benchmarkAgainstFilePerKey() throws Exception {
+        Assume.assumeTrue("benchmarks are only run with -Dkeychain.benchmark",
+                System.getProperty("keychain.benchmark") != null);
+        int keyCount = Integer.parseInt(System.getProperty("keychain.benchmark.keys", "2000"));
+
+        List<Long> masterKeyIds = new ArrayList<>();
+        Random random = new Random(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            masterKeyIds.add(random.nextLong());
+        }
+        byte[] data = randomBytes(0, 64 * 1024);
+
+        File legacyDir = mTempFolder.newFolder();
+        long legacyWrite = System.nanoTime();
+        for (long masterKeyId : masterKeyIds) {
+            writeLegacyFile(legacyDir, masterKeyId, data);
+        }
+        legacyWrite = System.nanoTime() - legacyWrite;
+
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mTempFolder.newFolder());
+        long packWrite = System.nanoTime();
+        for (long masterKeyId : masterKeyIds) {
+            storage.writePublicKey(masterKeyId, data);
+        }
+        packWrite = System.nanoTime() - packWrite;
+
+        Collections.shuffle(masterKeyIds, random);
+
+        long legacyRead = System.nanoTime();
+        for (long masterKeyId : masterKeyIds) {
+            readLegacyFile(legacyDir, masterKeyId);
+        }
+        legacyRead = System.nanoTime() - legacyRead;
+
+        long packRead = System.nanoTime();
+        for (long masterKeyId : masterKeyIds) {
+            storage.readPublicKey(masterKeyId);
+        }
+        packRead = System.nanoTime() - packRead;
+        storage.close();
+
+        System.out.println();
+        System.out.println("== public key storage (" + keyCount + " keys of " + data.length + " bytes)");
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %12s %12s", "layout", "write us/key", "read us/key"));
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %12.1f %12.1f", "file per key",
+                legacyWrite / 1e3 / keyCount, legacyRead / 1e3 / keyCount));
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %12.1f %12.1f", "pack",
+                packWrite / 1e3 / keyCount, packRead / 1e3 / keyCount));
+    }
+
+    private static void writeLegacyFile(File dir, long masterKeyId, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(
+                new File(dir, String.format("0x%016x.pub", masterKeyId)));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Reads the way the previous implementation did. */
+    private static byte[] readLegacyFile(File dir, long masterKeyId) throws Exception {
+        FileInputStream in = new FileInputStream(new File(dir, String.format("0x%016x.pub", masterKeyId)));
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[128];
+            int bytesRead;
+            while ((bytesRead = in.read(buf)) != -1) {
+                baos.write(buf, 0, bytesRead);
+            }
+            return baos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(int seed, int size) {
+        byte[] result = new byte[size];
+        new Random(seed).nextBytes(result);
+        return result;
+    }
+
+}
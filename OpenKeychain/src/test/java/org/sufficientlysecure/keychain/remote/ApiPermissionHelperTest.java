@@ -0,0 +1,150 @@
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.util.Locale;
+
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.net.Uri;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowBinder;
+import org.robolectric.shadows.ShadowPackageManager;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ApiPermissionHelperTest {
+    static final String PACKAGE_NAME = "test.package";
+    static final byte[] PACKAGE_SIGNATURE = new byte[] { 1, 2, 3 };
+    static final int PACKAGE_UID = 42;
+
+    ShadowPackageManager packageManager;
+    ApiDataAccessObject apiDao;
+    ApiPermissionHelper apiPermissionHelper;
+    CallerVerificationCache callerCache;
+
+    @Before
+    public void setUp() throws Exception {
+        packageManager = shadowOf(RuntimeEnvironment.application.getPackageManager());
+        packageManager.setPackagesForUid(PACKAGE_UID, PACKAGE_NAME);
+        addPackage(PACKAGE_SIGNATURE);
+        ShadowBinder.setCallingUid(PACKAGE_UID);
+
+        apiDao = new ApiDataAccessObject(RuntimeEnvironment.application);
+        apiDao.insertApiApp(new AppSettings(PACKAGE_NAME, PACKAGE_SIGNATURE));
+
+        apiPermissionHelper = new ApiPermissionHelper(RuntimeEnvironment.application, apiDao);
+        callerCache = CallerVerificationCache.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testVerificationCached() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+        long hits = callerCache.getHitCount();
+
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+        assertEquals(PACKAGE_NAME, apiPermissionHelper.getCurrentCallingPackage());
+        assertEquals(hits + 1, callerCache.getHitCount());
+    }
+
+    @Test
+    public void testRemovedAppNotAllowed() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        apiDao.deleteApiApp(PACKAGE_NAME);
+
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+    @Test
+    public void testNotAllowedIsNotCached() throws Exception {
+        apiDao.deleteApiApp(PACKAGE_NAME);
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        apiDao.insertApiApp(new AppSettings(PACKAGE_NAME, PACKAGE_SIGNATURE));
+
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+    @Test
+    public void testReplacedPackageVerifiedAgain() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        addPackage(new byte[] { 1, 2, 4 });
+        CallerVerificationCache.invalidateIfInstantiated(buildPackageIntent(Intent.ACTION_PACKAGE_REPLACED));
+
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+    }
+
+    @Test
+    public void testUninstalledPackageInvalidated() throws Exception {
+        assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+
+        // the uid is handed to a different package
+        packageManager.setPackagesForUid(PACKAGE_UID, "other.package");
+        new PackageUninstallReceiver().onReceive(RuntimeEnvironment.application,
+                buildPackageIntent(Intent.ACTION_PACKAGE_FULLY_REMOVED));
+
+        assertFalse(apiPermissionHelper.isAllowedIgnoreErrors());
+        assertEquals("other.package", apiPermissionHelper.getCurrentCallingPackage());
+    }
+
+    /**
+     * Measures the overhead of verifying the caller of a remote API call, with and without a
+     * cached verification. Skipped unless the keychain.benchmark system property is set, see
+     * PgpOperationsBenchmarkTest.
+     */
+    @Test
+    public void benchmarkCallerVerification() throws Exception {
+        Assume.assumeTrue("benchmarks are only run with -Dkeychain.benchmark",
+                System.getProperty("keychain.benchmark") != null);
+        int iterations = Integer.parseInt(System.getProperty("keychain.benchmark.iterations", "10000"));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            callerCache.invalidateAll();
+            assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+            apiPermissionHelper.getCurrentCallingPackage();
+        }
+        long uncachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            assertTrue(apiPermissionHelper.isAllowedIgnoreErrors());
+            apiPermissionHelper.getCurrentCallingPackage();
+        }
+        long cachedNanos = System.nanoTime() - start;
+
+        System.out.println();
+        System.out.println("== caller verification per call (" + iterations + " iterations)");
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %10.0f ns/call", "uncached",
+                (double) uncachedNanos / iterations));
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %10.0f ns/call", "cached",
+                (double) cachedNanos / iterations));
+    }
+
+    private void addPackage(byte[] signature) {
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.signatures = new Signature[] { new Signature(signature) };
+        packageInfo.packageName = PACKAGE_NAME;
+        packageManager.addPackage(packageInfo);
+    }
+
+    private static Intent buildPackageIntent(String action) {
+        Intent intent = new Intent(action, Uri.fromParts("package", PACKAGE_NAME, null));
+        intent.putExtra(Intent.EXTRA_UID, PACKAGE_UID);
+        return intent;
+    }
+}
@@ -4,6 +4,7 @@ package org.sufficientlysecure.keychain.remote;
 import java.security.AccessControlException;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Locale;
 
 import android.content.ContentResolver;
 import android.content.pm.PackageInfo;
@@ -24,6 +25,7 @@ import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
 import org.sufficientlysecure.keychain.provider.AutocryptPeerDataAccessObject;
+import org.sufficientlysecure.keychain.provider.EmailStatusCache;
 import org.sufficientlysecure.keychain.provider.KeyRepositorySaveTest;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.provider.KeychainExternalContract;
@@ -371,6 +373,127 @@ public class KeychainExternalProviderTest {
         assertFalse(cursor.moveToNext());
     }
 
+    @Test
+    public void testEmailStatus_cachedUntilKeyChange() throws Exception {
+        EmailStatusCache cache = EmailStatusCache.getInstance(RuntimeEnvironment.application);
+        String[] projection = new String[] { EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID_STATUS };
+
+        Cursor cursor = contentResolver.query(EmailStatus.CONTENT_URI, projection,
+                null, new String [] { MAIL_ADDRESS_1 }, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(KeychainExternalContract.KEY_STATUS_UNAVAILABLE, cursor.getInt(1));
+
+        long hitCount = cache.getHitCount();
+        cursor = contentResolver.query(EmailStatus.CONTENT_URI, projection,
+                null, new String [] { MAIL_ADDRESS_1 }, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(hitCount + 1, cache.getHitCount());
+
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+
+        cursor = contentResolver.query(EmailStatus.CONTENT_URI, projection,
+                null, new String [] { MAIL_ADDRESS_1 }, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("saving a key must invalidate cached results",
+                KeychainExternalContract.KEY_STATUS_UNVERIFIED, cursor.getInt(1));
+    }
+
+    @Test
+    public void testAutocryptStatus_cachedUntilPeerChange() throws Exception {
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+        String[] projection = new String[] { AutocryptStatus.ADDRESS, AutocryptStatus.AUTOCRYPT_PEER_STATE };
+
+        Cursor cursor = contentResolver.query(AutocryptStatus.CONTENT_URI, projection,
+                null, new String [] { AUTOCRYPT_PEER }, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(AutocryptStatus.AUTOCRYPT_PEER_RESET, cursor.getInt(1));
+
+        autocryptPeerDao.updateToGossipState(AUTOCRYPT_PEER, new Date(), KEY_ID_PUBLIC);
+
+        cursor = contentResolver.query(AutocryptStatus.CONTENT_URI, projection,
+                null, new String [] { AUTOCRYPT_PEER }, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("peer changes must invalidate cached results",
+                AutocryptStatus.AUTOCRYPT_PEER_GOSSIP, cursor.getInt(1));
+    }
+
+    @Test
+    public void testEmailStatus_matchesAddressOnly() throws Exception {
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+
+        Cursor cursor = contentResolver.query(
+                EmailStatus.CONTENT_URI, new String[] { EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID },
+                null, new String [] { "TWI@openkeychain.org", "tw_@openkeychain.org", "TWI@openkeychain.org" }, null
+        );
+
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToNext());
+        assertEquals("TWI@openkeychain.org", cursor.getString(0));
+        assertEquals("addresses are matched case insensitively", USER_ID_1, cursor.getString(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals("tw_@openkeychain.org", cursor.getString(0));
+        assertTrue("addresses are not matched as patterns", cursor.isNull(1));
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void testEmailStatus_withSortOrder() throws Exception {
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+
+        Cursor cursor = contentResolver.query(
+                EmailStatus.CONTENT_URI, new String[] { EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID },
+                null, new String [] { MAIL_ADDRESS_2, MAIL_ADDRESS_1 }, EmailStatus.EMAIL_ADDRESS + " DESC"
+        );
+
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToNext());
+        assertEquals(MAIL_ADDRESS_1, cursor.getString(0));
+        assertEquals(USER_ID_1, cursor.getString(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals(MAIL_ADDRESS_2, cursor.getString(0));
+        assertTrue(cursor.isNull(1));
+        assertFalse(cursor.moveToNext());
+    }
+
+    @Test
+    public void testEmailStatus_withSortOrderAndManyAddresses() throws Exception {
+        insertPublicKeyringFrom("/test-keys/testring.pub");
+
+        // more than SQLite allows as terms of a compound select, or as bound arguments
+        String[] addresses = new String[1200];
+        for (int i = 0; i < addresses.length - 2; i++) {
+            addresses[i] = String.format(Locale.ENGLISH, "user%04d@example.com", i);
+        }
+        addresses[addresses.length - 2] = MAIL_ADDRESS_1;
+        addresses[addresses.length - 1] = "o'brien@example.com";
+
+        Cursor cursor = contentResolver.query(
+                EmailStatus.CONTENT_URI, new String[] { EmailStatus.EMAIL_ADDRESS, EmailStatus.USER_ID },
+                null, addresses, EmailStatus.EMAIL_ADDRESS + " DESC"
+        );
+
+        assertNotNull(cursor);
+        assertEquals(addresses.length, cursor.getCount());
+        String previous = null;
+        boolean foundUserId = false;
+        while (cursor.moveToNext()) {
+            String address = cursor.getString(0);
+            if (previous != null) {
+                assertTrue("rows must be sorted by the given order", previous.compareTo(address) > 0);
+            }
+            if (MAIL_ADDRESS_1.equals(address)) {
+                assertEquals(USER_ID_1, cursor.getString(1));
+                foundUserId = true;
+            }
+            previous = address;
+        }
+        assertTrue(foundUserId);
+    }
 
     @Test(expected = AccessControlException.class)
     public void testPermission__withExplicitPackage() throws Exception {
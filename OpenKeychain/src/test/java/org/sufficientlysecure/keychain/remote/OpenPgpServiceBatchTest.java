@@ -0,0 +1,302 @@
+package org.sufficientlysecure.keychain.remote;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.Signature;
+import android.os.Bundle;
+import android.os.Parcel;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openintents.openpgp.util.OpenPgpApi;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowBinder;
+import org.robolectric.shadows.ShadowPackageManager;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.ApiDataAccessObject;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+
+@RunWith(KeychainTestRunner.class)
+public class OpenPgpServiceBatchTest {
+    static final String PACKAGE_NAME = "test.package";
+    static final byte[] PACKAGE_SIGNATURE = new byte[] { 1, 2, 3 };
+    static final int PACKAGE_UID = 42;
+
+    static UncachedKeyRing secretKeyRing;
+
+    KeyWritableRepository keyRepository;
+    OpenPgpService openPgpService;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+
+        SaveKeyringParcel.Builder builder = SaveKeyringParcel.buildNewKeyringParcel();
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.CERTIFY_OTHER, 0L));
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256, KeyFlags.SIGN_DATA, 0L));
+        builder.addSubkeyAdd(SubkeyAdd.createSubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256, KeyFlags.ENCRYPT_COMMS, 0L));
+        builder.addUserId("batch <batch@openkeychain.org>");
+        builder.setNewUnlock(ChangeUnlockParcel.createUnLockParcelForNewKey(new Passphrase()));
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(builder.build());
+        assertTrue("key creation must succeed", result.success());
+        secretKeyRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowPackageManager packageManager = shadowOf(RuntimeEnvironment.application.getPackageManager());
+        packageManager.setPackagesForUid(PACKAGE_UID, PACKAGE_NAME);
+        PackageInfo packageInfo = new PackageInfo();
+        packageInfo.signatures = new Signature[] { new Signature(PACKAGE_SIGNATURE) };
+        packageInfo.packageName = PACKAGE_NAME;
+        packageManager.addPackage(packageInfo);
+        ShadowBinder.setCallingUid(PACKAGE_UID);
+
+        keyRepository = KeyWritableRepository.create(RuntimeEnvironment.application);
+        assertTrue(keyRepository.saveSecretKeyRing(secretKeyRing).success());
+
+        ApiDataAccessObject apiDao = new ApiDataAccessObject(RuntimeEnvironment.application);
+        apiDao.insertApiApp(new AppSettings(PACKAGE_NAME, PACKAGE_SIGNATURE));
+        apiDao.addAllowedKeyIdForApp(PACKAGE_NAME, secretKeyRing.getMasterKeyId());
+
+        openPgpService = Robolectric.setupService(OpenPgpService.class);
+    }
+
+    @Test
+    public void testDecryptVerifyBatch() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(input);
+        writeMessage(out, encrypt("first".getBytes()), "sender@openkeychain.org");
+        writeMessage(out, new byte[] { 1, 2, 3, 4 }, null);
+        writeMessage(out, encrypt("third".getBytes()), null);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = openPgpService.executeInternalWithStreams(createBatchIntent(),
+                new ByteArrayInputStream(input.toByteArray()), output);
+
+        assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, result.getIntExtra(OpenPgpApi.RESULT_CODE, -1));
+        assertEquals(3, result.getIntExtra(OpenPgpService.RESULT_BATCH_MESSAGE_COUNT, -1));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Bundle extras = readResult(in, data);
+        assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, extras.getInt(OpenPgpApi.RESULT_CODE));
+        assertArrayEquals("first".getBytes(), data.toByteArray());
+
+        // a broken message fails on its own, without affecting the others
+        extras = readResult(in, data);
+        assertEquals(OpenPgpApi.RESULT_CODE_ERROR, extras.getInt(OpenPgpApi.RESULT_CODE));
+
+        extras = readResult(in, data);
+        assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, extras.getInt(OpenPgpApi.RESULT_CODE));
+        assertArrayEquals("third".getBytes(), data.toByteArray());
+
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testDecryptVerifyBatch_withLargeMessage() throws Exception {
+        // several result chunks worth of data
+        byte[] plaintext = new byte[300 * 1024];
+        new Random(42).nextBytes(plaintext);
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(input);
+        writeMessage(out, encrypt(plaintext), null);
+        writeMessage(out, encrypt("second".getBytes()), null);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = openPgpService.executeInternalWithStreams(createBatchIntent(),
+                new ByteArrayInputStream(input.toByteArray()), output);
+        assertEquals(2, result.getIntExtra(OpenPgpService.RESULT_BATCH_MESSAGE_COUNT, -1));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        AtomicInteger chunkCount = new AtomicInteger();
+
+        Bundle extras = readResult(in, data, chunkCount);
+        assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, extras.getInt(OpenPgpApi.RESULT_CODE));
+        assertArrayEquals(plaintext, data.toByteArray());
+        assertTrue("large results must be split into chunks", chunkCount.get() > 1);
+
+        extras = readResult(in, data);
+        assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, extras.getInt(OpenPgpApi.RESULT_CODE));
+        assertArrayEquals("second".getBytes(), data.toByteArray());
+
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testDecryptVerifyBatch_withEmptyInput() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Intent result = openPgpService.executeInternalWithStreams(createBatchIntent(),
+                new ByteArrayInputStream(new byte[0]), output);
+
+        assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, result.getIntExtra(OpenPgpApi.RESULT_CODE, -1));
+        assertEquals(0, result.getIntExtra(OpenPgpService.RESULT_BATCH_MESSAGE_COUNT, -1));
+        assertEquals(0, output.size());
+    }
+
+    @Test
+    public void testDecryptVerifyBatch_withTruncatedInput() throws Exception {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(input);
+        writeMessage(out, encrypt("first".getBytes()), null);
+        byte[] complete = input.toByteArray();
+        byte[] truncated = new byte[complete.length - 1];
+        System.arraycopy(complete, 0, truncated, 0, truncated.length);
+
+        Intent result = openPgpService.executeInternalWithStreams(createBatchIntent(),
+                new ByteArrayInputStream(truncated), new ByteArrayOutputStream());
+
+        assertEquals(OpenPgpApi.RESULT_CODE_ERROR, result.getIntExtra(OpenPgpApi.RESULT_CODE, -1));
+    }
+
+    /**
+     * Compares the throughput of decrypting messages one call at a time with a batch call. Skipped
+     * unless the keychain.benchmark system property is set, see PgpOperationsBenchmarkTest.
+     */
+    @Test
+    public void benchmarkBatchThroughput() throws Exception {
+        Assume.assumeTrue("benchmarks are only run with -Dkeychain.benchmark",
+                System.getProperty("keychain.benchmark") != null);
+        int messageCount = Integer.parseInt(System.getProperty("keychain.benchmark.messages", "200"));
+
+        List<byte[]> messages = new ArrayList<>();
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(input);
+        for (int i = 0; i < messageCount; i++) {
+            byte[] message = encrypt(("message " + i).getBytes());
+            messages.add(message);
+            writeMessage(out, message, null);
+        }
+
+        long start = System.nanoTime();
+        for (byte[] message : messages) {
+            Intent data = new Intent(OpenPgpApi.ACTION_DECRYPT_VERIFY);
+            data.putExtra(OpenPgpApi.EXTRA_API_VERSION, OpenPgpService.API_VERSION_WITH_AUTOCRYPT);
+            Intent result = openPgpService.executeInternalWithStreams(data,
+                    new ByteArrayInputStream(message), new ByteArrayOutputStream());
+            assertEquals(OpenPgpApi.RESULT_CODE_SUCCESS, result.getIntExtra(OpenPgpApi.RESULT_CODE, -1));
+        }
+        long singleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Intent result = openPgpService.executeInternalWithStreams(createBatchIntent(),
+                new ByteArrayInputStream(input.toByteArray()), new ByteArrayOutputStream());
+        long batchNanos = System.nanoTime() - start;
+        assertEquals(messageCount, result.getIntExtra(OpenPgpService.RESULT_BATCH_MESSAGE_COUNT, -1));
+
+        System.out.println();
+        System.out.println("== decrypt/verify throughput (" + messageCount + " messages)");
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %10.1f messages/s", "single calls",
+                messageCount / (singleNanos / 1e9)));
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %10.1f messages/s", "batch",
+                messageCount / (batchNanos / 1e9)));
+    }
+
+    private byte[] encrypt(byte[] plaintext) {
+        PgpSignEncryptData data = PgpSignEncryptData.builder()
+                .setEncryptionMasterKeyIds(new long[] { secretKeyRing.getMasterKeyId() })
+                .setSignatureMasterKeyId(secretKeyRing.getMasterKeyId())
+                .build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncryptResult result = new PgpSignEncryptOperation(RuntimeEnvironment.application, keyRepository, null)
+                .execute(data, CryptoInputParcel.createCryptoInputParcel(new Date()),
+                        new InputData(new ByteArrayInputStream(plaintext), plaintext.length), out);
+        assertTrue("encryption must succeed", result.success());
+        return out.toByteArray();
+    }
+
+    private static Intent createBatchIntent() {
+        Intent data = new Intent(OpenPgpService.ACTION_DECRYPT_VERIFY_BATCH);
+        data.putExtra(OpenPgpApi.EXTRA_API_VERSION, OpenPgpService.API_VERSION_WITH_AUTOCRYPT);
+        return data;
+    }
+
+    private static void writeMessage(DataOutputStream out, byte[] message, String senderAddress)
+            throws IOException {
+        if (senderAddress == null) {
+            out.writeInt(0);
+        } else {
+            Bundle extras = new Bundle();
+            extras.putString(OpenPgpApi.EXTRA_SENDER_ADDRESS, senderAddress);
+            Parcel parcel = Parcel.obtain();
+            parcel.writeBundle(extras);
+            byte[] marshalled = parcel.marshall();
+            parcel.recycle();
+            out.writeInt(marshalled.length);
+            out.write(marshalled);
+        }
+        out.writeInt(message.length);
+        out.write(message);
+    }
+
+    private static Bundle readResult(DataInputStream in, ByteArrayOutputStream data) throws IOException {
+        return readResult(in, data, null);
+    }
+
+    private static Bundle readResult(DataInputStream in, ByteArrayOutputStream data, AtomicInteger chunkCount)
+            throws IOException {
+        data.reset();
+        int chunkLength;
+        while ((chunkLength = in.readInt()) > 0) {
+            byte[] chunk = new byte[chunkLength];
+            in.readFully(chunk);
+            data.write(chunk);
+            if (chunkCount != null) {
+                chunkCount.incrementAndGet();
+            }
+        }
+
+        byte[] marshalled = new byte[in.readInt()];
+        in.readFully(marshalled);
+        Parcel parcel = Parcel.obtain();
+        parcel.unmarshall(marshalled, 0, marshalled.length);
+        parcel.setDataPosition(0);
+        Bundle extras = parcel.readBundle(OpenPgpServiceBatchTest.class.getClassLoader());
+        parcel.recycle();
+        return extras;
+    }
+}
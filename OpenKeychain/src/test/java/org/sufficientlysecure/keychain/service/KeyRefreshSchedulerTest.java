@@ -0,0 +1,146 @@
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.service.KeyRefreshScheduler.RefreshCandidate;
+import org.sufficientlysecure.keychain.service.KeyRefreshScheduler.TokenBucket;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeyRefreshSchedulerTest {
+
+    @Test
+    public void testAllKeysRefreshedInParallel() {
+        List<ParcelableKeyRing> keyList = createKeyList(10);
+        final List<ParcelableKeyRing> refreshed = Collections.synchronizedList(new ArrayList<ParcelableKeyRing>());
+
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler(4, 0, 0, new TokenBucket(1000, 100),
+                new AtomicBoolean(false));
+        ImportKeyResult result = scheduler.run(keyList, new KeyRefreshScheduler.KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                refreshed.add(keyRing);
+                return createResult(ImportKeyResult.RESULT_OK_UPDATED, 1);
+            }
+        });
+
+        assertEquals(10, refreshed.size());
+        assertTrue(refreshed.containsAll(keyList));
+        assertEquals(10, result.mUpdatedKeys);
+        assertTrue(result.isOkUpdated());
+    }
+
+    @Test
+    public void testPendingResultStopsRefresh() {
+        List<ParcelableKeyRing> keyList = createKeyList(10);
+        final ImportKeyResult pending = new ImportKeyResult(new OperationLog(),
+                RequiredInputParcel.createOrbotRequiredOperation(), CryptoInputParcel.createCryptoInputParcel());
+
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler(1, 0, 0, new TokenBucket(1000, 100),
+                new AtomicBoolean(false));
+        ImportKeyResult result = scheduler.run(keyList, new KeyRefreshScheduler.KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                return pending;
+            }
+        });
+
+        assertSame(pending, result);
+    }
+
+    @Test
+    public void testCancelledDuringDelay() {
+        List<ParcelableKeyRing> keyList = createKeyList(3);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        KeyRefreshScheduler scheduler = new KeyRefreshScheduler(1, 60 * 1000, 0, new TokenBucket(1000, 100),
+                cancelled);
+        long start = System.currentTimeMillis();
+        ImportKeyResult result = scheduler.run(keyList, new KeyRefreshScheduler.KeyRefresher() {
+            @Override
+            public ImportKeyResult refresh(ParcelableKeyRing keyRing) {
+                cancelled.set(true);
+                return createResult(ImportKeyResult.RESULT_OK_UPDATED, 1);
+            }
+        });
+
+        assertTrue(result.cancelled());
+        assertTrue("cancelled refresh should not wait for the delay", System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testTokenBucket() {
+        TokenBucket tokenBucket = new TokenBucket(1, 2);
+
+        assertEquals(0, tokenBucket.tryAcquire());
+        assertEquals(0, tokenBucket.tryAcquire());
+        assertTrue("bucket should be empty after burst", tokenBucket.tryAcquire() > 0);
+    }
+
+    @Test
+    public void testSortByPriority() {
+        long now = 1000000;
+        long window = 100;
+        ParcelableKeyRing refreshedLongAgo = createKeyRing(1);
+        ParcelableKeyRing refreshedRecently = createKeyRing(2);
+        ParcelableKeyRing neverRefreshed = createKeyRing(3);
+        ParcelableKeyRing expiringSoon = createKeyRing(4);
+        ParcelableKeyRing justExpired = createKeyRing(5);
+        ParcelableKeyRing expiringLater = createKeyRing(6);
+
+        List<RefreshCandidate> candidates = new ArrayList<>();
+        candidates.add(new RefreshCandidate(refreshedRecently, 0, now - 10));
+        candidates.add(new RefreshCandidate(expiringLater, now + 1000, now - 50));
+        candidates.add(new RefreshCandidate(refreshedLongAgo, 0, now - 500));
+        candidates.add(new RefreshCandidate(expiringSoon, now + 50, now - 10));
+        candidates.add(new RefreshCandidate(neverRefreshed, 0, 0));
+        candidates.add(new RefreshCandidate(justExpired, now - 50, now - 10));
+
+        KeyRefreshScheduler.sortByPriority(candidates, now, window);
+        List<ParcelableKeyRing> keyList = KeyRefreshScheduler.toKeyList(candidates);
+
+        assertSame(justExpired, keyList.get(0));
+        assertSame(expiringSoon, keyList.get(1));
+        assertSame(neverRefreshed, keyList.get(2));
+        assertSame(refreshedLongAgo, keyList.get(3));
+        assertSame(expiringLater, keyList.get(4));
+        assertSame(refreshedRecently, keyList.get(5));
+    }
+
+    private static ImportKeyResult createResult(int resultType, int updatedKeys) {
+        ImportKeyResult result = new ImportKeyResult(resultType, new OperationLog(),
+                0, updatedKeys, 0, 0, 0, new long[] { });
+        result.setCanonicalizedKeyRings(new ArrayList<CanonicalizedKeyRing>());
+        return result;
+    }
+
+    private static List<ParcelableKeyRing> createKeyList(int count) {
+        List<ParcelableKeyRing> keyList = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keyList.add(createKeyRing(i));
+        }
+        return keyList;
+    }
+
+    private static ParcelableKeyRing createKeyRing(long keyId) {
+        return ParcelableKeyRing.createFromReference(null, "0x" + Long.toHexString(keyId), null, null);
+    }
+
+}
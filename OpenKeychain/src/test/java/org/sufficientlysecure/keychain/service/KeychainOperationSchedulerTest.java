@@ -0,0 +1,224 @@
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Messenger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.service.KeychainOperationScheduler.Lane;
+import org.sufficientlysecure.keychain.service.KeychainOperationScheduler.OperationRunner;
+import org.sufficientlysecure.keychain.service.KeychainOperationScheduler.ScheduledOperation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+@RunWith(KeychainTestRunner.class)
+public class KeychainOperationSchedulerTest {
+
+    @Test
+    public void testInteractiveNotDelayedByBackground() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch releaseBackground = new CountDownLatch(1);
+        CountDownLatch backgroundStarted = new CountDownLatch(1);
+
+        scheduler.submit(Lane.BACKGROUND, null, null, null, blockingRunner(backgroundStarted, releaseBackground));
+        scheduler.submit(Lane.BACKGROUND, null, null, null, blockingRunner(null, releaseBackground));
+        assertTrue(backgroundStarted.await(5, TimeUnit.SECONDS));
+
+        CountDownLatch interactiveDone = new CountDownLatch(1);
+        scheduler.submit(Lane.INTERACTIVE, null, null, null, blockingRunner(interactiveDone, null));
+
+        assertTrue("interactive operation must run while the background lane is busy",
+                interactiveDone.await(5, TimeUnit.SECONDS));
+        assertEquals(1, scheduler.getQueueDepth(Lane.BACKGROUND));
+
+        releaseBackground.countDown();
+    }
+
+    @Test
+    public void testIdenticalBackgroundRequestsCoalesced() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(2);
+
+        OperationRunner runner = new OperationRunner() {
+            @Override
+            public void run(ScheduledOperation operation) {
+                runs.incrementAndGet();
+                finished.countDown();
+            }
+        };
+
+        // keep the lane busy, so the requests below are still queued
+        scheduler.submit(Lane.BACKGROUND, null, null, null, blockingRunner(started, release));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        ScheduledOperation first = scheduler.submit(Lane.BACKGROUND, "a", "key", createMessenger(), runner);
+        ScheduledOperation second = scheduler.submit(Lane.BACKGROUND, "b", "key", createMessenger(), runner);
+        ScheduledOperation other = scheduler.submit(Lane.BACKGROUND, "c", "other key", createMessenger(), runner);
+
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertEquals(2, first.getMessengers().size());
+
+        release.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals("coalesced requests must run only once", 2, runs.get());
+    }
+
+    @Test
+    public void testNoCoalescingAfterResult() throws Exception {
+        final KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 2);
+        final CountDownLatch resultSent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ScheduledOperation first = scheduler.submit(Lane.BACKGROUND, "a", "key", null, new OperationRunner() {
+            @Override
+            public void run(ScheduledOperation operation) {
+                // like KeychainService, right before the result is sent
+                scheduler.stopCoalescing(operation);
+                resultSent.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(resultSent.await(5, TimeUnit.SECONDS));
+
+        ScheduledOperation second = scheduler.submit(Lane.BACKGROUND, "b", "key", null,
+                blockingRunner(null, null));
+        assertNotSame("request must not attach to an operation which already sent its result", first, second);
+
+        release.countDown();
+    }
+
+    @Test
+    public void testNoCoalescingAfterCancel() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ScheduledOperation first = scheduler.submit(Lane.BACKGROUND, "a", "key", null,
+                blockingRunner(null, release));
+        assertTrue(scheduler.cancel("a"));
+        assertTrue(first.mCancelled.get());
+
+        ScheduledOperation second = scheduler.submit(Lane.BACKGROUND, "b", "key", null,
+                blockingRunner(null, release));
+        assertNotSame("request must not attach to a cancelled operation", first, second);
+        assertFalse(second.mCancelled.get());
+
+        ScheduledOperation third = scheduler.submit(Lane.BACKGROUND, "c", "key", null,
+                blockingRunner(null, release));
+        assertSame("requests must attach to the new operation instead", second, third);
+
+        release.countDown();
+    }
+
+    @Test
+    public void testInteractiveRequestsNotCoalesced() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ScheduledOperation first = scheduler.submit(Lane.INTERACTIVE, "a", "key", null,
+                blockingRunner(null, release));
+        ScheduledOperation second = scheduler.submit(Lane.INTERACTIVE, "b", "key", null,
+                blockingRunner(null, release));
+
+        assertNotSame(first, second);
+        release.countDown();
+    }
+
+    @Test
+    public void testCancelSingleOperation() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ScheduledOperation first = scheduler.submit(Lane.INTERACTIVE, "a", null, null,
+                blockingRunner(null, release));
+        ScheduledOperation second = scheduler.submit(Lane.INTERACTIVE, "b", null, null,
+                blockingRunner(null, release));
+
+        assertTrue(scheduler.cancel("b"));
+        assertFalse(first.mCancelled.get());
+        assertTrue(second.mCancelled.get());
+        assertFalse("unknown operations can't be cancelled", scheduler.cancel("unknown"));
+
+        scheduler.cancelAll();
+        assertTrue(first.mCancelled.get());
+
+        release.countDown();
+    }
+
+    @Test
+    public void testCoalescedOperationCancelledByAllRequests() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ScheduledOperation operation = scheduler.submit(Lane.BACKGROUND, "a", "key", null,
+                blockingRunner(null, release));
+        scheduler.submit(Lane.BACKGROUND, "b", "key", null, blockingRunner(null, release));
+
+        assertTrue(scheduler.cancel("a"));
+        assertFalse("operation must go on for the remaining request", operation.mCancelled.get());
+        assertTrue(scheduler.cancel("b"));
+        assertTrue(operation.mCancelled.get());
+
+        release.countDown();
+    }
+
+    @Test
+    public void testWaitTimeMetrics() throws Exception {
+        KeychainOperationScheduler scheduler = new KeychainOperationScheduler(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+
+        scheduler.submit(Lane.INTERACTIVE, null, null, null, blockingRunner(null, release));
+        scheduler.submit(Lane.INTERACTIVE, null, null, null, blockingRunner(done, null));
+        assertEquals(1, scheduler.getQueueDepth(Lane.INTERACTIVE));
+
+        Thread.sleep(50);
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertTrue(scheduler.getMaxWaitMillis(Lane.INTERACTIVE) >= 50);
+        assertTrue(scheduler.getAverageWaitMillis(Lane.INTERACTIVE) <= scheduler.getMaxWaitMillis(Lane.INTERACTIVE));
+        assertEquals(0, scheduler.getMaxWaitMillis(Lane.BACKGROUND));
+    }
+
+    private static OperationRunner blockingRunner(final CountDownLatch started, final CountDownLatch release) {
+        return new OperationRunner() {
+            @Override
+            public void run(ScheduledOperation operation) {
+                if (started != null) {
+                    started.countDown();
+                }
+                if (release != null) {
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+    }
+
+    private static Messenger createMessenger() {
+        return new Messenger(new Handler(Looper.getMainLooper()));
+    }
+}
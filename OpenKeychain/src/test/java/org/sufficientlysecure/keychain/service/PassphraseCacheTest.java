@@ -0,0 +1,217 @@
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+@RunWith(KeychainTestRunner.class)
+public class PassphraseCacheTest {
+
+    @Test
+    public void testPassphraseExpiresAfterTtl() {
+        PassphraseCache cache = new PassphraseCache();
+        cache.put(1L, new Passphrase("a"), "uid", 10, 5000L);
+
+        assertEquals(new Passphrase("a"), cache.get(1L, 14999L));
+        assertNull("passphrase must not be returned after its ttl, even before the wheel ticked",
+                cache.get(1L, 15000L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTimerWheelRemovesExpiredPassphrases() {
+        PassphraseCache cache = new PassphraseCache();
+        Passphrase shortLived = new Passphrase("a");
+        cache.put(1L, shortLived, "uid", 10, 0L);
+        // further away than one rotation of the wheel
+        cache.put(2L, new Passphrase("b"), "uid", 3600, 0L);
+        cache.put(3L, new Passphrase("c"), "uid", Integer.MAX_VALUE, 0L);
+
+        assertEquals(10000L, cache.getNextExpiryTime());
+        for (long now = 0; now < 10000L; now += PassphraseCache.TICK_MILLIS) {
+            cache.expire(now);
+        }
+        assertEquals(3, cache.size());
+
+        assertEquals(1, cache.expire(10000L));
+        assertEquals(2, cache.size());
+        assertEquals("expired passphrases must be wiped", " ", shortLived.toStringUnsafe());
+        assertEquals(3600000L, cache.getNextExpiryTime());
+
+        for (long now = 11000L; now < 3600000L; now += PassphraseCache.TICK_MILLIS) {
+            assertEquals(0, cache.expire(now));
+        }
+        assertEquals(1, cache.expire(3600000L));
+        assertFalse(cache.hasPendingTimeouts());
+        assertEquals(1, cache.size());
+        assertEquals(-1L, cache.getNextExpiryTime());
+    }
+
+    @Test
+    public void testTimerWheelCatchesUpAfterSleep() {
+        PassphraseCache cache = new PassphraseCache();
+        cache.expire(0L);
+        cache.put(1L, new Passphrase("a"), "uid", 10, 0L);
+        cache.put(2L, new Passphrase("b"), "uid", 7200, 0L);
+
+        // no ticks while the device slept
+        assertEquals(2, cache.expire(7200000L));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testReplacedPassphraseNotRemovedByOldTimeout() {
+        PassphraseCache cache = new PassphraseCache();
+        cache.put(1L, new Passphrase("a"), "uid", 10, 0L);
+        cache.put(1L, new Passphrase("b"), "uid", 60, 0L);
+
+        assertEquals(1, cache.expire(10000L));
+        assertEquals(new Passphrase("b"), cache.get(1L, 10000L));
+        assertEquals(1, cache.expire(60000L));
+        assertNull(cache.get(1L, 60000L));
+    }
+
+    @Test
+    public void testScreenLockPassphrasesRemoved() {
+        PassphraseCache cache = new PassphraseCache();
+        cache.put(1L, new Passphrase("a"), "uid", 0, 0L);
+        cache.put(2L, new Passphrase("b"), "uid", 60, 0L);
+
+        cache.removeScreenLockPassphrases();
+
+        assertNull(cache.get(1L, 0L));
+        assertEquals(new Passphrase("b"), cache.get(2L, 0L));
+    }
+
+    @Test
+    public void testReturnedPassphraseIsCopy() {
+        PassphraseCache cache = new PassphraseCache();
+        cache.put(1L, new Passphrase("a"), "uid", Integer.MAX_VALUE, 0L);
+
+        Passphrase first = cache.get(1L, 0L);
+        first.removeFromMemory();
+
+        Passphrase second = cache.get(1L, 0L);
+        assertNotSame(first, second);
+        assertEquals(new Passphrase("a"), second);
+    }
+
+    @Test
+    public void testGetThroughBoundService() throws Exception {
+        PassphraseCacheService service = Robolectric.setupService(PassphraseCacheService.class);
+        IBinder binder = service.onBind(new Intent(RuntimeEnvironment.application, PassphraseCacheService.class));
+        try {
+            addSymmetricPassphrase(service, "symmetric");
+
+            Passphrase passphrase = PassphraseCacheService.getCachedPassphrase(binder,
+                    Constants.key.symmetric, Constants.key.symmetric);
+            assertEquals(new Passphrase("symmetric"), passphrase);
+        } finally {
+            service.onDestroy();
+        }
+
+        try {
+            PassphraseCacheService.getCachedPassphrase(binder, Constants.key.symmetric, Constants.key.symmetric);
+            fail("a destroyed service must not answer lookups");
+        } catch (RemoteException e) {
+            // callers fall back to an intent
+        }
+    }
+
+    /**
+     * Measures the latency of passphrase lookups. Skipped unless the keychain.benchmark system
+     * property is set, see PgpOperationsBenchmarkTest.
+     */
+    @Test
+    public void benchmarkGetLatency() throws Exception {
+        Assume.assumeTrue("benchmarks are only run with -Dkeychain.benchmark",
+                System.getProperty("keychain.benchmark") != null);
+        int iterations = Integer.parseInt(System.getProperty("keychain.benchmark.iterations", "100000"));
+
+        final PassphraseCache cache = new PassphraseCache();
+        for (long keyId = 0; keyId < 100; keyId++) {
+            cache.put(keyId, new Passphrase("passphrase"), "uid", 3600, 0L);
+        }
+
+        System.out.println();
+        System.out.println("== passphrase cache get latency (" + iterations + " iterations)");
+        reportLatency("PassphraseCache.get, 1 thread", measureGets(cache, 1, iterations), iterations);
+        reportLatency("PassphraseCache.get, 4 threads", measureGets(cache, 4, iterations), iterations);
+
+        PassphraseCacheService service = Robolectric.setupService(PassphraseCacheService.class);
+        IBinder binder = service.onBind(new Intent(RuntimeEnvironment.application, PassphraseCacheService.class));
+        try {
+            addSymmetricPassphrase(service, "passphrase");
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                PassphraseCacheService.getCachedPassphrase(binder, Constants.key.symmetric, Constants.key.symmetric);
+            }
+            // without the binder driver, this leaves out the cost of the process switch
+            reportLatency("getCachedPassphrase, bound service", System.nanoTime() - start, iterations);
+        } finally {
+            service.onDestroy();
+        }
+    }
+
+    private static void addSymmetricPassphrase(PassphraseCacheService service, String passphrase) {
+        Intent intent = new Intent(RuntimeEnvironment.application, PassphraseCacheService.class);
+        intent.setAction(PassphraseCacheService.ACTION_PASSPHRASE_CACHE_ADD);
+        intent.putExtra(PassphraseCacheService.EXTRA_TTL, Integer.MAX_VALUE);
+        intent.putExtra(PassphraseCacheService.EXTRA_PASSPHRASE, new Passphrase(passphrase));
+        intent.putExtra(PassphraseCacheService.EXTRA_KEY_ID, Constants.key.symmetric);
+        intent.putExtra(PassphraseCacheService.EXTRA_SUBKEY_ID, Constants.key.symmetric);
+        intent.putExtra(PassphraseCacheService.EXTRA_USER_ID, "symmetric");
+        service.onStartCommand(intent, 0, 1);
+    }
+
+    /** Returns the total time in nanoseconds the threads spent on their share of the gets. */
+    private static long measureGets(final PassphraseCache cache, int threads, final int iterations)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong totalNanos = new AtomicLong();
+        for (int t = 0; t < threads; t++) {
+            final int perThread = iterations / threads;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < perThread; i++) {
+                        cache.get(i % 100, 1000L);
+                    }
+                    totalNanos.addAndGet(System.nanoTime() - start);
+                    done.countDown();
+                }
+            }).start();
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        return totalNanos.get();
+    }
+
+    private static void reportLatency(String label, long totalNanos, int iterations) {
+        System.out.println(String.format(Locale.ENGLISH, "%-40s %10.0f ns/get", label,
+                (double) totalNanos / iterations));
+    }
+}